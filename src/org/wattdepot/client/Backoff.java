@@ -0,0 +1,83 @@
+package org.wattdepot.client;
+
+import java.util.Random;
+
+/**
+ * Computes how long to wait before retrying after the WattDepot server reports that it is too busy.
+ * Each consecutive retry waits about twice as long as the one before, up to a maximum, and the
+ * waits are randomized so that many sensors refused at the same moment do not all come back at the
+ * same moment. A wait is never shorter than the Retry-After time the server asked for.
+ * 
+ * @author Robert Brewer
+ */
+public class Backoff {
+
+  /** The default wait before the first retry, in milliseconds. */
+  public static final long DEFAULT_BASE_DELAY = 1000;
+
+  /** The default longest wait between retries, in milliseconds. */
+  public static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+
+  /** The wait before the first retry, in milliseconds. */
+  private final long baseDelay;
+
+  /** The longest wait between retries, in milliseconds. */
+  private final long maxDelay;
+
+  /** Source of the random part of each wait. */
+  private final Random random = new Random();
+
+  /** The number of consecutive retries so far. */
+  private int attempts = 0;
+
+  /**
+   * Creates a new Backoff with the default delays.
+   */
+  public Backoff() {
+    this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * Creates a new Backoff with the given delays.
+   * 
+   * @param baseDelay The wait before the first retry, in milliseconds.
+   * @param maxDelay The longest wait between retries, in milliseconds.
+   */
+  public Backoff(long baseDelay, long maxDelay) {
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+  }
+
+  /**
+   * Returns how long to wait before the next retry, and counts the retry. The wait is somewhere
+   * between half and all of the exponential delay for this retry, but at least the given minimum.
+   * 
+   * @param minimum The shortest acceptable wait in milliseconds, such as the Retry-After time sent
+   * by the server, or 0.
+   * @return The wait in milliseconds.
+   */
+  public synchronized long nextDelay(long minimum) {
+    // Cap the shift so the delay cannot overflow however many retries there have been
+    long delay = Math.min(this.maxDelay, this.baseDelay << Math.min(this.attempts, 30));
+    this.attempts++;
+    long half = delay / 2;
+    long jittered = half + (long) (this.random.nextDouble() * (delay - half));
+    return Math.max(minimum, jittered);
+  }
+
+  /**
+   * Returns the number of consecutive retries counted since the last reset.
+   * 
+   * @return The number of retries.
+   */
+  public synchronized int getAttempts() {
+    return this.attempts;
+  }
+
+  /**
+   * Starts over with the shortest delay, after a request has succeeded.
+   */
+  public synchronized void reset() {
+    this.attempts = 0;
+  }
+}
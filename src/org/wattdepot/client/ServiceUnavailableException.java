@@ -0,0 +1,42 @@
+package org.wattdepot.client;
+
+import org.restlet.data.Status;
+
+/**
+ * An exception that is thrown when the WattDepot server reports that it is too busy to handle the
+ * request right now, and the client has run out of retries. Callers that send data regularly, such
+ * as sensors, should wait at least getRetryAfter() milliseconds before trying again.
+ * 
+ * @author Robert Brewer
+ */
+public class ServiceUnavailableException extends MiscClientException {
+
+  /**
+   * The serialization UID, not that we'll ever use it.
+   */
+  private static final long serialVersionUID = -3022479614310467251L;
+
+  /** The time the server asked the client to wait, in milliseconds. */
+  private final long retryAfter;
+
+  /**
+   * Thrown when the server is too busy to handle the request.
+   * 
+   * @param status The Status instance indicating the problem.
+   * @param retryAfter The time the server asked the client to wait in milliseconds, or 0 if it did
+   * not say.
+   */
+  public ServiceUnavailableException(Status status, long retryAfter) {
+    super(status);
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Returns the time the server asked the client to wait before trying again.
+   * 
+   * @return The wait in milliseconds, or 0 if the server did not say.
+   */
+  public long getRetryAfter() {
+    return this.retryAfter;
+  }
+}
@@ -0,0 +1,40 @@
+package org.wattdepot.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the Backoff class.
+ * 
+ * @author Robert Brewer
+ */
+public class TestBackoff {
+
+  /**
+   * Tests that delays grow exponentially within their jitter range, stop at the maximum, honour the
+   * minimum, and start over after a reset.
+   */
+  @Test
+  public void testNextDelay() {
+    Backoff backoff = new Backoff(100, 1000);
+    long[] ceilings = { 100, 200, 400, 800, 1000, 1000 };
+    for (long ceiling : ceilings) {
+      long delay = backoff.nextDelay(0);
+      assertTrue("Delay " + delay + " below range", delay >= ceiling / 2);
+      assertTrue("Delay " + delay + " above range", delay <= ceiling);
+    }
+    assertEquals("Wrong number of attempts", ceilings.length, backoff.getAttempts());
+    assertEquals("Minimum not honoured", 5000, backoff.nextDelay(5000));
+
+    backoff.reset();
+    assertTrue("Reset did not start over", backoff.nextDelay(0) <= 100);
+
+    // Many retries must not overflow
+    for (int i = 0; i < 100; i++) {
+      long delay = backoff.nextDelay(0);
+      assertTrue("Delay out of range after many retries", (delay >= 500) || (i < 5));
+      assertTrue("Delay above maximum", delay <= 1000);
+    }
+  }
+}
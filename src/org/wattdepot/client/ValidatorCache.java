@@ -0,0 +1,134 @@
+package org.wattdepot.client;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.Language;
+import org.restlet.data.MediaType;
+import org.restlet.data.Tag;
+import org.restlet.resource.Representation;
+import org.restlet.resource.StringRepresentation;
+
+/**
+ * A bounded cache of representations previously retrieved from the server, along with the
+ * validators (entity tag and modification date) that the server sent with them. WattDepotClient
+ * uses it to turn repeated GET requests into conditional requests, so that when the server answers
+ * 304 (Not Modified) the cached representation can be reused without transferring or regenerating
+ * it. The least recently used entries are discarded once the capacity is reached. All methods are
+ * thread-safe.
+ * 
+ * @author Robert Brewer
+ */
+class ValidatorCache {
+
+  /** The cached entries, in access order so the eldest entry is the least recently used. */
+  private final Map<String, Entry> entries;
+
+  /**
+   * Creates a new cache that will hold at most the given number of representations.
+   * 
+   * @param capacity The maximum number of representations to hold.
+   */
+  ValidatorCache(final int capacity) {
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      /** The serialization UID, not that we'll ever use it. */
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Returns the entity tag of the cached representation for the given request, or null if there is
+   * none.
+   * 
+   * @param key The request string.
+   * @return The entity tag, or null.
+   */
+  public synchronized Tag getTag(String key) {
+    Entry entry = this.entries.get(key);
+    return (entry == null) ? null : entry.tag;
+  }
+
+  /**
+   * Returns a fresh copy of the cached representation for the given request, or null if there is
+   * none.
+   * 
+   * @param key The request string.
+   * @return The representation, or null.
+   */
+  public synchronized Representation getRepresentation(String key) {
+    Entry entry = this.entries.get(key);
+    return (entry == null) ? null : entry.toRepresentation();
+  }
+
+  /**
+   * Stores a representation and its validators for the given request.
+   * 
+   * @param key The request string.
+   * @param text The text of the representation.
+   * @param mediaType The media type of the representation.
+   * @param tag The entity tag sent by the server, must not be null.
+   * @param modificationDate The modification date sent by the server, may be null.
+   */
+  public synchronized void put(String key, String text, MediaType mediaType, Tag tag,
+      Date modificationDate) {
+    this.entries.put(key, new Entry(text, mediaType, tag, modificationDate));
+  }
+
+  /**
+   * Discards any cached representation for the given request.
+   * 
+   * @param key The request string.
+   */
+  public synchronized void remove(String key) {
+    this.entries.remove(key);
+  }
+
+  /**
+   * A cached representation and its validators.
+   */
+  private static final class Entry {
+    /** The text of the representation. */
+    private final String text;
+    /** The media type of the representation. */
+    private final MediaType mediaType;
+    /** The entity tag. */
+    private final Tag tag;
+    /** The modification date, or null. */
+    private final Date modificationDate;
+
+    /**
+     * Creates a new entry.
+     * 
+     * @param text The text of the representation.
+     * @param mediaType The media type of the representation.
+     * @param tag The entity tag.
+     * @param modificationDate The modification date, or null.
+     */
+    private Entry(String text, MediaType mediaType, Tag tag, Date modificationDate) {
+      this.text = text;
+      this.mediaType = mediaType;
+      this.tag = tag;
+      this.modificationDate = modificationDate;
+    }
+
+    /**
+     * Creates a new representation from this entry. Representations can only be read once, so a
+     * new one is needed for each use.
+     * 
+     * @return The new representation.
+     */
+    private Representation toRepresentation() {
+      StringRepresentation rep =
+          new StringRepresentation(this.text, this.mediaType, Language.ALL, CharacterSet.UTF_8);
+      rep.setTag(this.tag);
+      rep.setModificationDate(this.modificationDate);
+      return rep;
+    }
+  }
+}
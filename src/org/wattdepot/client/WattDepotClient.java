@@ -14,6 +14,7 @@ import org.restlet.Client;
 import org.restlet.data.ChallengeResponse;
 import org.restlet.data.ChallengeScheme;
 import org.restlet.data.CharacterSet;
+import org.restlet.data.Form;
 import org.restlet.data.Language;
 import org.restlet.data.MediaType;
 import org.restlet.data.Method;
@@ -23,8 +24,10 @@ import org.restlet.data.Reference;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.resource.Representation;
 import org.restlet.resource.StringRepresentation;
+import org.wattdepot.resource.energy.Energy;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
 import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
 import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
@@ -66,6 +69,21 @@ public class WattDepotClient {
   /** The Restlet Client instance used to communicate with the server. */
   private Client client;
 
+  /** The maximum number of representations kept for conditional GET requests. */
+  private static final int VALIDATOR_CACHE_SIZE = 200;
+
+  /** Representations from earlier GET requests, used to make repeat requests conditional. */
+  private final ValidatorCache validatorCache = new ValidatorCache(VALIDATOR_CACHE_SIZE);
+
+  /** The default number of times a request is retried when the server is too busy. */
+  public static final int DEFAULT_MAX_RETRIES = 2;
+
+  /** The number of times a request is retried when the server is too busy. */
+  private int maxRetries = DEFAULT_MAX_RETRIES;
+
+  /** The default milliseconds between checks of the status of a job being waited for. */
+  public static final long DEFAULT_JOB_POLL_INTERVAL = 1000;
+
   /** Users JAXBContext. */
   private static final JAXBContext userJAXB;
   /** SensorData JAXBContext. */
@@ -148,6 +166,15 @@ public class WattDepotClient {
    * authentication if requested. It is only public to allow testing of the WattDepot server in
    * certain cases. It is not intended for client use.
    * 
+   * GET requests for resources that the server has previously returned with an entity tag are sent
+   * as conditional requests. If the server responds that the resource has not been modified, the
+   * response is rewritten as a 200 (OK) response containing the previously retrieved
+   * representation, so callers never see the 304 (Not Modified) status.
+   * 
+   * If the server responds that it is too busy (503, Service Unavailable), the request is retried
+   * up to getMaxRetries() times, waiting as described in the Backoff class between attempts. If
+   * the server is still busy after that, the 503 response is returned.
+   * 
    * @param method the HTTP method requested.
    * @param requestString A string, such as "users". Do not start the string with a '/' (it is
    * unneeded).
@@ -167,7 +194,119 @@ public class WattDepotClient {
           new ChallengeResponse(scheme, this.username, this.password);
       request.setChallengeResponse(authentication);
     }
-    return this.client.handle(request);
+    if (Method.GET.equals(method)) {
+      Tag cachedTag = this.validatorCache.getTag(requestString);
+      if (cachedTag != null) {
+        request.getConditions().getNoneMatch().add(cachedTag);
+      }
+      Response response = handleWithRetries(request);
+      updateValidatorCache(requestString, response);
+      return response;
+    }
+    else {
+      return handleWithRetries(request);
+    }
+  }
+
+  /**
+   * Sends the given request, retrying with a growing randomized delay while the server responds
+   * that it is too busy, up to the maximum number of retries.
+   * 
+   * @param request The request.
+   * @return The last response from the server.
+   */
+  private Response handleWithRetries(Request request) {
+    Response response = this.client.handle(request);
+    Backoff backoff = new Backoff();
+    for (int retry = 0; (retry < this.maxRetries)
+        && response.getStatus().equals(Status.SERVER_ERROR_SERVICE_UNAVAILABLE); retry++) {
+      try {
+        Thread.sleep(backoff.nextDelay(getRetryAfter(response)));
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return response;
+      }
+      response = this.client.handle(request);
+    }
+    return response;
+  }
+
+  /**
+   * Returns the time the server asked the client to wait with the Retry-After header of the given
+   * response. Only the delay-seconds form of the header is understood.
+   * 
+   * @param response The response.
+   * @return The wait in milliseconds, or 0 if the response has no usable Retry-After header.
+   */
+  static long getRetryAfter(Response response) {
+    Form headers = (Form) response.getAttributes().get("org.restlet.http.headers");
+    String retryAfter = (headers == null) ? null : headers.getFirstValue("Retry-After", true);
+    if (retryAfter != null) {
+      try {
+        return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+      }
+      catch (NumberFormatException e) { // NOPMD
+        // HTTP date form, or garbage: fall back on our own backoff
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the number of times a request is retried when the server is too busy.
+   * 
+   * @return The maximum number of retries.
+   */
+  public int getMaxRetries() {
+    return this.maxRetries;
+  }
+
+  /**
+   * Sets the number of times a request is retried when the server is too busy. Interactive
+   * programs that would rather report the problem at once can set this to 0.
+   * 
+   * @param maxRetries The maximum number of retries.
+   */
+  public void setMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * Updates the validator cache based on the response to a GET request. If the server reports that
+   * the cached representation is still current, the response is rewritten to contain the cached
+   * representation. If the server sent a new representation with an entity tag, it is cached (and
+   * the response entity is replaced with an equivalent one, since the original can only be read
+   * once). Any other response discards the cached representation.
+   * 
+   * @param requestString The request string used as the cache key.
+   * @param response The response from the server, which may be modified.
+   */
+  private void updateValidatorCache(String requestString, Response response) {
+    Status status = response.getStatus();
+    Representation entity = response.getEntity();
+    if (status.equals(Status.REDIRECTION_NOT_MODIFIED)) {
+      Representation cached = this.validatorCache.getRepresentation(requestString);
+      if (cached != null) {
+        response.setStatus(Status.SUCCESS_OK);
+        response.setEntity(cached);
+      }
+    }
+    else if (status.isSuccess() && (entity != null) && (entity.getTag() != null)) {
+      try {
+        String text = entity.getText();
+        this.validatorCache.put(requestString, text, entity.getMediaType(), entity.getTag(), entity
+            .getModificationDate());
+        response.setEntity(this.validatorCache.getRepresentation(requestString));
+      }
+      catch (IOException e) {
+        // Entity could not be read, leave the response for the caller to deal with
+        this.validatorCache.remove(requestString);
+      }
+    }
+    else {
+      this.validatorCache.remove(requestString);
+    }
   }
 
   /**
@@ -505,6 +644,38 @@ public class WattDepotClient {
       throw new MiscClientException(status);
     }
   }
+  /**
+   * Requests the latest SensorData of several Sources in a single request, which is much more
+   * efficient than calling getLatestSensorData for each Source. Each SensorData in the result has
+   * the URI of its Source, and Sources that have no sensor data are left out of the list.
+   * 
+   * @param sourceNames The names of the Sources, or null (or an empty list) to request all the
+   * Sources the client is allowed to view.
+   * @return The List of the latest SensorData of the Sources.
+   * @throws NotAuthorizedException If the client is not authorized to view one of the Sources.
+   * @throws ResourceNotFoundException If one of the Source names provided doesn't exist on the
+   * server.
+   * @throws BadXmlException If error is encountered unmarshalling the XML from the server.
+   * @throws MiscClientException If error is encountered retrieving the resource, or some unexpected
+   * problem is encountered.
+   * @see org.wattdepot.client.WattDepotClient#getLatestSensorData getLatestSensorData
+   */
+  public List<SensorData> getLatestSensorDatas(List<String> sourceNames)
+      throws NotAuthorizedException, ResourceNotFoundException, BadXmlException,
+      MiscClientException {
+    StringBuilder uriString = new StringBuilder(Server.SENSORDATA_URI + "/" + Server.LATEST);
+    if ((sourceNames != null) && !sourceNames.isEmpty()) {
+      uriString.append("?sources=");
+      for (int i = 0; i < sourceNames.size(); i++) {
+        if (i > 0) {
+          uriString.append(',');
+        }
+        uriString.append(sourceNames.get(i));
+      }
+    }
+    return getSensorDataSeries(uriString.toString());
+  }
+
 
   /**
    * Requests the latest SensorData from a given Source, and extracts the provided property key,
@@ -655,6 +826,89 @@ public class WattDepotClient {
     }
   }
 
+  /**
+   * Requests the power in SensorData format from a given Source at regular intervals between
+   * startTime and endTime, all in a single request. This is much more efficient than calling
+   * getPower for each timestamp. The first value is at startTime, and each following value is
+   * samplingInterval minutes later, with a final value at endTime. Timestamps at which the server
+   * cannot calculate power are left out of the list.
+   * 
+   * @param source The name of the Source.
+   * @param startTime The timestamp of the start of the range.
+   * @param endTime The timestamp of the end of the range.
+   * @param samplingInterval The sampling interval in minutes, or 0 to let the server pick one.
+   * @return The List of power values in SensorData format.
+   * @throws NotAuthorizedException If the client is not authorized to retrieve the power.
+   * @throws ResourceNotFoundException If the source name provided doesn't exist on the server.
+   * @throws BadXmlException If the range or interval is rejected by the server, no power can be
+   * calculated in the range, or error is encountered unmarshalling the XML from the server.
+   * @throws MiscClientException If error is encountered retrieving the resource, or some unexpected
+   * problem is encountered.
+   * @see org.wattdepot.client.WattDepotClient#getPower getPower
+   */
+  public List<SensorData> getPowerSeries(String source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, int samplingInterval) throws NotAuthorizedException,
+      ResourceNotFoundException, BadXmlException, MiscClientException {
+    String uriString =
+        Server.SOURCES_URI + "/" + source + "/" + Server.POWER_URI + "/" + START_TIME_PARAM
+            + startTime.toXMLFormat() + "&endTime=" + endTime.toXMLFormat();
+    if (samplingInterval > 0) {
+      // client provided sampling interval, so pass to server
+      uriString = uriString + "&samplingInterval=" + Integer.toString(samplingInterval);
+    }
+    return getSensorDataSeries(uriString);
+  }
+
+  /**
+   * Requests a series of SensorData computed by the server, such as the result of getPowerSeries.
+   * 
+   * @param uriString The URI of the series, relative to the server.
+   * @return The List of SensorData in the series.
+   * @throws NotAuthorizedException If the client is not authorized to retrieve the series.
+   * @throws ResourceNotFoundException If the source name provided doesn't exist on the server.
+   * @throws BadXmlException If the request is rejected by the server, no data can be calculated, or
+   * error is encountered unmarshalling the XML from the server.
+   * @throws MiscClientException If error is encountered retrieving the resource, or some unexpected
+   * problem is encountered.
+   */
+  private List<SensorData> getSensorDataSeries(String uriString) throws NotAuthorizedException,
+      ResourceNotFoundException, BadXmlException, MiscClientException {
+    Response response = makeRequest(Method.GET, uriString, XML_MEDIA, null);
+    Status status = response.getStatus();
+
+    if (status.equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+      // credentials were unacceptable to server
+      throw new NotAuthorizedException(status);
+    }
+    if (status.equals(Status.CLIENT_ERROR_BAD_REQUEST)) {
+      // bad timestamp, range, bucket or interval provided in URI
+      throw new BadXmlException(status);
+    }
+    if (status.equals(Status.CLIENT_ERROR_NOT_FOUND)) {
+      // an unknown source name was specified
+      throw new ResourceNotFoundException(status);
+    }
+    if (status.isSuccess()) {
+      try {
+        String xmlString = response.getEntity().getText();
+        Unmarshaller unmarshaller = sensorDataJAXB.createUnmarshaller();
+        return ((SensorDatas) unmarshaller.unmarshal(new StringReader(xmlString))).getSensorData();
+      }
+      catch (IOException e) {
+        // Error getting the text from the entity body, bad news
+        throw new MiscClientException(status, e);
+      }
+      catch (JAXBException e) {
+        // Got some XML we can't parse
+        throw new BadXmlException(status, e);
+      }
+    }
+    else {
+      // Some totally unexpected non-success status code, just throw generic client exception
+      throw new MiscClientException(status);
+    }
+  }
+
   /**
    * Requests the power from a given Source corresponding to the given timestamp, and extracts the
    * provided property key, converts it to double and returns the value.
@@ -747,6 +1001,49 @@ public class WattDepotClient {
       // client provided sampling interval, so pass to server
       uriString = uriString + "&samplingInterval=" + Integer.toString(samplingInterval);
     }
+    return getEnergyData(uriString);
+  }
+
+  /**
+   * Requests the energy in SensorData format from a given Source corresponding to the given
+   * startTime and endTime, integrated by the server over every sensor data point in the range
+   * instead of sampled at an interval. Power is only interpolated at the ends of the range, so the
+   * result is exact for power that varies linearly between readings, and is usually cheaper to
+   * calculate than sampling at a small interval over a long range.
+   * 
+   * @param source The name of the Source.
+   * @param startTime The timestamp of the start of the range.
+   * @param endTime The timestamp of the end of the range.
+   * @return The SensorData.
+   * @throws NotAuthorizedException If the client is not authorized to retrieve the SensorData.
+   * @throws ResourceNotFoundException If the source name provided doesn't exist on the server.
+   * @throws BadXmlException If the range is rejected by the server, or error is encountered
+   * unmarshalling the XML from the server.
+   * @throws MiscClientException If error is encountered retrieving the resource, or some unexpected
+   * problem is encountered.
+   * @see org.wattdepot.client.WattDepotClient#getEnergy getEnergy
+   */
+  public SensorData getExactEnergy(String source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) throws NotAuthorizedException, ResourceNotFoundException,
+      BadXmlException, MiscClientException {
+    return getEnergyData(Server.SOURCES_URI + "/" + source + "/" + Server.ENERGY_URI + "/"
+        + START_TIME_PARAM + startTime.toXMLFormat() + "&endTime=" + endTime.toXMLFormat()
+        + "&integration=" + Energy.EXACT_INTEGRATION);
+  }
+
+  /**
+   * Requests a single energy value in SensorData format, for getEnergy and getExactEnergy.
+   * 
+   * @param uriString The URI of the energy, relative to the server.
+   * @return The SensorData.
+   * @throws NotAuthorizedException If the client is not authorized to retrieve the SensorData.
+   * @throws ResourceNotFoundException If the source name provided doesn't exist on the server.
+   * @throws BadXmlException If error is encountered unmarshalling the XML from the server.
+   * @throws MiscClientException If error is encountered retrieving the resource, or some unexpected
+   * problem is encountered.
+   */
+  private SensorData getEnergyData(String uriString) throws NotAuthorizedException,
+      ResourceNotFoundException, BadXmlException, MiscClientException {
     Response response = makeRequest(Method.GET, uriString, XML_MEDIA, null);
     Status status = response.getStatus();
 
@@ -783,6 +1080,86 @@ public class WattDepotClient {
     }
   }
 
+  /**
+   * Requests the energy in SensorData format from a given Source for each bucket of time between
+   * startTime and endTime, all in a single request. This is much more efficient than calling
+   * getEnergy for each bucket. Each value is timestamped with the start of its bucket, and the last
+   * bucket ends at endTime so it may be shorter than the others. Buckets for which the server
+   * cannot calculate energy are left out of the list.
+   * 
+   * @param source The name of the Source.
+   * @param startTime The timestamp of the start of the range.
+   * @param endTime The timestamp of the end of the range.
+   * @param bucket The bucket size: one of the bucket names in Tstamp (such as Tstamp.DAY_BUCKET),
+   * or a number of minutes.
+   * @param samplingInterval The sampling interval in minutes, or 0 to let the server pick one.
+   * @return The List of energy values in SensorData format.
+   * @throws NotAuthorizedException If the client is not authorized to retrieve the energy.
+   * @throws ResourceNotFoundException If the source name provided doesn't exist on the server.
+   * @throws BadXmlException If the range, bucket or interval is rejected by the server, no energy
+   * can be calculated in the range, or error is encountered unmarshalling the XML from the server.
+   * @throws MiscClientException If error is encountered retrieving the resource, or some unexpected
+   * problem is encountered.
+   * @see org.wattdepot.client.WattDepotClient#getEnergy getEnergy
+   */
+  public List<SensorData> getEnergySeries(String source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, String bucket, int samplingInterval)
+      throws NotAuthorizedException, ResourceNotFoundException, BadXmlException,
+      MiscClientException {
+    return getSensorDataSeries(makeBucketUri(source, Server.ENERGY_URI, startTime, endTime,
+        bucket, samplingInterval));
+  }
+
+  /**
+   * Requests the carbon emitted in SensorData format from a given Source for each bucket of time
+   * between startTime and endTime, all in a single request. Buckets are as for getEnergySeries.
+   * 
+   * @param source The name of the Source.
+   * @param startTime The timestamp of the start of the range.
+   * @param endTime The timestamp of the end of the range.
+   * @param bucket The bucket size: one of the bucket names in Tstamp (such as Tstamp.DAY_BUCKET),
+   * or a number of minutes.
+   * @param samplingInterval The sampling interval in minutes, or 0 to let the server pick one.
+   * @return The List of carbon values in SensorData format.
+   * @throws NotAuthorizedException If the client is not authorized to retrieve the carbon.
+   * @throws ResourceNotFoundException If the source name provided doesn't exist on the server.
+   * @throws BadXmlException If the range, bucket or interval is rejected by the server, no carbon
+   * can be calculated in the range, or error is encountered unmarshalling the XML from the server.
+   * @throws MiscClientException If error is encountered retrieving the resource, or some unexpected
+   * problem is encountered.
+   * @see org.wattdepot.client.WattDepotClient#getCarbon getCarbon
+   */
+  public List<SensorData> getCarbonSeries(String source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, String bucket, int samplingInterval)
+      throws NotAuthorizedException, ResourceNotFoundException, BadXmlException,
+      MiscClientException {
+    return getSensorDataSeries(makeBucketUri(source, Server.CARBON_URI, startTime, endTime,
+        bucket, samplingInterval));
+  }
+
+  /**
+   * Builds the URI of an energy or carbon series request.
+   * 
+   * @param source The name of the Source.
+   * @param resourceUri The resource, either Server.ENERGY_URI or Server.CARBON_URI.
+   * @param startTime The timestamp of the start of the range.
+   * @param endTime The timestamp of the end of the range.
+   * @param bucket The bucket size.
+   * @param samplingInterval The sampling interval in minutes, or 0 to let the server pick one.
+   * @return The URI, relative to the server.
+   */
+  private String makeBucketUri(String source, String resourceUri, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, String bucket, int samplingInterval) {
+    String uriString =
+        Server.SOURCES_URI + "/" + source + "/" + resourceUri + "/" + START_TIME_PARAM
+            + startTime.toXMLFormat() + "&endTime=" + endTime.toXMLFormat();
+    if (samplingInterval > 0) {
+      // client provided sampling interval, so pass to server
+      uriString = uriString + "&samplingInterval=" + Integer.toString(samplingInterval);
+    }
+    return uriString + "&bucket=" + bucket;
+  }
+
   /**
    * Requests the energy from a given Source corresponding to the range from startTime to endTime
    * and sampling interval in minutes, and extracts the provided property key, converts it to double
@@ -972,10 +1349,39 @@ public class WattDepotClient {
    * specified was bad, or there was no XML, or the fields in the XML don't match the URI.
    * @throws OverwriteAttemptedException If there is already SensorData on the server with the given
    * timestamp.
-   * @throws MiscClientException If the server indicates an unexpected problem has occurred.
+   * @throws MiscClientException If the server indicates an unexpected problem has occurred. This is
+   * a ServiceUnavailableException if the server was too busy to store the data, even after
+   * retrying.
    */
   public boolean storeSensorData(SensorData data) throws JAXBException, NotAuthorizedException,
       ResourceNotFoundException, BadXmlException, OverwriteAttemptedException, MiscClientException {
+    return storeSensorData(data, false);
+  }
+
+  /**
+   * Stores a SensorData object in the server. If SensorData with the same timestamp already exists,
+   * no action is performed and the method throws a OverwriteAttemptedException, unless the
+   * overwrite parameter is true, in which case the existing resource is overwritten.
+   * 
+   * @param data The SensorData object to be stored.
+   * @param overwrite If true, then overwrite any existing SensorData with the same timestamp.
+   * @return True if the SensorData was stored, or accepted by a server that stores it in the
+   * background, false otherwise.
+   * @throws JAXBException If there are problems marshalling the object for upload.
+   * @throws NotAuthorizedException If the client is not authorized to store the SensorData.
+   * @throws ResourceNotFoundException If the source name referenced in the SensorData doesn't exist
+   * on the server.
+   * @throws BadXmlException If the server reports that the XML sent was bad, or the timestamp
+   * specified was bad, or there was no XML, or the fields in the XML don't match the URI.
+   * @throws OverwriteAttemptedException If there is already SensorData on the server with the given
+   * timestamp.
+   * @throws MiscClientException If the server indicates an unexpected problem has occurred. This is
+   * a ServiceUnavailableException if the server was too busy to store the data, even after
+   * retrying.
+   */
+  public boolean storeSensorData(SensorData data, boolean overwrite) throws JAXBException,
+      NotAuthorizedException, ResourceNotFoundException, BadXmlException,
+      OverwriteAttemptedException, MiscClientException {
     Marshaller marshaller = sensorDataJAXB.createMarshaller();
     StringWriter writer = new StringWriter();
     if (data == null) {
@@ -989,7 +1395,8 @@ public class WattDepotClient {
             CharacterSet.UTF_8);
     Response response =
         makeRequest(Method.PUT, Server.SOURCES_URI + "/" + UriUtils.getUriSuffix(data.getSource())
-            + "/" + Server.SENSORDATA_URI + "/" + data.getTimestamp().toXMLFormat(), XML_MEDIA, rep);
+            + "/" + Server.SENSORDATA_URI + "/" + data.getTimestamp().toXMLFormat()
+            + (overwrite ? "?overwrite=true" : ""), XML_MEDIA, rep);
     Status status = response.getStatus();
     if (status.equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
       // credentials were unacceptable to server
@@ -1007,6 +1414,10 @@ public class WattDepotClient {
       // client attempted to overwrite existing data
       throw new OverwriteAttemptedException(status);
     }
+    if (status.equals(Status.SERVER_ERROR_SERVICE_UNAVAILABLE)) {
+      // server still too busy after retrying, so let the caller back off
+      throw new ServiceUnavailableException(status, getRetryAfter(response));
+    }
     if (status.isSuccess()) {
       return true;
     }
@@ -1057,6 +1468,121 @@ public class WattDepotClient {
     }
   }
 
+  /**
+   * Starts deleting all the SensorData from a source with timestamps between startTime and endTime
+   * inclusive. The server deletes the data in the background, so this returns once the deletion
+   * has started. Poll getJobStatus() with the returned identifier to follow its progress.
+   * 
+   * @param source The name of the source containing the resources to be deleted.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return The identifier of the job doing the deletion.
+   * @throws NotAuthorizedException If the client is not authorized to delete the SensorData.
+   * @throws BadXmlException If the server reports that the timestamps or interval were bad.
+   * @throws ResourceNotFoundException If the source name doesn't exist on the server.
+   * @throws MiscClientException If the server indicates an unexpected problem has occurred.
+   */
+  public String deleteSensorData(String source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) throws NotAuthorizedException, ResourceNotFoundException,
+      BadXmlException, MiscClientException {
+    String uri =
+        Server.SOURCES_URI + "/" + source + "/" + Server.SENSORDATA_URI + "/" + START_TIME_PARAM
+            + startTime.toXMLFormat() + "&" + "endTime=" + endTime.toXMLFormat();
+    Response response = makeRequest(Method.DELETE, uri, XML_MEDIA, null);
+    Status status = response.getStatus();
+
+    if (status.equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+      // credentials were unacceptable to server
+      throw new NotAuthorizedException(status);
+    }
+    if (status.equals(Status.CLIENT_ERROR_BAD_REQUEST)) {
+      // bad timestamp or interval provided in URI
+      throw new BadXmlException(status);
+    }
+    if (status.equals(Status.CLIENT_ERROR_NOT_FOUND)) {
+      // an unknown source name was specified
+      throw new ResourceNotFoundException(status);
+    }
+    if (status.equals(Status.SUCCESS_ACCEPTED) && (response.getLocationRef() != null)) {
+      return response.getLocationRef().getLastSegment();
+    }
+    else {
+      // Some unexpected type of error received, so punt
+      throw new MiscClientException(status);
+    }
+  }
+
+  /**
+   * Returns the status of a job running on the server, such as a range deletion, as "name: value"
+   * lines including "state: " followed by QUEUED, RUNNING, PAUSED, SUCCEEDED or FAILED, and
+   * "progress: " followed by the number of items processed so far.
+   * 
+   * @param job The identifier of the job.
+   * @return The status report.
+   * @throws NotAuthorizedException If the client is not authorized to see the job.
+   * @throws ResourceNotFoundException If the job doesn't exist, belongs to another user, or has
+   * been forgotten.
+   * @throws MiscClientException If the server indicates an unexpected problem has occurred.
+   */
+  public String getJobStatus(String job) throws NotAuthorizedException,
+      ResourceNotFoundException, MiscClientException {
+    Response response = makeRequest(Method.GET, Server.JOBS_URI + "/" + job, TEXT_MEDIA, null);
+    Status status = response.getStatus();
+
+    if (status.equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+      // credentials were unacceptable to server
+      throw new NotAuthorizedException(status);
+    }
+    if (status.equals(Status.CLIENT_ERROR_NOT_FOUND)) {
+      throw new ResourceNotFoundException(status);
+    }
+    if (status.isSuccess()) {
+      try {
+        return response.getEntity().getText();
+      }
+      catch (IOException e) {
+        // Error getting the text of the entity body
+        throw new MiscClientException(status, e);
+      }
+    }
+    else {
+      // Some unexpected type of error received, so punt
+      throw new MiscClientException(status);
+    }
+  }
+
+  /**
+   * Returns the maintenance report of the server: a "name: value" line giving the schedule of each
+   * maintenance task, followed by the status of each recent maintenance job in the same format as
+   * getJobStatus(). Only the admin user is allowed to retrieve it.
+   * 
+   * @return The maintenance report.
+   * @throws NotAuthorizedException If the client is not authorized to see the report.
+   * @throws MiscClientException If the server indicates an unexpected problem has occurred.
+   */
+  public String getMaintenanceStatus() throws NotAuthorizedException, MiscClientException {
+    Response response = makeRequest(Method.GET, Server.MAINTENANCE_URI, TEXT_MEDIA, null);
+    Status status = response.getStatus();
+
+    if (status.equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+      // credentials were unacceptable to server
+      throw new NotAuthorizedException(status);
+    }
+    if (status.isSuccess()) {
+      try {
+        return response.getEntity().getText();
+      }
+      catch (IOException e) {
+        // Error getting the text of the entity body
+        throw new MiscClientException(status, e);
+      }
+    }
+    else {
+      // Some unexpected type of error received, so punt
+      throw new MiscClientException(status);
+    }
+  }
+
   /**
    * Returns the UserIndex containing all Users on the server. Note that only the admin user is
    * allowed to retrieve the UserIndex.
@@ -1446,14 +1972,42 @@ public class WattDepotClient {
   }
 
   /**
-   * Attempts to make a snapshot of the database on the server. Requires admin privileges to
-   * complete.
+   * Attempts to make a snapshot of the database on the server, waiting until it is finished.
+   * Requires admin privileges to complete. If a snapshot is already being made, waits for that one
+   * instead.
    * 
    * @return True if the snapshot could be created, false otherwise.
    * @throws NotAuthorizedException If the client is not authorized to create the snapshot.
    * @throws MiscClientException If the server rejected the snapshot request for some other reason.
+   * @see #startSnapshot()
    */
   public boolean makeSnapshot() throws NotAuthorizedException, MiscClientException {
+    String job = startSnapshot();
+    try {
+      return isJobSucceeded(waitForJob(job, DEFAULT_JOB_POLL_INTERVAL));
+    }
+    catch (ResourceNotFoundException e) {
+      // The server forgot the job, which only happens after many more jobs have been submitted
+      throw new MiscClientException("Snapshot job " + job + " disappeared", e);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Starts making a snapshot of the database on the server. Requires admin privileges to
+   * complete. The server makes the snapshot in the background, so this returns once it has
+   * started. Poll getJobStatus() with the returned identifier to follow its progress in bytes
+   * copied and files done, or call waitForJob(). The server makes only one snapshot at a time, so
+   * if one is already being made its identifier is returned instead.
+   * 
+   * @return The identifier of the job making the snapshot.
+   * @throws NotAuthorizedException If the client is not authorized to create the snapshot.
+   * @throws MiscClientException If the server rejected the snapshot request for some other reason.
+   */
+  public String startSnapshot() throws NotAuthorizedException, MiscClientException {
     Response response =
         makeRequest(Method.PUT, Server.DATABASE_URI + "/" + "snapshot", XML_MEDIA, null);
     Status status = response.getStatus();
@@ -1466,19 +2020,61 @@ public class WattDepotClient {
       // Unexpected, perhaps snapshot method not accepted?
       throw new MiscClientException(status);
     }
-    if (status.equals(Status.SERVER_ERROR_INTERNAL)) {
-      // Server had a problem creating the snapshot
-      return false;
-    }
-    if (status.isSuccess()) {
-      return true;
+    if ((status.equals(Status.SUCCESS_ACCEPTED) || status.equals(Status.CLIENT_ERROR_CONFLICT))
+        && (response.getLocationRef() != null)) {
+      // Conflict means another snapshot is in progress, and the location is its job
+      return response.getLocationRef().getLastSegment();
     }
     else {
-      // Some totally unexpected non-success status code, just throw generic client exception
+      // Some totally unexpected status code, just throw generic client exception
       throw new MiscClientException(status);
     }
   }
 
+  /**
+   * Waits for a job running on the server to finish, checking its status at the given interval.
+   * 
+   * @param job The identifier of the job.
+   * @param pollInterval The milliseconds between checks of the status.
+   * @return The final status report of the job, as returned by getJobStatus().
+   * @throws NotAuthorizedException If the client is not authorized to see the job.
+   * @throws ResourceNotFoundException If the job doesn't exist, belongs to another user, or has
+   * been forgotten.
+   * @throws MiscClientException If the server indicates an unexpected problem has occurred.
+   * @throws InterruptedException If interrupted while waiting.
+   * @see #isJobSucceeded(String)
+   */
+  public String waitForJob(String job, long pollInterval) throws NotAuthorizedException,
+      ResourceNotFoundException, MiscClientException, InterruptedException {
+    String report = getJobStatus(job);
+    while (!isJobFinished(report)) {
+      Thread.sleep(pollInterval);
+      report = getJobStatus(job);
+    }
+    return report;
+  }
+
+  /**
+   * Returns true if a job status report from getJobStatus() says the job has finished, successfully
+   * or not.
+   * 
+   * @param report The status report.
+   * @return True if the job finished.
+   */
+  public static boolean isJobFinished(String report) {
+    return report.contains("state: SUCCEEDED\n") || report.contains("state: FAILED\n");
+  }
+
+  /**
+   * Returns true if a job status report from getJobStatus() says the job finished successfully.
+   * 
+   * @param report The status report.
+   * @return True if the job succeeded.
+   */
+  public static boolean isJobSucceeded(String report) {
+    return report.contains("state: SUCCEEDED\n");
+  }
+
   /**
    * Retrieves the WattDepot URI used by this client. This is useful for creating resource objects
    * that have URIs in their fields (and thus need the WattDepot URI to construct those URIs).
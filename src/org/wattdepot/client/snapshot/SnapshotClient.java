@@ -14,11 +14,14 @@ import org.apache.commons.cli.PosixParser;
 import org.wattdepot.client.MiscClientException;
 import org.wattdepot.client.NotAuthorizedException;
 import org.wattdepot.client.WattDepotClient;
+import org.wattdepot.client.WattDepotClientException;
 import org.wattdepot.datainput.DataInputClientProperties;
 
 /**
  * Creates a snapshot of the database on the server. This is useful to ensure that a consistent
- * version of the database is available for backups.
+ * version of the database is available for backups. The server makes the snapshot in the
+ * background: by default the client waits until it is finished, with -n it prints the job id and
+ * exits, and with -s it prints the status of a snapshot job started earlier.
  * 
  * @author Robert Brewer
  */
@@ -55,41 +58,117 @@ public class SnapshotClient {
   }
 
   /**
-   * Attempts to create a snapshot on the server.
+   * Creates a client for the server given in the properties.
    * 
-   * @return True if able to create a snapshot successfully, false otherwise.
+   * @return The client, or null if a required property is missing.
    */
-  public boolean makeSnapshot() {
+  private WattDepotClient createClient() {
     String wattDepotURI = this.properties.get(WATTDEPOT_URI_KEY);
     if (wattDepotURI == null) {
       System.err.format(REQUIRED_PARAMETER_ERROR_MSG, WATTDEPOT_URI_KEY);
-      return false;
+      return null;
     }
     String wattDepotUsername = this.properties.get(WATTDEPOT_USERNAME_KEY);
     if (wattDepotUsername == null) {
       System.err.format(REQUIRED_PARAMETER_ERROR_MSG, WATTDEPOT_USERNAME_KEY);
-      return false;
+      return null;
     }
     String wattDepotPassword = this.properties.get(WATTDEPOT_PASSWORD_KEY);
     if (wattDepotPassword == null) {
       System.err.format(REQUIRED_PARAMETER_ERROR_MSG, WATTDEPOT_PASSWORD_KEY);
+      return null;
+    }
+    return new WattDepotClient(wattDepotURI, wattDepotUsername, wattDepotPassword);
+  }
+
+  /**
+   * Attempts to create a snapshot on the server, waiting until it is finished. With debugging
+   * output, the progress of the snapshot is printed as it goes.
+   * 
+   * @return True if able to create a snapshot successfully, false otherwise.
+   */
+  public boolean makeSnapshot() {
+    WattDepotClient client = createClient();
+    if (client == null) {
+      return false;
+    }
+    String job = startSnapshot(client);
+    if (job == null) {
+      return false;
+    }
+    try {
+      String report = client.getJobStatus(job);
+      while (!WattDepotClient.isJobFinished(report)) {
+        if (this.debug) {
+          System.out.println(report);
+        }
+        Thread.sleep(WattDepotClient.DEFAULT_JOB_POLL_INTERVAL);
+        report = client.getJobStatus(job);
+      }
+      if (this.debug) {
+        System.out.println(report);
+      }
+      return WattDepotClient.isJobSucceeded(report);
+    }
+    catch (InterruptedException e) {
+      System.err.println("Interrupted while waiting for snapshot.");
       return false;
     }
+    catch (WattDepotClientException e) {
+      System.err.format("Unable to get snapshot status, message: %s.%n", e.getMessage());
+      return false;
+    }
+  }
 
-    WattDepotClient client =
-        new WattDepotClient(wattDepotURI, wattDepotUsername, wattDepotPassword);
+  /**
+   * Starts creating a snapshot on the server without waiting for it to finish.
+   * 
+   * @return The identifier of the snapshot job, or null if the snapshot could not be started.
+   */
+  public String startSnapshot() {
+    WattDepotClient client = createClient();
+    return (client == null) ? null : startSnapshot(client);
+  }
 
+  /**
+   * Starts creating a snapshot on the server.
+   * 
+   * @param client The client for the server.
+   * @return The identifier of the snapshot job, or null if the snapshot could not be started.
+   */
+  private String startSnapshot(WattDepotClient client) {
     try {
-      return client.makeSnapshot();
+      return client.startSnapshot();
     }
     catch (NotAuthorizedException e) {
       System.err.format("Not authorized to make snapshot, message: %s.%n", e.getMessage());
-      return false;
+      return null;
     }
     catch (MiscClientException e) {
       System.err
           .format("Unable to create snapshot for some reason, message: %s.%n", e.getMessage());
-      return false;
+      return null;
+    }
+  }
+
+  /**
+   * Retrieves the status of a snapshot job on the server.
+   * 
+   * @param job The identifier of the snapshot job.
+   * @return The status report of the job, or null if it could not be retrieved.
+   */
+  public String getSnapshotStatus(String job) {
+    WattDepotClient client = createClient();
+    if (client == null) {
+      return null;
+    }
+    try {
+      return client.getJobStatus(job);
+    }
+    catch (WattDepotClientException e) {
+      System.err.format("Unable to get status of snapshot job %s, message: %s.%n", job, e
+          .getMessage());
+      return null;
     }
   }
 
@@ -104,6 +183,9 @@ public class SnapshotClient {
     options.addOption("h", "help", false, "Print this message");
     options.addOption("p", "propertyFilename", true, "Filename of property file");
     options.addOption("d", "debug", false, "Displays verbose log messages.");
+    options.addOption("n", "nowait", false,
+        "Start the snapshot and print its job id without waiting for it to finish");
+    options.addOption("s", "status", true, "Print the status of the snapshot job with this id");
 
     CommandLine cmd = null;
     String propertyFilename = null;
@@ -151,6 +233,26 @@ public class SnapshotClient {
       System.err.println("Unable to create SnapshotClient for some reason. Aborting.");
       System.exit(1);
     }
+    if (cmd.hasOption("s")) {
+      String report = snapshotClient.getSnapshotStatus(cmd.getOptionValue("s"));
+      if (report == null) {
+        System.exit(2);
+      }
+      System.out.print(report);
+      // Only a failed snapshot is an error, one still running is not
+      boolean failed =
+          WattDepotClient.isJobFinished(report) && !WattDepotClient.isJobSucceeded(report);
+      System.exit(failed ? 2 : 0);
+    }
+    if (cmd.hasOption("n")) {
+      String job = snapshotClient.startSnapshot();
+      if (job == null) {
+        System.err.format("%tc Unable to start snapshot on server. Aborting.%n", new Date());
+        System.exit(2);
+      }
+      System.out.format("%tc Snapshot started as job %s.%n", new Date(), job);
+      System.exit(0);
+    }
     System.out.format("%tc Snapshot started.%n", new Date());
     if (snapshotClient.makeSnapshot()) {
       System.out.format("%tc Snapshot created successfully.%n", new Date());
@@ -19,10 +19,12 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 import org.restlet.data.Response;
 import org.restlet.data.Status;
+import org.wattdepot.client.Backoff;
 import org.wattdepot.client.BadXmlException;
 import org.wattdepot.client.MiscClientException;
 import org.wattdepot.client.NotAuthorizedException;
 import org.wattdepot.client.ResourceNotFoundException;
+import org.wattdepot.client.ServiceUnavailableException;
 import org.wattdepot.client.WattDepotClient;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
 import org.wattdepot.util.logger.WattDepotUserHome;
@@ -238,6 +240,29 @@ public class BMOSensor {
     }
   }
 
+  /**
+   * Stores the given SensorData in the WattDepot server. While the server reports that it is too
+   * busy, waits with a growing randomized delay and tries again, since BMO data is historical and
+   * nothing is lost by waiting.
+   * 
+   * @param data The SensorData to store.
+   * @throws Exception If the SensorData cannot be stored for any other reason.
+   */
+  private void storeWithBackoff(SensorData data) throws Exception {
+    Backoff backoff = new Backoff();
+    while (true) {
+      try {
+        this.client.storeSensorData(data);
+        return;
+      }
+      catch (ServiceUnavailableException e) {
+        long delay = backoff.nextDelay(e.getRetryAfter());
+        System.err.format("WattDepot server is busy, retrying in %d seconds.%n", delay / 1000);
+        Thread.sleep(delay);
+      }
+    }
+  }
+
   /**
    * Retrieves data from BMO for a particular meter from the provided start time to the time of
    * invocation. The resulting meter data are sent to the WattDepot server, and the last timestamp
@@ -307,7 +332,7 @@ public class BMOSensor {
               // Make sure this timestamp is not the overlap from the last fetch
               if (!dataTimestamp.equals(startTimestamp)) {
                 // Send sensor data to WattDepot
-                this.client.storeSensorData(data);
+                storeWithBackoff(data);
                 // This timestamp becomes the lastTimestamp (for now)
                 lastTimestamp = dataTimestamp;
                 rowsSent++;
@@ -11,10 +11,12 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
+import org.wattdepot.client.Backoff;
 import org.wattdepot.client.BadXmlException;
 import org.wattdepot.client.MiscClientException;
 import org.wattdepot.client.NotAuthorizedException;
 import org.wattdepot.client.ResourceNotFoundException;
+import org.wattdepot.client.ServiceUnavailableException;
 import org.wattdepot.client.WattDepotClient;
 import org.wattdepot.resource.property.jaxb.Property;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
@@ -167,6 +169,7 @@ public class ExampleStreamingSensor {
 
       SensorData data;
       double powerValue = BASE_POWER_LEVEL;
+      Backoff backoff = new Backoff();
       while (true) {
         // Create SensorData object
         XMLGregorianCalendar timestamp = Tstamp.makeTimestamp();
@@ -177,6 +180,14 @@ public class ExampleStreamingSensor {
         // Store SensorData in WattDepot server
         try {
           client.storeSensorData(data);
+          backoff.reset();
+        }
+        catch (ServiceUnavailableException e) {
+          // Server is overloaded, so give it a break on top of the usual update interval
+          long delay = backoff.nextDelay(e.getRetryAfter());
+          System.err.format("%s: WattDepot server is busy, backing off for %d seconds.%n", Tstamp
+              .makeTimestamp(), delay / 1000);
+          Thread.sleep(delay);
         }
         catch (Exception e) {
           System.out.println("Unable to store sensor data.");
@@ -98,6 +98,31 @@ public class ResponseMessage {
         .getRequest().getMethod().getName(), resource.getRequest().getResourceRef().toString());
   }
 
+  /**
+   * The error message for requests where a bucket size is supplied but is not understood, or would
+   * produce too many buckets.
+   * 
+   * @param resource The resource associated with this request.
+   * @param bucket The bogus bucket size.
+   * @return A string describing the problem.
+   */
+  static String badBucket(WattDepotResource resource, String bucket) {
+    return String.format("Bad bucket size %s:%n  Request: %s %s", bucket, resource.getRequest()
+        .getMethod().getName(), resource.getRequest().getResourceRef().toString());
+  }
+
+  /**
+   * The error message for requests where an integration method is supplied but is not understood.
+   * 
+   * @param resource The resource associated with this request.
+   * @param integration The bogus integration method.
+   * @return A string describing the problem.
+   */
+  static String badIntegration(WattDepotResource resource, String integration) {
+    return String.format("Bad integration method %s:%n  Request: %s %s", integration, resource
+        .getRequest().getMethod().getName(), resource.getRequest().getResourceRef().toString());
+  }
+
   /**
    * The error message for requests where an interval is specified with a start time that is greater
    * than the end time.
@@ -2,6 +2,12 @@ package org.wattdepot.resource;
 
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.ListIterator;
 import javax.xml.bind.JAXBContext;
@@ -11,12 +17,16 @@ import javax.xml.bind.Unmarshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.restlet.Context;
 import org.restlet.data.CharacterSet;
+import org.restlet.data.Conditions;
 import org.restlet.data.Form;
 import org.restlet.data.Language;
 import org.restlet.data.MediaType;
+import org.restlet.data.Parameter;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.restlet.resource.Representation;
 import org.restlet.resource.Resource;
 import org.restlet.resource.StringRepresentation;
 import org.restlet.resource.Variant;
@@ -30,8 +40,10 @@ import org.wattdepot.resource.source.jaxb.Sources;
 import org.wattdepot.resource.source.summary.jaxb.SourceSummary;
 import org.wattdepot.resource.user.jaxb.User;
 import org.wattdepot.server.Server;
+import org.wattdepot.server.ServerProperties;
 import org.wattdepot.server.db.DbBadIntervalException;
 import org.wattdepot.server.db.DbManager;
+import org.wattdepot.server.db.ModificationTracker;
 import org.wattdepot.util.tstamp.Tstamp;
 
 /**
@@ -76,6 +88,12 @@ public class WattDepotResource extends Resource {
   /** The password, retrieved from the ChallengeResponse, or null. */
   protected String authPassword = null;
 
+  /** The entity tag computed for the current request by isNotModified(), or null. */
+  private Tag entityTag = null;
+
+  /** The modification date computed for the current request by isNotModified(), or null. */
+  private Date lastModified = null;
+
   // JAXBContexts are thread safe, so we can share them across all instances and threads.
   // https://jaxb.dev.java.net/guide/Performance_and_thread_safety.html
   static {
@@ -144,6 +162,196 @@ public class WattDepotResource extends Resource {
     return new StringRepresentation(xmlData, MediaType.TEXT_XML, Language.ALL, CharacterSet.UTF_8);
   }
 
+  /**
+   * Computes the cache validators (entity tag and modification date) for the representation of the
+   * Source in the URI that the current request asks for, and compares them against the conditions
+   * (If-None-Match, If-Modified-Since) sent by the client. The validators are derived from the
+   * request URI and the version of the Source's data as tracked by the DbManager, so no sensor data
+   * needs to be retrieved or marshalled to compute them. If the client already holds a current
+   * representation, the response status is set to 304 (Not Modified) and true is returned, so the
+   * caller can return without building a representation. Should only be called after access
+   * control checks have passed.
+   * 
+   * @return True if the client's copy is current and a 304 response has been set up, false if a
+   * representation must be sent.
+   */
+  protected boolean isNotModified() {
+    String version = this.dbManager.getVersion(this.uriSource);
+    if (version == null) {
+      return false;
+    }
+    return isNotModified(version, this.dbManager.getLastModified(this.uriSource));
+  }
+
+  /**
+   * Like isNotModified(), but for a representation of the range of the Source's data between the
+   * given times. The validators are derived from the version of the data in the range and the
+   * readings on either side of it, so they do not change when data outside the range is written.
+   * If either time is missing or invalid, the validators of all the Source's data are used, and
+   * the request is left to fail later.
+   * 
+   * @param startTime The start of the range from the request, or null.
+   * @param endTime The end of the range from the request, or null.
+   * @return True if the client's copy is current and a 304 response has been set up, false if a
+   * representation must be sent.
+   */
+  protected boolean isNotModified(String startTime, String endTime) {
+    XMLGregorianCalendar startObj, endObj;
+    try {
+      startObj = (startTime == null) ? null : Tstamp.makeTimestamp(startTime);
+      endObj = (endTime == null) ? null : Tstamp.makeTimestamp(endTime);
+    }
+    catch (Exception e) {
+      return isNotModified();
+    }
+    if ((startObj == null) || (endObj == null)) {
+      return isNotModified();
+    }
+    ModificationTracker.RangeVersion version =
+        this.dbManager.getRangeVersion(this.uriSource, startObj, endObj);
+    if (version == null) {
+      return false;
+    }
+    return isNotModified(version.getVersion(), version.getLastModified());
+  }
+
+  /**
+   * Like isNotModified(), but for a representation that covers all the named Sources rather than
+   * the Source in the URI. The validators combine the versions of all the named Sources, so the
+   * representation is considered modified as soon as any one of them changes.
+   * 
+   * @param sourceNames The names of the Sources the representation covers.
+   * @return True if the client's copy is current and a 304 response has been set up, false if a
+   * representation must be sent.
+   */
+  protected boolean isNotModified(List<String> sourceNames) {
+    StringBuilder versions = new StringBuilder();
+    Date modified = null;
+    for (String sourceName : sourceNames) {
+      String version = this.dbManager.getVersion(sourceName);
+      if (version == null) {
+        return false;
+      }
+      versions.append(version).append(',');
+      Date sourceModified = this.dbManager.getLastModified(sourceName);
+      if ((modified == null) || sourceModified.after(modified)) {
+        modified = sourceModified;
+      }
+    }
+    if (modified == null) {
+      return false;
+    }
+    return isNotModified(versions.toString(), modified);
+  }
+
+  /**
+   * Computes the validators from the given data version and modification date, and compares them
+   * against the conditions sent by the client, as described in isNotModified().
+   * 
+   * @param version The version of the data the representation is built from.
+   * @param modified The time the data was last modified.
+   * @return True if the client's copy is current and a 304 response has been set up, false if a
+   * representation must be sent.
+   */
+  private boolean isNotModified(String version, Date modified) {
+    this.lastModified = modified;
+    // Fold the request path and query parameters into the tag, so that each distinct query gets
+    // its own tag even though they share the same underlying data version. The parameters are
+    // sorted so that the same query written in a different order gets the same tag.
+    List<String> parameters = new ArrayList<String>();
+    for (Parameter parameter : getRequest().getResourceRef().getQueryAsForm()) {
+      parameters.add(parameter.getName() + "=" + parameter.getValue());
+    }
+    Collections.sort(parameters);
+    this.entityTag =
+        new Tag(digest(version + "|" + getRequest().getResourceRef().getPath() + "?"
+            + parameters), false);
+
+    Conditions conditions = getRequest().getConditions();
+    boolean notModified = false;
+    if (!conditions.getNoneMatch().isEmpty()) {
+      // If-None-Match takes precedence over If-Modified-Since (RFC 2616 section 14.26)
+      for (Tag tag : conditions.getNoneMatch()) {
+        if ("*".equals(tag.getName()) || this.entityTag.equals(tag, false)) {
+          notModified = true;
+        }
+      }
+    }
+    else if (conditions.getModifiedSince() != null) {
+      // HTTP dates only have a resolution of one second
+      notModified =
+          (this.lastModified.getTime() / 1000) <= (conditions.getModifiedSince().getTime() / 1000);
+    }
+    if (notModified) {
+      getResponse().setStatus(Status.REDIRECTION_NOT_MODIFIED);
+    }
+    return notModified;
+  }
+
+  /**
+   * Returns the hexadecimal MD5 digest of a string.
+   * 
+   * @param string The string.
+   * @return The digest.
+   */
+  private static String digest(String string) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(string.getBytes("UTF-8"));
+    }
+    catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support MD5
+      throw new IllegalStateException(e);
+    }
+    catch (UnsupportedEncodingException e) {
+      // Every Java platform is required to support UTF-8
+      throw new IllegalStateException(e);
+    }
+    StringBuilder hex = new StringBuilder(2 * digest.length);
+    for (byte b : digest) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Adds the validators computed by isNotModified() to the given representation. If the
+   * representation describes data that ends in the past (historical data that is unlikely to
+   * change), caching headers are also added so that clients and proxies can reuse it without
+   * revalidating for a while. The lifetime is given by ServerProperties.CACHE_MAX_AGE_KEY.
+   * 
+   * @param representation The representation to be returned to the client, may be null.
+   * @param dataEnd The latest timestamp the representation covers, or null if the representation
+   * is not historical (such as the latest sensor data or an index of all sensor data).
+   * @return The representation passed in, for convenience.
+   */
+  protected Representation addCacheHeaders(Representation representation,
+      XMLGregorianCalendar dataEnd) {
+    if ((representation == null) || (this.entityTag == null)) {
+      return representation;
+    }
+    representation.setTag(this.entityTag);
+    representation.setModificationDate(this.lastModified);
+    if ((dataEnd != null) && Tstamp.lessThan(dataEnd, Tstamp.makeTimestamp())) {
+      int maxAge;
+      try {
+        maxAge =
+            Integer.parseInt(server.getServerProperties().get(ServerProperties.CACHE_MAX_AGE_KEY));
+      }
+      catch (NumberFormatException e) {
+        maxAge = 0;
+      }
+      if (maxAge > 0) {
+        Source source = this.dbManager.getSource(this.uriSource);
+        String visibility = ((source != null) && source.isPublic()) ? "public" : "private";
+        representation.setExpirationDate(new Date(System.currentTimeMillis() + maxAge * 1000L));
+        Form responseHeaders = (Form) getResponse().getAttributes().get("org.restlet.http.headers");
+        responseHeaders.add("Cache-Control", visibility + ", max-age=" + maxAge);
+      }
+    }
+    return representation;
+  }
+
   /**
    * Helper function that removes any newline characters from the supplied string and replaces them
    * with a blank line.
@@ -474,6 +682,29 @@ public class WattDepotResource extends Resource {
     return (SensorData) unmarshaller.unmarshal(new StringReader(xmlString));
   }
 
+  /**
+   * Returns the XML string containing a SensorDatas object with the latest SensorData of each of
+   * the named Sources. Sources that have no sensor data are left out.
+   * 
+   * @param sourceNames The names of the Sources, which the caller has checked the current user is
+   * allowed to view.
+   * @return The XML string representing the latest SensorData of the Sources.
+   * @throws JAXBException If there are problems mashalling the SensorDatas.
+   */
+  public String getLatestSensorDatas(List<String> sourceNames) throws JAXBException {
+    Marshaller marshaller = sensorDataJaxbContext.createMarshaller();
+    StringWriter writer = new StringWriter();
+    SensorDatas datas = new SensorDatas();
+    for (SensorData data : this.dbManager.getLatestSensorDatas(sourceNames)) {
+      // A virtual source whose subsources have no data comes back without a timestamp
+      if ((data != null) && (data.getTimestamp() != null)) {
+        datas.getSensorData().add(data);
+      }
+    }
+    marshaller.marshal(datas, writer);
+    return writer.toString();
+  }
+
   /**
    * Returns the XML string containing the power in SensorData format for the Source name given in
    * the URI and the given timestamp, or null if no power data exists.
@@ -496,6 +727,34 @@ public class WattDepotResource extends Resource {
     }
   }
 
+  /**
+   * Returns the XML string containing a SensorDatas object with the power for the Source name given
+   * in the URI at regular intervals between startTime and endTime, or null if no power data can be
+   * calculated for the range.
+   * 
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param interval The sampling interval requested, which the caller has checked fits within the
+   * range.
+   * @return The XML string representing the requested power series, or null if it cannot be
+   * calculated.
+   * @throws JAXBException If there are problems mashalling the SensorDatas.
+   */
+  public String getPowerSeries(XMLGregorianCalendar startTime, XMLGregorianCalendar endTime,
+      int interval) throws JAXBException {
+    Marshaller marshaller = sensorDataJaxbContext.createMarshaller();
+    StringWriter writer = new StringWriter();
+    SensorDatas powerDatas =
+        this.dbManager.getPowerSeries(this.uriSource, startTime, endTime, interval);
+    if ((powerDatas == null) || powerDatas.getSensorData().isEmpty()) {
+      return null;
+    }
+    else {
+      marshaller.marshal(powerDatas, writer);
+      return writer.toString();
+    }
+  }
+
   /**
    * Returns the XML string containing the energy in SensorData format for the Source name given in
    * the URI over the range of time between startTime and endTime, or null if no energy data exists.
@@ -534,6 +793,27 @@ public class WattDepotResource extends Resource {
       return writer.toString();
     }
   }
+  /**
+   * Returns the energy for the Source in the URI between startTime and endTime, integrated over
+   * every sensor data point in the range, as an XML string, or null if it cannot be calculated.
+   * 
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @return The XMLized string representing the requested energy, or null.
+   * @throws JAXBException If there are problems mashalling the energy object.
+   */
+  public String getExactEnergy(XMLGregorianCalendar startTime, XMLGregorianCalendar endTime)
+      throws JAXBException {
+    SensorData energyData = this.dbManager.getExactEnergy(this.uriSource, startTime, endTime);
+    if (energyData == null) {
+      return null;
+    }
+    Marshaller marshaller = sensorDataJaxbContext.createMarshaller();
+    StringWriter writer = new StringWriter();
+    marshaller.marshal(energyData, writer);
+    return writer.toString();
+  }
+
 
   /**
    * Returns the XML string containing the carbon in SensorData format for the Source name given in
@@ -574,6 +854,66 @@ public class WattDepotResource extends Resource {
     }
   }
 
+  /**
+   * Returns a representation of a SensorDatas object with the energy or carbon for the Source name
+   * given in the URI in each bucket between startTime and endTime, used by the energy and carbon
+   * resources when a bucket size is requested. Sets the response status and returns null if the
+   * series cannot be calculated.
+   * 
+   * @param energy True for an energy series, false for a carbon series.
+   * @param exact True to integrate the energy over every sensor data point, ignoring interval.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param bucket The bucket size requested.
+   * @param interval The sampling interval requested.
+   * @return The representation of the requested series, or null if it cannot be calculated.
+   */
+  protected Representation getBucketSeriesRepresentation(boolean energy, boolean exact,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String bucket, int interval) {
+    long rangeLength = Tstamp.diff(startTime, endTime);
+    if (rangeLength <= 0) {
+      setStatusBadRange(startTime.toString(), endTime.toString());
+      return null;
+    }
+    if ((interval < 0) || ((interval * 60L * 1000L) > rangeLength)) {
+      setStatusBadSamplingInterval(Integer.toString(interval));
+      return null;
+    }
+    SensorDatas datas;
+    try {
+      if (!energy) {
+        datas =
+            this.dbManager.getCarbonSeries(this.uriSource, startTime, endTime, bucket, interval);
+      }
+      else if (exact) {
+        datas = this.dbManager.getExactEnergySeries(this.uriSource, startTime, endTime, bucket);
+      }
+      else {
+        datas =
+            this.dbManager.getEnergySeries(this.uriSource, startTime, endTime, bucket, interval);
+      }
+    }
+    catch (IllegalArgumentException e) {
+      setStatusBadBucket(bucket);
+      return null;
+    }
+    // if we get nothing, then there is no SensorData for this range
+    if ((datas == null) || datas.getSensorData().isEmpty()) {
+      setStatusBadRange(startTime.toString(), endTime.toString());
+      return null;
+    }
+    try {
+      Marshaller marshaller = sensorDataJaxbContext.createMarshaller();
+      StringWriter writer = new StringWriter();
+      marshaller.marshal(datas, writer);
+      return addCacheHeaders(getStringRepresentation(writer.toString()), endTime);
+    }
+    catch (JAXBException e) {
+      setStatusInternalError(e);
+      return null;
+    }
+  }
+
   /**
    * Returns true if the source name present in the URI is valid, i.e. it exists in the database.
    * Otherwise sets the Response status and returns false.
@@ -723,6 +1063,27 @@ public class WattDepotResource extends Resource {
     getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST, removeNewLines(this.responseMsg));
   }
 
+  /**
+   * Called when an unknown integration method is found while processing a request. Just sets the
+   * response code.
+   * 
+   * @param integration The integration method that could not be used.
+   */
+  protected void setStatusBadIntegration(String integration) {
+    this.responseMsg = ResponseMessage.badIntegration(this, integration);
+    getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST, removeNewLines(this.responseMsg));
+  }
+
+  /**
+   * Called when a bad bucket size is found while processing a request. Just sets the response code.
+   * 
+   * @param bucket The bucket size that could not be used.
+   */
+  protected void setStatusBadBucket(String bucket) {
+    this.responseMsg = ResponseMessage.badBucket(this, bucket);
+    getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST, removeNewLines(this.responseMsg));
+  }
+
   /**
    * Called when a bad sampling interval is found while processing a request. Just sets the response
    * code.
@@ -785,6 +1146,28 @@ public class WattDepotResource extends Resource {
     getResponse().setStatus(Status.CLIENT_ERROR_NOT_FOUND, removeNewLines(this.responseMsg));
   }
 
+  /**
+   * Called if the request names an unknown Source other than in the source part of the URI. Just
+   * sets the response code.
+   * 
+   * @param sourceName The name of the unknown Source.
+   */
+  protected void setStatusUnknownSource(String sourceName) {
+    this.responseMsg = ResponseMessage.unknownSource(this, sourceName);
+    getResponse().setStatus(Status.CLIENT_ERROR_NOT_FOUND, removeNewLines(this.responseMsg));
+  }
+
+  /**
+   * Called if the request names a private Source that the current user is not allowed to view,
+   * other than in the source part of the URI. Just sets the response code.
+   * 
+   * @param sourceName The name of the Source.
+   */
+  protected void setStatusNotSourceOwner(String sourceName) {
+    this.responseMsg = ResponseMessage.notSourceOwner(this, authUsername, sourceName);
+    getResponse().setStatus(Status.CLIENT_ERROR_UNAUTHORIZED, removeNewLines(this.responseMsg));
+  }
+
   /**
    * Called if a request is made that would overwrite an existing resource. Just sets the response
    * code.
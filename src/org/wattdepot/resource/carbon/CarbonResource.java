@@ -24,6 +24,9 @@ public class CarbonResource extends WattDepotResource {
   /** To be retrieved from the URI, or else null if not found. */
   private String startTime, endTime, interval;
 
+  /** The bucket size, if a series rather than a single value was requested, or else null. */
+  private String bucket;
+
   /**
    * Creates a new CarbonResource object with the provided parameters, and only a text/xml
    * representation.
@@ -37,6 +40,7 @@ public class CarbonResource extends WattDepotResource {
     this.startTime = (String) request.getAttributes().get("startTime");
     this.endTime = (String) request.getAttributes().get("endTime");
     this.interval = (String) request.getAttributes().get("samplingInterval");
+    this.bucket = (String) request.getAttributes().get("bucket");
   }
 
   /**
@@ -65,6 +69,10 @@ public class CarbonResource extends WattDepotResource {
     // If we make it here, we're all clear to send the XML: either source is public or source is
     // private but user is authorized to GET.
     if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+      // If the client already has the current representation, there is no need to build it
+      if (isNotModified(this.startTime, this.endTime)) {
+        return null;
+      }
       if ((this.startTime == null) || (this.endTime == null)) {
         // Some bad combination of options, so just fail
         setStatusMiscError("Request could not be understood.");
@@ -99,6 +107,11 @@ public class CarbonResource extends WattDepotResource {
             setStatusBadSamplingInterval(this.interval);
           }
         }
+        // A bucket size means one value per bucket was requested
+        if (this.bucket != null) {
+          return getBucketSeriesRepresentation(false, false, startObj, endObj, this.bucket,
+              intervalMinutes);
+        }
         // build XML string
         try {
           xmlString = getCarbon(startObj, endObj, intervalMinutes);
@@ -107,7 +120,7 @@ public class CarbonResource extends WattDepotResource {
             setStatusBadRange(startObj.toString(), endObj.toString());
             return null;
           }
-          return super.getStringRepresentation(xmlString);
+          return addCacheHeaders(WattDepotResource.getStringRepresentation(xmlString), endObj);
         }
         catch (JAXBException e) {
           setStatusInternalError(e);
@@ -3,6 +3,7 @@ package org.wattdepot.resource.carbon;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import java.util.List;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
 import org.wattdepot.client.BadXmlException;
@@ -432,4 +433,43 @@ public class TestCarbonResource extends ServerTestHelper {
     assertEquals("energy for virtual source did not equal expected value", 193440, client
         .getCarbonEmitted(virtualSourceName, timestamp1, timestamp2, 0), 0.01);
   }
+
+  /**
+   * Tests the bucketed carbon series on a virtual source, checking each bucket against the carbon
+   * resource.
+   * 
+   * @throws Exception If there are problems creating timestamps, or if the client has problems.
+   */
+  @Test
+  public void testGetCarbonSeries() throws Exception {
+    WattDepotClient client =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    String source1 = Source.sourceToUri(defaultPublicSource, server);
+    String source2 = Source.sourceToUri(defaultPrivateSource, server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-10-12T00:00:00.000-10:00");
+    for (int minutes = 0; minutes <= 120; minutes += 15) {
+      XMLGregorianCalendar timestamp = Tstamp.incrementMinutes(start, minutes);
+      client.storeSensorData(SensorDataStraddle.makePowerSensorData(timestamp, source1,
+          1.0E6 + minutes * 1.0E4, 0, false));
+      client.storeSensorData(SensorDataStraddle.makePowerSensorData(timestamp, source2,
+          2.0E6 - minutes * 1.0E4, 0, false));
+    }
+    XMLGregorianCalendar end = Tstamp.incrementMinutes(start, 120);
+    List<SensorData> series = client.getCarbonSeries(defaultVirtualSource, start, end, "30", 5);
+    assertEquals("Wrong number of buckets", 4, series.size());
+    for (int i = 0; i < series.size(); i++) {
+      XMLGregorianCalendar bucketStart = Tstamp.incrementMinutes(start, i * 30);
+      assertEquals("Bucket has wrong timestamp", bucketStart, series.get(i).getTimestamp());
+      assertEquals("Bucket carbon differs from getCarbon", client.getCarbonEmitted(
+          defaultVirtualSource, bucketStart, Tstamp.incrementMinutes(bucketStart, 30), 5), series
+          .get(i).getProperties().getPropertyAsDouble(SensorData.CARBON_EMITTED), 0.01);
+    }
+    try {
+      client.getCarbonSeries(defaultVirtualSource, start, end, "0", 5);
+      fail("Able to retrieve carbon series with zero bucket size");
+    }
+    catch (BadXmlException e) { // NOPMD
+      // Expected in this case
+    }
+  }
 }
@@ -9,10 +9,14 @@ import org.restlet.data.Response;
 import org.restlet.data.Status;
 import org.restlet.resource.Representation;
 import org.wattdepot.resource.WattDepotResource;
+import org.wattdepot.server.Server;
+import org.wattdepot.server.db.Job;
 
 /**
  * The Database resource is used by an administrator to perform certain actions on the database that
- * persists resources in WattDepot.
+ * persists resources in WattDepot. A snapshot is made in the background: the PUT returns 202
+ * Accepted with the URI of the job making it, or 409 Conflict with the URI of the snapshot job
+ * already in progress.
  * 
  * @author Robert Brewer
  */
@@ -56,14 +60,17 @@ public class DatabaseResource extends WattDepotResource {
     if (validateCredentials()) {
       if (isAdminUser()) {
         if ("snapshot".equalsIgnoreCase(this.methodString)) {
-          if (super.dbManager.makeSnapshot()) {
-            getResponse().setStatus(Status.SUCCESS_CREATED);
+          // The snapshot is made in the background, and the job's status says how it went
+          Job job = super.dbManager.startSnapshot(authUsername);
+          if (job == null) {
+            job = super.dbManager.getSnapshotJob();
+            getResponse().setStatus(Status.CLIENT_ERROR_CONFLICT,
+                "A database snapshot is already in progress");
           }
           else {
-            // all inputs have been validated by this point, so must be internal error
-            setStatusInternalError("Unable to create database snapshot");
-            return;
+            getResponse().setStatus(Status.SUCCESS_ACCEPTED);
           }
+          getResponse().setLocationRef(server.getHostName() + Server.JOBS_URI + "/" + job.getId());
         }
         else {
           // Unknown method requested, return error
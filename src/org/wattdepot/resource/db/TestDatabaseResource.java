@@ -1,6 +1,7 @@
 package org.wattdepot.resource.db;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.wattdepot.client.NotAuthorizedException;
@@ -48,4 +49,20 @@ public class TestDatabaseResource extends ServerTestHelper {
     WattDepotClient client = new WattDepotClient(getHostName(), adminEmail, adminPassword);
     assertTrue("Able to create snapshot with owner credentials", client.makeSnapshot());
   }
+
+  /**
+   * Tests starting a snapshot in the background and polling its job until it finishes.
+   * 
+   * @throws Exception If problems are encountered
+   */
+  @Test
+  public void testStartSnapshot() throws Exception {
+    WattDepotClient client = new WattDepotClient(getHostName(), adminEmail, adminPassword);
+    String job = client.startSnapshot();
+    assertNotNull("No job returned for snapshot", job);
+    String report = client.waitForJob(job, 100);
+    assertTrue("Snapshot job did not succeed: " + report, WattDepotClient.isJobSucceeded(report));
+    assertTrue("Bytes copied not reported: " + report, report.contains("bytes copied: "));
+    assertTrue("Files done not reported: " + report, report.contains("files done: "));
+  }
 }
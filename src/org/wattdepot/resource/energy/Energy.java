@@ -24,6 +24,12 @@ public class Energy {
   /** Whether or not to use energy counters when computing energy used. */
   protected boolean useEnergyCounters;
 
+  /**
+   * The value of the integration parameter that requests energy integrated over every sensor data
+   * point in the range, instead of sampled at an interval.
+   */
+  public static final String EXACT_INTEGRATION = "exact";
+
   private static final double SECONDS_PER_HOUR = 60 * 60;
 
   /**
@@ -24,6 +24,12 @@ public class EnergyResource extends WattDepotResource {
   /** To be retrieved from the URI, or else null if not found. */
   private String startTime, endTime, interval;
 
+  /** The bucket size, if a series rather than a single value was requested, or else null. */
+  private String bucket;
+
+  /** The integration method, if energy integrated over every sensor data point was requested. */
+  private String integration;
+
   /**
    * Creates a new EnergyResource object with the provided parameters, and only a text/xml
    * representation.
@@ -37,6 +43,8 @@ public class EnergyResource extends WattDepotResource {
     this.startTime = (String) request.getAttributes().get("startTime");
     this.endTime = (String) request.getAttributes().get("endTime");
     this.interval = (String) request.getAttributes().get("samplingInterval");
+    this.bucket = (String) request.getAttributes().get("bucket");
+    this.integration = (String) request.getAttributes().get("integration");
   }
 
   /**
@@ -65,6 +73,10 @@ public class EnergyResource extends WattDepotResource {
     // If we make it here, we're all clear to send the XML: either source is public or source is
     // private but user is authorized to GET.
     if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+      // If the client already has the current representation, there is no need to build it
+      if (isNotModified(this.startTime, this.endTime)) {
+        return null;
+      }
       if ((this.startTime == null) || (this.endTime == null)) {
         // Some bad combination of options, so just fail
         setStatusMiscError("Request could not be understood.");
@@ -99,15 +111,33 @@ public class EnergyResource extends WattDepotResource {
             setStatusBadSamplingInterval(this.interval);
           }
         }
+        // Exact integration walks every sensor data point, so no sampling interval is needed
+        if ((this.integration != null) && !Energy.EXACT_INTEGRATION.equals(this.integration)) {
+          setStatusBadIntegration(this.integration);
+          return null;
+        }
+        // A bucket size means one value per bucket was requested
+        if (this.bucket != null) {
+          return getBucketSeriesRepresentation(true, this.integration != null, startObj, endObj,
+              this.bucket, intervalMinutes);
+        }
+        if (this.integration != null) {
+          if (Tstamp.greaterThan(startObj, endObj)) {
+            setStatusBadRange(startObj.toString(), endObj.toString());
+            return null;
+          }
+        }
         // build XML string
         try {
-          xmlString = getEnergy(startObj, endObj, intervalMinutes);
+          xmlString =
+              (this.integration == null) ? getEnergy(startObj, endObj, intervalMinutes)
+                  : getExactEnergy(startObj, endObj);
           // if we get a null, then there is no SensorData for this range
           if (xmlString == null) {
             setStatusBadRange(startObj.toString(), endObj.toString());
             return null;
           }
-          return super.getStringRepresentation(xmlString);
+          return addCacheHeaders(WattDepotResource.getStringRepresentation(xmlString), endObj);
         }
         catch (JAXBException e) {
           setStatusInternalError(e);
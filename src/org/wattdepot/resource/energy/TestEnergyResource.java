@@ -3,6 +3,7 @@ package org.wattdepot.resource.energy;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import java.util.List;
 import javax.xml.bind.JAXBException;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
@@ -380,6 +381,57 @@ public class TestEnergyResource extends ServerTestHelper {
         .getPropertyAsDouble(SensorData.ENERGY_CONSUMED), 0.01);
   }
 
+  /**
+   * Tests that exact integration trapezoid-integrates between every reading in the range, rather
+   * than sampling power at an interval.
+   * 
+   * @throws Exception If there are problems creating timestamps, or if the client has problems.
+   */
+  @Test
+  public void testGetExactEnergy() throws Exception {
+    WattDepotClient client =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    String source = Source.sourceToUri(defaultPublicSource, server);
+    String sourceName = defaultPublicSource;
+    XMLGregorianCalendar base = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    // Power generated rises to a peak at 8:10, falls until 8:40, then rises again
+    int[] minutes = { 0, 10, 40, 60 };
+    double[] power = { 100, 400, 100, 200 };
+    for (int i = 0; i < minutes.length; i++) {
+      assertTrue("Unable to store SensorData", client.storeSensorData(SensorDataStraddle
+          .makePowerSensorData(Tstamp.incrementMinutes(base, minutes[i]), source, power[i], 0,
+              false)));
+    }
+    XMLGregorianCalendar start = Tstamp.incrementMinutes(base, 5);
+    XMLGregorianCalendar end = Tstamp.incrementMinutes(base, 50);
+    // 8:05-8:10 from 250 W to 400 W, 8:10-8:40 from 400 W to 100 W, 8:40-8:50 from 100 W to 150 W
+    double expected = (325.0 * 5 + 250.0 * 30 + 125.0 * 10) / 60;
+    SensorData energyData = client.getExactEnergy(sourceName, start, end);
+    assertEquals("Exact energy was wrong", expected, energyData.getProperties()
+        .getPropertyAsDouble(SensorData.ENERGY_GENERATED), 0.001);
+    assertEquals("Exact energy consumed was wrong", 0, energyData.getProperties()
+        .getPropertyAsDouble(SensorData.ENERGY_CONSUMED), 0.001);
+    assertEquals("Exact energy has wrong timestamp", start, energyData.getTimestamp());
+    // Sampling only at the ends misses the peak
+    assertEquals("Sampled energy was wrong", 150, client.getEnergyGenerated(sourceName, start,
+        end, 45), 0.001);
+
+    try {
+      client.getExactEnergy(sourceName, end, start);
+      fail("getExactEnergy worked with backwards range");
+    }
+    catch (BadXmlException e) { // NOPMD
+      // Expected in this case
+    }
+    try {
+      client.getExactEnergy(sourceName, Tstamp.incrementMinutes(base, -5), end);
+      fail("getExactEnergy worked with range outside sensor data");
+    }
+    catch (BadXmlException e) { // NOPMD
+      // Expected in this case
+    }
+  }
+
   /**
    * Tests the energy resource on a virtual source.
    * 
@@ -629,6 +681,84 @@ public class TestEnergyResource extends ServerTestHelper {
         .getPropertyAsDouble(SensorData.ENERGY_CONSUMED), 0.0001);
   }
 
+  /**
+   * Tests the bucketed energy series, checking each bucket against the energy resource, both with
+   * and without energy counters.
+   * 
+   * @throws Exception If there are problems creating timestamps, or if the client has problems.
+   */
+  @Test
+  public void testGetEnergySeries() throws Exception {
+    WattDepotClient client =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    String source1 = Source.sourceToUri(defaultPublicSource, server);
+    String source2 = Source.sourceToUri(defaultPrivateSource, server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-10-12T00:00:00.000-10:00");
+    for (int minutes = 0; minutes <= 180; minutes += 10) {
+      XMLGregorianCalendar timestamp = Tstamp.incrementMinutes(start, minutes);
+      client.storeSensorData(SensorDataStraddle.makePowerEnergySensorData(timestamp, source1, 0,
+          1000 + minutes * 5, 0, minutes * 20, false));
+      client.storeSensorData(SensorDataStraddle.makePowerEnergySensorData(timestamp, source2, 0,
+          2000 - minutes * 5, 0, minutes * 30, false));
+    }
+    XMLGregorianCalendar end = Tstamp.incrementMinutes(start, 180);
+
+    // Without counters, buckets are sampled at the interval
+    List<SensorData> series = client.getEnergySeries(defaultVirtualSource, start, end, "60", 10);
+    checkEnergySeries(client, series, 3, 10);
+    // Hour buckets with a runt bucket at the end
+    XMLGregorianCalendar runtEnd = Tstamp.incrementMinutes(start, 150);
+    series = client.getEnergySeries(defaultPublicSource, start, runtEnd, Tstamp.HOUR_BUCKET, 0);
+    checkEnergySeries(client, series, 3, 0);
+    assertEquals("Runt bucket has wrong energy", client.getEnergyConsumed(defaultPublicSource,
+        Tstamp.incrementMinutes(start, 120), runtEnd, 0), series.get(2).getProperties()
+        .getPropertyAsDouble(SensorData.ENERGY_CONSUMED), 0.01);
+
+    // With counters, only the bucket boundaries matter
+    assertTrue("Unable to add energy counters", addEnergyCounterProperty(client,
+        defaultPublicSource));
+    assertTrue("Unable to add energy counters", addEnergyCounterProperty(client,
+        defaultPrivateSource));
+    series = client.getEnergySeries(defaultVirtualSource, start, end, "60", 0);
+    checkEnergySeries(client, series, 3, 0);
+    assertEquals("Counter energy wrong", 60 * 20 + 60 * 30, series.get(0).getProperties()
+        .getPropertyAsDouble(SensorData.ENERGY_CONSUMED), 0.01);
+
+    try {
+      client.getEnergySeries(defaultPublicSource, start, end, "fortnight", 0);
+      fail("Able to retrieve energy series with unknown bucket size");
+    }
+    catch (BadXmlException e) { // NOPMD
+      // Expected in this case
+    }
+  }
+
+  /**
+   * Checks that each value of an energy series matches the energy resource for that bucket.
+   * 
+   * @param client The client to use.
+   * @param series The energy series, from the virtual source or the public source.
+   * @param buckets The expected number of buckets.
+   * @param interval The sampling interval used for the series.
+   * @throws Exception If the client has problems.
+   */
+  private void checkEnergySeries(WattDepotClient client, List<SensorData> series, int buckets,
+      int interval) throws Exception {
+    assertEquals("Wrong number of buckets", buckets, series.size());
+    for (int i = 0; i < series.size(); i++) {
+      SensorData data = series.get(i);
+      String sourceName = data.getSource().substring(data.getSource().lastIndexOf('/') + 1);
+      XMLGregorianCalendar bucketStart = data.getTimestamp();
+      XMLGregorianCalendar bucketEnd =
+          (i + 1 < series.size()) ? series.get(i + 1).getTimestamp() : null;
+      if (bucketEnd != null) {
+        assertEquals("Bucket energy differs from getEnergy", client.getEnergyConsumed(sourceName,
+            bucketStart, bucketEnd, interval), data.getProperties().getPropertyAsDouble(
+            SensorData.ENERGY_CONSUMED), 0.01);
+      }
+    }
+  }
+
   /**
    * Adds the supportsEnergyCounters property to the source with the provided name.
    * 
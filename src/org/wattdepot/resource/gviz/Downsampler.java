@@ -0,0 +1,73 @@
+package org.wattdepot.resource.gviz;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+
+/**
+ * Reduces a time series of sensor data to a bounded number of points for charting. The series is
+ * split into buckets of consecutive points (one bucket per pair of output rows), and from each
+ * bucket the points with the minimum and maximum value of a chosen property are kept, in time
+ * order. Unlike simple decimation this preserves the peaks and troughs that a chart of the full
+ * series would show, which is usually what someone looking at a power chart cares about.
+ * 
+ * @author Robert Brewer
+ */
+public final class Downsampler {
+
+  /** Not instantiable. */
+  private Downsampler() {
+    // Prevent instantiation
+  }
+
+  /**
+   * Returns at most maxRows points from the given series, keeping the minimum and maximum of the
+   * given property within each bucket. If the series already fits it is returned unchanged.
+   * 
+   * @param series The sensor data, sorted by timestamp.
+   * @param maxRows The maximum number of points to return, must be at least 2.
+   * @param property The property whose extremes should be kept, or null to keep the first and last
+   * point of each bucket.
+   * @return The downsampled series.
+   * @throws IllegalArgumentException If maxRows is less than 2.
+   * @throws NumberFormatException If a property value is not a number.
+   */
+  public static List<SensorData> minMax(List<SensorData> series, int maxRows, String property) {
+    if (maxRows < 2) {
+      throw new IllegalArgumentException("maxRows must be at least 2");
+    }
+    int size = series.size();
+    if (size <= maxRows) {
+      return series;
+    }
+    int buckets = maxRows / 2;
+    List<SensorData> result = new ArrayList<SensorData>(buckets * 2);
+    for (int bucket = 0; bucket < buckets; bucket++) {
+      // Integer arithmetic spreads the remainder evenly across buckets
+      int from = (int) ((long) bucket * size / buckets);
+      int to = (int) ((long) (bucket + 1) * size / buckets);
+      int minIndex = from, maxIndex = to - 1;
+      if (property != null) {
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+          double value = series.get(i).getPropertyAsDouble(property);
+          if (value < min) {
+            min = value;
+            minIndex = i;
+          }
+          if (value > max) {
+            max = value;
+            maxIndex = i;
+          }
+        }
+      }
+      // Keep time order within the bucket
+      int first = Math.min(minIndex, maxIndex), second = Math.max(minIndex, maxIndex);
+      result.add(series.get(first));
+      if (second != first) {
+        result.add(series.get(second));
+      }
+    }
+    return result;
+  }
+}
@@ -1,17 +1,22 @@
 package org.wattdepot.resource.gviz;
 
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.energy.Energy;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
-import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
 import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
+import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
 import org.wattdepot.resource.source.jaxb.Source;
 import org.wattdepot.server.Server;
 import org.wattdepot.server.db.DbBadIntervalException;
 import org.wattdepot.server.db.DbManager;
+import org.wattdepot.server.db.SeriesCalculator;
 import org.wattdepot.util.tstamp.Tstamp;
 import com.google.common.collect.Lists;
 import com.google.visualization.datasource.Capabilities;
@@ -189,15 +194,100 @@ public class GVisualizationServlet extends DataSourceServlet {
       }
     }
 
+    // Dashboards tend to issue the same query from many browsers at once, so identical concurrent
+    // requests share one table. The shared table is cloned since the visualization library may
+    // modify the table it is given while applying the rest of the query.
+    final String finalSourceName = sourceName;
+    final XMLGregorianCalendar finalStartTime = startTime, finalEndTime = endTime;
+    final Query finalQuery = query;
+    final String intervalString = getQueryParameter(request, "samplingInterval");
+    String maxRowsString = getQueryParameter(request, "maxRows");
+    int maxRowsValue = 0;
+    if (maxRowsString != null) {
+      try {
+        maxRowsValue = Integer.valueOf(maxRowsString);
+      }
+      catch (NumberFormatException e) {
+        log("Unable to convert maxRows parameter to int", e);
+        throw new DataSourceException(ReasonType.INVALID_REQUEST, // NOPMD
+            "maxRows parameter was invalid."); // NOPMD
+      }
+      if (maxRowsValue < 2) {
+        throw new DataSourceException(ReasonType.INVALID_REQUEST, // NOPMD
+            "maxRows parameter must be at least 2."); // NOPMD
+      }
+    }
+    final int maxRows = maxRowsValue;
+    final boolean displaySubsources =
+        "true".equals(getQueryParameter(request, "displaySubsources"));
+    String integration = getQueryParameter(request, "integration");
+    if ((integration != null) && !Energy.EXACT_INTEGRATION.equals(integration)) {
+      throw new DataSourceException(ReasonType.INVALID_REQUEST, // NOPMD
+          "integration parameter was invalid."); // NOPMD
+    }
+    final boolean exactEnergy = (integration != null);
+    final String dataType;
     if (sensorDataRequested) {
-      return generateSensorDataTable(query, sourceName, startTime, endTime);
+      dataType = "sensordata";
     }
     else if (latestSensorDataRequested) {
+      dataType = "latest";
+    }
+    else {
+      dataType = "calculated";
+    }
+    String key =
+        "gviz|" + dataType + "|" + sourceName + "|" + startTime + "|" + endTime + "|"
+            + intervalString + "|" + displaySubsources + "|" + exactEnergy + "|" + maxRows + "|"
+            + query.toQueryString();
+    DataTable table;
+    try {
+      table = this.dbManager.coalesce(key, sourceName, new Callable<DataTable>() {
+        public DataTable call() throws DataSourceException {
+          return generateDataTable(finalQuery, dataType, finalSourceName, finalStartTime,
+              finalEndTime, intervalString, displaySubsources, exactEnergy, maxRows);
+        }
+      });
+    }
+    catch (DataSourceException e) {
+      throw e;
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      log("Unexpected exception generating data table", e);
+      throw new DataSourceException(ReasonType.INTERNAL_ERROR, "Unable to generate data table."); // NOPMD
+    }
+    return table.clone();
+  }
+
+  /**
+   * Generates the DataTable for an already parsed request.
+   * 
+   * @param query The query from the data table request.
+   * @param dataType The type of data requested: "sensordata", "latest" or "calculated".
+   * @param sourceName The name of the Source.
+   * @param startTime The start of the range requested, or null.
+   * @param endTime The end of the range requested, or null.
+   * @param intervalString The samplingInterval parameter, or null.
+   * @param displaySubsources True if subsource columns are requested.
+   * @param exactEnergy True if energy should be integrated over every sensor data point.
+   * @param maxRows The maximum number of rows of sensor data to return, or 0 for no limit.
+   * @return The DataTable.
+   * @throws DataSourceException If there are problems fulfilling the request.
+   */
+  private DataTable generateDataTable(Query query, String dataType, String sourceName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String intervalString,
+      boolean displaySubsources, boolean exactEnergy, int maxRows) throws DataSourceException {
+    if ("sensordata".equals(dataType)) {
+      return generateSensorDataTable(query, sourceName, startTime, endTime, maxRows);
+    }
+    else if ("latest".equals(dataType)) {
       return generateLatestSensorDataTable(query, sourceName);
     }
     // Calculated data: power, energy, carbon
     else {
-      String intervalString = getQueryParameter(request, "samplingInterval");
       int intervalMinutes = 0;
 
       if (intervalString != null) {
@@ -211,10 +301,8 @@ public class GVisualizationServlet extends DataSourceServlet {
               "samplingInterval parameter was invalid."); // NOPMD
         }
       }
-      String displaySubsourcesString = getQueryParameter(request, "displaySubsources");
-      boolean displaySubsources = "true".equals(displaySubsourcesString);
       return generateCalculatedTable(query, sourceName, startTime, endTime, intervalMinutes,
-          displaySubsources);
+          displaySubsources, exactEnergy);
     }
   }
 
@@ -222,49 +310,73 @@ public class GVisualizationServlet extends DataSourceServlet {
    * Generates a DataTable of sensor data, given the query parameters. Supports the SELECT
    * capability, so only columns that are SELECTed will be retrieved and added to the table. The
    * startTime and endTime parameters can be null, in which case all sensor data for the source will
-   * be retrieved (which can be very big).
+   * be retrieved (which can be very big). If maxRows is given and there are more sensor data than
+   * that, the data is downsampled keeping the extremes of the first SELECTed value column.
    * 
    * @param query The query from the data source client.
    * @param sourceName The name of the source.
    * @param startTime The starting time for the interval.
    * @param endTime The ending time for the interval.
+   * @param maxRows The maximum number of rows to return, or 0 for no limit.
    * @return A DataTable with the selected columns for every sensor data resource within the
    * interval.
    * @throws DataSourceException If there are problems fulfilling the request.
    */
   private DataTable generateSensorDataTable(Query query, String sourceName,
-      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) throws DataSourceException {
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, int maxRows)
+      throws DataSourceException {
     DataTable data = new DataTable();
     // Sets up the columns requested by any SELECT in the data source query
     List<ColumnDescription> requiredColumns =
         getRequiredColumns(query, SENSOR_DATA_TABLE_COLUMNS, null);
     data.addColumns(requiredColumns);
 
-    SensorDataIndex index;
+    XMLGregorianCalendar rangeStart = startTime, rangeEnd = endTime;
     // Get all sensor data for this Source
     if ((startTime == null) || (endTime == null)) {
-      index = dbManager.getSensorDataIndex(sourceName);
+      // The index is only used to find the bounds for the range query below
+      List<SensorDataRef> refs = dbManager.getSensorDataIndex(sourceName).getSensorDataRef();
+      if (refs.isEmpty()) {
+        return data;
+      }
+      rangeStart = refs.get(0).getTimestamp();
+      rangeEnd = refs.get(refs.size() - 1).getTimestamp();
     }
-    // If we received valid start and end times, retrieve just that data
-    else {
+    // Retrieve all the rows with a single range query, rather than one query per row
+    List<SensorData> series;
+    try {
+      SensorDatas datas = dbManager.getSensorDatas(sourceName, rangeStart, rangeEnd);
+      series = (datas == null) ? new ArrayList<SensorData>() : datas.getSensorData();
+    }
+    catch (DbBadIntervalException e) {
+      log("startTime came after endTime", e);
+      throw new DataSourceException(ReasonType.INVALID_REQUEST, // NOPMD
+          "startTime parameter was after endTime parameter."); // NOPMD
+    }
+    if (maxRows > 0) {
+      String downsampleProperty = null;
+      for (ColumnDescription column : requiredColumns) {
+        if (!column.getId().equals(TIME_POINT_COLUMN)) {
+          downsampleProperty = column.getId();
+          break;
+        }
+      }
       try {
-        index = dbManager.getSensorDataIndex(sourceName, startTime, endTime);
+        series = Downsampler.minMax(series, maxRows, downsampleProperty);
       }
-      catch (DbBadIntervalException e) {
-        log("startTime came after endTime", e);
-        throw new DataSourceException(ReasonType.INVALID_REQUEST, // NOPMD
-            "startTime parameter was after endTime parameter."); // NOPMD
+      catch (NumberFormatException e) {
+        // String value in database couldn't be converted to a number.
+        throw new DataSourceException(ReasonType.INTERNAL_ERROR, "Found bad number in database"); // NOPMD
       }
     }
-    // Iterate over each SensorDataRef
-    for (SensorDataRef ref : index.getSensorDataRef()) {
-      SensorData sensorData = dbManager.getSensorData(sourceName, ref.getTimestamp());
+    // Iterate over each SensorData
+    for (SensorData sensorData : series) {
       TableRow row = new TableRow();
       for (ColumnDescription selectionColumn : requiredColumns) {
         String columnName = selectionColumn.getId();
         try {
           if (columnName.equals(TIME_POINT_COLUMN)) {
-            row.addCell(new DateTimeValue(convertTimestamp(ref.getTimestamp())));
+            row.addCell(new DateTimeValue(convertTimestamp(sensorData.getTimestamp())));
           }
           else if (columnName.equals(POWER_CONSUMED_COLUMN)) {
             row.addCell(sensorData.getPropertyAsDouble(SensorData.POWER_CONSUMED));
@@ -360,12 +472,14 @@ public class GVisualizationServlet extends DataSourceServlet {
    * @param intervalMinutes the rate at which the selected columns should be sampled, in minutes.
    * @param displaySubsources True if subsources are to be included as additional columns in the
    * DataTable, false otherwise.
+   * @param exactEnergy True if the energy of each row should be integrated over every sensor data
+   * point in the row, false if it should be sampled at the interval between rows.
    * @return A DataTable with the selected columns sampled at the given rate within the interval.
    * @throws DataSourceException If there are problems fulfilling the request.
    */
   private DataTable generateCalculatedTable(Query query, String sourceName,
       XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, int intervalMinutes,
-      boolean displaySubsources) throws DataSourceException {
+      boolean displaySubsources, boolean exactEnergy) throws DataSourceException {
     DataTable data = new DataTable();
 
     if ((startTime == null) || (endTime == null)) {
@@ -420,6 +534,15 @@ public class GVisualizationServlet extends DataSourceServlet {
     List<XMLGregorianCalendar> timestampList =
         Tstamp.getTimestampList(startTime, endTime, intervalMinutes);
 
+    // All values are calculated from one read of each non-virtual source's data for the whole
+    // table, which starts one interval before startTime (see previousTimestamp below)
+    SeriesCalculator calculator =
+        new SeriesCalculator(this.dbManager, this.server, Tstamp.incrementMilliseconds(startTime,
+            -intervalMilliseconds), endTime);
+    // Power and energy are each needed for two columns, so remember them for the current row
+    Map<String, SensorData> rowPower = new HashMap<String, SensorData>();
+    Map<String, SensorData> rowEnergy = new HashMap<String, SensorData>();
+
     for (int i = 0; i < timestampList.size(); i++, powerData = null, energyData = null, carbonData =
         null) {
       XMLGregorianCalendar currentTimestamp = timestampList.get(i);
@@ -436,6 +559,8 @@ public class GVisualizationServlet extends DataSourceServlet {
           (int) (Tstamp.diff(previousTimestamp, currentTimestamp) / minutesToMilliseconds);
 
       TableRow row = new TableRow();
+      rowPower.clear();
+      rowEnergy.clear();
       for (ColumnDescription selectionColumn : requiredColumns) {
         String columnName = selectionColumn.getId();
         // If this is a subsource, then the custom property sourceName will be set
@@ -454,7 +579,11 @@ public class GVisualizationServlet extends DataSourceServlet {
             row.addCell(new DateTimeValue(convertTimestamp(currentTimestamp)));
           }
           else if (columnName.endsWith(POWER_CONSUMED_COLUMN)) {
-            powerData = this.dbManager.getPower(currentSourceName, currentTimestamp);
+            if (!rowPower.containsKey(currentSourceName)) {
+              rowPower.put(currentSourceName, calculator.getPower(currentSourceName,
+                  currentTimestamp));
+            }
+            powerData = rowPower.get(currentSourceName);
             if (powerData == null) {
               row.addCell(0);
             }
@@ -463,7 +592,11 @@ public class GVisualizationServlet extends DataSourceServlet {
             }
           }
           else if (columnName.endsWith(POWER_GENERATED_COLUMN)) {
-            powerData = this.dbManager.getPower(currentSourceName, currentTimestamp);
+            if (!rowPower.containsKey(currentSourceName)) {
+              rowPower.put(currentSourceName, calculator.getPower(currentSourceName,
+                  currentTimestamp));
+            }
+            powerData = rowPower.get(currentSourceName);
             if (powerData == null) {
               row.addCell(0);
             }
@@ -472,9 +605,11 @@ public class GVisualizationServlet extends DataSourceServlet {
             }
           }
           else if (columnName.endsWith(ENERGY_CONSUMED_COLUMN)) {
-            energyData =
-                this.dbManager.getEnergy(currentSourceName, previousTimestamp, currentTimestamp,
-                    currentInterval);
+            if (!rowEnergy.containsKey(currentSourceName)) {
+              rowEnergy.put(currentSourceName, getRowEnergy(calculator, currentSourceName,
+                  previousTimestamp, currentTimestamp, currentInterval, exactEnergy));
+            }
+            energyData = rowEnergy.get(currentSourceName);
             if (energyData == null) {
               row.addCell(0);
             }
@@ -483,9 +618,11 @@ public class GVisualizationServlet extends DataSourceServlet {
             }
           }
           else if (columnName.endsWith(ENERGY_GENERATED_COLUMN)) {
-            energyData =
-                this.dbManager.getEnergy(currentSourceName, previousTimestamp, currentTimestamp,
-                    currentInterval);
+            if (!rowEnergy.containsKey(currentSourceName)) {
+              rowEnergy.put(currentSourceName, getRowEnergy(calculator, currentSourceName,
+                  previousTimestamp, currentTimestamp, currentInterval, exactEnergy));
+            }
+            energyData = rowEnergy.get(currentSourceName);
             if (energyData == null) {
               row.addCell(0);
             }
@@ -495,7 +632,7 @@ public class GVisualizationServlet extends DataSourceServlet {
           }
           else if (columnName.endsWith(CARBON_EMITTED_COLUMN)) {
             carbonData =
-                this.dbManager.getCarbon(currentSourceName, previousTimestamp, currentTimestamp,
+                calculator.getCarbon(currentSourceName, previousTimestamp, currentTimestamp,
                     currentInterval);
             if (carbonData == null) {
               row.addCell(0);
@@ -520,6 +657,29 @@ public class GVisualizationServlet extends DataSourceServlet {
     return data;
   }
 
+  /**
+   * Returns the energy of one row of a calculated table, either sampled at the row interval or
+   * integrated over every sensor data point in the row.
+   * 
+   * @param calculator The calculator for the table.
+   * @param sourceName The name of the source.
+   * @param startTime The start of the row.
+   * @param endTime The end of the row.
+   * @param intervalMinutes The length of the row in minutes, used as the sampling interval.
+   * @param exactEnergy True if the energy should be integrated over every sensor data point.
+   * @return The energy in SensorData format, or null if it cannot be calculated.
+   */
+  private SensorData getRowEnergy(SeriesCalculator calculator, String sourceName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, int intervalMinutes,
+      boolean exactEnergy) {
+    if (exactEnergy) {
+      return calculator.getExactEnergy(sourceName, startTime, endTime);
+    }
+    else {
+      return calculator.getEnergy(sourceName, startTime, endTime, intervalMinutes);
+    }
+  }
+
   /**
    * Converts the raw Map returned by HttpServletRequest.getParameterMap() into a generic Map with
    * proper parameters.
@@ -0,0 +1,85 @@
+package org.wattdepot.resource.gviz;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests the Downsampler class.
+ *
+ * @author Robert Brewer
+ */
+public class TestDownsampler {
+
+  /**
+   * Makes a series of power data, one point per minute, with the given values.
+   *
+   * @param values The power consumed values.
+   * @return The series.
+   * @throws Exception If there are problems making timestamps.
+   */
+  private List<SensorData> makeSeries(double... values) throws Exception {
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    List<SensorData> series = new ArrayList<SensorData>();
+    for (int i = 0; i < values.length; i++) {
+      series.add(new SensorData(Tstamp.incrementMinutes(start, i), "JUnit",
+          "http://localhost/sources/foo", new Property(SensorData.POWER_CONSUMED, Double
+              .toString(values[i]))));
+    }
+    return series;
+  }
+
+  /**
+   * Tests that series that already fit are left alone, and that larger series are reduced to
+   * maxRows points that keep the extremes of each bucket in time order.
+   *
+   * @throws Exception If there are problems making test data.
+   */
+  @Test
+  public void testMinMax() throws Exception {
+    List<SensorData> series = makeSeries(1, 2, 3);
+    assertSame("Small series was changed", series, Downsampler.minMax(series, 4,
+        SensorData.POWER_CONSUMED));
+
+    // Two buckets of four: [5, 1, 9, 5] and [5, 0, 5, 7]
+    series = makeSeries(5, 1, 9, 5, 5, 0, 5, 7);
+    List<SensorData> result = Downsampler.minMax(series, 4, SensorData.POWER_CONSUMED);
+    assertEquals("Wrong number of points", 4, result.size());
+    assertSame("Bucket 1 minimum missing", series.get(1), result.get(0));
+    assertSame("Bucket 1 maximum missing", series.get(2), result.get(1));
+    assertSame("Bucket 2 minimum missing", series.get(5), result.get(2));
+    assertSame("Bucket 2 maximum missing", series.get(7), result.get(3));
+
+    // Odd maxRows and uneven buckets never exceed the limit
+    series = makeSeries(3, 1, 4, 1, 5, 9, 2, 6, 5, 3, 5);
+    for (int maxRows = 2; maxRows < series.size(); maxRows++) {
+      result = Downsampler.minMax(series, maxRows, SensorData.POWER_CONSUMED);
+      assertTrue("Too many points for maxRows " + maxRows, result.size() <= maxRows);
+      for (int i = 1; i < result.size(); i++) {
+        assertTrue("Points out of order", result.get(i - 1).compareTo(result.get(i)) < 0);
+      }
+    }
+
+    // Without a property, bucket endpoints are kept
+    result = Downsampler.minMax(series, 2, null);
+    assertSame("First point missing", series.get(0), result.get(0));
+    assertSame("Last point missing", series.get(series.size() - 1), result.get(1));
+  }
+
+  /**
+   * Tests that a maxRows smaller than 2 is rejected.
+   *
+   * @throws Exception If there are problems making test data.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadMaxRows() throws Exception {
+    Downsampler.minMax(makeSeries(1, 2, 3), 1, SensorData.POWER_CONSUMED);
+  }
+}
@@ -0,0 +1,62 @@
+package org.wattdepot.resource.job;
+
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Representation;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.StringRepresentation;
+import org.restlet.resource.Variant;
+import org.wattdepot.resource.WattDepotResource;
+import org.wattdepot.server.db.Job;
+
+/**
+ * Reports the status of a long-running job started by another request, such as the deletion of a
+ * range of sensor data, so the client can poll until it has finished. Only the user that started
+ * the job, or an admin, can see its status.
+ * 
+ * @author Robert Brewer
+ */
+public class JobResource extends WattDepotResource {
+
+  /** The 'job' template parameter from the URI. */
+  private String jobId;
+
+  /**
+   * Creates a new JobResource object with the provided parameters, and only a text/plain
+   * representation.
+   * 
+   * @param context Restlet context for the resource
+   * @param request Restlet request
+   * @param response Restlet response
+   */
+  public JobResource(Context context, Request request, Response response) {
+    super(context, request, response);
+    this.jobId = (String) request.getAttributes().get("job");
+    getVariants().clear();
+    getVariants().add(new Variant(MediaType.TEXT_PLAIN));
+  }
+
+  /**
+   * Returns the status of the job, with one "name: value" line per field.
+   * 
+   * @param variant the requested variant of this representation
+   * @return the representation of this resource
+   * @throws ResourceException when the requested resource cannot be represented as requested.
+   */
+  @Override
+  public Representation represent(Variant variant) throws ResourceException {
+    if (!validateCredentials()) {
+      return null;
+    }
+    Job job = dbManager.getJob(this.jobId);
+    if ((job == null) || !(isAdminUser() || authUsername.equals(job.getOwner()))) {
+      // Other users' jobs are reported as missing, so their existence isn't revealed
+      getResponse().setStatus(Status.CLIENT_ERROR_NOT_FOUND, "Unknown job " + this.jobId);
+      return null;
+    }
+    return new StringRepresentation(job.toString(), MediaType.TEXT_PLAIN);
+  }
+}
@@ -0,0 +1,60 @@
+package org.wattdepot.resource.maintenance;
+
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.Representation;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.StringRepresentation;
+import org.restlet.resource.Variant;
+import org.wattdepot.resource.WattDepotResource;
+import org.wattdepot.server.MaintenanceScheduler;
+
+/**
+ * Reports the schedule of database maintenance tasks, which tasks are waiting to run, and the
+ * state, duration and outcome of the most recent maintenance jobs. Only admins can see it.
+ * 
+ * @author Robert Brewer
+ */
+public class MaintenanceResource extends WattDepotResource {
+
+  /**
+   * Creates a new MaintenanceResource object with the provided parameters, and only a text/plain
+   * representation.
+   * 
+   * @param context Restlet context for the resource
+   * @param request Restlet request
+   * @param response Restlet response
+   */
+  public MaintenanceResource(Context context, Request request, Response response) {
+    super(context, request, response);
+    getVariants().clear();
+    getVariants().add(new Variant(MediaType.TEXT_PLAIN));
+  }
+
+  /**
+   * Returns the maintenance report, with one "name: value" line per scheduled task followed by the
+   * status of each recent maintenance job.
+   * 
+   * @param variant the requested variant of this representation
+   * @return the representation of this resource
+   * @throws ResourceException when the requested resource cannot be represented as requested.
+   */
+  @Override
+  public Representation represent(Variant variant) throws ResourceException {
+    if (!validateCredentials()) {
+      return null;
+    }
+    if (!isAdminUser()) {
+      setStatusBadCredentials();
+      return null;
+    }
+    MaintenanceScheduler scheduler = server.getMaintenanceScheduler();
+    if (scheduler == null) {
+      setStatusInternalError("Maintenance scheduler not running");
+      return null;
+    }
+    return new StringRepresentation(scheduler.toString(), MediaType.TEXT_PLAIN);
+  }
+}
@@ -0,0 +1,55 @@
+package org.wattdepot.resource.maintenance;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.wattdepot.client.NotAuthorizedException;
+import org.wattdepot.client.WattDepotClient;
+import org.wattdepot.client.WattDepotClientException;
+import org.wattdepot.test.ServerTestHelper;
+
+/**
+ * Tests the Maintenance resource at the HTTP level using WattDepotClient.
+ * 
+ * @author Robert Brewer
+ */
+public class TestMaintenanceResource extends ServerTestHelper {
+
+  /**
+   * Tests retrieval of the maintenance report. Type: no credentials.
+   * 
+   * @throws WattDepotClientException If problems are encountered
+   */
+  @Test(expected = NotAuthorizedException.class)
+  public void testMaintenanceNoCredentials() throws WattDepotClientException {
+    WattDepotClient client = new WattDepotClient(getHostName());
+    assertNull("Able to get maintenance report with no credentials", client
+        .getMaintenanceStatus());
+  }
+
+  /**
+   * Tests retrieval of the maintenance report. Type: valid owner credentials.
+   * 
+   * @throws WattDepotClientException If problems are encountered
+   */
+  @Test(expected = NotAuthorizedException.class)
+  public void testMaintenanceOwnerCredentials() throws WattDepotClientException {
+    WattDepotClient client =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    assertNull("Able to get maintenance report with owner credentials", client
+        .getMaintenanceStatus());
+  }
+
+  /**
+   * Tests retrieval of the maintenance report. Type: admin credentials.
+   * 
+   * @throws WattDepotClientException If problems are encountered
+   */
+  @Test
+  public void testMaintenance() throws WattDepotClientException {
+    WattDepotClient client = new WattDepotClient(getHostName(), adminEmail, adminPassword);
+    String report = client.getMaintenanceStatus();
+    assertTrue("Tasks missing from report: " + report, report.contains("snapshot: ")
+        && report.contains("compaction: "));
+  }
+}
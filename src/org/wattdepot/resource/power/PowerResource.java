@@ -24,6 +24,9 @@ public class PowerResource extends WattDepotResource {
   /** To be retrieved from the URI, or else null if not found. */
   private String timestamp;
 
+  /** To be retrieved from the URI when a series is requested, or else null if not found. */
+  private String startTime, endTime, interval;
+
   /**
    * Creates a new PowerResource object with the provided parameters, and only a text/xml
    * representation.
@@ -35,6 +38,9 @@ public class PowerResource extends WattDepotResource {
   public PowerResource(Context context, Request request, Response response) {
     super(context, request, response);
     this.timestamp = (String) request.getAttributes().get("timestamp");
+    this.startTime = (String) request.getAttributes().get("startTime");
+    this.endTime = (String) request.getAttributes().get("endTime");
+    this.interval = (String) request.getAttributes().get("samplingInterval");
   }
 
   /**
@@ -63,6 +69,17 @@ public class PowerResource extends WattDepotResource {
     // If we make it here, we're all clear to send the XML: either source is public or source is
     // private but user is authorized to GET.
     if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+      // If the client already has the current representation, there is no need to build it
+      // A single timestamp is a range that starts and ends at it
+      String start = (this.startTime == null) ? this.timestamp : this.startTime;
+      String end = (this.endTime == null) ? this.timestamp : this.endTime;
+      if (isNotModified(start, end)) {
+        return null;
+      }
+      // A range rather than a timestamp means a series of power values was requested
+      if ((this.startTime != null) || (this.endTime != null)) {
+        return representSeries();
+      }
       // If no timestamp, give up
       if (timestamp == null) {
         setStatusBadTimestamp(this.timestamp);
@@ -87,7 +104,8 @@ public class PowerResource extends WattDepotResource {
             setStatusTimestampNotFound(timestampObj.toString());
             return null;
           }
-          return super.getStringRepresentation(xmlString);
+          return addCacheHeaders(WattDepotResource.getStringRepresentation(xmlString),
+              timestampObj);
         }
         catch (JAXBException e) {
           setStatusInternalError(e);
@@ -101,6 +119,71 @@ public class PowerResource extends WattDepotResource {
     }
   }
 
+  /**
+   * Returns a representation of the power at regular intervals between the start and end times
+   * given in the URI, as a SensorDatas object.
+   * 
+   * @return the representation of the power series, or null if it could not be calculated.
+   */
+  private Representation representSeries() {
+    if ((this.startTime == null) || (this.endTime == null)) {
+      // Need both ends of the range
+      setStatusMiscError("Request could not be understood.");
+      return null;
+    }
+    XMLGregorianCalendar startObj = null, endObj = null;
+    int intervalMinutes = 0;
+    // check if start timestamp is OK
+    try {
+      startObj = Tstamp.makeTimestamp(this.startTime);
+    }
+    catch (Exception e) {
+      setStatusBadTimestamp(this.startTime);
+      return null;
+    }
+    // check if end timestamp is OK
+    try {
+      endObj = Tstamp.makeTimestamp(this.endTime);
+    }
+    catch (Exception e) {
+      setStatusBadTimestamp(this.endTime);
+      return null;
+    }
+    if (this.interval != null) {
+      // convert to integer
+      try {
+        intervalMinutes = Integer.valueOf(this.interval);
+      }
+      catch (NumberFormatException e) {
+        setStatusBadSamplingInterval(this.interval);
+        return null;
+      }
+    }
+    long rangeLength = Tstamp.diff(startObj, endObj);
+    if (rangeLength <= 0) {
+      setStatusBadRange(startObj.toString(), endObj.toString());
+      return null;
+    }
+    if ((intervalMinutes < 0) || ((intervalMinutes * 60L * 1000L) > rangeLength)) {
+      setStatusBadSamplingInterval(Integer.toString(intervalMinutes));
+      return null;
+    }
+    // build XML string
+    try {
+      String xmlString = getPowerSeries(startObj, endObj, intervalMinutes);
+      // if we get a null, then there is no power to be calculated in this range
+      if (xmlString == null) {
+        setStatusBadRange(startObj.toString(), endObj.toString());
+        return null;
+      }
+      return addCacheHeaders(WattDepotResource.getStringRepresentation(xmlString), endObj);
+    }
+    catch (JAXBException e) {
+      setStatusInternalError(e);
+      return null;
+    }
+  }
+
   /**
    * Indicate the DELETE method is not supported.
    * 
@@ -5,8 +5,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.wattdepot.resource.sensordata.jaxb.SensorData.POWER_GENERATED;
+import java.util.List;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
+import org.wattdepot.client.BadXmlException;
 import org.wattdepot.client.ResourceNotFoundException;
 import org.wattdepot.client.WattDepotClient;
 import org.wattdepot.resource.property.jaxb.Property;
@@ -434,4 +436,72 @@ public class TestPowerResource extends ServerTestHelper {
     client.deleteSensorData(source2Name, beforeData.getTimestamp());
   }
 
+  /**
+   * Tests the power series resource on non-virtual and virtual sources, checking that each point
+   * matches what the single timestamp power resource returns.
+   * 
+   * @throws Exception If there are problems creating timestamps, or if the client has problems.
+   */
+  @Test
+  @SuppressWarnings("PMD.AvoidDuplicateLiterals")
+  public void testGetPowerSeries() throws Exception {
+    WattDepotClient client =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    String tool = "JUnit";
+    String source1 = Source.sourceToUri(defaultPublicSource, server);
+    String source2 = Source.sourceToUri(defaultPrivateSource, server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-10-12T00:00:00.000-10:00");
+
+    // source1 has data every 7 minutes for an hour, source2 every 15 minutes starting later
+    for (int minutes = 0; minutes <= 63; minutes += 7) {
+      client.storeSensorData(new SensorData(Tstamp.incrementMinutes(start, minutes), tool,
+          source1, new Property(POWER_GENERATED, Integer.toString(1000 + minutes * 10))));
+    }
+    for (int minutes = 15; minutes <= 60; minutes += 15) {
+      client.storeSensorData(new SensorData(Tstamp.incrementMinutes(start, minutes), tool,
+          source2, new Property(POWER_GENERATED, Integer.toString(500 + minutes))));
+    }
+    XMLGregorianCalendar end = Tstamp.incrementMinutes(start, 60);
+
+    // Every point on source1 is available, and matches getPower
+    List<SensorData> series = client.getPowerSeries(defaultPublicSource, start, end, 5);
+    assertEquals("Wrong number of points", 13, series.size());
+    for (SensorData powerData : series) {
+      assertEquals("Series point does not match getPower", client.getPower(defaultPublicSource,
+          powerData.getTimestamp()), powerData);
+    }
+
+    // Virtual source only has power once source2 has data on both sides
+    series = client.getPowerSeries(defaultVirtualSource, start, end, 5);
+    assertEquals("Wrong number of virtual points", 10, series.size());
+    assertEquals("Wrong first virtual timestamp", Tstamp.incrementMinutes(start, 15), series
+        .get(0).getTimestamp());
+    for (SensorData powerData : series) {
+      assertEquals("Virtual series point does not match getPower", client.getPowerGenerated(
+          defaultVirtualSource, powerData.getTimestamp()), powerData.getProperties()
+          .getPropertyAsDouble(POWER_GENERATED), 0.01);
+    }
+
+    // Default interval is a tenth of the range, plus the end point
+    assertEquals("Wrong number of default points", 11, client.getPowerSeries(defaultPublicSource,
+        start, end, 0).size());
+
+    // Interval longer than the range
+    try {
+      client.getPowerSeries(defaultPublicSource, start, end, 61);
+      fail("Able to retrieve power series with interval longer than range");
+    }
+    catch (BadXmlException e) { // NOPMD
+      // Expected behavior
+    }
+    // Range with no power at all
+    try {
+      client.getPowerSeries(defaultPublicSource, Tstamp.incrementMinutes(start, -60), Tstamp
+          .incrementMinutes(start, -30), 5);
+      fail("Able to retrieve power series outside of sensordata interval");
+    }
+    catch (BadXmlException e) { // NOPMD
+      // Expected behavior
+    }
+  }
 }
@@ -0,0 +1,138 @@
+package org.wattdepot.resource.sensordata;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.bind.JAXBException;
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Reference;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.Representation;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+import org.wattdepot.resource.WattDepotResource;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.user.jaxb.User;
+
+/**
+ * Represents the latest sensor data of many sources at once, for displays that show the current
+ * state of many sources and would otherwise need one request per source. The sources are given as
+ * a comma separated list of names in the "sources" parameter, or if it is absent, all sources the
+ * current user is allowed to view are included.
+ * 
+ * @author Robert Brewer
+ */
+
+public class LatestSensorDataResource extends WattDepotResource {
+
+  /** To be retrieved from the URI, or else null if not found. */
+  private String sources;
+
+  /**
+   * Creates a new LatestSensorDataResource object with the provided parameters, and only a
+   * text/xml representation.
+   * 
+   * @param context Restlet context for the resource
+   * @param request Restlet request
+   * @param response Restlet response
+   */
+  public LatestSensorDataResource(Context context, Request request, Response response) {
+    super(context, request, response);
+    this.sources = (String) request.getAttributes().get("sources");
+  }
+
+  /**
+   * Returns a full representation for a given variant.
+   * 
+   * @param variant the requested variant of this representation
+   * @return the representation of this resource
+   * @throws ResourceException when the requested resource cannot be represented as requested.
+   */
+  @Override
+  public Representation represent(Variant variant) throws ResourceException {
+    String xmlString;
+    // If credentials are provided, they need to be valid
+    if (!isAnonymous() && !validateCredentials()) {
+      return null;
+    }
+    // Work out who the user is once, rather than for each source
+    boolean admin = false;
+    String userUri = null;
+    if (!isAnonymous()) {
+      User user = dbManager.getUser(authUsername);
+      admin = user.isAdmin();
+      userUri = user.toUri(this.server);
+    }
+    List<String> sourceNames = new ArrayList<String>();
+    if (this.sources == null) {
+      // No list of sources, so use all the sources this user can see
+      for (Source source : dbManager.getSources().getSource()) {
+        if (source.isPublic() || admin || source.getOwner().equals(userUri)) {
+          sourceNames.add(source.getName());
+        }
+      }
+    }
+    else {
+      Set<String> requestedNames = new LinkedHashSet<String>();
+      for (String sourceName : Reference.decode(this.sources).split(",")) {
+        if (sourceName.length() > 0) {
+          requestedNames.add(sourceName);
+        }
+      }
+      for (String sourceName : requestedNames) {
+        Source source = dbManager.getSource(sourceName);
+        if (source == null) {
+          setStatusUnknownSource(sourceName);
+          return null;
+        }
+        // If source is private, check if current user is allowed to view
+        if (!source.isPublic() && !admin && !source.getOwner().equals(userUri)) {
+          setStatusNotSourceOwner(sourceName);
+          return null;
+        }
+        sourceNames.add(sourceName);
+      }
+    }
+    if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+      // If the client already has the current representation, there is no need to build it
+      if (isNotModified(sourceNames)) {
+        return null;
+      }
+      try {
+        xmlString = getLatestSensorDatas(sourceNames);
+      }
+      catch (JAXBException e) {
+        setStatusInternalError(e);
+        return null;
+      }
+      return addCacheHeaders(getStringRepresentation(xmlString), null);
+    }
+    // Some MediaType other than text/xml requested
+    else {
+      return null;
+    }
+  }
+
+  /**
+   * Indicate the DELETE method is not supported.
+   * 
+   * @return false.
+   */
+  @Override
+  public boolean allowDelete() {
+    return false;
+  }
+
+  /**
+   * Indicate the PUT method is not supported.
+   * 
+   * @return false.
+   */
+  @Override
+  public boolean allowPut() {
+    return false;
+  }
+}
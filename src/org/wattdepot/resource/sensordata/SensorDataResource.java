@@ -17,6 +17,7 @@ import org.wattdepot.resource.sensordata.jaxb.SensorData;
 import org.wattdepot.resource.source.jaxb.Source;
 import org.wattdepot.server.Server;
 import org.wattdepot.server.db.DbBadIntervalException;
+import org.wattdepot.server.db.Job;
 
 /**
  * Represents sensed data about the world. The primary purpose of WattDepot is to allow the storage
@@ -35,6 +36,8 @@ public class SensorDataResource extends WattDepotResource {
   private String endTime;
   /** fetchAll parameter from the URI, or else false if not found. */
   private boolean fetchAll = false;
+  /** overwrite parameter from the URI, or else false if not found. */
+  private boolean overwrite = false;
 
   /**
    * Creates a new SensorDataResource object with the provided parameters, and only a text/xml
@@ -51,6 +54,8 @@ public class SensorDataResource extends WattDepotResource {
     this.endTime = (String) request.getAttributes().get("endTime");
     String fetchAllString = (String) request.getAttributes().get("fetchAll");
     this.fetchAll = "true".equalsIgnoreCase(fetchAllString);
+    String overwriteString = (String) request.getAttributes().get("overwrite");
+    this.overwrite = "true".equalsIgnoreCase(overwriteString);
   }
 
   /**
@@ -79,11 +84,18 @@ public class SensorDataResource extends WattDepotResource {
     // If we make it here, we're all clear to send the XML: either source is public or source is
     // private but user is authorized to GET.
     if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+      // If the client already has the current representation, there is no need to build it
+      // A single timestamp is a range that starts and ends at it
+      String start = (this.startTime == null) ? this.timestamp : this.startTime;
+      String end = (this.endTime == null) ? this.timestamp : this.endTime;
+      if (isNotModified(start, end)) {
+        return null;
+      }
       // If no parameters, must be looking for index of all sensor data for this source
       if ((timestamp == null) && (startTime == null) && (endTime == null)) {
         try {
           xmlString = getSensorDataIndex();
-          return getStringRepresentation(xmlString);
+          return addCacheHeaders(getStringRepresentation(xmlString), null);
         }
         catch (JAXBException e) {
           setStatusInternalError(e);
@@ -102,7 +114,7 @@ public class SensorDataResource extends WattDepotResource {
               setStatusSourceLacksSensorData();
               return null;
             }
-            return super.getStringRepresentation(xmlString);
+            return addCacheHeaders(WattDepotResource.getStringRepresentation(xmlString), null);
           }
           catch (JAXBException e) {
             setStatusInternalError(e);
@@ -128,7 +140,8 @@ public class SensorDataResource extends WattDepotResource {
               setStatusTimestampNotFound(timestampObj.toString());
               return null;
             }
-            return super.getStringRepresentation(xmlString);
+            return addCacheHeaders(WattDepotResource.getStringRepresentation(xmlString),
+                timestampObj);
           }
           catch (JAXBException e) {
             setStatusInternalError(e);
@@ -159,12 +172,12 @@ public class SensorDataResource extends WattDepotResource {
           // If fetchAll requested, return SensorDatas
           if (this.fetchAll) {
             xmlString = getSensorDatas(startObj, endObj);
-            return super.getStringRepresentation(xmlString);
+            return addCacheHeaders(WattDepotResource.getStringRepresentation(xmlString), endObj);
           }
           // Otherwise, return SensorDataIndex
           else {
             xmlString = getSensorDataIndex(startObj, endObj);
-            return super.getStringRepresentation(xmlString);
+            return addCacheHeaders(WattDepotResource.getStringRepresentation(xmlString), endObj);
           }
         }
         catch (DbBadIntervalException e) {
@@ -200,7 +213,9 @@ public class SensorDataResource extends WattDepotResource {
   }
 
   /**
-   * Implement the DELETE method that deletes an existing SensorData given its timestamp. Only the
+   * Implement the DELETE method that deletes an existing SensorData given its timestamp, or all the
+   * SensorData between a start and end time. A range is deleted in the background, so the response
+   * is 202 (Accepted) with the location of a job resource that reports the progress. Only the
    * SourceOwner (or an admin) can delete a SensorData resource.
    */
   @Override
@@ -214,6 +229,10 @@ public class SensorDataResource extends WattDepotResource {
       return;
     }
     if (validateSourceOwnerOrAdmin()) {
+      if ((this.timestamp == null) && (this.startTime != null) && (this.endTime != null)) {
+        removeRange();
+        return;
+      }
       XMLGregorianCalendar timestampObj = null;
       // check if timestamp is OK
       try {
@@ -243,6 +262,36 @@ public class SensorDataResource extends WattDepotResource {
     }
   }
 
+  /**
+   * Starts deleting the SensorData between the start and end times in the URI, responding with the
+   * location of the job doing the deletion. Credentials must already have been checked.
+   */
+  private void removeRange() {
+    XMLGregorianCalendar startObj = null, endObj = null;
+    try {
+      startObj = Tstamp.makeTimestamp(this.startTime);
+    }
+    catch (Exception e) {
+      setStatusBadTimestamp(this.startTime);
+      return;
+    }
+    try {
+      endObj = Tstamp.makeTimestamp(this.endTime);
+    }
+    catch (Exception e) {
+      setStatusBadTimestamp(this.endTime);
+      return;
+    }
+    try {
+      Job job = super.dbManager.startSensorDataDeletion(uriSource, startObj, endObj, authUsername);
+      getResponse().setLocationRef(server.getHostName() + Server.JOBS_URI + "/" + job.getId());
+      getResponse().setStatus(Status.SUCCESS_ACCEPTED);
+    }
+    catch (DbBadIntervalException e) {
+      setStatusBadInterval(startObj.toString(), endObj.toString());
+    }
+  }
+
   /**
    * Indicate the PUT method is supported.
    * 
@@ -311,14 +360,18 @@ public class SensorDataResource extends WattDepotResource {
         setStatusMiscError("SensorData payload Source field does not match source field in URI");
         return;
       }
-      // if there is any already existing sensor data for given timestamp, then PUT fails
-      if (super.dbManager.hasSensorData(uriSource, timestampObj)) {
+      // Store in a single operation, which fails if sensor data already exists for the given
+      // timestamp and we are not overwriting
+      if (dbManager.storeSensorData(data, this.overwrite)) {
+        // Queued data is only stored later, and a late failure could not be reported with a 201
+        getResponse().setStatus(dbManager.isSensorDataQueued(this.overwrite)
+            ? Status.SUCCESS_ACCEPTED : Status.SUCCESS_CREATED);
+      }
+      else if (!this.overwrite && super.dbManager.hasSensorData(uriSource, timestampObj)) {
+        // Only checked after a failure, so a successful PUT costs just one database operation
         setStatusResourceOverwrite(this.timestamp);
         return;
       }
-      if (dbManager.storeSensorData(data)) {
-        getResponse().setStatus(Status.SUCCESS_CREATED);
-      }
       else {
         // all inputs have been validated by this point, so must be internal error
         setStatusInternalError(String.format("Unable to create SensorData for timestamp %s",
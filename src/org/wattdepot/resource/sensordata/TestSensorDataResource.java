@@ -15,13 +15,18 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
+import org.restlet.Client;
 import org.restlet.data.CharacterSet;
+import org.restlet.data.Form;
 import org.restlet.data.Language;
 import org.restlet.data.MediaType;
 import org.restlet.data.Method;
 import org.restlet.data.Preference;
+import org.restlet.data.Protocol;
+import org.restlet.data.Request;
 import org.restlet.data.Response;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.resource.Representation;
 import org.restlet.resource.StringRepresentation;
 import org.wattdepot.client.BadXmlException;
@@ -308,6 +313,60 @@ public class TestSensorDataResource extends ServerTestHelper {
     assertEquals(UNEXPECTED_SENSORDATA_RETURNED, origData, dataList);
   }
 
+  /**
+   * Tests that range requests carry validators and caching headers, and that conditional requests
+   * using those validators get a 304 response until the data changes. Uses a raw Restlet client
+   * since WattDepotClient hides 304 responses. Type: public Source with no credentials.
+   * 
+   * @throws Exception If stuff goes wrong.
+   */
+  @Test
+  public void testConditionalGet() throws Exception {
+    WattDepotClient storeClient =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    assertTrue(DATA_STORE_FAILED, storeClient.storeSensorData(makeTestSensorData1()));
+    String uri =
+        getHostName() + Server.SOURCES_URI + "/" + defaultPublicSource + "/"
+            + Server.SENSORDATA_URI + "/?startTime="
+            + Tstamp.incrementSeconds(timestamp1, -1).toXMLFormat() + "&endTime="
+            + Tstamp.incrementSeconds(timestamp3, 1).toXMLFormat() + "&fetchAll=true";
+    Client client = new Client(Protocol.HTTP);
+
+    Response response = client.handle(new Request(Method.GET, uri));
+    assertEquals("Range request failed", Status.SUCCESS_OK, response.getStatus());
+    Tag tag = response.getEntity().getTag();
+    assertNotNull("No ETag on range response", tag);
+    assertNotNull("No Last-Modified on range response", response.getEntity().getModificationDate());
+    Form headers = (Form) response.getAttributes().get("org.restlet.http.headers");
+    assertNotNull("No Cache-Control on historical range", headers.getFirstValue("Cache-Control"));
+
+    Request request = new Request(Method.GET, uri);
+    request.getConditions().getNoneMatch().add(tag);
+    response = client.handle(request);
+    assertEquals("Matching If-None-Match not honored", Status.REDIRECTION_NOT_MODIFIED, response
+        .getStatus());
+
+    // New data in the source must invalidate the old tag
+    assertTrue(DATA_STORE_FAILED, storeClient.storeSensorData(makeTestSensorData2()));
+    request = new Request(Method.GET, uri);
+    request.getConditions().getNoneMatch().add(tag);
+    response = client.handle(request);
+    assertEquals("Stale If-None-Match honored", Status.SUCCESS_OK, response.getStatus());
+    assertFalse("Tag unchanged after store", tag.equals(response.getEntity().getTag()));
+
+    // Repeated requests through WattDepotClient should still see the right data
+    WattDepotClient getClient = new WattDepotClient(getHostName());
+    XMLGregorianCalendar start = Tstamp.incrementSeconds(timestamp1, -1);
+    XMLGregorianCalendar end = Tstamp.incrementSeconds(timestamp3, 1);
+    assertEquals(UNEXPECTED_SENSORDATA_RETURNED, 2, getClient.getSensorDatas(defaultPublicSource,
+        start, end).size());
+    assertEquals(UNEXPECTED_SENSORDATA_RETURNED, 2, getClient.getSensorDatas(defaultPublicSource,
+        start, end).size());
+    assertTrue(DATA_STORE_FAILED, storeClient.storeSensorData(makeTestSensorData3()));
+    assertEquals(UNEXPECTED_SENSORDATA_RETURNED, 3, getClient.getSensorDatas(defaultPublicSource,
+        start, end).size());
+  }
+
   // Tests for GET {host}/sources/{source}/sensordata/{timestamp}
   // Cheating: by looking inside the black box, we know that all GET methods share the same access
   // control code, so not repeating all of that for this type of GET.
@@ -508,6 +567,60 @@ public class TestSensorDataResource extends ServerTestHelper {
     fail("Fetching SensorDataIndex with bad range succeeded");
   }
 
+  // Tests for DELETE {host}/sources/{source}/sensordata/?startTime={timestamp}&endTime={timestamp}
+
+  /**
+   * Tests that deleting a range of SensorData starts a job whose status can be polled, and that
+   * only the data in the range is deleted. Type: public Source with owner credentials.
+   * 
+   * @throws Exception If stuff goes wrong.
+   */
+  @Test
+  public void testDeleteRange() throws Exception {
+    WattDepotClient client =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    SensorData data1 = makeTestSensorData1(), data2 = makeTestSensorData2(), data3 =
+        makeTestSensorData3();
+    // before all three of the test data items
+    XMLGregorianCalendar before1 = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00"),
+    // between data2 and data3
+    between2And3 = Tstamp.makeTimestamp("2009-07-28T09:23:00.000-10:00"),
+    // after all three test data items
+    after3 = Tstamp.makeTimestamp("2009-07-28T10:00:00.000-10:00");
+
+    assertTrue(DATA_STORE_FAILED, client.storeSensorData(data1));
+    assertTrue(DATA_STORE_FAILED, client.storeSensorData(data2));
+    assertTrue(DATA_STORE_FAILED, client.storeSensorData(data3));
+
+    String job = client.deleteSensorData(defaultPublicSource, before1, between2And3);
+    assertNotNull("No job returned for range deletion", job);
+    String status = client.getJobStatus(job);
+    for (int i = 0; (i < 100) && !status.contains("state: SUCCEEDED"); i++) {
+      assertFalse("Range deletion failed", status.contains("state: FAILED"));
+      Thread.sleep(100);
+      status = client.getJobStatus(job);
+    }
+    assertTrue("Range deletion did not finish", status.contains("state: SUCCEEDED"));
+    assertTrue("Wrong progress reported", status.contains("progress: 2"));
+
+    List<SensorDataRef> retrievedRefs =
+        client.getSensorDataIndex(defaultPublicSource, before1, after3).getSensorDataRef();
+    List<SensorData> origData = new ArrayList<SensorData>();
+    origData.add(data3);
+    assertTrue(REFS_DONT_MATCH_SENSORDATA, SensorDataRef.compareSensorDataRefsToSensorDatas(
+        retrievedRefs, origData));
+
+    // Job status requires credentials
+    WattDepotClient anonClient = new WattDepotClient(getHostName());
+    try {
+      anonClient.getJobStatus(job);
+      fail("Anonymous user able to see job status");
+    }
+    catch (NotAuthorizedException e) { // NOPMD
+      // Expected
+    }
+  }
+
   // Tests for GET {host}/sources/{source}/sensordata/latest
 
   /**
@@ -656,6 +769,69 @@ public class TestSensorDataResource extends ServerTestHelper {
 
   }
 
+  // Tests for GET {host}/sensordata/latest
+
+  /**
+   * Tests that the latest SensorData of many sources retrieved in one request matches what is
+   * retrieved from each source individually, and that only visible sources are included.
+   * 
+   * @throws Exception If things go wrong.
+   */
+  @Test
+  public void testGetLatestSensorDatas() throws Exception {
+    WattDepotClient ownerClient =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    WattDepotClient anonClient = new WattDepotClient(getHostName());
+    List<String> allNames = new ArrayList<String>();
+    allNames.add(defaultPublicSource);
+    allNames.add(defaultPrivateSource);
+    allNames.add(defaultVirtualSource);
+
+    // No sensor data yet, so nothing to return
+    assertTrue("Latest returned without data", ownerClient.getLatestSensorDatas(allNames)
+        .isEmpty());
+
+    assertTrue("Unable to store SensorData", ownerClient
+        .storeSensorData(makeTestSensorData1()));
+    assertTrue("Unable to store SensorData", ownerClient
+        .storeSensorData(makeTestSensorDataPrivateSource()));
+    List<SensorData> expected = new ArrayList<SensorData>();
+    for (String name : allNames) {
+      expected.add(ownerClient.getLatestSensorData(name));
+    }
+    assertEquals("Batch latest does not match", expected, ownerClient
+        .getLatestSensorDatas(allNames));
+    assertEquals("Batch latest of all sources does not match", expected, ownerClient
+        .getLatestSensorDatas(null));
+
+    // Duplicate names are only returned once
+    List<String> names = new ArrayList<String>();
+    names.add(defaultVirtualSource);
+    names.add(defaultVirtualSource);
+    List<SensorData> result = ownerClient.getLatestSensorDatas(names);
+    assertEquals("Duplicate source not collapsed", 1, result.size());
+    assertEquals("Batch latest does not match", expected.get(2), result.get(0));
+
+    // Anonymous users only see public sources
+    expected.remove(1);
+    assertEquals("Anonymous batch latest wrong", expected, anonClient.getLatestSensorDatas(null));
+    try {
+      anonClient.getLatestSensorDatas(allNames);
+      fail("Anonymous user able to get latest data from private source");
+    }
+    catch (NotAuthorizedException e) { // NOPMD
+      // expected
+    }
+    names.add("bad-source-name");
+    try {
+      ownerClient.getLatestSensorDatas(names);
+      fail("Able to get latest data from unknown source");
+    }
+    catch (ResourceNotFoundException e) { // NOPMD
+      // expected
+    }
+  }
+
   // Tests for PUT {host}/sources/{source}/sensordata/{timestamp}
 
   /**
@@ -984,6 +1160,26 @@ public class TestSensorDataResource extends ServerTestHelper {
     assertFalse("Able to overwrite existing SensorData resource", client.storeSensorData(data));
   }
 
+  /**
+   * Tests overwriting a SensorData resource when the overwrite parameter is given. Type: public
+   * Source with owner credentials.
+   * 
+   * @throws Exception If problems are encountered.
+   */
+  @Test
+  public void testStoreOverwriteAllowed() throws Exception {
+    WattDepotClient client =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    SensorData data = makeTestSensorData1();
+    assertTrue("Unable to overwrite missing SensorData", client.storeSensorData(data, true));
+    SensorData replacement = makeTestSensorData1();
+    replacement.setTool("replacement");
+    assertTrue("Unable to overwrite existing SensorData", client.storeSensorData(replacement,
+        true));
+    assertEquals("Retrieved SensorData was not overwritten", replacement, client.getSensorData(
+        defaultPublicSource, data.getTimestamp()));
+  }
+
   // @Test
   // public void bogusTest() {
   // assertTrue("Expected failure", false);
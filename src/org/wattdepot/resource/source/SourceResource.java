@@ -99,6 +99,10 @@ public class SourceResource extends WattDepotResource {
       // If we make it here, we're all clear to send the XML: either source is public or source is
       // private but user is authorized to GET.
       if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+        // If the client already has the current representation, there is no need to build it
+        if (isNotModified()) {
+          return null;
+        }
         try {
           xmlString = getSource();
         }
@@ -106,7 +110,7 @@ public class SourceResource extends WattDepotResource {
           setStatusInternalError(e);
           return null;
         }
-        return getStringRepresentation(xmlString);
+        return addCacheHeaders(getStringRepresentation(xmlString), null);
       }
       // Some MediaType other than text/xml requested
       else {
@@ -84,6 +84,10 @@ public class Source implements Serializable, Comparable<Source> {
   public static final String ENERGY_DIRECTION = "energyDirection";
   /** Property key for update interval. */
   public static final String SUPPORTS_ENERGY_COUNTERS = "supportsEnergyCounters";
+  /** Property key for the number of days raw sensor data is kept before being downsampled. */
+  public static final String RAW_RETENTION_DAYS = "rawRetentionDays";
+  /** Property key for the number of minutes covered by each downsampled sensor data. */
+  public static final String DOWNSAMPLE_INTERVAL = "downsampleInterval";
 
   /**
    * Default no-argument constructor, apparently needed by JAXB. Don't use this, use the one with
@@ -22,10 +22,12 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
+import org.wattdepot.client.Backoff;
 import org.wattdepot.client.BadXmlException;
 import org.wattdepot.client.MiscClientException;
 import org.wattdepot.client.NotAuthorizedException;
 import org.wattdepot.client.ResourceNotFoundException;
+import org.wattdepot.client.ServiceUnavailableException;
 import org.wattdepot.client.WattDepotClient;
 import org.wattdepot.datainput.DataInputClientProperties;
 import org.wattdepot.resource.property.jaxb.Property;
@@ -245,6 +247,7 @@ public class SharkSensor {
         return false;
       }
 
+      Backoff backoff = new Backoff();
       while (true) {
         // Get data from meter
         data = pollMeter(meterAddress, toolName, sourceURI, energyMultiplier, energyDecimals);
@@ -254,6 +257,14 @@ public class SharkSensor {
         // Store SensorData in WattDepot server
         try {
           client.storeSensorData(data);
+          backoff.reset();
+        }
+        catch (ServiceUnavailableException e) {
+          // Server is overloaded, so give it a break on top of the usual update interval
+          long delay = backoff.nextDelay(e.getRetryAfter());
+          System.err.format("%s: WattDepot server is busy, backing off for %d seconds.%n", Tstamp
+              .makeTimestamp(), delay / 1000);
+          Thread.sleep(delay);
         }
         catch (Exception e) {
           System.err
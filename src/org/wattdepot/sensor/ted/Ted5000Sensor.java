@@ -23,10 +23,12 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 import org.w3c.dom.Document;
+import org.wattdepot.client.Backoff;
 import org.wattdepot.client.BadXmlException;
 import org.wattdepot.client.MiscClientException;
 import org.wattdepot.client.NotAuthorizedException;
 import org.wattdepot.client.ResourceNotFoundException;
+import org.wattdepot.client.ServiceUnavailableException;
 import org.wattdepot.client.WattDepotClient;
 import org.wattdepot.datainput.DataInputClientProperties;
 import org.wattdepot.resource.property.jaxb.Property;
@@ -178,6 +180,7 @@ public class Ted5000Sensor {
       }
 
       SensorData data;
+      Backoff backoff = new Backoff();
       while (true) {
         // Get data from TED
         try {
@@ -207,6 +210,14 @@ public class Ted5000Sensor {
         // Store SensorData in WattDepot server
         try {
           client.storeSensorData(data);
+          backoff.reset();
+        }
+        catch (ServiceUnavailableException e) {
+          // Server is overloaded, so give it a break on top of the usual update interval
+          long delay = backoff.nextDelay(e.getRetryAfter());
+          System.err.format("%s: WattDepot server is busy, backing off for %d seconds.%n", Tstamp
+              .makeTimestamp(), delay / 1000);
+          Thread.sleep(delay);
         }
         catch (Exception e) {
           System.err
@@ -0,0 +1,219 @@
+package org.wattdepot.server;
+
+import org.wattdepot.server.db.DbManager;
+import org.wattdepot.server.db.IngestQueue;
+
+/**
+ * Decides whether the server has capacity for another expensive request, so that when the server
+ * falls behind it can tell clients to come back later (with a 503 status and a Retry-After header)
+ * rather than letting retries pile up and make the backlog worse.
+ * 
+ * Requests are admitted while fewer than maxInFlight of them are running. The service time of
+ * admitted requests, which is mostly time spent in the database, is tracked as a moving average.
+ * When the average exceeds maxLatency, the number of requests allowed to run at once is reduced
+ * in proportion, but never below one, so the average keeps being updated and recovers once the
+ * database catches up. Sensor data uploads are also refused while the DbManager's ingest queue
+ * holds maxIngestDepth or more entries.
+ * 
+ * @author Robert Brewer
+ */
+public class AdmissionController {
+
+  /** The weight given to each new latency sample in the moving average. */
+  private static final double LATENCY_WEIGHT = 0.2;
+
+  /** The DbManager whose ingest queue is checked for uploads, or null. */
+  private final DbManager dbManager;
+
+  /** The largest number of requests allowed to run at once, or 0 for no limit. */
+  private final int maxInFlight;
+
+  /** The average latency in milliseconds above which fewer requests are admitted, or 0. */
+  private final long maxLatency;
+
+  /** The ingest queue depth at which uploads are refused, or 0 for no limit. */
+  private final int maxIngestDepth;
+
+  /** The number of seconds clients are told to wait when refused. */
+  private final int retryAfter;
+
+  /** The number of admitted requests still running. */
+  private int inFlight = 0;
+
+  /** The moving average of the service time of admitted requests, in milliseconds. */
+  private double averageLatency = 0;
+
+  /** The number of requests admitted. */
+  private long admitted = 0;
+
+  /** The number of requests refused because too many were running. */
+  private long rejected = 0;
+
+  /** The number of uploads refused because the ingest queue was too deep. */
+  private long rejectedIngest = 0;
+
+  /**
+   * Creates a new AdmissionController with the given thresholds.
+   * 
+   * @param dbManager The DbManager whose ingest queue is checked for uploads, or null.
+   * @param maxInFlight The largest number of requests allowed to run at once, or 0 for no limit.
+   * @param maxLatency The average latency in milliseconds above which fewer requests are admitted,
+   * or 0 to ignore latency.
+   * @param maxIngestDepth The ingest queue depth at which uploads are refused, or 0 for no limit.
+   * @param retryAfter The number of seconds clients are told to wait when refused.
+   */
+  public AdmissionController(DbManager dbManager, int maxInFlight, long maxLatency,
+      int maxIngestDepth, int retryAfter) {
+    this.dbManager = dbManager;
+    this.maxInFlight = maxInFlight;
+    this.maxLatency = maxLatency;
+    this.maxIngestDepth = maxIngestDepth;
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Creates a new AdmissionController configured from the given ServerProperties. Invalid values
+   * disable the corresponding limit.
+   * 
+   * @param dbManager The DbManager whose ingest queue is checked for uploads, or null.
+   * @param properties The server properties.
+   * @return The new AdmissionController.
+   */
+  public static AdmissionController newInstance(DbManager dbManager, ServerProperties properties) {
+    return new AdmissionController(dbManager, parse(properties,
+        ServerProperties.ADMISSION_MAX_IN_FLIGHT_KEY), parse(properties,
+        ServerProperties.ADMISSION_MAX_LATENCY_KEY), parse(properties,
+        ServerProperties.ADMISSION_MAX_INGEST_DEPTH_KEY), parse(properties,
+        ServerProperties.ADMISSION_RETRY_AFTER_KEY));
+  }
+
+  /**
+   * Returns the value of the given property as a non-negative integer, or 0 if it is not valid.
+   * 
+   * @param properties The server properties.
+   * @param key The key of the property.
+   * @return The value.
+   */
+  private static int parse(ServerProperties properties, String key) {
+    try {
+      return Math.max(0, Integer.parseInt(properties.get(key)));
+    }
+    catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Decides whether a request may run now. If it returns true, the caller must call release() when
+   * the request is finished.
+   * 
+   * @param ingest True if the request uploads sensor data.
+   * @return True if the request is admitted, false if it should be refused.
+   */
+  public synchronized boolean tryAdmit(boolean ingest) {
+    if (ingest && (this.maxIngestDepth > 0) && (this.dbManager != null)) {
+      IngestQueue queue = this.dbManager.getIngestQueue();
+      if ((queue != null) && (queue.getDepth() >= this.maxIngestDepth)) {
+        this.rejectedIngest++;
+        return false;
+      }
+    }
+    if ((this.maxInFlight > 0) && (this.inFlight >= getLimit())) {
+      this.rejected++;
+      return false;
+    }
+    this.inFlight++;
+    this.admitted++;
+    return true;
+  }
+
+  /**
+   * Records that an admitted request has finished.
+   * 
+   * @param elapsed The time the request took, in milliseconds.
+   */
+  public synchronized void release(long elapsed) {
+    this.inFlight--;
+    this.averageLatency += (elapsed - this.averageLatency) * LATENCY_WEIGHT;
+  }
+
+  /**
+   * Returns the number of requests currently allowed to run at once, taking the average latency
+   * into account.
+   * 
+   * @return The limit, or 0 if there is no limit.
+   */
+  public synchronized int getLimit() {
+    if ((this.maxLatency > 0) && (this.averageLatency > this.maxLatency)) {
+      return Math.max(1, (int) (this.maxInFlight * this.maxLatency / this.averageLatency));
+    }
+    return this.maxInFlight;
+  }
+
+  /**
+   * Returns the number of seconds clients are told to wait when refused.
+   * 
+   * @return The Retry-After value in seconds.
+   */
+  public int getRetryAfter() {
+    return this.retryAfter;
+  }
+
+  /**
+   * Returns the number of admitted requests still running.
+   * 
+   * @return The number of requests in flight.
+   */
+  public synchronized int getInFlight() {
+    return this.inFlight;
+  }
+
+  /**
+   * Returns the moving average of the time taken by admitted requests.
+   * 
+   * @return The average latency in milliseconds.
+   */
+  public synchronized double getAverageLatency() {
+    return this.averageLatency;
+  }
+
+  /**
+   * Returns the number of requests admitted.
+   * 
+   * @return The number admitted.
+   */
+  public synchronized long getAdmitted() {
+    return this.admitted;
+  }
+
+  /**
+   * Returns the number of requests refused because too many were running.
+   * 
+   * @return The number refused.
+   */
+  public synchronized long getRejected() {
+    return this.rejected;
+  }
+
+  /**
+   * Returns the number of uploads refused because the ingest queue was too deep.
+   * 
+   * @return The number refused.
+   */
+  public synchronized long getRejectedIngest() {
+    return this.rejectedIngest;
+  }
+
+  /**
+   * Returns a one line summary of the admission statistics, suitable for logging.
+   * 
+   * @return The summary.
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "Admission: %d in flight (limit %d), %.0f ms average, %d admitted, %d refused busy, "
+            + "%d refused ingest", this.inFlight, getLimit(), this.averageLatency, this.admitted,
+        this.rejected, this.rejectedIngest);
+  }
+}
@@ -0,0 +1,64 @@
+package org.wattdepot.server;
+
+import org.restlet.Context;
+import org.restlet.Filter;
+import org.restlet.data.Form;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+/**
+ * Guards an expensive resource with an AdmissionController. Requests the controller refuses get a
+ * 503 (Service Unavailable) response with a Retry-After header, without reaching the resource.
+ * 
+ * @author Robert Brewer
+ */
+public class AdmissionFilter extends Filter {
+
+  /** The controller deciding which requests may run. */
+  private final AdmissionController controller;
+
+  /**
+   * Creates a new AdmissionFilter. The resource it guards is set with setNext().
+   * 
+   * @param context The Restlet context.
+   * @param controller The controller deciding which requests may run.
+   */
+  public AdmissionFilter(Context context, AdmissionController controller) {
+    super(context);
+    this.controller = controller;
+  }
+
+  /**
+   * Passes the request on to the guarded resource if the controller admits it, otherwise sets up a
+   * 503 response.
+   * 
+   * @param request The request.
+   * @param response The response.
+   * @return The continuation status.
+   */
+  @Override
+  protected int doHandle(Request request, Response response) {
+    if (!this.controller.tryAdmit(Method.PUT.equals(request.getMethod()))) {
+      int retryAfter = this.controller.getRetryAfter();
+      response.setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, String.format(
+          "Server busy, retry after %d seconds:%n  Request: %s %s", retryAfter, request
+              .getMethod().getName(), request.getResourceRef().toString()));
+      Form responseHeaders = (Form) response.getAttributes().get("org.restlet.http.headers");
+      if (responseHeaders == null) {
+        responseHeaders = new Form();
+        response.getAttributes().put("org.restlet.http.headers", responseHeaders);
+      }
+      responseHeaders.add("Retry-After", Integer.toString(retryAfter));
+      return STOP;
+    }
+    long start = System.currentTimeMillis();
+    try {
+      return super.doHandle(request, response);
+    }
+    finally {
+      this.controller.release(System.currentTimeMillis() - start);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package org.wattdepot.server;
+
+import java.util.BitSet;
+import java.util.Calendar;
+
+/**
+ * A schedule written like a crontab entry: five space-separated fields giving the minute (0-59),
+ * hour (0-23), day of month (1-31), month (1-12) and day of week (0-7, where 0 and 7 are Sunday)
+ * on which something should happen. Each field is "*" or a comma-separated list of values and
+ * ranges like "1-5", either of which can be followed by a step like "/15". As in cron, if both
+ * the day of month and day of week are restricted, a time matching either one matches.
+ * 
+ * @author Robert Brewer
+ */
+public class CronSchedule {
+
+  /** The expression the schedule was parsed from. */
+  private final String expression;
+
+  /** The minutes that match. */
+  private final BitSet minutes;
+
+  /** The hours that match. */
+  private final BitSet hours;
+
+  /** The days of the month that match. */
+  private final BitSet days;
+
+  /** The months that match, from 1. */
+  private final BitSet months;
+
+  /** The days of the week that match, with Sunday as 0. */
+  private final BitSet weekdays;
+
+  /** True if the day of month field is "*". */
+  private final boolean anyDay;
+
+  /** True if the day of week field is "*". */
+  private final boolean anyWeekday;
+
+  /**
+   * Creates a new CronSchedule from a crontab-style expression.
+   * 
+   * @param expression The five field expression.
+   * @throws IllegalArgumentException If the expression is not valid.
+   */
+  public CronSchedule(String expression) {
+    this.expression = expression.trim();
+    String[] fields = this.expression.split("\\s+");
+    if (fields.length != 5) {
+      throw new IllegalArgumentException("Schedule \"" + expression
+          + "\" does not have five fields");
+    }
+    this.minutes = parseField(fields[0], 0, 59);
+    this.hours = parseField(fields[1], 0, 23);
+    this.days = parseField(fields[2], 1, 31);
+    this.months = parseField(fields[3], 1, 12);
+    this.weekdays = parseField(fields[4], 0, 7);
+    if (this.weekdays.get(7)) {
+      this.weekdays.set(0);
+    }
+    this.anyDay = fields[2].startsWith("*");
+    this.anyWeekday = fields[4].startsWith("*");
+  }
+
+  /**
+   * Parses one field of an expression.
+   * 
+   * @param field The field.
+   * @param min The smallest value allowed.
+   * @param max The largest value allowed.
+   * @return The values the field matches.
+   * @throws IllegalArgumentException If the field is not valid.
+   */
+  private static BitSet parseField(String field, int min, int max) {
+    BitSet values = new BitSet(max + 1);
+    for (String part : field.split(",")) {
+      int step = 1;
+      String range = part;
+      int slash = part.indexOf('/');
+      try {
+        if (slash >= 0) {
+          step = Integer.parseInt(part.substring(slash + 1));
+          range = part.substring(0, slash);
+        }
+        int first, last;
+        if ("*".equals(range)) {
+          first = min;
+          last = max;
+        }
+        else {
+          int dash = range.indexOf('-');
+          if (dash >= 0) {
+            first = Integer.parseInt(range.substring(0, dash));
+            last = Integer.parseInt(range.substring(dash + 1));
+          }
+          else {
+            first = Integer.parseInt(range);
+            // "5/15" means from 5 to the end, every 15
+            last = (slash >= 0) ? max : first;
+          }
+        }
+        if ((first < min) || (last > max) || (first > last) || (step < 1)) {
+          throw new IllegalArgumentException("Schedule field \"" + field
+              + "\" is out of range " + min + "-" + max);
+        }
+        for (int value = first; value <= last; value += step) {
+          values.set(value);
+        }
+      }
+      catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Schedule field \"" + field + "\" is not valid", e);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Returns true if the minute containing the given time is one of the scheduled minutes.
+   * 
+   * @param time The time to check.
+   * @return True if the schedule matches.
+   */
+  public boolean matches(Calendar time) {
+    if (!this.minutes.get(time.get(Calendar.MINUTE))
+        || !this.hours.get(time.get(Calendar.HOUR_OF_DAY))
+        || !this.months.get(time.get(Calendar.MONTH) + 1)) {
+      return false;
+    }
+    boolean dayMatches = this.days.get(time.get(Calendar.DAY_OF_MONTH));
+    boolean weekdayMatches = this.weekdays.get(time.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY);
+    if (this.anyDay || this.anyWeekday) {
+      return dayMatches && weekdayMatches;
+    }
+    return dayMatches || weekdayMatches;
+  }
+
+  /**
+   * Returns the expression the schedule was parsed from.
+   * 
+   * @return The expression.
+   */
+  @Override
+  public String toString() {
+    return this.expression;
+  }
+}
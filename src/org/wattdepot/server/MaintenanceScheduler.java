@@ -0,0 +1,324 @@
+package org.wattdepot.server;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.wattdepot.server.db.DbException;
+import org.wattdepot.server.db.DbManager;
+import org.wattdepot.server.db.Job;
+import org.wattdepot.server.db.JobThrottle;
+
+/**
+ * Runs database maintenance inside the server on crontab-style schedules from the ServerProperties,
+ * so that snapshots, compression, reindexing and sensor data compaction no longer need the server
+ * to be stopped or an external cron job.
+ * 
+ * Once a minute the scheduler marks the tasks whose schedule matches as pending. Pending tasks are
+ * submitted to the DbManager as jobs one at a time, and only once the previous maintenance job has
+ * been finished for at least the minimum gap, so maintenance never runs back to back. While the
+ * average request latency measured by the AdmissionController is above the maintenance limit and
+ * requests are running, pending tasks are held back, and running jobs that work in steps pause
+ * between steps. The most recent maintenance jobs are kept, with their duration and outcome, for
+ * the maintenance resource to report.
+ * 
+ * @author Robert Brewer
+ */
+public class MaintenanceScheduler implements JobThrottle {
+
+  /** The maintenance tasks that can be scheduled. */
+  public enum Task {
+    /** Makes a snapshot of the database. */
+    SNAPSHOT,
+    /** Compresses the database files. */
+    COMPRESS,
+    /** Rebuilds the database indexes. */
+    REINDEX,
+    /** Replaces old raw sensor data with downsampled sensor data. */
+    COMPACTION
+  }
+
+  /** The number of maintenance jobs kept in the history. */
+  public static final int MAX_HISTORY = 50;
+
+  /** The milliseconds in a minute. */
+  private static final long MINUTE_MILLIS = 60L * 1000;
+
+  /** The DbManager that runs the maintenance jobs. */
+  private final DbManager dbManager;
+
+  /** The source of request latency, or null if latency is not checked. */
+  private final AdmissionController admission;
+
+  /** The average request milliseconds above which maintenance is held off, or 0 for no limit. */
+  private final long maxLatency;
+
+  /** The milliseconds that must pass between the end of one maintenance job and the next. */
+  private final long minGap;
+
+  /** The schedule of each scheduled task. */
+  private final Map<Task, CronSchedule> schedules = new EnumMap<Task, CronSchedule>(Task.class);
+
+  /** The tasks whose scheduled time has come but which have not been started. */
+  private final Set<Task> pending = EnumSet.noneOf(Task.class);
+
+  /** The most recent maintenance jobs, newest first. */
+  private final LinkedList<Job> history = new LinkedList<Job>();
+
+  /** The maintenance job most recently started, or null if none has been. */
+  private Job current = null;
+
+  /** True if pending tasks were held back at the last check because requests were slow. */
+  private boolean deferred = false;
+
+  /** Checks the schedules once a minute, or null if not started. */
+  private ScheduledExecutorService timer = null;
+
+  /** Where problems are reported. */
+  private final Logger logger;
+
+  /**
+   * Creates a new MaintenanceScheduler.
+   * 
+   * @param dbManager The DbManager that runs the maintenance jobs.
+   * @param admission The source of request latency, or null if latency is not checked.
+   * @param maxLatency The average request milliseconds above which maintenance is held off, or 0
+   * for no limit.
+   * @param minGap The minutes that must pass between the end of one maintenance job and the next.
+   * @param logger Where problems are reported.
+   */
+  public MaintenanceScheduler(DbManager dbManager, AdmissionController admission,
+      long maxLatency, long minGap, Logger logger) {
+    this.dbManager = dbManager;
+    this.admission = admission;
+    this.maxLatency = maxLatency;
+    this.minGap = minGap * MINUTE_MILLIS;
+    this.logger = logger;
+  }
+
+  /**
+   * Creates a new MaintenanceScheduler configured from the given ServerProperties. Invalid
+   * schedules are logged and ignored, and invalid limits are replaced by their defaults.
+   * 
+   * @param dbManager The DbManager that runs the maintenance jobs.
+   * @param admission The source of request latency, or null if latency is not checked.
+   * @param properties The server properties.
+   * @param logger Where problems are reported.
+   * @return The new MaintenanceScheduler.
+   */
+  public static MaintenanceScheduler newInstance(DbManager dbManager,
+      AdmissionController admission, ServerProperties properties, Logger logger) {
+    long maxLatency = 1000, minGap = 15;
+    try {
+      maxLatency = Long.parseLong(properties.get(ServerProperties.MAINTENANCE_MAX_LATENCY_KEY));
+      minGap = Long.parseLong(properties.get(ServerProperties.MAINTENANCE_MIN_GAP_KEY));
+    }
+    catch (NumberFormatException e) {
+      logger.warning("Invalid maintenance limits, using defaults.");
+    }
+    MaintenanceScheduler scheduler =
+        new MaintenanceScheduler(dbManager, admission, maxLatency, minGap, logger);
+    scheduler.setSchedule(Task.SNAPSHOT, properties.get(ServerProperties.MAINTENANCE_SNAPSHOT_KEY));
+    scheduler.setSchedule(Task.COMPRESS, properties.get(ServerProperties.MAINTENANCE_COMPRESS_KEY));
+    scheduler.setSchedule(Task.REINDEX, properties.get(ServerProperties.MAINTENANCE_REINDEX_KEY));
+    scheduler.setSchedule(Task.COMPACTION, properties
+        .get(ServerProperties.MAINTENANCE_COMPACTION_KEY));
+    return scheduler;
+  }
+
+  /**
+   * Sets the schedule of a task.
+   * 
+   * @param task The task.
+   * @param expression The crontab-style schedule, or null or empty if the task is not scheduled.
+   * An invalid schedule is logged and leaves the task unscheduled.
+   */
+  public synchronized void setSchedule(Task task, String expression) {
+    this.schedules.remove(task);
+    if ((expression == null) || (expression.trim().length() == 0)) {
+      return;
+    }
+    try {
+      this.schedules.put(task, new CronSchedule(expression));
+    }
+    catch (IllegalArgumentException e) {
+      this.logger.warning("Invalid " + task + " schedule, not scheduling it: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Makes background jobs pause while the server is busy, and starts checking the schedules at the
+   * start of every minute if any task is scheduled.
+   */
+  public synchronized void start() {
+    this.dbManager.setJobThrottle(this);
+    if (this.schedules.isEmpty() || (this.timer != null)) {
+      return;
+    }
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "WattDepot maintenance scheduler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long now = System.currentTimeMillis();
+    this.timer.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        try {
+          check(Calendar.getInstance());
+        }
+        catch (RuntimeException e) {
+          // An exception would cancel all later checks
+          logger.warning("Maintenance check failed: " + e);
+        }
+      }
+    }, MINUTE_MILLIS - (now % MINUTE_MILLIS), MINUTE_MILLIS, TimeUnit.MILLISECONDS);
+    this.logger.info("Maintenance scheduled: " + this.schedules);
+  }
+
+  /**
+   * Stops checking the schedules. Jobs already submitted still run.
+   */
+  public synchronized void stop() {
+    if (this.timer != null) {
+      this.timer.shutdownNow();
+      this.timer = null;
+    }
+  }
+
+  /**
+   * Marks the tasks scheduled for the given minute as pending, then starts the next pending task
+   * if the previous maintenance job is long enough finished and the server is not busy. Called
+   * once a minute once started.
+   * 
+   * @param time The time to check the schedules against.
+   */
+  public synchronized void check(Calendar time) {
+    for (Map.Entry<Task, CronSchedule> entry : this.schedules.entrySet()) {
+      if (entry.getValue().matches(time)) {
+        this.pending.add(entry.getKey());
+      }
+    }
+    if (this.pending.isEmpty()) {
+      return;
+    }
+    if (this.current != null) {
+      if (!this.current.isFinished()
+          || (System.currentTimeMillis() - this.current.getFinished() < this.minGap)) {
+        return;
+      }
+    }
+    if (isBusy()) {
+      if (!this.deferred) {
+        this.logger.info("Requests are slow, holding back maintenance tasks " + this.pending);
+      }
+      this.deferred = true;
+      return;
+    }
+    this.deferred = false;
+    Task task = this.pending.iterator().next();
+    this.pending.remove(task);
+    this.current = startJob(task);
+    this.history.addFirst(this.current);
+    if (this.history.size() > MAX_HISTORY) {
+      this.history.removeLast();
+    }
+  }
+
+  /**
+   * Submits the job that performs a task.
+   * 
+   * @param task The task.
+   * @return The job.
+   */
+  private Job startJob(final Task task) {
+    if (task == Task.COMPACTION) {
+      return this.dbManager.startSensorDataCompaction(null);
+    }
+    if (task == Task.SNAPSHOT) {
+      // Only one snapshot runs at a time, so one already under way stands in for this one
+      Job snapshot = this.dbManager.startSnapshot(null);
+      return (snapshot == null) ? this.dbManager.getSnapshotJob() : snapshot;
+    }
+    return this.dbManager.submitJob(new Job("Scheduled " + task.toString().toLowerCase(), null) {
+      @Override
+      protected String execute() throws DbException {
+        boolean succeeded;
+        if (task == Task.COMPRESS) {
+          succeeded = dbManager.performMaintenance();
+        }
+        else {
+          succeeded = dbManager.indexTables();
+        }
+        if (!succeeded) {
+          throw new DbException("Database reported a problem");
+        }
+        return "Done";
+      }
+    });
+  }
+
+  /**
+   * Returns true if requests are running and their average latency is above the maintenance limit,
+   * in which case maintenance is held back and running jobs pause.
+   * 
+   * @return True if the server is too busy for maintenance.
+   */
+  public boolean isBusy() {
+    return (this.admission != null) && (this.maxLatency > 0) && (this.admission.getInFlight() > 0)
+        && (this.admission.getAverageLatency() > this.maxLatency);
+  }
+
+  /**
+   * Returns the most recent maintenance jobs.
+   * 
+   * @return A new list of the jobs, newest first.
+   */
+  public synchronized List<Job> getHistory() {
+    return new ArrayList<Job>(this.history);
+  }
+
+  /**
+   * Returns the tasks waiting to be started.
+   * 
+   * @return A new set of the tasks.
+   */
+  public synchronized Set<Task> getPending() {
+    return EnumSet.copyOf(this.pending);
+  }
+
+  /**
+   * Returns a report of the schedules, the pending tasks and the history of maintenance jobs,
+   * suitable as a plain text representation.
+   * 
+   * @return The report.
+   */
+  @Override
+  public synchronized String toString() {
+    StringBuilder report = new StringBuilder();
+    for (Task task : Task.values()) {
+      CronSchedule schedule = this.schedules.get(task);
+      report.append(task.toString().toLowerCase()).append(": ").append(
+          (schedule == null) ? "not scheduled" : schedule.toString());
+      if (this.pending.contains(task)) {
+        report.append(this.deferred ? " (pending, held back by slow requests)" : " (pending)");
+      }
+      report.append('\n');
+    }
+    report.append("busy: ").append(isBusy()).append('\n');
+    for (Job job : this.history) {
+      report.append('\n').append(job.toString());
+    }
+    return report.toString();
+  }
+}
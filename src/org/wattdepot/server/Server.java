@@ -27,12 +27,16 @@ import org.restlet.Component;
 import org.restlet.Restlet;
 import org.restlet.Router;
 import org.restlet.data.Protocol;
+import org.restlet.resource.Resource;
 import org.wattdepot.resource.carbon.CarbonResource;
 import org.wattdepot.resource.db.DatabaseResource;
 import org.wattdepot.resource.energy.EnergyResource;
 import org.wattdepot.resource.gviz.GVisualizationServlet;
 import org.wattdepot.resource.health.HealthResource;
+import org.wattdepot.resource.job.JobResource;
+import org.wattdepot.resource.maintenance.MaintenanceResource;
 import org.wattdepot.resource.power.PowerResource;
+import org.wattdepot.resource.sensordata.LatestSensorDataResource;
 import org.wattdepot.resource.sensordata.SensorDataResource;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
 import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
@@ -69,6 +73,12 @@ public class Server extends Application {
   /** Holds the ServerProperties instance associated with this Server. */
   private ServerProperties serverProperties;
 
+  /** Decides whether expensive requests may run, created along with the routes. */
+  private AdmissionController admissionController;
+
+  /** Runs scheduled database maintenance, created once the server is running. */
+  private MaintenanceScheduler maintenanceScheduler;
+
   /** The URI used for the health resource. */
   public static final String HEALTH_URI = "health";
 
@@ -99,6 +109,12 @@ public class Server extends Application {
   /** URI fragment for database resource. */
   public static final String DATABASE_URI = "db";
 
+  /** URI fragment for background job status. */
+  public static final String JOBS_URI = "jobs";
+
+  /** URI fragment for the maintenance schedule and history. */
+  public static final String MAINTENANCE_URI = "maintenance";
+
   /** URI parameter for source name. */
   private static final String SOURCE_PARAM = "{source}";
 
@@ -269,6 +285,11 @@ public class Server extends Application {
           + (Runtime.getRuntime().maxMemory() / 1000000.0));
       server.component.start();
       jettyServer.start();
+      // Admission control exists once the component has started, and provides the latency
+      server.maintenanceScheduler =
+          MaintenanceScheduler.newInstance(dbManager, server.admissionController,
+              server.serverProperties, server.logger);
+      server.maintenanceScheduler.start();
       server.logger.warning("WattDepot server (Version " + getVersion() + ") now running.");
       return server;
     }
@@ -450,6 +471,8 @@ public class Server extends Application {
   @Override
   public synchronized Restlet createRoot() {
     Router router = new Router(getContext());
+    DbManager dbManager = (DbManager) getContext().getAttributes().get("DbManager");
+    this.admissionController = AdmissionController.newInstance(dbManager, this.serverProperties);
 
     // This Router is used to control access to the User resource
     // Router userRouter = new Router(getContext());
@@ -470,39 +493,73 @@ public class Server extends Application {
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + SUMMARY_URI,
         SourceSummaryResource.class);
 
-    // SensorData does its own authentication processing, so don't use Guard
+    // SensorData does its own authentication processing, so don't use Guard. It and the other
+    // data resources below are guarded by admission control, since they hit the database hard.
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + SENSORDATA_URI,
-        SensorDataResource.class);
+        admit(SensorDataResource.class));
     // Specifying all the combinations of optional parameters is bogus, but don't want to deal
     // with parsing the query string right now.
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + SENSORDATA_URI
-        + "/?startTime={startTime}&endTime={endTime}&fetchAll={fetchAll}", SensorDataResource.class);
+        + "/?startTime={startTime}&endTime={endTime}&fetchAll={fetchAll}",
+        admit(SensorDataResource.class));
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + SENSORDATA_URI
-        + "/?startTime={startTime}&endTime={endTime}", SensorDataResource.class);
+        + "/?startTime={startTime}&endTime={endTime}", admit(SensorDataResource.class));
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + SENSORDATA_URI + "/{timestamp}",
-        SensorDataResource.class);
+        admit(SensorDataResource.class));
+    router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + SENSORDATA_URI
+        + "/{timestamp}?overwrite={overwrite}", admit(SensorDataResource.class));
+    // Latest sensor data of many sources at once, checks credentials itself like SensorData
+    router.attach("/" + SENSORDATA_URI + "/" + LATEST + "?sources={sources}",
+        admit(LatestSensorDataResource.class));
+    router.attach("/" + SENSORDATA_URI + "/" + LATEST, admit(LatestSensorDataResource.class));
 
     // Power does its own authentication processing, so don't use Guard
+    router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + POWER_URI
+        + "/?startTime={startTime}&endTime={endTime}&samplingInterval={samplingInterval}",
+        admit(PowerResource.class));
+    router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + POWER_URI
+        + "/?startTime={startTime}&endTime={endTime}", admit(PowerResource.class));
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + POWER_URI + "/{timestamp}",
-        PowerResource.class);
+        admit(PowerResource.class));
 
     // Energy does its own authentication processing, so don't use Guard
+    router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + ENERGY_URI
+        + "/?startTime={startTime}&endTime={endTime}&integration={integration}",
+        admit(EnergyResource.class));
+    router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + ENERGY_URI
+        + "/?startTime={startTime}&endTime={endTime}&samplingInterval={samplingInterval}"
+        + "&bucket={bucket}", admit(EnergyResource.class));
+    router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + ENERGY_URI
+        + "/?startTime={startTime}&endTime={endTime}&bucket={bucket}",
+        admit(EnergyResource.class));
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + ENERGY_URI
         + "/?startTime={startTime}&endTime={endTime}&samplingInterval={samplingInterval}",
-        EnergyResource.class);
+        admit(EnergyResource.class));
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + ENERGY_URI
-        + "/?startTime={startTime}&endTime={endTime}", EnergyResource.class);
+        + "/?startTime={startTime}&endTime={endTime}", admit(EnergyResource.class));
 
     // Carbon does its own authentication processing, so don't use Guard
+    router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + CARBON_URI
+        + "/?startTime={startTime}&endTime={endTime}&samplingInterval={samplingInterval}"
+        + "&bucket={bucket}", admit(CarbonResource.class));
+    router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + CARBON_URI
+        + "/?startTime={startTime}&endTime={endTime}&bucket={bucket}",
+        admit(CarbonResource.class));
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + CARBON_URI
         + "/?startTime={startTime}&endTime={endTime}&samplingInterval={samplingInterval}",
-        CarbonResource.class);
+        admit(CarbonResource.class));
     router.attach("/" + SOURCES_URI + "/" + SOURCE_PARAM + "/" + CARBON_URI
-        + "/?startTime={startTime}&endTime={endTime}", CarbonResource.class);
+        + "/?startTime={startTime}&endTime={endTime}", admit(CarbonResource.class));
 
     // Database does its own authentication processing, so don't use Guard
     router.attach("/" + DATABASE_URI + "/" + "{method}", DatabaseResource.class);
 
+    // Job status does its own authentication processing, so don't use Guard
+    router.attach("/" + JOBS_URI + "/{job}", JobResource.class);
+
+    // Maintenance does its own authentication processing, so don't use Guard
+    router.attach("/" + MAINTENANCE_URI, MaintenanceResource.class);
+
     // // Google Visualization API resource
     // Route route = router.attach("/" + SOURCES_URI + "/{source}" + "/" + GVIZ_URI,
     // GVisualizationResource.class);
@@ -514,6 +571,19 @@ public class Server extends Application {
     return router;
   }
 
+  /**
+   * Wraps the given resource class in an AdmissionFilter, so that requests for it are refused with
+   * a 503 (Service Unavailable) status when the server is too busy.
+   * 
+   * @param resourceClass The class of the expensive resource.
+   * @return The filter guarding the resource.
+   */
+  private Restlet admit(Class<? extends Resource> resourceClass) {
+    AdmissionFilter filter = new AdmissionFilter(getContext(), this.admissionController);
+    filter.setNext(resourceClass);
+    return filter;
+  }
+
   /**
    * Returns the version associated with this Package, if available from the jar file manifest. If
    * not being run from a jar file, then returns "Development".
@@ -550,9 +620,32 @@ public class Server extends Application {
    * @throws Exception if something goes wrong during the shutdown.
    */
   public void shutdown() throws Exception {
+    if (this.maintenanceScheduler != null) {
+      this.maintenanceScheduler.stop();
+    }
     this.component.stop();
   }
 
+  /**
+   * Returns the AdmissionController that decides whether expensive requests may run, mainly so its
+   * statistics can be inspected.
+   * 
+   * @return The admission controller, or null if the server has not been started.
+   */
+  public AdmissionController getAdmissionController() {
+    return this.admissionController;
+  }
+
+  /**
+   * Returns the MaintenanceScheduler that runs scheduled database maintenance, so its schedule and
+   * history can be reported.
+   * 
+   * @return The maintenance scheduler, or null if the server has not been started.
+   */
+  public MaintenanceScheduler getMaintenanceScheduler() {
+    return this.maintenanceScheduler;
+  }
+
   /**
    * Returns the logger for the WattDepot server.
    * 
@@ -21,6 +21,64 @@ public class ServerProperties {
   public static final String ADMIN_EMAIL_KEY = "wattdepot-server.admin.email";
   /** The admin password. */
   public static final String ADMIN_PASSWORD_KEY = "wattdepot-server.admin.password";
+  /** The key for the lifetime in seconds that clients may cache historical data. */
+  public static final String CACHE_MAX_AGE_KEY = "wattdepot-server.cache.maxage";
+  /** The key for the memory in bytes used to cache computed power, energy and carbon values. */
+  public static final String COMPUTED_CACHE_SIZE_KEY = "wattdepot-server.cache.computed.size";
+  /** The key for the milliseconds a request waits for an identical request's computation. */
+  public static final String COALESCE_TIMEOUT_KEY = "wattdepot-server.coalesce.timeout";
+  /**
+   * The key for the number of threads shared by all requests that run database lookups in
+   * parallel. Only the straddle and latest data lookups run on these threads; the energy and
+   * carbon computed from them is still reduced serially on the request thread, and one request's
+   * range chunks use at most half of the threads.
+   */
+  public static final String DB_PARALLELISM_KEY = "wattdepot-server.db.parallelism";
+  /** The key for the number of files a BerkeleyDB snapshot copies at once. */
+  public static final String DB_BACKUP_THREADS_KEY = "wattdepot-server.db.backup.threads";
+  /** The key for whether the in-memory store keeps a journal and snapshots on disk. */
+  public static final String DB_MEMORY_PERSIST_KEY = "wattdepot-server.db.memory.persist";
+  /** The key for the ms between forces of the in-memory store journal, or 0 for every write. */
+  public static final String DB_MEMORY_SYNC_KEY = "wattdepot-server.db.memory.sync";
+  /** The key for the minutes between snapshots of the in-memory store, or 0 for none. */
+  public static final String DB_MEMORY_SNAPSHOT_INTERVAL_KEY =
+      "wattdepot-server.db.memory.snapshot.interval";
+  /** The key for whether sensor data is journaled and stored in the background. */
+  public static final String INGEST_ASYNC_KEY = "wattdepot-server.ingest.async";
+  /** The key for the number of sensor data stored per batch when ingest is asynchronous. */
+  public static final String INGEST_BATCH_SIZE_KEY = "wattdepot-server.ingest.batchsize";
+  /** The key for the smallest number of sensor data per Source in the existence filter. */
+  public static final String EXISTENCE_FILTER_CAPACITY_KEY =
+      "wattdepot-server.db.existencefilter.capacity";
+  /** The key for the number of sensor data deleted per chunk by range deletions. */
+  public static final String DELETE_CHUNK_SIZE_KEY = "wattdepot-server.delete.chunksize";
+  /** The key for the milliseconds range deletions pause between chunks. */
+  public static final String DELETE_PAUSE_KEY = "wattdepot-server.delete.pause";
+  /** The key for the milliseconds sensor data compaction pauses after each downsampled interval. */
+  public static final String COMPACTION_PAUSE_KEY = "wattdepot-server.compaction.pause";
+  /** The key for the crontab-style schedule of database snapshots, or empty for none. */
+  public static final String MAINTENANCE_SNAPSHOT_KEY = "wattdepot-server.maintenance.snapshot";
+  /** The key for the crontab-style schedule of database compression, or empty for none. */
+  public static final String MAINTENANCE_COMPRESS_KEY = "wattdepot-server.maintenance.compress";
+  /** The key for the crontab-style schedule of database reindexing, or empty for none. */
+  public static final String MAINTENANCE_REINDEX_KEY = "wattdepot-server.maintenance.reindex";
+  /** The key for the crontab-style schedule of sensor data compaction, or empty for none. */
+  public static final String MAINTENANCE_COMPACTION_KEY =
+      "wattdepot-server.maintenance.compaction";
+  /** The key for the average request milliseconds above which maintenance is held off. */
+  public static final String MAINTENANCE_MAX_LATENCY_KEY =
+      "wattdepot-server.maintenance.maxlatency";
+  /** The key for the minutes that must pass between the end of one maintenance job and the next. */
+  public static final String MAINTENANCE_MIN_GAP_KEY = "wattdepot-server.maintenance.mingap";
+  /** The key for the number of expensive requests allowed to run at once, or 0 for no limit. */
+  public static final String ADMISSION_MAX_IN_FLIGHT_KEY = "wattdepot-server.admission.maxinflight";
+  /** The key for the average request milliseconds above which fewer requests are admitted. */
+  public static final String ADMISSION_MAX_LATENCY_KEY = "wattdepot-server.admission.maxlatency";
+  /** The key for the ingest queue depth at which sensor data uploads are refused. */
+  public static final String ADMISSION_MAX_INGEST_DEPTH_KEY =
+      "wattdepot-server.admission.maxingestdepth";
+  /** The key for the number of seconds refused clients are told to wait. */
+  public static final String ADMISSION_RETRY_AFTER_KEY = "wattdepot-server.admission.retryafter";
   /** The context root key. */
   public static final String CONTEXT_ROOT_KEY = "wattdepot-server.context.root";
   /** The context root key. */
@@ -31,6 +89,10 @@ public class ServerProperties {
   public static final String DB_SNAPSHOT_KEY = "wattdepot-server.db.snapshot";
   /** The database implementation class. */
   public static final String DB_IMPL_KEY = "wattdepot-server.db.impl";
+  /** The database implementation class the tiered implementation stores everything in. */
+  public static final String DB_COLD_IMPL_KEY = "wattdepot-server.db.impl.cold";
+  /** The key for the hours of recent sensor data the tiered implementation keeps in memory. */
+  public static final String DB_HOT_WINDOW_KEY = "wattdepot-server.db.hot.window";
   /** The hostname key. */
   public static final String HOSTNAME_KEY = "wattdepot-server.hostname";
   /** The logging level key. */
@@ -120,11 +182,38 @@ public class ServerProperties {
     properties.setProperty(SERVER_HOME_DIR, serverHome);
     properties.setProperty(ADMIN_EMAIL_KEY, defaultAdmin);
     properties.setProperty(ADMIN_PASSWORD_KEY, defaultAdmin);
+    properties.setProperty(CACHE_MAX_AGE_KEY, "3600");
+    properties.setProperty(COMPUTED_CACHE_SIZE_KEY, "8388608");
+    properties.setProperty(COALESCE_TIMEOUT_KEY, "30000");
+    properties.setProperty(DB_PARALLELISM_KEY, "4");
+    properties.setProperty(DB_BACKUP_THREADS_KEY, "4");
+    properties.setProperty(DB_MEMORY_PERSIST_KEY, FALSE);
+    properties.setProperty(DB_MEMORY_SYNC_KEY, "1000");
+    properties.setProperty(DB_MEMORY_SNAPSHOT_INTERVAL_KEY, "60");
+    properties.setProperty(INGEST_ASYNC_KEY, "false");
+    properties.setProperty(INGEST_BATCH_SIZE_KEY, "100");
+    properties.setProperty(EXISTENCE_FILTER_CAPACITY_KEY, "10000");
+    properties.setProperty(DELETE_CHUNK_SIZE_KEY, "1000");
+    properties.setProperty(DELETE_PAUSE_KEY, "50");
+    properties.setProperty(COMPACTION_PAUSE_KEY, "10");
+    properties.setProperty(MAINTENANCE_SNAPSHOT_KEY, "");
+    properties.setProperty(MAINTENANCE_COMPRESS_KEY, "");
+    properties.setProperty(MAINTENANCE_REINDEX_KEY, "");
+    properties.setProperty(MAINTENANCE_COMPACTION_KEY, "");
+    properties.setProperty(MAINTENANCE_MAX_LATENCY_KEY, "1000");
+    properties.setProperty(MAINTENANCE_MIN_GAP_KEY, "15");
+    properties.setProperty(ADMISSION_MAX_IN_FLIGHT_KEY, "64");
+    properties.setProperty(ADMISSION_MAX_LATENCY_KEY, "10000");
+    properties.setProperty(ADMISSION_MAX_INGEST_DEPTH_KEY, "10000");
+    properties.setProperty(ADMISSION_RETRY_AFTER_KEY, "5");
     properties.setProperty(CONTEXT_ROOT_KEY, "wattdepot");
     properties.setProperty(GVIZ_CONTEXT_ROOT_KEY, "gviz");
     properties.setProperty(DB_DIR_KEY, serverHome + "/db");
     properties.setProperty(DB_SNAPSHOT_KEY, serverHome + "/db-snapshot");
     properties.setProperty(DB_IMPL_KEY, "org.wattdepot.server.db.derby.DerbyStorageImplementation");
+    properties.setProperty(DB_COLD_IMPL_KEY,
+        "org.wattdepot.server.db.derby.DerbyStorageImplementation");
+    properties.setProperty(DB_HOT_WINDOW_KEY, "48");
     properties.setProperty(HOSTNAME_KEY, "localhost");
     properties.setProperty(LOGGING_LEVEL_KEY, "INFO");
     // PMD doesn't like the hard coded localhost IP, but the string "localhost" doesn't work.
@@ -214,6 +303,10 @@ public class ServerProperties {
     if (dbImpl != null) {
       properties.setProperty(DB_IMPL_KEY, dbImpl);
     }
+    String coldImpl = System.getProperty(DB_COLD_IMPL_KEY);
+    if (coldImpl != null) {
+      properties.setProperty(DB_COLD_IMPL_KEY, coldImpl);
+    }
     trimProperties(properties);
     // update the system properties object to reflect these new values.
     Properties systemProperties = System.getProperties();
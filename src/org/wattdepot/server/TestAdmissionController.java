@@ -0,0 +1,92 @@
+package org.wattdepot.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.restlet.Context;
+import org.restlet.Restlet;
+import org.restlet.data.Form;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+/**
+ * Tests the AdmissionController and AdmissionFilter classes.
+ * 
+ * @author Robert Brewer
+ */
+public class TestAdmissionController {
+
+  /**
+   * Tests that requests beyond the in-flight limit are refused and counted, and that the limit
+   * shrinks while the average latency is too high but never below one.
+   */
+  @Test
+  public void testLimits() {
+    AdmissionController controller = new AdmissionController(null, 2, 100, 0, 5);
+    assertTrue("First request refused", controller.tryAdmit(false));
+    assertTrue("Second request refused", controller.tryAdmit(true));
+    assertFalse("Third request admitted", controller.tryAdmit(false));
+    assertEquals("Wrong in flight count", 2, controller.getInFlight());
+    assertEquals("Wrong admitted count", 2, controller.getAdmitted());
+    assertEquals("Wrong refused count", 1, controller.getRejected());
+
+    // Slow requests shrink the limit to one
+    controller.release(10000);
+    controller.release(10000);
+    assertTrue("Average latency not tracked", controller.getAverageLatency() > 100);
+    assertEquals("Limit not reduced", 1, controller.getLimit());
+    assertTrue("Request refused with nothing in flight", controller.tryAdmit(false));
+    assertFalse("Second request admitted despite latency", controller.tryAdmit(false));
+
+    // Fast requests bring the limit back
+    for (int i = 0; i < 50; i++) {
+      controller.release(0);
+      assertTrue("Request refused after recovery", controller.tryAdmit(false));
+    }
+    assertEquals("Limit not restored", 2, controller.getLimit());
+
+    // No limit at all
+    controller = new AdmissionController(null, 0, 0, 0, 5);
+    for (int i = 0; i < 100; i++) {
+      assertTrue("Request refused without limit", controller.tryAdmit(false));
+    }
+  }
+
+  /**
+   * Tests that the filter answers refused requests with 503 and a Retry-After header without
+   * calling the resource, and passes admitted requests through.
+   */
+  @Test
+  public void testFilter() {
+    AdmissionController controller = new AdmissionController(null, 1, 0, 0, 7);
+    final int[] calls = { 0 };
+    AdmissionFilter filter = new AdmissionFilter(new Context(), controller);
+    filter.setNext(new Restlet() {
+      @Override
+      public void handle(Request request, Response response) {
+        calls[0]++;
+        response.setStatus(Status.SUCCESS_OK);
+      }
+    });
+
+    assertTrue("Unable to fill the server", controller.tryAdmit(false));
+    Request request = new Request(Method.PUT, "http://localhost/wattdepot/sources/foo/sensordata");
+    Response response = new Response(request);
+    filter.handle(request, response);
+    assertEquals("Busy server did not refuse", Status.SERVER_ERROR_SERVICE_UNAVAILABLE, response
+        .getStatus());
+    Form headers = (Form) response.getAttributes().get("org.restlet.http.headers");
+    assertEquals("Wrong Retry-After", "7", headers.getFirstValue("Retry-After"));
+    assertEquals("Resource called while busy", 0, calls[0]);
+
+    controller.release(0);
+    response = new Response(request);
+    filter.handle(request, response);
+    assertEquals("Request not passed on", Status.SUCCESS_OK, response.getStatus());
+    assertEquals("Resource not called", 1, calls[0]);
+    assertEquals("Request not released", 0, controller.getInFlight());
+  }
+}
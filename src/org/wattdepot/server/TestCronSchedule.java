@@ -0,0 +1,65 @@
+package org.wattdepot.server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import org.junit.Test;
+
+/**
+ * Tests the CronSchedule class.
+ * 
+ * @author Robert Brewer
+ */
+public class TestCronSchedule {
+
+  /**
+   * Tests matching of values, ranges, lists and steps.
+   */
+  @Test
+  public void testMatches() {
+    // Wednesday November 4, 2009 at 02:30
+    Calendar time = new GregorianCalendar(2009, Calendar.NOVEMBER, 4, 2, 30);
+    assertTrue("Every minute didn't match", new CronSchedule("* * * * *").matches(time));
+    assertTrue("Exact time didn't match", new CronSchedule("30 2 4 11 3").matches(time));
+    assertFalse("Wrong minute matched", new CronSchedule("31 2 * * *").matches(time));
+    assertFalse("Wrong hour matched", new CronSchedule("30 3 * * *").matches(time));
+    assertTrue("Range didn't match", new CronSchedule("30 1-3 * * *").matches(time));
+    assertTrue("List didn't match", new CronSchedule("0,15,30,45 2 * * *").matches(time));
+    assertTrue("Step didn't match", new CronSchedule("*/15 */2 * * *").matches(time));
+    assertFalse("Step matched off step", new CronSchedule("*/20 * * * *").matches(time));
+    assertTrue("Step from value didn't match", new CronSchedule("10/20 * * * *").matches(time));
+    assertTrue("Weekday range didn't match", new CronSchedule("30 2 * * 1-5").matches(time));
+    assertFalse("Weekend matched", new CronSchedule("30 2 * * 0,6").matches(time));
+    assertFalse("Wrong month matched", new CronSchedule("30 2 * 12 *").matches(time));
+
+    // With both day fields restricted, either one matching is enough
+    assertTrue("Day of month alone didn't match", new CronSchedule("30 2 4 * 0").matches(time));
+    assertTrue("Day of week alone didn't match", new CronSchedule("30 2 1 * 3").matches(time));
+    assertFalse("Neither day matched", new CronSchedule("30 2 1 * 0").matches(time));
+
+    // Sunday can be 0 or 7
+    Calendar sunday = new GregorianCalendar(2009, Calendar.NOVEMBER, 8, 2, 30);
+    assertTrue("Sunday as 7 didn't match", new CronSchedule("30 2 * * 7").matches(sunday));
+    assertTrue("Sunday as 0 didn't match", new CronSchedule("30 2 * * 0").matches(sunday));
+  }
+
+  /**
+   * Tests that invalid expressions are rejected.
+   */
+  @Test
+  public void testInvalid() {
+    String[] invalid = { "", "* * * *", "* * * * * *", "60 * * * *", "* 24 * * *", "* * 0 * *",
+        "* * * 13 *", "* * * * 8", "5-1 * * * *", "*/0 * * * *", "a * * * *", "1,,2 * * * *" };
+    for (String expression : invalid) {
+      try {
+        new CronSchedule(expression);
+        fail("Invalid schedule \"" + expression + "\" accepted");
+      }
+      catch (IllegalArgumentException e) { // NOPMD
+        // Expected
+      }
+    }
+  }
+}
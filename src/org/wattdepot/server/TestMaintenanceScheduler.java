@@ -0,0 +1,100 @@
+package org.wattdepot.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.Calendar;
+import java.util.List;
+import org.junit.Test;
+import org.wattdepot.server.MaintenanceScheduler.Task;
+import org.wattdepot.server.db.DbManagerTestHelper;
+import org.wattdepot.server.db.Job;
+
+/**
+ * Tests the MaintenanceScheduler class.
+ * 
+ * @author Robert Brewer
+ */
+public class TestMaintenanceScheduler extends DbManagerTestHelper {
+
+  /**
+   * Waits for a job to finish.
+   * 
+   * @param job The job.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  private void waitFor(Job job) throws InterruptedException {
+    for (int i = 0; (i < 100) && !job.isFinished(); i++) {
+      Thread.sleep(100);
+    }
+  }
+
+  /**
+   * Tests that scheduled tasks are run as jobs, that a task is not started again until the
+   * previous job is the minimum gap behind, and that the history records the outcome.
+   * 
+   * @throws Exception If there is a problem.
+   */
+  @Test
+  public void testScheduledTasks() throws Exception {
+    MaintenanceScheduler scheduler =
+        new MaintenanceScheduler(manager, null, 0, 60, server.getLogger());
+    scheduler.setSchedule(Task.SNAPSHOT, "* * * * *");
+    scheduler.setSchedule(Task.REINDEX, "0 3 * * *");
+    scheduler.setSchedule(Task.COMPRESS, "not a schedule");
+    Calendar time = Calendar.getInstance();
+    time.set(Calendar.HOUR_OF_DAY, 2);
+    scheduler.check(time);
+    List<Job> history = scheduler.getHistory();
+    assertEquals("Scheduled task not started", 1, history.size());
+    waitFor(history.get(0));
+    assertEquals("Snapshot did not succeed: " + history.get(0), Job.State.SUCCEEDED, history
+        .get(0).getState());
+
+    // Within the gap, matching tasks wait
+    scheduler.check(time);
+    assertEquals("Task started within gap", 1, scheduler.getHistory().size());
+    assertTrue("Task not pending", scheduler.getPending().contains(Task.SNAPSHOT));
+    String report = scheduler.toString();
+    assertTrue("Schedule not reported: " + report, report
+        .contains("snapshot: * * * * * (pending)"));
+    assertTrue("Unscheduled task not reported", report.contains("compress: not scheduled"));
+    assertTrue("History not reported", report.contains("state: SUCCEEDED"));
+    assertTrue("Duration not reported", report.contains("duration: "));
+  }
+
+  /**
+   * Tests that pending tasks are held back while requests are slow, and started once they are not.
+   * 
+   * @throws Exception If there is a problem.
+   */
+  @Test
+  public void testHeldBackWhileBusy() throws Exception {
+    AdmissionController admission = new AdmissionController(null, 10, 100, 0, 5);
+    MaintenanceScheduler scheduler =
+        new MaintenanceScheduler(manager, admission, 100, 0, server.getLogger());
+    scheduler.setSchedule(Task.REINDEX, "* * * * *");
+    assertFalse("Busy with no requests", scheduler.isBusy());
+    assertTrue("Request refused", admission.tryAdmit(false));
+    admission.release(10000);
+    assertFalse("Busy with no requests running", scheduler.isBusy());
+    assertTrue("Request refused", admission.tryAdmit(false));
+    assertTrue("Not busy with slow requests running", scheduler.isBusy());
+
+    scheduler.check(Calendar.getInstance());
+    assertTrue("Task started while busy", scheduler.getHistory().isEmpty());
+    assertTrue("Hold back not reported", scheduler.toString().contains("held back"));
+
+    // Fast requests bring the average down
+    for (int i = 0; i < 50; i++) {
+      admission.release(0);
+      assertTrue("Request refused", admission.tryAdmit(false));
+    }
+    assertFalse("Still busy", scheduler.isBusy());
+    scheduler.check(Calendar.getInstance());
+    assertEquals("Held back task not started", 1, scheduler.getHistory().size());
+    waitFor(scheduler.getHistory().get(0));
+    assertEquals("Reindex did not succeed", Job.State.SUCCEEDED, scheduler.getHistory().get(0)
+        .getState());
+  }
+}
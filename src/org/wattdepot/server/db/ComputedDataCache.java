@@ -0,0 +1,419 @@
+package org.wattdepot.server.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+
+/**
+ * A bounded, least-recently-used cache for values computed from sensor data, such as power,
+ * energy and carbon. The bound is on the estimated memory used by the cached values rather than the
+ * number of values, so a few large results cannot crowd out the heap. Each cached value records the
+ * Sources it was computed from, and the window of each Source's sensor data it depends on, and is
+ * discarded as soon as sensor data of any of those Sources changes inside its window (see
+ * invalidate()). Keeps counts of hits, misses, evictions and invalidations.
+ * 
+ * Cached SensorData objects are shared between callers, so callers must not modify them. All
+ * methods are thread-safe.
+ * 
+ * @author Robert Brewer
+ */
+public class ComputedDataCache {
+
+  /** Rough estimate of the bytes used by a SensorData with no properties. */
+  private static final int BASE_ENTRY_SIZE = 512;
+
+  /** Rough estimate of the bytes used by each property, beyond the characters in it. */
+  private static final int BASE_PROPERTY_SIZE = 96;
+
+  /** The tracker used to detect changes that happened while a value was being computed. */
+  private final ModificationTracker tracker;
+
+  /** The maximum total estimated size of cached values, in bytes. */
+  private final long maxSize;
+
+  /** The current total estimated size of cached values, in bytes. */
+  private long size = 0;
+
+  /** Cached entries in access order, so the eldest entry is the least recently used. */
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+  /**
+   * The keys of the cached entries that depend on each Source, keyed by Source name, along with the
+   * window of the Source's sensor data each entry depends on.
+   */
+  private final Map<String, Map<String, Window>> keysBySource =
+      new HashMap<String, Map<String, Window>>();
+
+  /** Number of lookups that found a value. */
+  private long hits = 0;
+
+  /** Number of lookups that found no value. */
+  private long misses = 0;
+
+  /** Number of values discarded to stay within the size bound. */
+  private long evictions = 0;
+
+  /** Number of values discarded because their Sources changed. */
+  private long invalidations = 0;
+
+  /**
+   * Creates a new cache.
+   * 
+   * @param tracker The tracker that records changes to Sources.
+   * @param maxSize The maximum total estimated size of cached values in bytes. If 0 or less, the
+   * cache holds nothing.
+   */
+  public ComputedDataCache(ModificationTracker tracker, long maxSize) {
+    this.tracker = tracker;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns true if this cache can hold values.
+   * 
+   * @return True if the cache is enabled.
+   */
+  public boolean isEnabled() {
+    return this.maxSize > 0;
+  }
+
+  /**
+   * Returns the cached value for the given key, or null if there is none.
+   * 
+   * @param key The key identifying the computation.
+   * @return The cached value, or null.
+   */
+  public synchronized SensorData get(String key) {
+    Entry entry = this.entries.get(key);
+    if (entry == null) {
+      this.misses++;
+      return null;
+    }
+    else {
+      this.hits++;
+      return entry.data;
+    }
+  }
+
+  /**
+   * Caches a computed value that depends on all the sensor data of the Sources it was computed
+   * from, unless that sensor data changed while it was being computed.
+   * 
+   * @param key The key identifying the computation.
+   * @param data The computed value. Null values are not cached.
+   * @param sourceNames The names of all the Sources the value was computed from.
+   * @param version The version of those Sources (from the ModificationTracker) obtained before the
+   * computation started.
+   */
+  public void put(String key, SensorData data, List<String> sourceNames, String version) {
+    put(key, data, sourceNames, version, Collections.<String, Window> emptyMap());
+  }
+
+  /**
+   * Caches a computed value, unless the sensor data of the Sources it was computed from changed
+   * while it was being computed (in which case it may already be out of date).
+   * 
+   * @param key The key identifying the computation.
+   * @param data The computed value. Null values are not cached.
+   * @param sourceNames The names of all the Sources the value was computed from.
+   * @param version The version of those Sources (from the ModificationTracker) obtained before the
+   * computation started.
+   * @param windows The window of sensor data the value depends on, keyed by Source name. A Source
+   * without a window is taken to affect the value whenever any of its sensor data changes.
+   */
+  public synchronized void put(String key, SensorData data, List<String> sourceNames,
+      String version, Map<String, Window> windows) {
+    if ((data == null) || !isEnabled()) {
+      return;
+    }
+    // Changes are recorded in the tracker before invalidate() is called, so checking here (while
+    // holding the lock) guarantees that a stale value is either never stored or is invalidated.
+    if (!version.equals(this.tracker.getVersion(sourceNames))) {
+      return;
+    }
+    long entrySize = estimateSize(data);
+    if (entrySize > this.maxSize) {
+      return;
+    }
+    removeEntry(key);
+    this.entries.put(key, new Entry(data, sourceNames, entrySize));
+    this.size += entrySize;
+    for (String sourceName : sourceNames) {
+      Map<String, Window> keys = this.keysBySource.get(sourceName);
+      if (keys == null) {
+        keys = new HashMap<String, Window>();
+        this.keysBySource.put(sourceName, keys);
+      }
+      Window window = windows.get(sourceName);
+      keys.put(key, (window == null) ? Window.ALL : window);
+    }
+    // Evict least recently used entries until we fit
+    Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+    while ((this.size > this.maxSize) && iterator.hasNext()) {
+      Map.Entry<String, Entry> eldest = iterator.next();
+      iterator.remove();
+      forgetEntry(eldest.getKey(), eldest.getValue());
+      this.evictions++;
+    }
+  }
+
+  /**
+   * Discards all cached values computed from the sensor data of the named Source.
+   * 
+   * @param sourceName The name of the Source whose sensor data changed.
+   */
+  public void invalidate(String sourceName) {
+    invalidate(sourceName, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * Discards the cached values computed from the sensor data of the named Source whose windows
+   * overlap the given span of time.
+   * 
+   * @param sourceName The name of the Source whose sensor data changed.
+   * @param start The time in milliseconds of the first sensor data that changed.
+   * @param end The time in milliseconds of the last sensor data that changed.
+   */
+  public synchronized void invalidate(String sourceName, long start, long end) {
+    Map<String, Window> keys = this.keysBySource.get(sourceName);
+    if (keys == null) {
+      return;
+    }
+    List<String> overlapping = new ArrayList<String>();
+    for (Map.Entry<String, Window> entry : keys.entrySet()) {
+      if (entry.getValue().overlaps(start, end)) {
+        overlapping.add(entry.getKey());
+      }
+    }
+    for (String key : overlapping) {
+      if (removeEntry(key)) {
+        this.invalidations++;
+      }
+    }
+  }
+
+  /**
+   * Discards all cached values.
+   */
+  public synchronized void clear() {
+    this.invalidations += this.entries.size();
+    this.entries.clear();
+    this.keysBySource.clear();
+    this.size = 0;
+  }
+
+  /**
+   * Removes the entry with the given key, if present, from all the internal structures.
+   * 
+   * @param key The key to remove.
+   * @return True if there was an entry to remove.
+   */
+  private boolean removeEntry(String key) {
+    Entry entry = this.entries.remove(key);
+    if (entry == null) {
+      return false;
+    }
+    forgetEntry(key, entry);
+    return true;
+  }
+
+  /**
+   * Updates the size and Source index after an entry has been removed from the entries map.
+   * 
+   * @param key The key of the removed entry.
+   * @param entry The removed entry.
+   */
+  private void forgetEntry(String key, Entry entry) {
+    this.size -= entry.size;
+    for (String sourceName : entry.sourceNames) {
+      Map<String, Window> keys = this.keysBySource.get(sourceName);
+      if (keys != null) {
+        keys.remove(key);
+        if (keys.isEmpty()) {
+          this.keysBySource.remove(sourceName);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a rough estimate of the memory used by the given SensorData, in bytes.
+   * 
+   * @param data The SensorData.
+   * @return The estimated size in bytes.
+   */
+  private static long estimateSize(SensorData data) {
+    long estimate = BASE_ENTRY_SIZE;
+    if (data.isSetProperties()) {
+      for (Property property : data.getProperties().getProperty()) {
+        estimate += BASE_PROPERTY_SIZE;
+        // Java chars are 2 bytes
+        estimate += 2L * (length(property.getKey()) + length(property.getValue()));
+      }
+    }
+    return estimate;
+  }
+
+  /**
+   * Returns the length of a string, treating null as empty.
+   * 
+   * @param string The string.
+   * @return Its length.
+   */
+  private static int length(String string) {
+    return (string == null) ? 0 : string.length();
+  }
+
+  /**
+   * Returns the number of lookups that found a cached value.
+   * 
+   * @return The number of hits.
+   */
+  public synchronized long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Returns the number of lookups that did not find a cached value.
+   * 
+   * @return The number of misses.
+   */
+  public synchronized long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * Returns the number of values discarded to keep the cache within its size bound.
+   * 
+   * @return The number of evictions.
+   */
+  public synchronized long getEvictions() {
+    return this.evictions;
+  }
+
+  /**
+   * Returns the number of values discarded because the sensor data they were computed from
+   * changed.
+   * 
+   * @return The number of invalidations.
+   */
+  public synchronized long getInvalidations() {
+    return this.invalidations;
+  }
+
+  /**
+   * Returns the number of values currently cached.
+   * 
+   * @return The number of cached values.
+   */
+  public synchronized int getEntryCount() {
+    return this.entries.size();
+  }
+
+  /**
+   * Returns the current total estimated size of the cached values, in bytes.
+   * 
+   * @return The estimated size.
+   */
+  public synchronized long getSize() {
+    return this.size;
+  }
+
+  /**
+   * Returns a one line summary of the cache statistics, suitable for logging.
+   * 
+   * @return The summary.
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format("Computed data cache: %d entries (%d bytes), %d hits, %d misses, "
+        + "%d evictions, %d invalidations", this.entries.size(), this.size, this.hits,
+        this.misses, this.evictions, this.invalidations);
+  }
+
+  /**
+   * A cached value along with the Sources it depends on.
+   */
+  private static final class Entry {
+    /** The cached value. */
+    private final SensorData data;
+    /** The names of the Sources the value was computed from. */
+    private final List<String> sourceNames;
+    /** The estimated size of the value in bytes. */
+    private final long size;
+
+    /**
+     * Creates a new entry.
+     * 
+     * @param data The cached value.
+     * @param sourceNames The names of the Sources the value was computed from.
+     * @param size The estimated size of the value in bytes.
+     */
+    private Entry(SensorData data, List<String> sourceNames, long size) {
+      this.data = data;
+      this.sourceNames = sourceNames;
+      this.size = size;
+    }
+  }
+
+  /**
+   * The span of a Source's sensor data a cached value depends on. Interpolated values also depend
+   * on the readings on either side of the times they were computed for, so the window is widened
+   * to those readings: a reading stored between them and the computed times changes the result.
+   */
+  public static final class Window {
+    /** A window holding all sensor data. */
+    public static final Window ALL = new Window(Long.MIN_VALUE, Long.MAX_VALUE);
+    /** The time of the first sensor data in the window, in milliseconds. */
+    private final long start;
+    /** The time of the last sensor data in the window, in milliseconds. */
+    private final long end;
+
+    /**
+     * Creates a new window.
+     * 
+     * @param start The time of the first sensor data in the window, in milliseconds.
+     * @param end The time of the last sensor data in the window, in milliseconds.
+     */
+    public Window(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    /**
+     * Returns the time of the first sensor data in the window.
+     * 
+     * @return The time in milliseconds.
+     */
+    public long getStart() {
+      return this.start;
+    }
+
+    /**
+     * Returns the time of the last sensor data in the window.
+     * 
+     * @return The time in milliseconds.
+     */
+    public long getEnd() {
+      return this.end;
+    }
+
+    /**
+     * Returns true if this window overlaps the given span of time.
+     * 
+     * @param start The start of the span in milliseconds.
+     * @param end The end of the span in milliseconds.
+     * @return True if they overlap.
+     */
+    private boolean overlaps(long start, long end) {
+      return (this.start <= end) && (start <= this.end);
+    }
+  }
+}
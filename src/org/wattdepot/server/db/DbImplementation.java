@@ -15,6 +15,7 @@ import org.wattdepot.resource.sensordata.SensorDataStraddle;
 import org.wattdepot.resource.sensordata.StraddleList;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
 import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
 import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
 import org.wattdepot.resource.source.jaxb.Source;
 import org.wattdepot.resource.source.jaxb.SourceIndex;
@@ -220,12 +221,63 @@ public abstract class DbImplementation {
 
   /**
    * Persists a SensorData instance. If SensorData with this [Source, timestamp] already exists in
-   * the storage system, no action is performed and the method returns false.
+   * the storage system, no action is performed and the method returns false. If you wish to
+   * overwrite the resource, see the two argument version of this method.
    * 
    * @param data The sensor data.
    * @return True if the sensor data was successfully stored.
    */
-  public abstract boolean storeSensorData(SensorData data);
+  public boolean storeSensorData(SensorData data) {
+    return storeSensorData(data, false);
+  }
+
+  /**
+   * Persists a SensorData instance. If SensorData with this [Source, timestamp] already exists in
+   * the storage system, no action is performed and the method returns false, unless the overwrite
+   * parameter is true, in which case the existing resource is overwritten. Implementations must do
+   * this in a single atomic operation where the storage system allows, rather than checking for
+   * existing sensor data first, so that each stored SensorData costs one round trip.
+   * 
+   * @param data The sensor data.
+   * @param overwrite False in the normal case, set to true if you wish to overwrite the resource.
+   * @return True if the sensor data was successfully stored.
+   */
+  public abstract boolean storeSensorData(SensorData data, boolean overwrite);
+
+  /**
+   * Returns the version of the stored sensor data of the named non-virtual Source that a value
+   * computed between startTime and endTime depends on: the readings in the range and the reading on
+   * either side of it, or all the readings on a side without one. The version changes whenever one
+   * of those readings is stored, overwritten or deleted, and is computed from what is stored, so
+   * unlike the versions the DbManager tracks in memory it is the same after a restart. Its
+   * modification time is the time the latest of those readings was stored. The default
+   * implementation returns null, for storage systems that do not record when sensor data was
+   * stored, and the DbManager then falls back on the versions it tracks.
+   * 
+   * @param sourceName The name of the non-virtual Source.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return The version, or null if it cannot be computed from storage.
+   */
+  public ModificationTracker.RangeVersion getSensorDataVersion(String sourceName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) {
+    return null;
+  }
+
+  /**
+   * Stores a batch of new SensorData in one operation, where the storage system allows. The batch
+   * is stored as a whole or not at all, so if any SensorData cannot be stored, for example because
+   * SensorData with the same [Source, timestamp] already exists, none is, and the caller must store
+   * them one at a time with storeSensorData() to find out which can be. The default
+   * implementation stores nothing and returns false, for storage systems where a batch would not
+   * be cheaper.
+   * 
+   * @param datas The new sensor data.
+   * @return True if every SensorData was stored, false if none was.
+   */
+  public boolean storeSensorDataBatch(List<SensorData> datas) {
+    return false;
+  }
 
   /**
    * Ensures that sensor data with the named Source and timestamp is no longer present in this
@@ -247,6 +299,41 @@ public abstract class DbImplementation {
    */
   public abstract boolean deleteSensorData(String sourceName);
 
+  /**
+   * Deletes a chunk of the sensor data from the named Source with timestamps between startTime and
+   * endTime inclusive: at most maxCount of them, earliest first. Callers delete a large range by
+   * calling this repeatedly until it returns 0, so that no single call holds locks for long and
+   * other reads and writes can run in between. This implementation deletes the first maxCount
+   * SensorData in the range one at a time; implementations that can delete a chunk in one
+   * operation should override it.
+   * 
+   * @param sourceName The name of the Source whose sensor data is to be deleted.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @param maxCount The largest number of SensorData to delete, which must be positive.
+   * @return The number of SensorData deleted, 0 if none is left in the range, or -1 if there was a
+   * problem.
+   * @throws DbBadIntervalException if startTime is later than endTime.
+   */
+  public int deleteSensorData(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, int maxCount) throws DbBadIntervalException {
+    SensorDataIndex index = getSensorDataIndex(sourceName, startTime, endTime);
+    if (index == null) {
+      return -1;
+    }
+    int deleted = 0;
+    for (SensorDataRef ref : index.getSensorDataRef()) {
+      if (deleted == maxCount) {
+        break;
+      }
+      if (!deleteSensorData(sourceName, ref.getTimestamp())) {
+        return -1;
+      }
+      deleted++;
+    }
+    return deleted;
+  }
+
   /**
    * Returns a UserIndex of all Users in the system. The list is sorted by username.
    * 
@@ -509,6 +596,162 @@ public abstract class DbImplementation {
     }
   }
 
+  /**
+   * Returns statistics about the sensor data of the named Source in each of the buckets between
+   * consecutive boundaries. For a virtual Source, the statistics cover the readings of all its
+   * non-virtual subsources. If this DbImplementation is a SensorDataAggregator, the statistics of
+   * each non-virtual Source are computed in the database, otherwise they are computed by
+   * computeSensorDataStatistics(). Either way, the energy between the last reading before the
+   * range and the first reading in it, and between the last reading in the range and the first
+   * after it, is then added by addEdgeEnergy().
+   * 
+   * @param sourceName The source name.
+   * @param boundaries The bucket boundaries in increasing order, at least two.
+   * @return One SensorDataStatistics per bucket, in order, or null if the Source does not exist or
+   * the statistics cannot be computed.
+   */
+  public List<SensorDataStatistics> getSensorDataStatistics(String sourceName,
+      List<XMLGregorianCalendar> boundaries) {
+    if ((sourceName == null) || (boundaries == null) || (boundaries.size() < 2)) {
+      return null;
+    }
+    Source baseSource = getSource(sourceName);
+    if (baseSource == null) {
+      return null;
+    }
+    List<SensorDataStatistics> statistics = null;
+    for (Source source : getAllNonVirtualSubSources(baseSource)) {
+      List<SensorDataStatistics> sourceStatistics = null;
+      if (this instanceof SensorDataAggregator) {
+        sourceStatistics =
+            ((SensorDataAggregator) this).aggregateSensorData(source.getName(), boundaries);
+      }
+      if (sourceStatistics == null) {
+        sourceStatistics = computeSensorDataStatistics(source.getName(), boundaries);
+      }
+      if (sourceStatistics == null) {
+        return null;
+      }
+      addEdgeEnergy(source.getName(), boundaries, sourceStatistics);
+      if (statistics == null) {
+        statistics = sourceStatistics;
+      }
+      else {
+        for (int i = 0; i < statistics.size(); i++) {
+          statistics.get(i).add(sourceStatistics.get(i));
+        }
+      }
+    }
+    return statistics;
+  }
+
+  /**
+   * Adds to the statistics of a non-virtual Source the energy of the pairs of readings that
+   * straddle either end of the range, which an aggregation over the range alone cannot see, and
+   * marks which buckets have readings at or before their start and at or after their end.
+   * 
+   * @param sourceName The name of an existing non-virtual Source.
+   * @param boundaries The bucket boundaries in increasing order, at least two.
+   * @param statistics The statistics of each bucket, with the readings in the range added.
+   */
+  protected void addEdgeEnergy(String sourceName, List<XMLGregorianCalendar> boundaries,
+      List<SensorDataStatistics> statistics) {
+    long[] bounds = new long[boundaries.size()];
+    for (int i = 0; i < bounds.length; i++) {
+      bounds[i] = Tstamp.makeTimestamp(boundaries.get(i)).getTime();
+    }
+    XMLGregorianCalendar end = boundaries.get(boundaries.size() - 1);
+    SensorDataStraddle startStraddle = getSensorDataStraddle(sourceName, boundaries.get(0));
+    SensorDataStraddle endStraddle = getSensorDataStraddle(sourceName, end);
+    if ((startStraddle != null) && !startStraddle.isDegenerate()) {
+      SensorDataStatistics.addEnergyBetween(statistics, bounds, new SensorDataStatistics.Reading(
+          startStraddle.getBeforeData()), new SensorDataStatistics.Reading(startStraddle
+          .getAfterData()));
+    }
+    if (endStraddle != null) {
+      SensorData lastData = endStraddle.getBeforeData();
+      if (endStraddle.isDegenerate()) {
+        // A reading at the end of the range, so the pair ends with it
+        SensorDataStraddle beforeEnd =
+            getSensorDataStraddle(sourceName, Tstamp.makeTimestamp(bounds[bounds.length - 1] - 1));
+        lastData = (beforeEnd == null) ? null : beforeEnd.getBeforeData();
+      }
+      if (lastData != null) {
+        SensorDataStatistics.Reading lastReading = new SensorDataStatistics.Reading(lastData);
+        if (lastReading.getMillis() >= bounds[0]) {
+          // Otherwise the pair straddles the whole range, and was added as the start straddle
+          SensorDataStatistics.addEnergyBetween(statistics, bounds, lastReading,
+              new SensorDataStatistics.Reading(endStraddle.getAfterData()));
+        }
+      }
+    }
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+    for (SensorDataStatistics bucket : statistics) {
+      if (bucket.getCount() > 0) {
+        first = Math.min(first, Tstamp.makeTimestamp(bucket.getFirstTimestamp()).getTime());
+        last = Math.max(last, Tstamp.makeTimestamp(bucket.getLastTimestamp()).getTime());
+      }
+    }
+    for (int i = 0; i < statistics.size(); i++) {
+      statistics.get(i).setEnergyComplete(((startStraddle != null) || (first <= bounds[i]))
+          && ((endStraddle != null) || (last >= bounds[i + 1])));
+    }
+  }
+
+  /**
+   * Computes statistics about the sensor data of a non-virtual Source in each of the buckets
+   * between consecutive boundaries, by reading all the SensorData in the range. The energy of each
+   * pair of consecutive readings in the range is split between the buckets it spans.
+   * 
+   * @param sourceName The name of an existing non-virtual Source.
+   * @param boundaries The bucket boundaries in increasing order, at least two.
+   * @return One SensorDataStatistics per bucket, in order, or null if they cannot be computed.
+   */
+  protected List<SensorDataStatistics> computeSensorDataStatistics(String sourceName,
+      List<XMLGregorianCalendar> boundaries) {
+    List<SensorDataStatistics> statistics =
+        new ArrayList<SensorDataStatistics>(boundaries.size() - 1);
+    for (int i = 0; i < boundaries.size() - 1; i++) {
+      statistics.add(new SensorDataStatistics(boundaries.get(i), boundaries.get(i + 1)));
+    }
+    SensorDatas datas;
+    try {
+      datas = getSensorDatas(sourceName, boundaries.get(0), boundaries.get(boundaries.size() - 1));
+    }
+    catch (DbBadIntervalException e) {
+      return null;
+    }
+    if (datas == null) {
+      return null;
+    }
+    long[] bounds = new long[boundaries.size()];
+    for (int i = 0; i < bounds.length; i++) {
+      bounds[i] = Tstamp.makeTimestamp(boundaries.get(i)).getTime();
+    }
+    SensorDataStatistics.Reading previous = null;
+    for (SensorData data : datas.getSensorData()) {
+      SensorDataStatistics.Reading reading = new SensorDataStatistics.Reading(data);
+      long millis = reading.getMillis();
+      if (millis >= bounds[bounds.length - 1]) {
+        // At the end of the range, which is not in any bucket
+        break;
+      }
+      SensorDataStatistics bucketStatistics =
+          statistics.get(SensorDataStatistics.bucketOf(bounds, millis));
+      Double power = SensorDataStatistics.getPowerConsumed(data);
+      bucketStatistics.addReadings(1, millis, millis);
+      if (power != null) {
+        bucketStatistics.addPowers(1, power, power, power);
+      }
+      if (previous != null) {
+        SensorDataStatistics.addEnergyBetween(statistics, bounds, previous, reading);
+      }
+      previous = reading;
+    }
+    return statistics;
+  }
+
   /**
    * Returns the latest SensorData instance for a particular named Source, or null if not found. If
    * the Source is virtual, the latest SensorData returned is the union of all the properties of the
@@ -530,43 +773,13 @@ public abstract class DbImplementation {
       return null;
     }
     if (baseSource.isVirtual()) {
-      // Storing combined properties as Map while summing to make life easier
-      Map<String, Double> combinedMap = new LinkedHashMap<String, Double>();
-      XMLGregorianCalendar combinedTimestamp = null;
       // Want to go through sensordata for base source, and all subsources recursively
       List<Source> sourceList = getAllNonVirtualSubSources(baseSource);
+      List<SensorData> dataList = new ArrayList<SensorData>(sourceList.size());
       for (Source subSource : sourceList) {
-        String subSourceName = subSource.getName();
-        SensorData data = getLatestNonVirtualSensorData(subSourceName);
-        if (data != null) {
-          // record this timestamp if it is the first we've seen or is most recent so far
-          if ((combinedTimestamp == null)
-              || (Tstamp.lessThan(data.getTimestamp(), combinedTimestamp))) {
-            combinedTimestamp = data.getTimestamp();
-          }
-          // iterate over all properties found in data
-          for (Property prop : data.getProperties().getProperty()) {
-            Double combinedValue = combinedMap.get(prop.getKey());
-            if (combinedValue == null) {
-              // The combined property list does not have this property yet, so just add it verbatim
-              combinedMap.put(prop.getKey(), Double.valueOf(prop.getValue()));
-            }
-            else {
-              // Must add this property's value to existing sum. Assumes all sensor data properties
-              // are doubles, which is questionable
-              double newValue = combinedValue + Double.valueOf(prop.getValue());
-              combinedMap.put(prop.getKey(), newValue);
-            }
-          }
-        }
+        dataList.add(getLatestNonVirtualSensorData(subSource.getName()));
       }
-      // Convert map to Properties
-      Properties combinedProps = new Properties();
-      for (Map.Entry<String, Double> entry : combinedMap.entrySet()) {
-        combinedProps.getProperty().add(new Property(entry.getKey(), entry.getValue().toString()));
-      }
-      return new SensorData(combinedTimestamp, SensorData.SERVER_TOOL, baseSource.toUri(server),
-          combinedProps);
+      return combineLatestSensorData(dataList, baseSource.toUri(server));
     }
     else {
       // Non-virtual source, just return latest sensor data
@@ -574,6 +787,50 @@ public abstract class DbImplementation {
     }
   }
 
+  /**
+   * Combines the latest SensorData of each SubSource of a virtual Source into the latest SensorData
+   * of the virtual Source, as described in getLatestSensorData(). Null entries (SubSources with no
+   * sensor data) are skipped.
+   * 
+   * @param dataList The latest SensorData of each non-virtual SubSource.
+   * @param sourceUri The URI of the virtual Source.
+   * @return The combined SensorData.
+   */
+  public static SensorData combineLatestSensorData(List<SensorData> dataList, String sourceUri) {
+    // Storing combined properties as Map while summing to make life easier
+    Map<String, Double> combinedMap = new LinkedHashMap<String, Double>();
+    XMLGregorianCalendar combinedTimestamp = null;
+    for (SensorData data : dataList) {
+      if (data != null) {
+        // record this timestamp if it is the first we've seen or is most recent so far
+        if ((combinedTimestamp == null)
+            || (Tstamp.lessThan(data.getTimestamp(), combinedTimestamp))) {
+          combinedTimestamp = data.getTimestamp();
+        }
+        // iterate over all properties found in data
+        for (Property prop : data.getProperties().getProperty()) {
+          Double combinedValue = combinedMap.get(prop.getKey());
+          if (combinedValue == null) {
+            // The combined property list does not have this property yet, so just add it verbatim
+            combinedMap.put(prop.getKey(), Double.valueOf(prop.getValue()));
+          }
+          else {
+            // Must add this property's value to existing sum. Assumes all sensor data properties
+            // are doubles, which is questionable
+            double newValue = combinedValue + Double.valueOf(prop.getValue());
+            combinedMap.put(prop.getKey(), newValue);
+          }
+        }
+      }
+    }
+    // Convert map to Properties
+    Properties combinedProps = new Properties();
+    for (Map.Entry<String, Double> entry : combinedMap.entrySet()) {
+      combinedProps.getProperty().add(new Property(entry.getKey(), entry.getValue().toString()));
+    }
+    return new SensorData(combinedTimestamp, SensorData.SERVER_TOOL, sourceUri, combinedProps);
+  }
+
   /**
    * Some databases require periodic maintenance (ex. Derby requires an explicit compress command to
    * release disk space after a large number of rows have been deleted). This operation instructs
@@ -601,6 +858,21 @@ public abstract class DbImplementation {
    */
   public abstract boolean makeSnapshot();
 
+  /**
+   * Creates a snapshot of the database in the directory specified by
+   * ServerProperties.DB_SNAPSHOT_KEY, reporting the bytes and files copied as it goes. The
+   * snapshot should not stop new data from being stored while it is made. The default
+   * implementation calls makeSnapshot() and reports no progress; implementations that copy files
+   * override it.
+   * 
+   * @param progress Receives reports of the bytes and files copied, or null if progress is not
+   * wanted.
+   * @return True if the snapshot succeeded.
+   */
+  public boolean makeSnapshot(SnapshotProgress progress) {
+    return makeSnapshot();
+  }
+
   // /**
   // * Returns the current number of rows in the specified table.
   // *
@@ -1,9 +1,33 @@
 package org.wattdepot.server.db;
 
 import static org.wattdepot.server.ServerProperties.DB_IMPL_KEY;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.carbon.Carbon;
+import org.wattdepot.resource.energy.Energy;
 import org.wattdepot.resource.sensordata.SensorDataStraddle;
 import org.wattdepot.resource.sensordata.StraddleList;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
@@ -18,6 +42,8 @@ import org.wattdepot.resource.user.jaxb.UserIndex;
 import org.wattdepot.server.Server;
 import org.wattdepot.server.ServerProperties;
 import org.wattdepot.util.StackTrace;
+import org.wattdepot.util.UriUtils;
+import org.wattdepot.util.tstamp.Tstamp;
 
 /**
  * Provides an interface to storage for the resources managed by the WattDepot server. Portions of
@@ -28,12 +54,82 @@ import org.wattdepot.util.StackTrace;
  */
 public class DbManager {
 
+  /** The largest number of buckets that can be requested in one energy or carbon series. */
+  public static final int MAX_BUCKETS = 10000;
+
+  /**
+   * The number of sample timestamps looked up by each task when a sampled energy or carbon
+   * calculation is split into chunks that run in parallel.
+   */
+  public static final int CHUNK_SAMPLES = 100;
+
+  /** The number of recently submitted jobs whose status is kept for clients to poll. */
+  public static final int MAX_JOBS = 100;
+
   /** The chosen Storage system. */
   private DbImplementation dbImpl;
 
   /** The server using this DbManager. */
   protected Server server;
 
+  /** Records changes made through this DbManager, for computing cache validators. */
+  private final ModificationTracker tracker = new ModificationTracker();
+
+  /** Holds recently computed power, energy and carbon values. */
+  private ComputedDataCache computedCache;
+
+  /** Lets identical concurrent requests share one computation. */
+  private RequestCoalescer coalescer;
+
+  /** Runs database lookups in parallel for requests that need many of them, or null if disabled. */
+  private ExecutorService lookupExecutor;
+
+  /**
+   * The most chunks of one range calculation running at once on the lookupExecutor, so that a long
+   * range leaves threads free for the latest data lookups of other requests.
+   */
+  private int maxChunksInFlight = 1;
+
+  /** Journals sensor data and stores it in the background, or null if ingest is synchronous. */
+  private IngestQueue ingestQueue;
+
+  /** Answers most checks for existing sensor data without a database read, or null if disabled. */
+  private ExistenceFilter existenceFilter;
+
+  /** Runs background jobs other than snapshots one at a time, in the order they were submitted. */
+  private final ExecutorService jobExecutor = makeJobExecutor("WattDepot job");
+
+  /**
+   * Runs snapshots, so that a snapshot never waits behind a long throttled compaction or range
+   * deletion on the jobExecutor.
+   */
+  private final ExecutorService snapshotExecutor = makeJobExecutor("WattDepot snapshot");
+
+  /** The most recently submitted jobs, by identifier, oldest first. */
+  private final Map<String, Job> jobs = new LinkedHashMap<String, Job>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+      return size() > MAX_JOBS;
+    }
+  };
+
+  /** Decides when running jobs should pause, or null if they never pause. */
+  private volatile JobThrottle jobThrottle = null;
+
+  /** The number of sensor data deleted per chunk by range deletions. */
+  private int deleteChunkSize;
+
+  /** The milliseconds range deletions pause between chunks. */
+  private long deletePause;
+
+  /** The milliseconds sensor data compaction pauses after each downsampled interval. */
+  private long compactionPause;
+
+  /** The snapshot job most recently submitted, or null if none has been. */
+  private SnapshotJob snapshotJob = null;
+
   /**
    * Creates a new DbManager which manages access to the underlying persistency layer(s). Choice of
    * which implementation of persistency layer to use is based on the ServerProperties of the server
@@ -102,6 +198,85 @@ public class DbManager {
     this.dbImpl.initialize(wipe);
     ServerProperties serverProps =
         (ServerProperties) server.getContext().getAttributes().get("ServerProperties");
+    long cacheSize;
+    try {
+      cacheSize = Long.parseLong(serverProps.get(ServerProperties.COMPUTED_CACHE_SIZE_KEY));
+    }
+    catch (NumberFormatException e) {
+      server.getLogger().warning("Invalid computed data cache size, disabling cache.");
+      cacheSize = 0;
+    }
+    this.computedCache = new ComputedDataCache(this.tracker, cacheSize);
+    long coalesceTimeout;
+    try {
+      coalesceTimeout = Long.parseLong(serverProps.get(ServerProperties.COALESCE_TIMEOUT_KEY));
+    }
+    catch (NumberFormatException e) {
+      server.getLogger().warning("Invalid request coalescing timeout, disabling coalescing.");
+      coalesceTimeout = 0;
+    }
+    this.coalescer = new RequestCoalescer(coalesceTimeout);
+    int parallelism;
+    try {
+      parallelism = Integer.parseInt(serverProps.get(ServerProperties.DB_PARALLELISM_KEY));
+    }
+    catch (NumberFormatException e) {
+      server.getLogger().warning("Invalid database parallelism, running lookups sequentially.");
+      parallelism = 1;
+    }
+    if (parallelism > 1) {
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                  Thread thread = new Thread(runnable, "WattDepot DB lookup");
+                  // Idle lookup threads should never keep the server from exiting
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+      executor.allowCoreThreadTimeOut(true);
+      this.lookupExecutor = executor;
+      this.maxChunksInFlight = Math.max(1, parallelism / 2);
+    }
+    int filterCapacity;
+    try {
+      filterCapacity =
+          Integer.parseInt(serverProps.get(ServerProperties.EXISTENCE_FILTER_CAPACITY_KEY));
+    }
+    catch (NumberFormatException e) {
+      server.getLogger().warning("Invalid existence filter capacity, disabling filter.");
+      filterCapacity = 0;
+    }
+    if (filterCapacity > 0) {
+      // Built before the ingest queue, which reports the data it replays from its journal
+      this.existenceFilter = new ExistenceFilter(this.dbImpl, filterCapacity);
+      this.existenceFilter.rebuildAll();
+    }
+    try {
+      this.deleteChunkSize =
+          Integer.parseInt(serverProps.get(ServerProperties.DELETE_CHUNK_SIZE_KEY));
+      this.deletePause = Long.parseLong(serverProps.get(ServerProperties.DELETE_PAUSE_KEY));
+    }
+    catch (NumberFormatException e) {
+      server.getLogger().warning("Invalid range deletion settings, using defaults.");
+      this.deleteChunkSize = 0;
+    }
+    if (this.deleteChunkSize <= 0) {
+      this.deleteChunkSize = 1000;
+      this.deletePause = 50;
+    }
+    try {
+      this.compactionPause =
+          Long.parseLong(serverProps.get(ServerProperties.COMPACTION_PAUSE_KEY));
+    }
+    catch (NumberFormatException e) {
+      server.getLogger().warning("Invalid compaction pause, using default.");
+      this.compactionPause = 10;
+    }
+    if ("true".equalsIgnoreCase(serverProps.get(ServerProperties.INGEST_ASYNC_KEY))) {
+      this.ingestQueue = createIngestQueue(serverProps, wipe);
+    }
     String adminUsername = serverProps.get(ServerProperties.ADMIN_EMAIL_KEY);
     String adminPassword = serverProps.get(ServerProperties.ADMIN_PASSWORD_KEY);
     // Ensure that we have an admin user
@@ -115,6 +290,69 @@ public class DbManager {
     }
   }
 
+  /**
+   * Creates the queue that journals sensor data and stores it in the background. The journal is
+   * kept next to the database directory. If the journal cannot be created, sensor data is stored
+   * synchronously instead.
+   * 
+   * @param serverProps The server properties.
+   * @param wipe If true, any sensor data left in the journal is discarded rather than stored.
+   * @return The ingest queue, or null if it could not be created.
+   */
+  private IngestQueue createIngestQueue(ServerProperties serverProps, boolean wipe) {
+    File directory = new File(serverProps.get(ServerProperties.DB_DIR_KEY) + "-ingest");
+    int batchSize;
+    try {
+      batchSize = Integer.parseInt(serverProps.get(ServerProperties.INGEST_BATCH_SIZE_KEY));
+    }
+    catch (NumberFormatException e) {
+      server.getLogger().warning("Invalid ingest batch size, using default.");
+      batchSize = IngestQueue.DEFAULT_BATCH_SIZE;
+    }
+    try {
+      if (wipe) {
+        IngestQueue.deleteJournal(directory);
+      }
+      return new IngestQueue(this.dbImpl, directory, batchSize, server.getLogger()) {
+        @Override
+        protected void stored(SensorData data) {
+          // Cached values were computed without this data
+          String sourceName = UriUtils.getUriSuffix(data.getSource());
+          sensorDataChanged(sourceName, data.getTimestamp(), data.getTimestamp());
+          if (existenceFilter != null) {
+            existenceFilter.add(sourceName, data.getTimestamp());
+          }
+        }
+      };
+    }
+    catch (IOException e) {
+      server.getLogger().warning(
+          "Unable to create ingest journal, storing sensor data synchronously.\n"
+              + StackTrace.toString(e));
+      return null;
+    }
+  }
+
+  /**
+   * Waits until all sensor data accepted by the ingest queue has been stored, so that an operation
+   * that follows is not reordered with queued writes. Does nothing if ingest is synchronous. If
+   * the queue cannot be flushed in time, the operation goes ahead rather than hang the request.
+   */
+  private void flushIngestQueue() {
+    if (this.ingestQueue != null) {
+      try {
+        if (!this.ingestQueue.flush()) {
+          server.getLogger().warning(
+              "Ingest queue not flushed in time, continuing with " + this.ingestQueue.getDepth()
+                  + " sensor data queued.");
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
   /**
    * Returns a list of all Sources in the system. An empty index will be returned if there are no
    * Sources in the system. The list is sorted by source name.
@@ -151,8 +389,13 @@ public class DbManager {
    * @param sourceName The name of the Source.
    * @return The requested SourceSummary, or null.
    */
-  public SourceSummary getSourceSummary(String sourceName) {
-    return this.dbImpl.getSourceSummary(sourceName);
+  public SourceSummary getSourceSummary(final String sourceName) {
+    String key = getVersionedKey("summary|" + sourceName, sourceName);
+    return coalesceUnchecked(key, new Callable<SourceSummary>() {
+      public SourceSummary call() {
+        return dbImpl.getSourceSummary(sourceName);
+      }
+    });
   }
 
   /**
@@ -164,7 +407,11 @@ public class DbManager {
    * @return True if the user was successfully stored.
    */
   public boolean storeSource(Source source) {
-    return this.dbImpl.storeSource(source);
+    boolean stored = this.dbImpl.storeSource(source);
+    if (stored) {
+      sourcesChanged();
+    }
+    return stored;
   }
 
   /**
@@ -177,7 +424,11 @@ public class DbManager {
    * @return True if the user was successfully stored.
    */
   public boolean storeSource(Source source, boolean overwrite) {
-    return this.dbImpl.storeSource(source, overwrite);
+    boolean stored = this.dbImpl.storeSource(source, overwrite);
+    if (stored) {
+      sourcesChanged();
+    }
+    return stored;
   }
 
   /**
@@ -189,7 +440,16 @@ public class DbManager {
    * does not exist.
    */
   public boolean deleteSource(String sourceName) {
-    return this.dbImpl.deleteSource(sourceName);
+    flushIngestQueue();
+    boolean deleted = this.dbImpl.deleteSource(sourceName);
+    if (deleted) {
+      sensorDataChanged(sourceName);
+      sourcesChanged();
+      if (this.existenceFilter != null) {
+        this.existenceFilter.rebuild(sourceName);
+      }
+    }
+    return deleted;
   }
 
   /**
@@ -251,6 +511,12 @@ public class DbManager {
    * @return The SensorData resource, or null.
    */
   public SensorData getSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    if (this.ingestQueue != null) {
+      SensorData data = this.ingestQueue.getSensorData(sourceName, timestamp);
+      if (data != null) {
+        return data;
+      }
+    }
     return this.dbImpl.getSensorData(sourceName, timestamp);
   }
 
@@ -266,8 +532,154 @@ public class DbManager {
    * @param sourceName The name of the Source whose sensor data is to be returned.
    * @return The SensorData resource, or null.
    */
-  public SensorData getLatestSensorData(String sourceName) {
-    return this.dbImpl.getLatestSensorData(sourceName);
+  public SensorData getLatestSensorData(final String sourceName) {
+    if (this.ingestQueue != null) {
+      Source source = getSource(sourceName);
+      if ((source != null) && source.isVirtual()) {
+        // Combine the subsources here, so that data still in the ingest queue is included
+        return getLatestSensorDatas(Collections.singletonList(sourceName)).get(0);
+      }
+    }
+    String key = getVersionedKey("latest|" + sourceName, sourceName);
+    return coalesceUnchecked(key, new Callable<SensorData>() {
+      public SensorData call() {
+        SensorData latest = dbImpl.getLatestSensorData(sourceName);
+        if (ingestQueue != null) {
+          SensorData queued = ingestQueue.getLatestSensorData(sourceName);
+          if ((queued != null) && ((latest == null) || (queued.compareTo(latest) > 0))) {
+            latest = queued;
+          }
+        }
+        return latest;
+      }
+    });
+  }
+
+  /**
+   * Returns the latest SensorData for each of the named Sources, in the same way as
+   * getLatestSensorData(). The latest SensorData of every non-virtual Source involved is looked up
+   * only once, even if it is a subsource of several of the named Sources, and the lookups are run
+   * in parallel.
+   * 
+   * @param sourceNames The names of the Sources.
+   * @return A list with the latest SensorData of each named Source in the same order, with null
+   * entries for unknown Sources and Sources with no sensor data.
+   */
+  public List<SensorData> getLatestSensorDatas(List<String> sourceNames) {
+    // Find the non-virtual sources underlying the named sources
+    List<Source> sources = new ArrayList<Source>(sourceNames.size());
+    Map<String, List<Source>> leafMap = new HashMap<String, List<Source>>();
+    Set<String> leafNames = new LinkedHashSet<String>();
+    for (String sourceName : sourceNames) {
+      Source source = getSource(sourceName);
+      sources.add(source);
+      if ((source != null) && !leafMap.containsKey(sourceName)) {
+        List<Source> leaves =
+            source.isVirtual() ? getAllNonVirtualSubSources(source) : Collections
+                .singletonList(source);
+        leafMap.put(sourceName, leaves);
+        for (Source leaf : leaves) {
+          leafNames.add(leaf.getName());
+        }
+      }
+    }
+    Map<String, SensorData> latestMap = getLatestNonVirtualSensorDatas(leafNames);
+
+    List<SensorData> dataList = new ArrayList<SensorData>(sourceNames.size());
+    for (Source source : sources) {
+      if (source == null) {
+        dataList.add(null);
+      }
+      else if (source.isVirtual()) {
+        List<SensorData> leafData = new ArrayList<SensorData>();
+        for (Source leaf : leafMap.get(source.getName())) {
+          leafData.add(latestMap.get(leaf.getName()));
+        }
+        dataList.add(DbImplementation.combineLatestSensorData(leafData, source.toUri(server)));
+      }
+      else {
+        dataList.add(latestMap.get(source.getName()));
+      }
+    }
+    return dataList;
+  }
+
+  /**
+   * Looks up the latest SensorData of each of the named non-virtual Sources, in parallel if
+   * parallel lookups are enabled.
+   * 
+   * @param leafNames The names of the non-virtual Sources.
+   * @return A map from Source name to latest SensorData, without entries for Sources with no data.
+   */
+  private Map<String, SensorData> getLatestNonVirtualSensorDatas(Collection<String> leafNames) {
+    Map<String, SensorData> latestMap = new HashMap<String, SensorData>();
+    if ((this.lookupExecutor == null) || (leafNames.size() < 2)) {
+      for (String leafName : leafNames) {
+        SensorData data = getLatestSensorData(leafName);
+        if (data != null) {
+          latestMap.put(leafName, data);
+        }
+      }
+      return latestMap;
+    }
+    List<Callable<SensorData>> lookups = new ArrayList<Callable<SensorData>>(leafNames.size());
+    for (final String leafName : leafNames) {
+      lookups.add(new Callable<SensorData>() {
+        public SensorData call() {
+          return getLatestSensorData(leafName);
+        }
+      });
+    }
+    Iterator<String> names = leafNames.iterator();
+    for (SensorData data : runLookups(lookups, lookups.size())) {
+      String leafName = names.next();
+      if (data != null) {
+        latestMap.put(leafName, data);
+      }
+    }
+    return latestMap;
+  }
+
+  /**
+   * Runs the given lookups on the lookup executor and waits for all of them to finish, with at
+   * most the given number submitted but not yet collected at any time. Must only be called when
+   * parallel lookups are enabled.
+   * 
+   * @param <V> The type of the lookup results.
+   * @param lookups The lookups to run.
+   * @param maxInFlight The most lookups to have on the executor at once.
+   * @return The results of the lookups, in the same order.
+   * @throws IllegalStateException If interrupted while waiting, or if a lookup throws a checked
+   * exception. Runtime exceptions thrown by a lookup are rethrown as is.
+   */
+  private <V> List<V> runLookups(List<Callable<V>> lookups, int maxInFlight) {
+    List<V> results = new ArrayList<V>(lookups.size());
+    List<Future<V>> futures = new ArrayList<Future<V>>(lookups.size());
+    try {
+      for (int i = 0; i < lookups.size(); i++) {
+        while (futures.size() < Math.min(i + maxInFlight, lookups.size())) {
+          futures.add(this.lookupExecutor.submit(lookups.get(futures.size())));
+        }
+        results.add(futures.get(i).get());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for database lookups", e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    finally {
+      // Lookups still running after a failure are of no use to anyone
+      for (Future<V> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
   }
 
   /**
@@ -278,18 +690,93 @@ public class DbManager {
    * @return True if there is any sensor data for this timestamp.
    */
   public boolean hasSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    if ((this.ingestQueue != null)
+        && (this.ingestQueue.getSensorData(sourceName, timestamp) != null)) {
+      return true;
+    }
+    if ((this.existenceFilter != null) && (sourceName != null) && (timestamp != null)
+        && !this.existenceFilter.mightContain(sourceName, timestamp)) {
+      // Definitely absent, no need to ask the database
+      return false;
+    }
     return this.dbImpl.hasSensorData(sourceName, timestamp);
   }
 
   /**
    * Persists a SensorData instance. If SensorData with this [Source, timestamp] already exists in
-   * the storage system, no action is performed and the method returns false.
+   * the storage system, no action is performed and the method returns false. If you wish to
+   * overwrite the resource, see the two argument version of this method.
    * 
    * @param data The sensor data.
    * @return True if the sensor data was successfully stored.
    */
   public boolean storeSensorData(SensorData data) {
-    return this.dbImpl.storeSensorData(data);
+    return storeSensorData(data, false);
+  }
+
+  /**
+   * Persists a SensorData instance. If SensorData with this [Source, timestamp] already exists in
+   * the storage system, no action is performed and the method returns false, unless the overwrite
+   * parameter is true, in which case the existing resource is overwritten.
+   * 
+   * If ingest is asynchronous, new SensorData is journaled and stored in the background. It can be
+   * read back at once with getSensorData() and getLatestSensorData(), but only appears in ranges of
+   * sensor data once the ingest queue has stored it. The checks that would make the database refuse
+   * it (an unknown Source, or existing SensorData) are made before it is journaled, but the queue
+   * can still refuse or quarantine it later, which it logs and counts, so true only means it was
+   * accepted: see isSensorDataQueued(). Overwrites are not queued: the queue is flushed and the
+   * SensorData stored directly, so that the overwrite cannot be reordered with a queued store.
+   * 
+   * @param data The sensor data.
+   * @param overwrite False in the normal case, set to true if you wish to overwrite the resource.
+   * @return True if the sensor data was successfully stored.
+   */
+  public boolean storeSensorData(SensorData data, boolean overwrite) {
+    if ((this.ingestQueue == null) || (data == null) || overwrite) {
+      if (overwrite) {
+        flushIngestQueue();
+      }
+      boolean stored = this.dbImpl.storeSensorData(data, overwrite);
+      if (stored) {
+        String sourceName = UriUtils.getUriSuffix(data.getSource());
+        sensorDataChanged(sourceName, data.getTimestamp(), data.getTimestamp());
+        if (this.existenceFilter != null) {
+          this.existenceFilter.add(sourceName, data.getTimestamp());
+        }
+      }
+      return stored;
+    }
+    String sourceName = UriUtils.getUriSuffix(data.getSource());
+    boolean stored;
+    if ((getSource(sourceName) == null) || hasSensorData(sourceName, data.getTimestamp())) {
+      stored = false;
+    }
+    else {
+      try {
+        stored = this.ingestQueue.append(data);
+      }
+      catch (IOException e) {
+        server.getLogger().warning(
+            "Unable to journal sensor data for " + sourceName + "\n" + StackTrace.toString(e));
+        stored = false;
+      }
+    }
+    if (stored) {
+      sensorDataChanged(sourceName, data.getTimestamp(), data.getTimestamp());
+    }
+    return stored;
+  }
+
+  /**
+   * Returns true if storeSensorData() with the given overwrite flag only journals new SensorData
+   * for the ingest queue to store later, so that success means the SensorData was accepted rather
+   * than stored.
+   * 
+   * @param overwrite The overwrite flag that will be passed to storeSensorData().
+   * @return True if the SensorData would be queued.
+   */
+  public boolean isSensorDataQueued(boolean overwrite) {
+    return (this.ingestQueue != null) && !overwrite;
   }
 
   /**
@@ -302,7 +789,12 @@ public class DbManager {
    * sensor data or Source does not exist.
    */
   public boolean deleteSensorData(String sourceName, XMLGregorianCalendar timestamp) {
-    return this.dbImpl.deleteSensorData(sourceName, timestamp);
+    flushIngestQueue();
+    boolean deleted = this.dbImpl.deleteSensorData(sourceName, timestamp);
+    if (deleted) {
+      sensorDataChanged(sourceName, timestamp, timestamp);
+    }
+    return deleted;
   }
 
   /**
@@ -313,7 +805,196 @@ public class DbManager {
    * requested Source does not exist.
    */
   public boolean deleteSensorData(String sourceName) {
-    return this.dbImpl.deleteSensorData(sourceName);
+    flushIngestQueue();
+    boolean deleted = this.dbImpl.deleteSensorData(sourceName);
+    if (deleted) {
+      sensorDataChanged(sourceName);
+      if (this.existenceFilter != null) {
+        // Start afresh rather than keep answering "maybe present" for the deleted data
+        this.existenceFilter.rebuild(sourceName);
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Ensures that the sensor data from the named Source with timestamps between startTime and
+   * endTime inclusive is no longer present in storage. The data is deleted in chunks, each in its
+   * own short operation, with a pause between chunks so that other reads and writes keep running
+   * while a large range is deleted. Cached values are invalidated after each chunk.
+   * 
+   * @param sourceName The name of the Source whose sensor data is to be deleted.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return The number of SensorData deleted, or -1 if the Source does not exist or there was a
+   * problem, in which case some of the range may have been deleted.
+   * @throws DbBadIntervalException if startTime is later than endTime.
+   * @throws InterruptedException If interrupted while pausing between chunks.
+   */
+  public long deleteSensorData(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) throws DbBadIntervalException, InterruptedException {
+    return deleteSensorDataInChunks(sourceName, startTime, endTime, null);
+  }
+
+  /**
+   * Starts deleting the sensor data from the named Source with timestamps between startTime and
+   * endTime inclusive in the background, as deleteSensorData(String, XMLGregorianCalendar,
+   * XMLGregorianCalendar) does. The progress of the job is the number of SensorData deleted so
+   * far.
+   * 
+   * @param sourceName The name of the Source whose sensor data is to be deleted.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @param owner The username of the user requesting the deletion.
+   * @return The job doing the deletion.
+   * @throws DbBadIntervalException if startTime is later than endTime.
+   */
+  public Job startSensorDataDeletion(final String sourceName,
+      final XMLGregorianCalendar startTime, final XMLGregorianCalendar endTime, String owner)
+      throws DbBadIntervalException {
+    if (Tstamp.greaterThan(startTime, endTime)) {
+      throw new DbBadIntervalException(startTime, endTime);
+    }
+    return submitJob(new Job("Delete sensor data of " + sourceName + " from " + startTime
+        + " to " + endTime, owner) {
+      @Override
+      protected String execute() throws Exception {
+        long deleted = deleteSensorDataInChunks(sourceName, startTime, endTime, this);
+        if (deleted < 0) {
+          throw new DbException("Unable to delete sensor data after " + getProgress()
+              + " were deleted");
+        }
+        return "Deleted " + deleted + " sensor data";
+      }
+    });
+  }
+
+  /**
+   * Deletes a range of sensor data in chunks, for deleteSensorData(String, XMLGregorianCalendar,
+   * XMLGregorianCalendar) and startSensorDataDeletion().
+   * 
+   * @param sourceName The name of the Source whose sensor data is to be deleted.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @param job The job to report progress to, or null.
+   * @return The number of SensorData deleted, or -1 if the Source does not exist or there was a
+   * problem.
+   * @throws DbBadIntervalException if startTime is later than endTime.
+   * @throws InterruptedException If interrupted while pausing between chunks.
+   */
+  private long deleteSensorDataInChunks(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, Job job) throws DbBadIntervalException, InterruptedException {
+    flushIngestQueue();
+    long total = 0;
+    try {
+      while (true) {
+        int deleted =
+            this.dbImpl.deleteSensorData(sourceName, startTime, endTime, this.deleteChunkSize);
+        if (deleted <= 0) {
+          return (deleted < 0) ? -1 : total;
+        }
+        total += deleted;
+        sensorDataChanged(sourceName, startTime, endTime);
+        if (job != null) {
+          job.setProgress(total);
+        }
+        // Let other requests at the database before taking the next chunk
+        Thread.sleep(this.deletePause);
+        if (job != null) {
+          job.pauseWhileBusy();
+        }
+      }
+    }
+    finally {
+      if (total > 0) {
+        rebuildExistenceFilter(sourceName);
+      }
+    }
+  }
+
+  /**
+   * Starts replacing old raw sensor data with downsampled sensor data in the background, for each
+   * Source with rawRetentionDays and downsampleInterval properties. The progress of the job is the
+   * number of raw SensorData replaced so far.
+   * 
+   * @param owner The username of the user requesting the compaction, or null if it was started
+   * internally.
+   * @return The job doing the compaction.
+   * @see SensorDataCompactor
+   */
+  public SensorDataCompactor startSensorDataCompaction(String owner) {
+    flushIngestQueue();
+    SensorDataCompactor compactor =
+        new SensorDataCompactor(this, this.dbImpl, this.compactionPause, server.getLogger(), owner);
+    submitJob(compactor);
+    return compactor;
+  }
+
+  /**
+   * Submits a job to be run in the background, after any jobs submitted earlier have finished. Its
+   * status can be looked up with getJob() until MAX_JOBS more jobs have been submitted.
+   * 
+   * @param job The job.
+   * @return The job.
+   */
+  public Job submitJob(Job job) {
+    return submitJob(job, this.jobExecutor);
+  }
+
+  /**
+   * Registers a job so getJob() can find it and runs it on the given executor.
+   * 
+   * @param job The job.
+   * @param executor The executor to run it on.
+   * @return The job.
+   */
+  private Job submitJob(Job job, ExecutorService executor) {
+    job.setThrottle(this.jobThrottle);
+    synchronized (this.jobs) {
+      this.jobs.put(job.getId(), job);
+    }
+    executor.execute(job);
+    return job;
+  }
+
+  /**
+   * Makes a single thread executor for background jobs, whose thread does not keep the server from
+   * exiting.
+   * 
+   * @param name The name of the thread.
+   * @return The executor.
+   */
+  private static ExecutorService makeJobExecutor(final String name) {
+    return Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        // A job in progress should never keep the server from exiting
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Sets what decides when jobs submitted from now on should pause between steps because the
+   * server is busy.
+   * 
+   * @param throttle The throttle, or null if jobs should never pause.
+   */
+  public void setJobThrottle(JobThrottle throttle) {
+    this.jobThrottle = throttle;
+  }
+
+  /**
+   * Returns a recently submitted job.
+   * 
+   * @param id The identifier of the job.
+   * @return The job, or null if there is no such job or it has been forgotten.
+   */
+  public Job getJob(String id) {
+    synchronized (this.jobs) {
+      return this.jobs.get(id);
+    }
   }
 
   /**
@@ -399,8 +1080,51 @@ public class DbManager {
    * @param timestamp The timestamp requested.
    * @return The requested power in SensorData format, or null if it cannot be found/calculated.
    */
-  public SensorData getPower(String sourceName, XMLGregorianCalendar timestamp) {
-    return this.dbImpl.getPower(sourceName, timestamp);
+  public SensorData getPower(final String sourceName, final XMLGregorianCalendar timestamp) {
+    String key = "power|" + sourceName + "|" + timestamp;
+    return getComputedData(key, sourceName, timestamp, timestamp, new Callable<SensorData>() {
+      public SensorData call() {
+        return dbImpl.getPower(sourceName, timestamp);
+      }
+    });
+  }
+
+  /**
+   * Returns the power in SensorData format for the Source name given at regular intervals between
+   * startTime and endTime, or null if the Source doesn't exist or the range or interval is invalid.
+   * The sensor data of each non-virtual subsource is read with one range query, and all the points
+   * are calculated from it, so this is much cheaper than calling getPower() for each timestamp.
+   * Timestamps at which power cannot be calculated are left out of the result.
+   * 
+   * @param sourceName The source name.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param interval The sampling interval requested in minutes, or 0 for a default of one tenth
+   * of the range.
+   * @return The requested power series, or null if it cannot be calculated.
+   */
+  public SensorDatas getPowerSeries(final String sourceName, final XMLGregorianCalendar startTime,
+      final XMLGregorianCalendar endTime, final int interval) {
+    String key = getVersionedKey("powerseries|" + sourceName + "|" + startTime + "|" + endTime
+        + "|" + interval, sourceName);
+    return coalesceUnchecked(key, new Callable<SensorDatas>() {
+      public SensorDatas call() {
+        List<XMLGregorianCalendar> timestamps =
+            Tstamp.getTimestampList(startTime, endTime, interval);
+        if (timestamps == null) {
+          return null;
+        }
+        List<SensorData> powerList =
+            new SeriesCalculator(DbManager.this, server, startTime, endTime).getPowerSeries(
+                sourceName, timestamps);
+        if (powerList == null) {
+          return null;
+        }
+        SensorDatas datas = new SensorDatas();
+        datas.getSensorData().addAll(powerList);
+        return datas;
+      }
+    });
   }
 
   /**
@@ -413,9 +1137,105 @@ public class DbManager {
    * @param interval The sampling interval requested.
    * @return The requested energy in SensorData format, or null if it cannot be found/calculated.
    */
-  public SensorData getEnergy(String sourceName, XMLGregorianCalendar startTime,
-      XMLGregorianCalendar endTime, int interval) {
-    return this.dbImpl.getEnergy(sourceName, startTime, endTime, interval);
+  public SensorData getEnergy(final String sourceName, final XMLGregorianCalendar startTime,
+      final XMLGregorianCalendar endTime, final int interval) {
+    String key =
+        "energy|" + sourceName + "|" + startTime + "|" + endTime + "|"
+            + interval;
+    return getComputedData(key, sourceName, startTime, endTime, new Callable<SensorData>() {
+      public SensorData call() {
+        List<XMLGregorianCalendar> timestamps =
+            getChunkableTimestamps(sourceName, startTime, endTime, interval, true);
+        if (timestamps == null) {
+          return dbImpl.getEnergy(sourceName, startTime, endTime, interval);
+        }
+        List<StraddleList> straddleLists = getStraddleListsInChunks(sourceName, timestamps);
+        if (straddleLists == null) {
+          return null;
+        }
+        List<List<SensorDataStraddle>> masterList =
+            new ArrayList<List<SensorDataStraddle>>(straddleLists.size());
+        for (StraddleList straddleList : straddleLists) {
+          masterList.add(straddleList.getStraddleList());
+        }
+        return Energy.getEnergyFromListOfLists(masterList, Source.sourceToUri(sourceName, server));
+      }
+    });
+  }
+
+  /**
+   * Returns the energy in SensorData format for the Source name given over the range of time
+   * between startTime and endTime, integrated over every sensor data point in the range rather
+   * than sampled at an interval, or null if no energy data exists. Unless every non-virtual
+   * subsource supports energy counters, the energy is taken from getSensorDataStatistics() for the
+   * range as a single bucket, so DbImplementations that aggregate in the database never return the
+   * readings. The result is the same as SeriesCalculator.getExactEnergy(), and is exact for power
+   * that varies linearly between readings.
+   * 
+   * @param sourceName The source name.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @return The requested energy in SensorData format, or null if it cannot be found/calculated.
+   */
+  public SensorData getExactEnergy(final String sourceName, final XMLGregorianCalendar startTime,
+      final XMLGregorianCalendar endTime) {
+    String key = "exactenergy|" + sourceName + "|" + startTime + "|" + endTime;
+    return getComputedData(key, sourceName, startTime, endTime, new Callable<SensorData>() {
+      public SensorData call() {
+        Source source = getSource(sourceName);
+        if ((source != null) && allSupportEnergyCounters(source)) {
+          return new SeriesCalculator(DbManager.this, server, startTime, endTime).getExactEnergy(
+              sourceName, startTime, endTime);
+        }
+        List<SensorData> energies =
+            getAggregatedEnergy(sourceName, Arrays.asList(startTime, endTime));
+        return ((energies == null) || energies.isEmpty()) ? null : energies.get(0);
+      }
+    });
+  }
+
+  /**
+   * Returns the exact energy of each bucket between consecutive boundaries from the sensor data
+   * statistics of the named Source, timestamped with the start of the bucket. Buckets without
+   * readings at or before their start and at or after their end for every non-virtual subsource
+   * are left out, as SeriesCalculator cannot compute their energy either.
+   * 
+   * @param sourceName The source name.
+   * @param boundaries The bucket boundaries in increasing order, at least two.
+   * @return The energy of each bucket that can be computed, or null if the Source does not exist or
+   * the statistics cannot be computed.
+   */
+  private List<SensorData> getAggregatedEnergy(String sourceName,
+      List<XMLGregorianCalendar> boundaries) {
+    List<SensorDataStatistics> statistics = dbImpl.getSensorDataStatistics(sourceName, boundaries);
+    if (statistics == null) {
+      return null;
+    }
+    String sourceUri = Source.sourceToUri(sourceName, server);
+    List<SensorData> energies = new ArrayList<SensorData>(statistics.size());
+    for (SensorDataStatistics bucket : statistics) {
+      if (bucket.isEnergyComplete()) {
+        energies.add(Energy.makeEnergySensorData(bucket.getStart(), sourceUri, bucket
+            .getEnergyGenerated(), bucket.getEnergyConsumed(), true));
+      }
+    }
+    return energies;
+  }
+
+  /**
+   * Returns true if every non-virtual subsource of the given Source supports energy counters, so
+   * energy is calculated from the counters rather than by integrating power.
+   * 
+   * @param source The Source.
+   * @return True if all the non-virtual subsources support energy counters.
+   */
+  private boolean allSupportEnergyCounters(Source source) {
+    for (Source leaf : getAllNonVirtualSubSources(source)) {
+      if (!leaf.isPropertyTrue(Source.SUPPORTS_ENERGY_COUNTERS)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
@@ -428,9 +1248,259 @@ public class DbManager {
    * @param interval The sampling interval requested.
    * @return The requested carbon in SensorData format, or null if it cannot be found/calculated.
    */
-  public SensorData getCarbon(String sourceName, XMLGregorianCalendar startTime,
-      XMLGregorianCalendar endTime, int interval) {
-    return this.dbImpl.getCarbon(sourceName, startTime, endTime, interval);
+  public SensorData getCarbon(final String sourceName, final XMLGregorianCalendar startTime,
+      final XMLGregorianCalendar endTime, final int interval) {
+    String key =
+        "carbon|" + sourceName + "|" + startTime + "|" + endTime + "|"
+            + interval;
+    return getComputedData(key, sourceName, startTime, endTime, new Callable<SensorData>() {
+      public SensorData call() {
+        List<XMLGregorianCalendar> timestamps =
+            getChunkableTimestamps(sourceName, startTime, endTime, interval, false);
+        if (timestamps == null) {
+          return dbImpl.getCarbon(sourceName, startTime, endTime, interval);
+        }
+        List<StraddleList> straddleLists = getStraddleListsInChunks(sourceName, timestamps);
+        if (straddleLists == null) {
+          return null;
+        }
+        return Carbon.getCarbonFromStraddleList(straddleLists, Source.sourceToUri(sourceName,
+            server));
+      }
+    });
+  }
+
+  /**
+   * Returns the sample timestamps of a sampled energy or carbon calculation if it is worth
+   * splitting into chunks that are looked up in parallel, or null if it should be left to the
+   * DbImplementation: when parallel lookups are disabled, the Source is unknown, energy is
+   * calculated from counters (which only need the two ends of the range), or there are too few
+   * samples for more than one chunk.
+   * 
+   * @param sourceName The source name.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param interval The sampling interval requested in minutes.
+   * @param energy True for an energy calculation, false for a carbon calculation.
+   * @return The sample timestamps, or null if the calculation should not be split.
+   */
+  private List<XMLGregorianCalendar> getChunkableTimestamps(String sourceName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, int interval, boolean energy) {
+    if (this.lookupExecutor == null) {
+      return null;
+    }
+    Source source = getSource(sourceName);
+    if (source == null) {
+      return null;
+    }
+    if (energy && allSupportEnergyCounters(source)) {
+      return null;
+    }
+    List<XMLGregorianCalendar> timestamps = Tstamp.getTimestampList(startTime, endTime, interval);
+    if ((timestamps == null) || (timestamps.size() <= CHUNK_SAMPLES)) {
+      return null;
+    }
+    return timestamps;
+  }
+
+  /**
+   * Looks up the straddles of every non-virtual subsource of the named Source at each of the given
+   * timestamps, like DbImplementation.getStraddleLists(), but splits the timestamps into chunks of
+   * CHUNK_SAMPLES that are looked up in parallel, at most maxChunksInFlight at a time. The chunks
+   * are joined back into one StraddleList per subsource, so the straddle at each chunk boundary is
+   * shared by the samples on either side of it, and the result is the same as looking up all the
+   * timestamps at once.
+   * 
+   * @param sourceName The source name.
+   * @param timestamps The sample timestamps.
+   * @return The list of StraddleLists, one per non-virtual subsource, or null if any straddle is
+   * missing.
+   */
+  private List<StraddleList> getStraddleListsInChunks(final String sourceName,
+      List<XMLGregorianCalendar> timestamps) {
+    List<Callable<List<StraddleList>>> lookups = new ArrayList<Callable<List<StraddleList>>>();
+    for (int i = 0; i < timestamps.size(); i += CHUNK_SAMPLES) {
+      final List<XMLGregorianCalendar> chunk =
+          timestamps.subList(i, Math.min(i + CHUNK_SAMPLES, timestamps.size()));
+      lookups.add(new Callable<List<StraddleList>>() {
+        public List<StraddleList> call() {
+          return dbImpl.getStraddleLists(sourceName, chunk);
+        }
+      });
+    }
+    List<StraddleList> straddleLists = null;
+    for (List<StraddleList> chunkLists : runLookups(lookups, this.maxChunksInFlight)) {
+      if ((chunkLists == null) || chunkLists.isEmpty()) {
+        // Missing data somewhere in this chunk, so the whole calculation fails
+        return null;
+      }
+      if (straddleLists == null) {
+        straddleLists = new ArrayList<StraddleList>(chunkLists.size());
+        for (StraddleList chunkList : chunkLists) {
+          List<SensorDataStraddle> straddles =
+              new ArrayList<SensorDataStraddle>(timestamps.size());
+          straddles.addAll(chunkList.getStraddleList());
+          straddleLists.add(new StraddleList(chunkList.getSource(), straddles));
+        }
+      }
+      else {
+        for (int j = 0; j < straddleLists.size(); j++) {
+          straddleLists.get(j).getStraddleList().addAll(chunkLists.get(j).getStraddleList());
+        }
+      }
+    }
+    return straddleLists;
+  }
+
+  /**
+   * Returns the energy in SensorData format for the Source name given in each bucket of time
+   * between startTime and endTime, or null if the Source doesn't exist or the range is invalid.
+   * Each value is the same as getEnergy() returns for its bucket, and is timestamped with the start
+   * of the bucket. Buckets whose energy cannot be calculated are left out of the result.
+   * 
+   * @param sourceName The source name.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param bucket The bucket size, as accepted by Tstamp.getBucketList().
+   * @param interval The sampling interval requested in minutes.
+   * @return The requested energy series, or null if it cannot be calculated.
+   * @throws IllegalArgumentException If the bucket size is not understood or there would be more
+   * than MAX_BUCKETS buckets.
+   */
+  public SensorDatas getEnergySeries(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, String bucket, int interval) {
+    return getBucketSeries(true, false, sourceName, startTime, endTime, bucket, interval);
+  }
+
+  /**
+   * Returns the energy in SensorData format for the Source name given in each bucket of time
+   * between startTime and endTime, integrated over every sensor data point rather than sampled at
+   * an interval, or null if the Source doesn't exist or the range is invalid. Each value is the
+   * same as getExactEnergy() returns for its bucket, and is timestamped with the start of the
+   * bucket. The whole series comes from one call to the statistics aggregation, so pairs of
+   * readings that straddle a bucket boundary are divided between the buckets. Buckets whose energy
+   * cannot be calculated are left out of the result.
+   * 
+   * @param sourceName The source name.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param bucket The bucket size, as accepted by Tstamp.getBucketList().
+   * @return The requested energy series, or null if it cannot be calculated.
+   * @throws IllegalArgumentException If the bucket size is not understood or there would be more
+   * than MAX_BUCKETS buckets.
+   */
+  public SensorDatas getExactEnergySeries(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, String bucket) {
+    return getBucketSeries(true, true, sourceName, startTime, endTime, bucket, 0);
+  }
+
+  /**
+   * Returns the carbon emitted in SensorData format for the Source name given in each bucket of
+   * time between startTime and endTime, or null if the Source doesn't exist or the range is
+   * invalid. Each value is the same as getCarbon() returns for its bucket, and is timestamped with
+   * the start of the bucket. Buckets whose carbon cannot be calculated are left out of the result.
+   * 
+   * @param sourceName The source name.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param bucket The bucket size, as accepted by Tstamp.getBucketList().
+   * @param interval The sampling interval requested in minutes.
+   * @return The requested carbon series, or null if it cannot be calculated.
+   * @throws IllegalArgumentException If the bucket size is not understood or there would be more
+   * than MAX_BUCKETS buckets.
+   */
+  public SensorDatas getCarbonSeries(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, String bucket, int interval) {
+    return getBucketSeries(false, false, sourceName, startTime, endTime, bucket, interval);
+  }
+
+  /**
+   * Returns statistics about the sensor data of the named Source in each bucket of time between
+   * startTime and endTime: the number of readings, the first and last of them, the minimum,
+   * maximum and average power consumed, and the energy consumed and generated between readings,
+   * with power interpolated across bucket boundaries. DbImplementations that can compute these
+   * inside the database do so, rather than reading every SensorData. Identical concurrent requests
+   * are coalesced, so callers must not modify the results.
+   * 
+   * @param sourceName The source name.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param bucket The bucket size, as accepted by Tstamp.getBucketList().
+   * @return One SensorDataStatistics per bucket, in order, or null if the Source doesn't exist or
+   * the range is invalid.
+   * @throws IllegalArgumentException If the bucket size is not understood or there would be more
+   * than MAX_BUCKETS buckets.
+   */
+  public List<SensorDataStatistics> getSensorDataStatistics(final String sourceName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String bucket) {
+    final List<XMLGregorianCalendar> boundaries =
+        Tstamp.getBucketList(startTime, endTime, bucket, MAX_BUCKETS);
+    if (boundaries == null) {
+      return null;
+    }
+    String key = getVersionedKey("statistics|" + sourceName + "|" + startTime + "|" + endTime
+        + "|" + bucket, sourceName);
+    return coalesceUnchecked(key, new Callable<List<SensorDataStatistics>>() {
+      public List<SensorDataStatistics> call() {
+        return dbImpl.getSensorDataStatistics(sourceName, boundaries);
+      }
+    });
+  }
+
+  /**
+   * Computes an energy or carbon series for getEnergySeries(), getExactEnergySeries() and
+   * getCarbonSeries(). The sensor data is read once for the whole range, or aggregated for an
+   * exact energy series, and identical concurrent requests are coalesced.
+   * 
+   * @param energy True for an energy series, false for a carbon series.
+   * @param exact True to integrate the energy over every sensor data point, ignoring interval.
+   * @param sourceName The source name.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param bucket The bucket size, as accepted by Tstamp.getBucketList().
+   * @param interval The sampling interval requested in minutes.
+   * @return The requested series, or null if it cannot be calculated.
+   * @throws IllegalArgumentException If the bucket size is not understood or there would be more
+   * than MAX_BUCKETS buckets.
+   */
+  private SensorDatas getBucketSeries(final boolean energy, final boolean exact,
+      final String sourceName, final XMLGregorianCalendar startTime,
+      final XMLGregorianCalendar endTime, String bucket, final int interval) {
+    if (interval < 0) {
+      return null;
+    }
+    final List<XMLGregorianCalendar> boundaries =
+        Tstamp.getBucketList(startTime, endTime, bucket, MAX_BUCKETS);
+    if (boundaries == null) {
+      return null;
+    }
+    String key =
+        getVersionedKey((energy ? (exact ? "exactenergyseries|" : "energyseries|")
+            : "carbonseries|") + sourceName + "|" + startTime + "|" + endTime + "|" + bucket + "|"
+            + interval, sourceName);
+    return coalesceUnchecked(key, new Callable<SensorDatas>() {
+      public SensorDatas call() {
+        Source source = getSource(sourceName);
+        List<SensorData> dataList;
+        if (exact && (source != null) && !allSupportEnergyCounters(source)) {
+          dataList = getAggregatedEnergy(sourceName, boundaries);
+        }
+        else {
+          SeriesCalculator calculator =
+              new SeriesCalculator(DbManager.this, server, startTime, endTime);
+          // Energy counters are already exact, and the interval is ignored when they are used
+          dataList =
+              energy ? calculator.getEnergySeries(sourceName, boundaries, interval) : calculator
+                  .getCarbonSeries(sourceName, boundaries, interval);
+        }
+        if (dataList == null) {
+          return null;
+        }
+        SensorDatas datas = new SensorDatas();
+        datas.getSensorData().addAll(dataList);
+        return datas;
+      }
+    });
   }
 
   /**
@@ -493,7 +1563,12 @@ public class DbManager {
    * not exist.
    */
   public boolean deleteUser(String username) {
-    return this.dbImpl.deleteUser(username);
+    boolean deleted = this.dbImpl.deleteUser(username);
+    if (deleted) {
+      // Deleting a user may take their Sources with it
+      sourcesChanged();
+    }
+    return deleted;
   }
 
   /**
@@ -526,7 +1601,51 @@ public class DbManager {
    * @return True if the snapshot succeeded.
    */
   public boolean makeSnapshot() {
-    return this.dbImpl.makeSnapshot();
+    return makeSnapshot(null);
+  }
+
+  /**
+   * Creates a snapshot of the database in the directory specified by
+   * ServerProperties.DB_SNAPSHOT_KEY, reporting progress as files are copied. Only sensor data
+   * already queued for ingest is written before the snapshot starts; new sensor data keeps being
+   * stored while it is made.
+   * 
+   * @param progress Receives reports of the bytes and files copied, or null if progress is not
+   * wanted.
+   * @return True if the snapshot succeeded.
+   */
+  boolean makeSnapshot(SnapshotProgress progress) {
+    flushIngestQueue();
+    return this.dbImpl.makeSnapshot(progress);
+  }
+
+  /**
+   * Starts making a snapshot of the database in the background, unless one is already queued or
+   * running. Snapshots have a thread of their own, so one starts at once even while a compaction
+   * or other job is running. The progress of the job is the number of bytes copied so far.
+   * 
+   * @param owner The username of the user requesting the snapshot, or null if it was started
+   * internally.
+   * @return The job making the snapshot, or null if another snapshot has not finished yet.
+   * @see #getSnapshotJob()
+   */
+  public synchronized SnapshotJob startSnapshot(String owner) {
+    if ((this.snapshotJob != null) && !this.snapshotJob.isFinished()) {
+      return null;
+    }
+    this.snapshotJob = new SnapshotJob(this, owner);
+    submitJob(this.snapshotJob, this.snapshotExecutor);
+    return this.snapshotJob;
+  }
+
+  /**
+   * Returns the snapshot job most recently started with startSnapshot(), which is the one still
+   * queued or running if there is one.
+   * 
+   * @return The job, or null if no snapshot has been started.
+   */
+  public synchronized SnapshotJob getSnapshotJob() {
+    return this.snapshotJob;
   }
 
   /**
@@ -536,6 +1655,338 @@ public class DbManager {
    * @return True if data could be wiped, or false if there was a problem wiping data.
    */
   public boolean wipeData() {
-    return this.dbImpl.wipeData();
+    flushIngestQueue();
+    boolean wiped = this.dbImpl.wipeData();
+    // Even a partial wipe may have removed something, so always invalidate
+    sourcesChanged();
+    if (this.existenceFilter != null) {
+      this.existenceFilter.rebuildAll();
+    }
+    return wiped;
+  }
+
+  /**
+   * Returns the cache of computed power, energy and carbon values, mainly so its statistics can be
+   * inspected.
+   * 
+   * @return The computed data cache.
+   */
+  public ComputedDataCache getComputedDataCache() {
+    return this.computedCache;
+  }
+
+  /**
+   * Returns the coalescer that lets identical concurrent requests share one computation, mainly so
+   * its statistics can be inspected.
+   * 
+   * @return The request coalescer.
+   */
+  public RequestCoalescer getRequestCoalescer() {
+    return this.coalescer;
+  }
+
+  /**
+   * Returns the queue that stores sensor data in the background, mainly so its statistics can be
+   * inspected.
+   * 
+   * @return The ingest queue, or null if ingest is synchronous.
+   */
+  public IngestQueue getIngestQueue() {
+    return this.ingestQueue;
+  }
+
+  /**
+   * Returns the filter that answers most checks for existing sensor data without a database read,
+   * mainly so its statistics can be inspected.
+   * 
+   * @return The existence filter, or null if it is disabled.
+   */
+  public ExistenceFilter getExistenceFilter() {
+    return this.existenceFilter;
+  }
+
+  /**
+   * Runs an expensive computation, unless an identical computation (as identified by the key) is
+   * already running, in which case its result is shared. Intended for computations built on top of
+   * the DbManager, such as Google Visualization tables. A computation is only shared if the named
+   * Source has not changed since it started. Since results may be shared, callers must not modify
+   * them.
+   * 
+   * @param <V> The type of the result.
+   * @param key The key identifying the computation, which must include all its parameters.
+   * @param sourceName The name of the Source the computation reads.
+   * @param computation The computation to run.
+   * @return The result of the computation.
+   * @throws Exception If the computation throws an exception.
+   */
+  public <V> V coalesce(String key, String sourceName, Callable<V> computation)
+      throws Exception {
+    return this.coalescer.execute(getVersionedKey(key, sourceName), computation);
+  }
+
+  /**
+   * Returns the coalescing key for a read of the named Source, adding the current version of its
+   * sensor data and that of its subsources to the given key. A request that arrives after a change
+   * then starts a fresh read rather than sharing one that began before the change, so a client
+   * always sees its own writes.
+   * 
+   * @param key The key identifying the read, which must include all its parameters.
+   * @param sourceName The name of the Source read.
+   * @return The versioned key.
+   */
+  private String getVersionedKey(String key, String sourceName) {
+    List<String> sourceNames = getTrackedSourceNames(sourceName);
+    return (sourceNames == null) ? key : key + "|" + this.tracker.getVersion(sourceNames);
+  }
+
+  /**
+   * Runs a computation through the request coalescer. The computations used here do not throw
+   * checked exceptions, so any checked exception is unexpected and is rethrown unchecked.
+   * 
+   * @param <V> The type of the result.
+   * @param key The key identifying the computation, which must include all its parameters.
+   * @param computation The computation to run.
+   * @return The result of the computation.
+   */
+  private <V> V coalesceUnchecked(String key, Callable<V> computation) {
+    try {
+      return this.coalescer.execute(key, computation);
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns a computed value from the cache if present, otherwise computes it and caches the
+   * result. Identical concurrent computations are coalesced into one. Values are only cached if
+   * none of the Sources they depend on changed during the computation. Since cached values are
+   * shared, callers must not modify the returned SensorData.
+   * 
+   * @param key The key identifying the computation, which must include all its parameters.
+   * @param sourceName The name of the Source the value is computed for.
+   * @param startTime The first time the value is computed from.
+   * @param endTime The last time the value is computed from.
+   * @param computation Computes the value when it is not cached.
+   * @return The computed value, or null if it could not be computed.
+   */
+  private SensorData getComputedData(final String key, final String sourceName,
+      final XMLGregorianCalendar startTime, final XMLGregorianCalendar endTime,
+      final Callable<SensorData> computation) {
+    if (!this.computedCache.isEnabled()) {
+      return coalesceUnchecked(getVersionedKey(key, sourceName), computation);
+    }
+    SensorData data = this.computedCache.get(key);
+    if (data != null) {
+      return data;
+    }
+    return coalesceUnchecked(getVersionedKey(key, sourceName), new Callable<SensorData>() {
+      public SensorData call() throws Exception {
+        List<String> sourceNames = getTrackedSourceNames(sourceName);
+        if (sourceNames == null) {
+          // Unknown Source, let the implementation deal with it
+          return computation.call();
+        }
+        String version = tracker.getVersion(sourceNames);
+        SensorData computed = computation.call();
+        if (computed != null) {
+          computedCache.put(key, computed, sourceNames, version, getDependencyWindows(
+              sourceNames, startTime, endTime));
+        }
+        return computed;
+      }
+    });
+  }
+
+  /**
+   * Returns the window of sensor data of each of the named Sources that a value computed between
+   * startTime and endTime depends on: from the reading at or before startTime to the reading at or
+   * after endTime, which interpolation uses. Sources without readings on both sides are left out,
+   * so the value depends on all of their sensor data.
+   * 
+   * @param sourceNames The names of the Sources the value was computed from.
+   * @param startTime The first time the value was computed from.
+   * @param endTime The last time the value was computed from.
+   * @return The windows keyed by Source name.
+   */
+  private Map<String, ComputedDataCache.Window> getDependencyWindows(List<String> sourceNames,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) {
+    Map<String, ComputedDataCache.Window> windows =
+        new HashMap<String, ComputedDataCache.Window>();
+    for (String name : sourceNames) {
+      SensorDataStraddle first = this.dbImpl.getSensorDataStraddle(name, startTime);
+      if (first == null) {
+        continue;
+      }
+      SensorDataStraddle last =
+          startTime.equals(endTime) ? first : this.dbImpl.getSensorDataStraddle(name, endTime);
+      if (last != null) {
+        windows.put(name, new ComputedDataCache.Window(first.getBeforeData().getTimestamp()
+            .toGregorianCalendar().getTimeInMillis(), last.getAfterData().getTimestamp()
+            .toGregorianCalendar().getTimeInMillis()));
+      }
+    }
+    return windows;
+  }
+
+  /**
+   * Records that the sensor data of the named Source changed, updating the cache validators and
+   * discarding computed values that depend on it.
+   * 
+   * @param sourceName The name of the Source whose sensor data changed.
+   */
+  void sensorDataChanged(String sourceName) {
+    this.tracker.sensorDataChanged(sourceName);
+    this.computedCache.invalidate(sourceName);
+  }
+
+  /**
+   * Records that the sensor data of the named Source between startTime and endTime changed,
+   * updating the cache validators and discarding computed values whose windows overlap the change.
+   * 
+   * @param sourceName The name of the Source whose sensor data changed.
+   * @param startTime The time of the first sensor data that changed.
+   * @param endTime The time of the last sensor data that changed.
+   */
+  void sensorDataChanged(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    long start = startTime.toGregorianCalendar().getTimeInMillis();
+    long end = endTime.toGregorianCalendar().getTimeInMillis();
+    this.tracker.sensorDataChanged(sourceName, start, end);
+    this.computedCache.invalidate(sourceName, start, end);
+  }
+
+  /**
+   * Rebuilds the existence filter entries of the named Source after its sensor data was deleted or
+   * replaced in bulk, so the filter does not keep answering "maybe present" for data that is gone.
+   * Does nothing if the existence filter is disabled.
+   * 
+   * @param sourceName The name of the Source.
+   */
+  void rebuildExistenceFilter(String sourceName) {
+    if (this.existenceFilter != null) {
+      this.existenceFilter.rebuild(sourceName);
+    }
+  }
+
+  /**
+   * Records that some Source definition changed, updating the cache validators and discarding all
+   * computed values (virtual Sources may now have different subsources).
+   */
+  private void sourcesChanged() {
+    this.tracker.sourcesChanged();
+    this.computedCache.clear();
+  }
+
+  /**
+   * Returns an opaque version string for the named Source that changes whenever its sensor data,
+   * the sensor data of any of its subsources, or any Source definition is changed through this
+   * DbManager. Suitable for building entity tags for representations derived from the Source.
+   * 
+   * @param sourceName The name of the Source.
+   * @return The version string, or null if the Source does not exist.
+   */
+  public String getVersion(String sourceName) {
+    List<String> sourceNames = getTrackedSourceNames(sourceName);
+    return (sourceNames == null) ? null : this.tracker.getVersion(sourceNames);
+  }
+
+  /**
+   * Returns the version and modification time of the sensor data of the named Source, and of its
+   * subsources, that a representation of the range between startTime and endTime depends on:
+   * the data in the range and the readings on either side of it. Unlike getVersion(), they do not
+   * change when sensor data outside that span changes.
+   * 
+   * Where the storage system supports it, the version is built from the definitions of the Sources
+   * and from what is stored (see DbImplementation.getSensorDataVersion()), at the cost of one read
+   * per non-virtual Source, so it is the same after a restart. Otherwise it is built from the
+   * changes tracked in memory, which needs the readings on either side of the range to be read.
+   * 
+   * @param sourceName The name of the Source.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return The version of the range, or null if the Source does not exist.
+   */
+  public ModificationTracker.RangeVersion getRangeVersion(String sourceName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) {
+    List<String> sourceNames = getTrackedSourceNames(sourceName);
+    if (sourceNames == null) {
+      return null;
+    }
+    // Source definitions are not versioned in storage, so the version holds them in full
+    StringBuilder version = new StringBuilder();
+    long modified = this.tracker.getSourcesModified();
+    for (String name : sourceNames) {
+      Source source = this.dbImpl.getSource(name);
+      if (source == null) {
+        // Deleted while we were looking
+        return null;
+      }
+      version.append(source).append('|');
+      if (!source.isVirtual()) {
+        ModificationTracker.RangeVersion stored =
+            this.dbImpl.getSensorDataVersion(name, startTime, endTime);
+        if (stored == null) {
+          return this.tracker.getRangeVersion(sourceNames, getDependencyWindows(sourceNames,
+              startTime, endTime));
+        }
+        version.append(stored.getVersion()).append('|');
+        modified = Math.max(modified, stored.getLastModified().getTime());
+      }
+    }
+    return new ModificationTracker.RangeVersion(version.toString(), new Date(modified));
+  }
+
+  /**
+   * Returns the time of the latest change made through this DbManager to the sensor data of the
+   * named Source, of any of its subsources, or to any Source definition. If nothing has changed
+   * since the DbManager was created, the creation time is returned.
+   * 
+   * @param sourceName The name of the Source.
+   * @return The last modification time, or null if the Source does not exist.
+   */
+  public Date getLastModified(String sourceName) {
+    List<String> sourceNames = getTrackedSourceNames(sourceName);
+    return (sourceNames == null) ? null : new Date(this.tracker.getLastModified(sourceNames));
+  }
+
+  /**
+   * Returns the names of the named Source and all of its subsources (recursively), which are the
+   * Sources whose changes can affect representations of the named Source.
+   * 
+   * @param sourceName The name of the Source.
+   * @return The list of Source names, or null if the Source does not exist.
+   */
+  private List<String> getTrackedSourceNames(String sourceName) {
+    Source source = this.dbImpl.getSource(sourceName);
+    if (source == null) {
+      return null;
+    }
+    List<String> sourceNames = new ArrayList<String>();
+    addTrackedSourceNames(source, sourceNames);
+    return sourceNames;
+  }
+
+  /**
+   * Adds the name of the given Source and the names of all of its subsources (recursively) to the
+   * given list, skipping any Source already present in the list.
+   * 
+   * @param source The Source to start from.
+   * @param sourceNames The list to add names to.
+   */
+  private void addTrackedSourceNames(Source source, List<String> sourceNames) {
+    if (sourceNames.contains(source.getName())) {
+      return;
+    }
+    sourceNames.add(source.getName());
+    List<Source> subSources = this.dbImpl.getAllSubSources(source);
+    if (subSources != null) {
+      for (Source subSource : subSources) {
+        addTrackedSourceNames(subSource, sourceNames);
+      }
+    }
   }
 }
\ No newline at end of file
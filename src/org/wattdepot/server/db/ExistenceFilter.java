@@ -0,0 +1,369 @@
+package org.wattdepot.server.db;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.source.jaxb.Sources;
+
+/**
+ * Remembers which timestamps each Source has sensor data for, in a Bloom filter per Source, so that
+ * most checks for existing sensor data can be answered without reading the database. Almost every
+ * sensor data upload is a new reading, so the check nearly always finds nothing, and the filter
+ * answers "definitely absent" for those. A "maybe present" answer must still be confirmed by the
+ * database.
+ * 
+ * The filters are built from the sensor data index of each Source by rebuildAll(), and must then
+ * be told about every SensorData stored with add(). Deleted SensorData is not removed from the
+ * filter, which only makes it answer "maybe present" more often. Each filter is sized for twice the
+ * number of SensorData its Source had when it was built (but at least the minimum capacity), and
+ * is rebuilt from the index with twice the capacity once that many have been added, so the
+ * proportion of false "maybe present" answers stays around one percent.
+ * 
+ * A filter is built off to the side and only replaces the previous one once it is complete, so a
+ * check made while filters are being built or rebuilt never answers "definitely absent" for data
+ * that exists. A Source with no complete filter yet is always answered "maybe present", leaving
+ * the check to the database.
+ * 
+ * All methods are thread-safe.
+ * 
+ * @author Robert Brewer
+ */
+public class ExistenceFilter {
+
+  /** The number of filter bits per SensorData the filter is sized for. */
+  private static final int BITS_PER_ENTRY = 10;
+
+  /** The number of bits set for each SensorData, optimal for BITS_PER_ENTRY. */
+  private static final int HASHES = 7;
+
+  /** The storage the filters are built from. */
+  private final DbImplementation dbImpl;
+
+  /** The smallest number of SensorData a filter is sized for. */
+  private final int minCapacity;
+
+  /** The complete filter of each Source, keyed by Source name. */
+  private final ConcurrentMap<String, SourceFilter> filters =
+      new ConcurrentHashMap<String, SourceFilter>();
+
+  /**
+   * The timestamps added to each Source whose filter is being built, keyed by Source name, so
+   * SensorData stored while the index is being read is not missing from the new filter.
+   */
+  private final ConcurrentMap<String, Recorder> building =
+      new ConcurrentHashMap<String, Recorder>();
+
+  /** Number of checks made. */
+  private long checks = 0;
+
+  /** Number of checks answered "definitely absent", each saving a database read. */
+  private long absent = 0;
+
+  /** Number of times a filter was built from a sensor data index. */
+  private long rebuilds = 0;
+
+  /**
+   * Creates a new, empty ExistenceFilter. Call rebuildAll() before using it on existing storage.
+   * Until then every check is answered "maybe present".
+   * 
+   * @param dbImpl The storage the filters are built from.
+   * @param minCapacity The smallest number of SensorData a filter is sized for.
+   */
+  public ExistenceFilter(DbImplementation dbImpl, int minCapacity) {
+    this.dbImpl = dbImpl;
+    this.minCapacity = Math.max(1, minCapacity);
+  }
+
+  /**
+   * Builds the filter of every non-virtual Source from its sensor data index, replacing each
+   * existing filter as its new one is complete, and dropping the filters of Sources that no
+   * longer exist.
+   */
+  public void rebuildAll() {
+    Sources sources = this.dbImpl.getSources();
+    if (sources == null) {
+      return;
+    }
+    Set<String> names = new HashSet<String>();
+    for (Source source : sources.getSource()) {
+      if (!source.isVirtual()) {
+        names.add(source.getName());
+        rebuild(source.getName());
+      }
+    }
+    this.filters.keySet().retainAll(names);
+  }
+
+  /**
+   * Builds a new filter of the named Source from its sensor data index, and then replaces the
+   * previous filter with it. The previous filter keeps answering checks until then. SensorData
+   * added while the index is being read is recorded and put in the new filter too. Does nothing if
+   * the Source's filter is already being built.
+   * 
+   * @param sourceName The name of the Source.
+   */
+  public void rebuild(String sourceName) {
+    Recorder recorder = new Recorder();
+    if (this.building.putIfAbsent(sourceName, recorder) != null) {
+      return;
+    }
+    try {
+      SensorDataIndex index = this.dbImpl.getSensorDataIndex(sourceName);
+      List<SensorDataRef> refs = (index == null) ? null : index.getSensorDataRef();
+      int size = (refs == null) ? 0 : refs.size();
+      SourceFilter filter = new SourceFilter(Math.max(this.minCapacity, 2 * size));
+      if (refs != null) {
+        for (SensorDataRef ref : refs) {
+          filter.set(toMillis(ref.getTimestamp()));
+        }
+      }
+      synchronized (recorder) {
+        for (Long millis : recorder.added) {
+          filter.set(millis);
+        }
+        this.filters.put(sourceName, filter);
+        recorder.closed = true;
+      }
+      synchronized (this) {
+        this.rebuilds++;
+      }
+    }
+    finally {
+      synchronized (recorder) {
+        // On failure the previous filter, if any, stays in place
+        recorder.closed = true;
+      }
+      this.building.remove(sourceName, recorder);
+    }
+  }
+
+  /**
+   * Records that SensorData now exists for the named Source and timestamp. If the Source has no
+   * filter yet, or its filter is full, a new one is built from the index with room to grow.
+   * 
+   * @param sourceName The name of the Source.
+   * @param timestamp The timestamp of the SensorData.
+   */
+  public void add(String sourceName, XMLGregorianCalendar timestamp) {
+    long millis = toMillis(timestamp);
+    Recorder recorder = this.building.get(sourceName);
+    if (recorder != null) {
+      synchronized (recorder) {
+        if (!recorder.closed) {
+          recorder.added.add(millis);
+        }
+      }
+    }
+    // Read after the recorder: once it is closed, the filter it fed is already in the map
+    SourceFilter filter = this.filters.get(sourceName);
+    boolean full = true;
+    if (filter != null) {
+      synchronized (filter) {
+        filter.set(millis);
+        full = filter.isFull();
+      }
+    }
+    if (full) {
+      // The SensorData is already stored, so the index read by the rebuild includes it
+      rebuild(sourceName);
+    }
+  }
+
+  /**
+   * Returns false if there is definitely no SensorData for the named Source and timestamp, or true
+   * if there may be. Sources without a complete filter always answer true.
+   * 
+   * @param sourceName The name of the Source.
+   * @param timestamp The timestamp of the SensorData.
+   * @return True if the SensorData may exist, false if it definitely does not.
+   */
+  public boolean mightContain(String sourceName, XMLGregorianCalendar timestamp) {
+    SourceFilter filter = this.filters.get(sourceName);
+    boolean result;
+    if (filter == null) {
+      // Not built yet (or the Source is new or virtual), so only the database can tell
+      result = true;
+    }
+    else {
+      synchronized (filter) {
+        result = filter.get(toMillis(timestamp));
+      }
+    }
+    synchronized (this) {
+      this.checks++;
+      if (!result) {
+        this.absent++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Converts a timestamp to milliseconds, so that equal instants given in different time zones
+   * set the same bits.
+   * 
+   * @param timestamp The timestamp.
+   * @return The milliseconds since the epoch.
+   */
+  private static long toMillis(XMLGregorianCalendar timestamp) {
+    return timestamp.toGregorianCalendar().getTimeInMillis();
+  }
+
+  /**
+   * Returns the number of checks made.
+   * 
+   * @return The number of checks.
+   */
+  public synchronized long getChecks() {
+    return this.checks;
+  }
+
+  /**
+   * Returns the number of checks answered "definitely absent", each of which saved a database
+   * read.
+   * 
+   * @return The number of reads saved.
+   */
+  public synchronized long getAbsent() {
+    return this.absent;
+  }
+
+  /**
+   * Returns the number of times a filter was built from a sensor data index.
+   * 
+   * @return The number of rebuilds.
+   */
+  public synchronized long getRebuilds() {
+    return this.rebuilds;
+  }
+
+  /**
+   * Returns a one line summary of the filter statistics, suitable for logging.
+   * 
+   * @return The summary.
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format("Existence filter: %d sources, %d checks, %d reads saved, %d rebuilds",
+        this.filters.size(), this.checks, this.absent, this.rebuilds);
+  }
+
+  /**
+   * The timestamps added to a Source while its filter is being built. Callers synchronize on it.
+   */
+  private static class Recorder {
+
+    /** The timestamps added, in milliseconds. */
+    private final List<Long> added = new ArrayList<Long>();
+
+    /** True once the new filter has been put in place, after which nothing more is recorded. */
+    private boolean closed = false;
+  }
+
+  /**
+   * The Bloom filter of a single Source. Callers synchronize on it.
+   */
+  private static class SourceFilter {
+
+    /** The filter bits. */
+    private long[] bits;
+
+    /** The number of filter bits. */
+    private int size;
+
+    /** The number of SensorData the filter is sized for. */
+    private int capacity;
+
+    /** The number of SensorData added since the filter was reset. */
+    private int count;
+
+    /**
+     * Creates a new, empty filter.
+     * 
+     * @param capacity The number of SensorData the filter is sized for.
+     */
+    SourceFilter(int capacity) {
+      reset(capacity);
+    }
+
+    /**
+     * Empties the filter and resizes it.
+     * 
+     * @param capacity The number of SensorData the filter is sized for.
+     */
+    void reset(int capacity) {
+      this.capacity = capacity;
+      long wanted = Math.min((long) capacity * BITS_PER_ENTRY, Integer.MAX_VALUE - 63L);
+      this.bits = new long[(int) ((wanted + 63) / 64)];
+      this.size = this.bits.length * 64;
+      this.count = 0;
+    }
+
+    /**
+     * Returns true if more SensorData has been added than the filter is sized for.
+     * 
+     * @return True if the filter is full.
+     */
+    boolean isFull() {
+      return this.count >= this.capacity;
+    }
+
+    /**
+     * Sets the bits for the given timestamp.
+     * 
+     * @param millis The timestamp in milliseconds.
+     */
+    void set(long millis) {
+      long hash = mix(millis);
+      int hash1 = (int) hash;
+      int hash2 = (int) (hash >>> 32);
+      for (int i = 0; i < HASHES; i++) {
+        int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % this.size;
+        this.bits[bit >>> 6] |= 1L << bit;
+      }
+      this.count++;
+    }
+
+    /**
+     * Returns true if all the bits for the given timestamp are set.
+     * 
+     * @param millis The timestamp in milliseconds.
+     * @return True if the timestamp may have been added.
+     */
+    boolean get(long millis) {
+      long hash = mix(millis);
+      int hash1 = (int) hash;
+      int hash2 = (int) (hash >>> 32);
+      for (int i = 0; i < HASHES; i++) {
+        int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % this.size;
+        if ((this.bits[bit >>> 6] & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Scrambles a timestamp, so that regularly spaced timestamps spread evenly over the filter.
+     * 
+     * @param value The timestamp in milliseconds.
+     * @return The scrambled value.
+     */
+    private static long mix(long value) {
+      long hash = value;
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb9fe1a85ec53L;
+      hash ^= hash >>> 33;
+      return hash;
+    }
+  }
+}
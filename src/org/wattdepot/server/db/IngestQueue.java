@@ -0,0 +1,894 @@
+package org.wattdepot.server.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.StackTrace;
+import org.wattdepot.util.UriUtils;
+
+/**
+ * Accepts sensor data for storage without waiting for the database. Each SensorData is appended to
+ * a local journal and forced to disk before append() returns, and a background writer thread then
+ * stores the journaled data into the DbImplementation in batches, with one storeSensorDataBatch()
+ * call per batch where the DbImplementation supports it. This keeps a slow database operation
+ * (such as a Derby checkpoint or a BerkeleyDB cleaner pass) from stalling every sensor that
+ * uploads data at the same moment.
+ * 
+ * Forcing the journal to disk is batched: while one thread is forcing the journal, others append
+ * behind it, and a single force then covers all of them. SensorData that has been appended but not
+ * yet stored can be read back with getSensorData() and getLatestSensorData(), so callers see their
+ * own writes. Any data still in the journal when the server stops is stored when the queue is next
+ * created.
+ * 
+ * The journal is split into segment files, and a segment is deleted once everything in it has
+ * been stored. SensorData that the database keeps throwing exceptions for is moved to a quarantine
+ * file in the journal directory, in the same record format, so that it cannot hold up the rest of
+ * the queue. The quarantine file is not replayed; renaming it to a segment name stores it again
+ * on the next start. Subclasses can override stored() to be told when SensorData reaches the
+ * database.
+ * 
+ * @author Robert Brewer
+ */
+public class IngestQueue {
+
+  /** The default number of SensorData stored by the writer between journal checkpoints. */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  /** The size after which a new journal segment is started. */
+  private static final long SEGMENT_BYTES = 1024L * 1024L;
+
+  /** The prefix of journal segment file names. */
+  private static final String SEGMENT_PREFIX = "ingest-";
+
+  /** The suffix of journal segment file names. */
+  private static final String SEGMENT_SUFFIX = ".journal";
+
+  /** The name of the file SensorData that cannot be stored is moved to. */
+  private static final String QUARANTINE_FILE = "ingest.quarantine";
+
+  /** How long the writer waits before retrying after the database throws an exception. */
+  private static final long RETRY_MILLIS = 1000;
+
+  /** How many times the writer tries to store a SensorData before quarantining it. */
+  private static final int MAX_ATTEMPTS = 10;
+
+  /** How long flush() waits for the writer before giving up. */
+  public static final long FLUSH_TIMEOUT_MILLIS = 60L * 1000L;
+
+  /** The storage the queued SensorData is written to. */
+  private final DbImplementation dbImpl;
+
+  /** The directory holding the journal segments. */
+  private final File directory;
+
+  /** The largest number of SensorData stored in one batch. */
+  private final int batchSize;
+
+  /** The logger for problems. */
+  private final Logger logger;
+
+  /** Used to marshal SensorData into the journal and back. */
+  private final JAXBContext sensorDataJaxbContext;
+
+  /** Guards all the fields below, except those only used for forcing the journal. */
+  private final Object lock = new Object();
+
+  /** SensorData appended but not yet stored, in order. */
+  private final LinkedList<Entry> queue = new LinkedList<Entry>();
+
+  /** SensorData appended but not yet stored, by Source name and timestamp in milliseconds. */
+  private final Map<String, TreeMap<Long, SensorData>> pending =
+      new HashMap<String, TreeMap<Long, SensorData>>();
+
+  /** Journal segments that are full, oldest first. */
+  private final LinkedList<Segment> fullSegments = new LinkedList<Segment>();
+
+  /** The segment currently appended to. */
+  private Segment activeSegment;
+
+  /** The number used in the name of the next segment. */
+  private long nextSegmentNumber;
+
+  /** The sequence number of the last SensorData appended. */
+  private long appended = 0;
+
+  /** The sequence number of the last SensorData the writer has finished with. */
+  private long applied = 0;
+
+  /** The number of SensorData the database refused to store. */
+  private long failed = 0;
+
+  /** The number of SensorData moved to the quarantine file. */
+  private long quarantined = 0;
+
+  /** True once close() has been called. */
+  private boolean closed = false;
+
+  /** Serializes forcing of the journal, so that one force covers every append before it. */
+  private final Object syncLock = new Object();
+
+  /** The sequence number of the last SensorData known to be forced to disk. */
+  private long synced = 0;
+
+  /** The number of times the journal has been forced to disk. */
+  private long syncCount = 0;
+
+  /** The thread storing queued SensorData into the database. */
+  private final Thread writer;
+
+  /**
+   * Creates a new IngestQueue that journals into the given directory and stores into the given
+   * DbImplementation. Any SensorData left in the journal from a previous run is stored first, so
+   * this may take a while after an unclean shutdown. The writer thread is started before returning.
+   * 
+   * @param dbImpl The storage the SensorData is written to.
+   * @param directory The directory for the journal, which is created if needed.
+   * @param batchSize The largest number of SensorData stored in one batch.
+   * @param logger The logger for problems.
+   * @throws IOException If the journal cannot be created.
+   */
+  public IngestQueue(DbImplementation dbImpl, File directory, int batchSize, Logger logger)
+      throws IOException {
+    this.dbImpl = dbImpl;
+    this.directory = directory;
+    this.batchSize = Math.max(1, batchSize);
+    this.logger = logger;
+    try {
+      this.sensorDataJaxbContext =
+          JAXBContext.newInstance(org.wattdepot.resource.sensordata.jaxb.ObjectFactory.class);
+    }
+    catch (JAXBException e) {
+      throw new IllegalStateException("Unable to create JAXB context for sensor data", e);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create ingest journal directory " + directory);
+    }
+    replay();
+    this.activeSegment = new Segment(new File(directory, segmentName(this.nextSegmentNumber++)));
+    this.writer = new Thread(new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, "WattDepot ingest writer");
+    // Anything not yet stored is still in the journal, so the writer need not delay exit
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Deletes any journal segments in the given directory, discarding SensorData that was never
+   * stored. Used when the database is being wiped, so that old data is not replayed into it.
+   * 
+   * @param directory The journal directory.
+   * @throws IOException If a segment cannot be deleted.
+   */
+  public static void deleteJournal(File directory) throws IOException {
+    File[] files = listSegments(directory);
+    if (files != null) {
+      for (File file : files) {
+        if (!file.delete()) {
+          throw new IOException("Unable to delete journal segment " + file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Appends the given SensorData to the journal, and returns once it is safely on disk. The
+   * SensorData is stored into the database later by the writer thread.
+   * 
+   * @param data The SensorData to append.
+   * @return True if the SensorData was appended, false if SensorData for the same Source and
+   * timestamp is already waiting to be stored.
+   * @throws IOException If the journal cannot be written, in which case the SensorData was not
+   * accepted.
+   */
+  public boolean append(SensorData data) throws IOException {
+    byte[] record = makeRecord(data);
+    String sourceName = UriUtils.getUriSuffix(data.getSource());
+    Long millis = toMillis(data.getTimestamp());
+    long sequence;
+    synchronized (this.lock) {
+      if (this.closed) {
+        throw new IOException("Ingest queue is closed");
+      }
+      TreeMap<Long, SensorData> sourcePending = this.pending.get(sourceName);
+      if ((sourcePending != null) && sourcePending.containsKey(millis)) {
+        return false;
+      }
+      if (this.activeSegment.size >= SEGMENT_BYTES) {
+        // Force before closing, since sync() skips segments that are no longer active
+        this.activeSegment.force();
+        this.activeSegment.close();
+        this.fullSegments.add(this.activeSegment);
+        this.activeSegment =
+            new Segment(new File(this.directory, segmentName(this.nextSegmentNumber++)));
+      }
+      this.activeSegment.write(record);
+      sequence = ++this.appended;
+      this.activeSegment.lastSequence = sequence;
+      if (sourcePending == null) {
+        sourcePending = new TreeMap<Long, SensorData>();
+        this.pending.put(sourceName, sourcePending);
+      }
+      sourcePending.put(millis, data);
+      this.queue.add(new Entry(sequence, sourceName, millis, data));
+      this.lock.notifyAll();
+    }
+    sync(sequence);
+    return true;
+  }
+
+  /**
+   * Returns the SensorData for the given Source and timestamp if it is waiting to be stored.
+   * 
+   * @param sourceName The name of the non-virtual Source.
+   * @param timestamp The timestamp.
+   * @return The SensorData, or null if none is waiting.
+   */
+  public SensorData getSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    synchronized (this.lock) {
+      TreeMap<Long, SensorData> sourcePending = this.pending.get(sourceName);
+      return (sourcePending == null) ? null : sourcePending.get(toMillis(timestamp));
+    }
+  }
+
+  /**
+   * Returns the latest SensorData for the given Source that is waiting to be stored.
+   * 
+   * @param sourceName The name of the non-virtual Source.
+   * @return The SensorData, or null if none is waiting.
+   */
+  public SensorData getLatestSensorData(String sourceName) {
+    synchronized (this.lock) {
+      TreeMap<Long, SensorData> sourcePending = this.pending.get(sourceName);
+      return (sourcePending == null) ? null : sourcePending.get(sourcePending.lastKey());
+    }
+  }
+
+  /**
+   * Waits until everything appended so far has been stored into the database, for at most
+   * FLUSH_TIMEOUT_MILLIS. Used before operations that must not be reordered with queued writes,
+   * such as deleting sensor data.
+   * 
+   * @return True if everything appended was stored, false if the wait timed out or the writer
+   * has stopped.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public boolean flush() throws InterruptedException {
+    return flush(FLUSH_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Waits until everything appended so far has been stored into the database, for at most the
+   * given time.
+   * 
+   * @param timeoutMillis The longest time to wait in milliseconds.
+   * @return True if everything appended was stored, false if the wait timed out or the writer
+   * has stopped.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public boolean flush(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (this.lock) {
+      long target = this.appended;
+      while ((this.applied < target) && this.writer.isAlive()) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        this.lock.wait(Math.min(remaining, RETRY_MILLIS));
+      }
+      return this.applied >= target;
+    }
+  }
+
+  /**
+   * Stops accepting SensorData, waits for the writer to store everything already appended, and
+   * closes the journal.
+   * 
+   * @throws InterruptedException If interrupted while waiting.
+   * @throws IOException If the journal cannot be closed.
+   */
+  public void close() throws InterruptedException, IOException {
+    synchronized (this.lock) {
+      this.closed = true;
+      this.lock.notifyAll();
+    }
+    this.writer.join();
+    synchronized (this.lock) {
+      this.activeSegment.close();
+    }
+  }
+
+  /**
+   * Returns the number of SensorData appended but not yet stored.
+   * 
+   * @return The queue depth.
+   */
+  public int getDepth() {
+    synchronized (this.lock) {
+      return this.queue.size();
+    }
+  }
+
+  /**
+   * Returns the number of SensorData appended since the queue was created.
+   * 
+   * @return The number appended.
+   */
+  public long getAppended() {
+    synchronized (this.lock) {
+      return this.appended;
+    }
+  }
+
+  /**
+   * Returns the number of SensorData the writer has finished with since the queue was created,
+   * whether they were stored or refused.
+   * 
+   * @return The number applied.
+   */
+  public long getApplied() {
+    synchronized (this.lock) {
+      return this.applied;
+    }
+  }
+
+  /**
+   * Returns the number of SensorData the database refused to store, usually because SensorData
+   * with the same timestamp was stored first by someone else.
+   * 
+   * @return The number refused.
+   */
+  public long getFailed() {
+    synchronized (this.lock) {
+      return this.failed;
+    }
+  }
+
+  /**
+   * Returns the number of SensorData the database kept throwing exceptions for, which were moved to
+   * the quarantine file rather than stored.
+   * 
+   * @return The number quarantined.
+   */
+  public long getQuarantined() {
+    synchronized (this.lock) {
+      return this.quarantined;
+    }
+  }
+
+  /**
+   * Returns the number of times the journal has been forced to disk. Compared with getAppended(),
+   * this shows how well forces are being batched.
+   * 
+   * @return The number of forces.
+   */
+  public long getSyncCount() {
+    synchronized (this.syncLock) {
+      return this.syncCount;
+    }
+  }
+
+  /**
+   * Returns the total size of the journal segments on disk.
+   * 
+   * @return The journal size in bytes.
+   */
+  public long getJournalBytes() {
+    synchronized (this.lock) {
+      long bytes = this.activeSegment.size;
+      for (Segment segment : this.fullSegments) {
+        bytes += segment.size;
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * Returns a one line summary of the queue statistics, suitable for logging.
+   * 
+   * @return The summary.
+   */
+  @Override
+  public String toString() {
+    return String.format(
+        "Ingest queue: depth %d, %d appended, %d applied, %d refused, %d quarantined, %d syncs, "
+            + "%d journal bytes", getDepth(), getAppended(), getApplied(), getFailed(),
+        getQuarantined(), getSyncCount(), getJournalBytes());
+  }
+
+  /**
+   * Called by the writer thread after SensorData has been stored into the database, and from the
+   * constructor for SensorData replayed from the journal. Does nothing by default.
+   * 
+   * @param data The SensorData that was stored.
+   */
+  protected void stored(SensorData data) {
+    // Nothing to do by default
+  }
+
+  /**
+   * Forces the journal to disk, unless a force that covers the given sequence number has already
+   * happened.
+   * 
+   * @param sequence The sequence number that must be on disk.
+   * @throws IOException If the journal cannot be forced.
+   */
+  private void sync(long sequence) throws IOException {
+    synchronized (this.syncLock) {
+      if (this.synced >= sequence) {
+        // Someone else's force already covered this one
+        return;
+      }
+      Segment segment;
+      long target;
+      synchronized (this.lock) {
+        target = this.appended;
+        segment = this.activeSegment;
+      }
+      try {
+        segment.force();
+      }
+      catch (ClosedChannelException e) { // NOPMD
+        // Segment became full and was forced before being closed
+      }
+      this.synced = target;
+      this.syncCount++;
+    }
+  }
+
+  /**
+   * Run by the writer thread: stores queued SensorData into the database in batches until the
+   * queue is closed and empty. Each batch is first offered to the database as a whole. If that is
+   * not supported or fails, its SensorData is stored one at a time, each retried on its own if the
+   * database throws an exception, so one bad SensorData is quarantined without holding up the
+   * others.
+   */
+  private void drain() {
+    List<Entry> batch = new ArrayList<Entry>(this.batchSize);
+    while (true) {
+      batch.clear();
+      synchronized (this.lock) {
+        while (this.queue.isEmpty() && !this.closed) {
+          try {
+            this.lock.wait();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (this.queue.isEmpty()) {
+          // Closed and nothing left to store
+          return;
+        }
+        for (Entry entry : this.queue) {
+          if (batch.size() == this.batchSize) {
+            break;
+          }
+          batch.add(entry);
+        }
+      }
+      int refused = 0;
+      int moved = 0;
+      if (!storeBatch(batch)) {
+        for (Entry entry : batch) {
+          Boolean stored;
+          try {
+            stored = store(entry);
+          }
+          catch (InterruptedException e) {
+            // The batch is still in the journal, so it is stored on the next start
+            return;
+          }
+          if (stored == null) {
+            moved++;
+          }
+          else if (!stored) {
+            refused++;
+            this.logger.warning("Ingest queue: database refused SensorData for "
+                + entry.sourceName + " at " + entry.data.getTimestamp());
+          }
+        }
+      }
+      synchronized (this.lock) {
+        for (Entry entry : batch) {
+          this.queue.removeFirst();
+          TreeMap<Long, SensorData> sourcePending = this.pending.get(entry.sourceName);
+          sourcePending.remove(entry.millis);
+          if (sourcePending.isEmpty()) {
+            this.pending.remove(entry.sourceName);
+          }
+        }
+        this.applied = batch.get(batch.size() - 1).sequence;
+        this.failed += refused;
+        this.quarantined += moved;
+        checkpoint();
+        this.lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Offers a batch of queued SensorData to the database to be stored in one operation.
+   * 
+   * @param batch The queued SensorData.
+   * @return True if all of it was stored, false if none was and it must be stored one at a time.
+   */
+  private boolean storeBatch(List<Entry> batch) {
+    if (batch.size() < 2) {
+      return false;
+    }
+    List<SensorData> datas = new ArrayList<SensorData>(batch.size());
+    for (Entry entry : batch) {
+      datas.add(entry.data);
+    }
+    try {
+      if (!this.dbImpl.storeSensorDataBatch(datas)) {
+        return false;
+      }
+    }
+    catch (RuntimeException e) {
+      this.logger.warning("Ingest queue: error storing a batch of SensorData, storing it one at "
+          + "a time\n" + StackTrace.toString(e));
+      return false;
+    }
+    for (SensorData data : datas) {
+      stored(data);
+    }
+    return true;
+  }
+
+  /**
+   * Stores one queued SensorData, trying again after RETRY_MILLIS each time the database throws an
+   * exception. After MAX_ATTEMPTS failures the SensorData is moved to the quarantine file.
+   * 
+   * @param entry The queued SensorData.
+   * @return True if it was stored, false if the database refused it, or null if it was
+   * quarantined.
+   * @throws InterruptedException If interrupted while waiting to try again.
+   */
+  private Boolean store(Entry entry) throws InterruptedException {
+    for (int attempt = 1;; attempt++) {
+      try {
+        if (this.dbImpl.storeSensorData(entry.data)) {
+          stored(entry.data);
+          return Boolean.TRUE;
+        }
+        return Boolean.FALSE;
+      }
+      catch (RuntimeException e) {
+        if (attempt >= MAX_ATTEMPTS) {
+          quarantine(entry, e);
+          return null;
+        }
+        this.logger.warning("Ingest queue: error storing SensorData for " + entry.sourceName
+            + " at " + entry.data.getTimestamp() + ", will retry\n" + StackTrace.toString(e));
+        Thread.sleep(RETRY_MILLIS);
+      }
+    }
+  }
+
+  /**
+   * Appends a SensorData the database keeps throwing exceptions for to the quarantine file, and
+   * forces it to disk before the journal segment holding it can be deleted.
+   * 
+   * @param entry The queued SensorData.
+   * @param cause The last exception thrown while storing it.
+   */
+  private void quarantine(Entry entry, RuntimeException cause) {
+    String description = entry.sourceName + " at " + entry.data.getTimestamp();
+    try {
+      FileOutputStream output = new FileOutputStream(new File(this.directory, QUARANTINE_FILE),
+          true);
+      try {
+        output.write(makeRecord(entry.data));
+        output.getFD().sync();
+      }
+      finally {
+        output.close();
+      }
+      this.logger.severe("Ingest queue: unable to store SensorData for " + description
+          + ", moved to " + QUARANTINE_FILE + "\n" + StackTrace.toString(cause));
+    }
+    catch (IOException e) {
+      this.logger.severe("Ingest queue: unable to store or quarantine SensorData for "
+          + description + ", discarding " + entry.data + "\n" + StackTrace.toString(cause)
+          + StackTrace.toString(e));
+    }
+  }
+
+  /**
+   * Deletes journal segments whose SensorData has all been stored, and empties the active segment
+   * if everything has been stored. Must be called holding the lock.
+   */
+  private void checkpoint() {
+    while (!this.fullSegments.isEmpty()
+        && (this.fullSegments.getFirst().lastSequence <= this.applied)) {
+      Segment segment = this.fullSegments.removeFirst();
+      if (!segment.file.delete()) {
+        this.logger.warning("Ingest queue: unable to delete journal segment " + segment.file);
+      }
+    }
+    if (this.applied == this.appended) {
+      try {
+        this.activeSegment.truncate();
+      }
+      catch (IOException e) {
+        // Harmless: the segment is replayed on restart, and stores of existing data are refused
+        this.logger.warning("Ingest queue: unable to truncate journal\n" + StackTrace.toString(e));
+      }
+    }
+  }
+
+  /**
+   * Stores any SensorData left in journal segments from a previous run, then deletes the segments.
+   * A record that was only partly written when the server stopped ends the replay of its segment.
+   * 
+   * @throws IOException If a segment cannot be read or deleted.
+   */
+  private void replay() throws IOException {
+    File[] files = listSegments(this.directory);
+    // Names are zero padded, so they sort in the order they were written
+    Arrays.sort(files);
+    int replayed = 0;
+    for (File file : files) {
+      DataInputStream input = new DataInputStream(new FileInputStream(file));
+      try {
+        SensorData data;
+        while ((data = readRecord(input, file)) != null) {
+          if (this.dbImpl.storeSensorData(data)) {
+            stored(data);
+            replayed++;
+          }
+        }
+      }
+      finally {
+        input.close();
+      }
+      if (!file.delete()) {
+        throw new IOException("Unable to delete replayed journal segment " + file);
+      }
+      String number =
+          file.getName().substring(SEGMENT_PREFIX.length(),
+              file.getName().length() - SEGMENT_SUFFIX.length());
+      try {
+        this.nextSegmentNumber = Math.max(this.nextSegmentNumber, Long.parseLong(number) + 1);
+      }
+      catch (NumberFormatException e) { // NOPMD
+        // Not one of ours, number doesn't matter
+      }
+    }
+    if (replayed > 0) {
+      this.logger.info("Ingest queue: stored " + replayed + " SensorData left in journal.");
+    }
+  }
+
+  /**
+   * Makes a journal record for the given SensorData: its length, a checksum, and the SensorData
+   * as XML.
+   * 
+   * @param data The SensorData.
+   * @return The record.
+   * @throws IOException If the SensorData cannot be marshalled.
+   */
+  private byte[] makeRecord(SensorData data) throws IOException {
+    ByteArrayOutputStream xml = new ByteArrayOutputStream();
+    try {
+      Marshaller marshaller = this.sensorDataJaxbContext.createMarshaller();
+      marshaller.marshal(data, xml);
+    }
+    catch (JAXBException e) {
+      throw new IOException("Unable to marshal SensorData: " + e.getMessage());
+    }
+    byte[] body = xml.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    ByteBuffer record = ByteBuffer.allocate(12 + body.length);
+    record.putInt(body.length);
+    record.putLong(crc.getValue());
+    record.put(body);
+    return record.array();
+  }
+
+  /**
+   * Reads the next record from a journal segment.
+   * 
+   * @param input The segment being read.
+   * @param file The segment file, for log messages.
+   * @return The SensorData, or null at the end of the segment or at a damaged record.
+   * @throws IOException If the segment cannot be read.
+   */
+  private SensorData readRecord(DataInputStream input, File file) throws IOException {
+    byte[] body;
+    long checksum;
+    try {
+      int length = input.readInt();
+      checksum = input.readLong();
+      if ((length < 0) || (length > SEGMENT_BYTES)) {
+        this.logger.warning("Ingest queue: bad record length in " + file);
+        return null;
+      }
+      body = new byte[length];
+      input.readFully(body);
+    }
+    catch (EOFException e) {
+      // End of segment, or a record cut short when the server stopped
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    if (crc.getValue() != checksum) {
+      this.logger.warning("Ingest queue: bad record checksum in " + file);
+      return null;
+    }
+    try {
+      return (SensorData) this.sensorDataJaxbContext.createUnmarshaller().unmarshal(
+          new StringReader(new String(body, "UTF-8")));
+    }
+    catch (JAXBException e) {
+      this.logger.warning("Ingest queue: unreadable record in " + file);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the journal segment files in the given directory.
+   * 
+   * @param directory The journal directory.
+   * @return The segment files, or null if the directory does not exist.
+   */
+  private static File[] listSegments(File directory) {
+    return directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+  }
+
+  /**
+   * Returns the file name of the numbered journal segment.
+   * 
+   * @param number The segment number.
+   * @return The file name.
+   */
+  private static String segmentName(long number) {
+    return String.format("%s%012d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+  }
+
+  /**
+   * Converts a timestamp to milliseconds, the key used for pending SensorData.
+   * 
+   * @param timestamp The timestamp.
+   * @return The timestamp in milliseconds.
+   */
+  private static Long toMillis(XMLGregorianCalendar timestamp) {
+    return timestamp.toGregorianCalendar().getTimeInMillis();
+  }
+
+  /**
+   * A SensorData that has been appended but not yet stored.
+   */
+  private static final class Entry {
+    /** The sequence number of the SensorData. */
+    private final long sequence;
+    /** The name of the Source of the SensorData. */
+    private final String sourceName;
+    /** The timestamp of the SensorData in milliseconds. */
+    private final Long millis;
+    /** The SensorData. */
+    private final SensorData data;
+
+    /**
+     * Creates a new entry.
+     * 
+     * @param sequence The sequence number.
+     * @param sourceName The Source name.
+     * @param millis The timestamp in milliseconds.
+     * @param data The SensorData.
+     */
+    private Entry(long sequence, String sourceName, Long millis, SensorData data) {
+      this.sequence = sequence;
+      this.sourceName = sourceName;
+      this.millis = millis;
+      this.data = data;
+    }
+  }
+
+  /**
+   * One file of the journal.
+   */
+  private static final class Segment {
+    /** The segment file. */
+    private final File file;
+    /** The stream appending to the file. */
+    private final FileOutputStream output;
+    /** The channel of the stream, used to force and truncate the file. */
+    private final FileChannel channel;
+    /** The number of bytes written to the file. */
+    private long size = 0;
+    /** The sequence number of the last SensorData written to the file. */
+    private long lastSequence = 0;
+
+    /**
+     * Creates a new, empty segment.
+     * 
+     * @param file The segment file.
+     * @throws IOException If the file cannot be created.
+     */
+    private Segment(File file) throws IOException {
+      this.file = file;
+      this.output = new FileOutputStream(file);
+      this.channel = this.output.getChannel();
+    }
+
+    /**
+     * Appends a record to the segment.
+     * 
+     * @param record The record.
+     * @throws IOException If the record cannot be written.
+     */
+    private void write(byte[] record) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      while (buffer.hasRemaining()) {
+        this.channel.write(buffer);
+      }
+      this.size += record.length;
+    }
+
+    /**
+     * Forces the segment to disk.
+     * 
+     * @throws IOException If the segment cannot be forced.
+     */
+    private void force() throws IOException {
+      this.channel.force(false);
+    }
+
+    /**
+     * Empties the segment.
+     * 
+     * @throws IOException If the segment cannot be truncated.
+     */
+    private void truncate() throws IOException {
+      if (this.size > 0) {
+        this.channel.truncate(0);
+        this.channel.position(0);
+        this.size = 0;
+      }
+    }
+
+    /**
+     * Closes the segment file.
+     * 
+     * @throws IOException If the file cannot be closed.
+     */
+    private void close() throws IOException {
+      this.output.close();
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package org.wattdepot.server.db;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-running database operation that DbManager runs in the background, such as deleting a
+ * large range of sensor data. A Job records its progress as it runs, so that clients can poll its
+ * status rather than wait for the operation to finish. Subclasses implement execute(), calling
+ * setProgress() as they go, and pauseWhileBusy() between steps so that they give way to requests
+ * when the server is busy.
+ * 
+ * The status is safe to read from other threads while the job runs.
+ * 
+ * @author Robert Brewer
+ */
+public abstract class Job implements Runnable {
+
+  /** The states a job passes through. */
+  public enum State {
+    /** Submitted, waiting for earlier jobs to finish. */
+    QUEUED,
+    /** Being executed. */
+    RUNNING,
+    /** Being executed, but waiting for the server to be less busy. */
+    PAUSED,
+    /** Finished successfully. */
+    SUCCEEDED,
+    /** Finished with an error. */
+    FAILED
+  }
+
+  /** The milliseconds a paused job waits between checks of whether the server is still busy. */
+  private static final long PAUSE_CHECK_INTERVAL = 1000;
+
+  /** The source of job identifiers. */
+  private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis());
+
+  /** The identifier of this job, unique within the server. */
+  private final String id;
+
+  /** What the job does, for status reports. */
+  private final String description;
+
+  /** The username of the user that requested the job, or null if it was started internally. */
+  private final String owner;
+
+  /** The time the job was submitted, in milliseconds since the epoch. */
+  private final long created = System.currentTimeMillis();
+
+  /** The current state. */
+  private volatile State state = State.QUEUED;
+
+  /** The number of items processed so far. */
+  private volatile long progress = 0;
+
+  /** The result or error message, or null until the job has finished. */
+  private volatile String message = null;
+
+  /** The time the job started running, or 0 if it has not. */
+  private volatile long started = 0;
+
+  /** The time the job finished, or 0 if it has not. */
+  private volatile long finished = 0;
+
+  /** Decides when the job should pause, or null if it never pauses. */
+  private volatile JobThrottle throttle = null;
+
+  /**
+   * Creates a new queued Job.
+   * 
+   * @param description What the job does, for status reports.
+   * @param owner The username of the user that requested the job, or null if it was started
+   * internally.
+   */
+  protected Job(String description, String owner) {
+    this.id = Long.toString(NEXT_ID.incrementAndGet());
+    this.description = description;
+    this.owner = owner;
+  }
+
+  /**
+   * Performs the work of the job.
+   * 
+   * @return A message describing the result.
+   * @throws Exception If the job fails, with a message saying why.
+   */
+  protected abstract String execute() throws Exception;
+
+  /**
+   * Runs the job, recording its state and result.
+   */
+  public final void run() {
+    this.started = System.currentTimeMillis();
+    this.state = State.RUNNING;
+    try {
+      this.message = execute();
+      this.state = State.SUCCEEDED;
+    }
+    catch (InterruptedException e) {
+      this.message = "Interrupted";
+      this.state = State.FAILED;
+      Thread.currentThread().interrupt();
+    }
+    catch (Exception e) {
+      this.message = (e.getMessage() == null) ? e.toString() : e.getMessage();
+      this.state = State.FAILED;
+    }
+    finally {
+      this.finished = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Records the number of items processed so far.
+   * 
+   * @param progress The number of items.
+   */
+  protected void setProgress(long progress) {
+    this.progress = progress;
+  }
+
+  /**
+   * Waits while the throttle says the server is too busy, with the job in the PAUSED state. Jobs
+   * call this between steps. Returns immediately if the job has no throttle.
+   * 
+   * @throws InterruptedException If interrupted while paused.
+   */
+  protected void pauseWhileBusy() throws InterruptedException {
+    JobThrottle current = this.throttle;
+    if ((current == null) || !current.isBusy()) {
+      return;
+    }
+    this.state = State.PAUSED;
+    try {
+      while (current.isBusy()) {
+        Thread.sleep(PAUSE_CHECK_INTERVAL);
+      }
+    }
+    finally {
+      this.state = State.RUNNING;
+    }
+  }
+
+  /**
+   * Sets what decides when the job should pause, normally done by DbManager when the job is
+   * submitted.
+   * 
+   * @param throttle The throttle, or null if the job never pauses.
+   */
+  void setThrottle(JobThrottle throttle) {
+    this.throttle = throttle;
+  }
+
+  /**
+   * Returns the identifier of this job.
+   * 
+   * @return The identifier.
+   */
+  public String getId() {
+    return this.id;
+  }
+
+  /**
+   * Returns what the job does.
+   * 
+   * @return The description.
+   */
+  public String getDescription() {
+    return this.description;
+  }
+
+  /**
+   * Returns the username of the user that requested the job.
+   * 
+   * @return The username, or null if the job was started internally.
+   */
+  public String getOwner() {
+    return this.owner;
+  }
+
+  /**
+   * Returns the current state of the job.
+   * 
+   * @return The state.
+   */
+  public State getState() {
+    return this.state;
+  }
+
+  /**
+   * Returns true if the job has finished, successfully or not.
+   * 
+   * @return True if finished.
+   */
+  public boolean isFinished() {
+    return (this.state == State.SUCCEEDED) || (this.state == State.FAILED);
+  }
+
+  /**
+   * Returns the number of items processed so far.
+   * 
+   * @return The number of items.
+   */
+  public long getProgress() {
+    return this.progress;
+  }
+
+  /**
+   * Returns the time the job started running.
+   * 
+   * @return The time in milliseconds since the epoch, or 0 if it has not started.
+   */
+  public long getStarted() {
+    return this.started;
+  }
+
+  /**
+   * Returns the time the job finished.
+   * 
+   * @return The time in milliseconds since the epoch, or 0 if it has not finished.
+   */
+  public long getFinished() {
+    return this.finished;
+  }
+
+  /**
+   * Returns the result or error message.
+   * 
+   * @return The message, or null if the job has not finished.
+   */
+  public String getMessage() {
+    return this.message;
+  }
+
+  /**
+   * Returns a report of the status of the job, with one "name: value" line per field, suitable as
+   * a plain text representation.
+   * 
+   * @return The status report.
+   */
+  @Override
+  public String toString() {
+    StringBuilder report = new StringBuilder();
+    report.append("id: ").append(this.id).append('\n');
+    report.append("description: ").append(this.description).append('\n');
+    report.append("state: ").append(this.state).append('\n');
+    report.append("progress: ").append(this.progress).append('\n');
+    report.append("created: ").append(new Date(this.created)).append('\n');
+    if (this.started != 0) {
+      report.append("started: ").append(new Date(this.started)).append('\n');
+    }
+    if (this.finished != 0) {
+      report.append("finished: ").append(new Date(this.finished)).append('\n');
+      report.append("duration: ").append(this.finished - this.started).append(" ms\n");
+    }
+    if (this.message != null) {
+      report.append("message: ").append(this.message).append('\n');
+    }
+    return report.toString();
+  }
+}
@@ -0,0 +1,17 @@
+package org.wattdepot.server.db;
+
+/**
+ * Tells running background jobs when the server is too busy for them to continue, so that they
+ * can pause between steps rather than compete with requests for the database.
+ * 
+ * @author Robert Brewer
+ */
+public interface JobThrottle {
+
+  /**
+   * Returns true if background jobs should pause before their next step.
+   * 
+   * @return True if the server is too busy.
+   */
+  boolean isBusy();
+}
@@ -0,0 +1,312 @@
+package org.wattdepot.server.db;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of when the sensor data of each Source was last changed through the DbManager, so
+ * that resources can compute cache validators (entity tags and modification dates) without having
+ * to retrieve or marshal the data itself. Each Source has a version number that increases on every
+ * write, and there is one additional version covering the Source definitions as a whole (any
+ * change to a Source can change the meaning of a virtual Source that refers to it).
+ * 
+ * Changes are also recorded against the days of sensor data they touched, so that a representation
+ * of a range of a Source's sensor data can be given a version that only changes when data in that
+ * range changes (see getRangeVersion()).
+ * 
+ * Versions only live in memory. A Source that has not been written since the tracker was created
+ * is considered to have been modified at the time of creation, which errs on the side of sending
+ * fresh data to clients after a restart.
+ * 
+ * @author Robert Brewer
+ */
+public class ModificationTracker {
+
+  /** The time this tracker was created, in milliseconds. */
+  private final long creationTime;
+
+  /** Version numbers for the sensor data of each Source, keyed by Source name. */
+  private final ConcurrentMap<String, AtomicLong> dataVersions =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  /** Time of the last sensor data change for each Source, keyed by Source name. */
+  private final ConcurrentMap<String, Long> dataModified = new ConcurrentHashMap<String, Long>();
+
+  /** Version number of the Source definitions. */
+  private final AtomicLong sourcesVersion = new AtomicLong();
+
+  /** Time of the last change to any Source definition. */
+  private volatile long sourcesModified;
+
+  /** The length of the spans of sensor data that range changes are recorded against. */
+  private static final long DAY = 24L * 60 * 60 * 1000;
+
+  /** Range changes spanning more days than this are recorded as changes to all the data. */
+  private static final long MAX_CHANGED_DAYS = 1000;
+
+  /** Numbers the recorded changes, so the latest change to a range identifies its version. */
+  private final AtomicLong changeSequence = new AtomicLong();
+
+  /** The changes to the sensor data of each Source by day, keyed by Source name. */
+  private final ConcurrentMap<String, SourceChanges> sourceChanges =
+      new ConcurrentHashMap<String, SourceChanges>();
+
+  /**
+   * Creates a new tracker. Every Source is considered to have been modified at the time of
+   * creation.
+   */
+  public ModificationTracker() {
+    this.creationTime = System.currentTimeMillis();
+    this.sourcesModified = this.creationTime;
+  }
+
+  /**
+   * Records that the sensor data belonging to the named Source has changed.
+   * 
+   * @param sourceName The name of the Source whose sensor data changed.
+   */
+  public void sensorDataChanged(String sourceName) {
+    sensorDataChanged(sourceName, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * Records that the sensor data belonging to the named Source between the given times has
+   * changed.
+   * 
+   * @param sourceName The name of the Source whose sensor data changed.
+   * @param start The time in milliseconds of the first sensor data that changed.
+   * @param end The time in milliseconds of the last sensor data that changed.
+   */
+  public void sensorDataChanged(String sourceName, long start, long end) {
+    if (sourceName == null) {
+      return;
+    }
+    AtomicLong version = this.dataVersions.get(sourceName);
+    if (version == null) {
+      AtomicLong newVersion = new AtomicLong();
+      version = this.dataVersions.putIfAbsent(sourceName, newVersion);
+      if (version == null) {
+        version = newVersion;
+      }
+    }
+    version.incrementAndGet();
+    this.dataModified.put(sourceName, System.currentTimeMillis());
+    getSourceChanges(sourceName).changed(start, end);
+  }
+
+  /**
+   * Returns the changes recorded for the named Source, creating them if needed.
+   * 
+   * @param sourceName The name of the Source.
+   * @return The changes.
+   */
+  private SourceChanges getSourceChanges(String sourceName) {
+    SourceChanges changes = this.sourceChanges.get(sourceName);
+    if (changes == null) {
+      SourceChanges newChanges = new SourceChanges();
+      changes = this.sourceChanges.putIfAbsent(sourceName, newChanges);
+      if (changes == null) {
+        changes = newChanges;
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Records that some Source definition (or the set of Sources) has changed. Since this can
+   * affect any virtual Source, it invalidates the validators of every Source.
+   */
+  public void sourcesChanged() {
+    this.sourcesVersion.incrementAndGet();
+    this.sourcesModified = System.currentTimeMillis();
+  }
+
+  /**
+   * Returns a string that changes whenever the sensor data of any of the named Sources, or any
+   * Source definition, changes. The string also changes when the tracker is recreated (i.e. the
+   * server restarts), so validators handed out by a previous server instance are never honored.
+   * 
+   * @param sourceNames The names of the Sources contributing to a representation.
+   * @return The version string.
+   */
+  public String getVersion(List<String> sourceNames) {
+    long dataVersion = 0;
+    for (String sourceName : sourceNames) {
+      AtomicLong version = this.dataVersions.get(sourceName);
+      if (version != null) {
+        // Versions only increase, so the sum changes whenever any one of them changes
+        dataVersion += version.get();
+      }
+    }
+    return Long.toHexString(this.creationTime) + "-" + this.sourcesVersion.get() + "-"
+        + dataVersion;
+  }
+
+  /**
+   * Returns the time of the latest change to the sensor data of any of the named Sources, or to
+   * any Source definition.
+   * 
+   * @param sourceNames The names of the Sources contributing to a representation.
+   * @return The modification time in milliseconds.
+   */
+  public long getLastModified(List<String> sourceNames) {
+    long lastModified = this.sourcesModified;
+    for (String sourceName : sourceNames) {
+      Long modified = this.dataModified.get(sourceName);
+      if ((modified != null) && (modified > lastModified)) {
+        lastModified = modified;
+      }
+    }
+    return lastModified;
+  }
+
+  /**
+   * Returns the time of the latest change to any Source definition. If none has changed since the
+   * tracker was created, the creation time is returned.
+   * 
+   * @return The modification time in milliseconds.
+   */
+  public long getSourcesModified() {
+    return this.sourcesModified;
+  }
+
+  /**
+   * Returns the version and modification time of a range of the sensor data of the named Sources,
+   * which only change when sensor data inside the range of some Source, or any Source
+   * definition, changes. Like getVersion(), the version also changes when the tracker is
+   * recreated.
+   * 
+   * @param sourceNames The names of the Sources contributing to a representation.
+   * @param windows The range of sensor data of each Source the representation depends on, keyed by
+   * Source name. All the sensor data of a Source without a range is depended on.
+   * @return The version of the range.
+   */
+  public RangeVersion getRangeVersion(List<String> sourceNames,
+      Map<String, ComputedDataCache.Window> windows) {
+    // Read before the changes, so a concurrent change of the Sources is never missed
+    long sources = this.sourcesVersion.get();
+    long modified = this.sourcesModified;
+    long latest = 0;
+    for (String sourceName : sourceNames) {
+      SourceChanges changes = this.sourceChanges.get(sourceName);
+      if (changes != null) {
+        ComputedDataCache.Window window = windows.get(sourceName);
+        if (window == null) {
+          window = ComputedDataCache.Window.ALL;
+        }
+        long[] change = changes.getLatest(window.getStart(), window.getEnd());
+        if (change != null) {
+          latest = Math.max(latest, change[0]);
+          modified = Math.max(modified, change[1]);
+        }
+      }
+    }
+    return new RangeVersion(Long.toHexString(this.creationTime) + "-" + sources + "-" + latest,
+        new Date(modified));
+  }
+
+  /**
+   * The changes to the sensor data of one Source, recorded against the days of sensor data they
+   * touched. Each change is a pair of its sequence number and the time it was made, and only the
+   * latest change of each day is kept. A change to all the data supersedes every earlier one.
+   */
+  private final class SourceChanges {
+    /** The latest change to all the data, or null if there was none. */
+    private long[] all;
+    /** The latest change to each day of data since the latest change to all of it. */
+    private final TreeMap<Long, long[]> days = new TreeMap<Long, long[]>();
+
+    /**
+     * Records a change to the sensor data between the given times.
+     * 
+     * @param start The time in milliseconds of the first sensor data that changed.
+     * @param end The time in milliseconds of the last sensor data that changed.
+     */
+    private synchronized void changed(long start, long end) {
+      long[] change = { changeSequence.incrementAndGet(), System.currentTimeMillis() };
+      long first = Math.min(day(start), day(end));
+      long last = Math.max(day(start), day(end));
+      if (last - first > MAX_CHANGED_DAYS) {
+        this.all = change;
+        this.days.clear();
+        return;
+      }
+      for (long day = first; day <= last; day++) {
+        this.days.put(day, change);
+      }
+    }
+
+    /**
+     * Returns the latest change to the sensor data between the given times.
+     * 
+     * @param start The start of the range in milliseconds.
+     * @param end The end of the range in milliseconds.
+     * @return The latest change, or null if none was recorded.
+     */
+    private synchronized long[] getLatest(long start, long end) {
+      long[] latest = this.all;
+      for (long[] change : this.days.subMap(day(start), day(end) + 1).values()) {
+        if ((latest == null) || (change[0] > latest[0])) {
+          latest = change;
+        }
+      }
+      return latest;
+    }
+
+    /**
+     * Returns the number of the day holding the given time.
+     * 
+     * @param millis The time in milliseconds.
+     * @return The day.
+     */
+    private long day(long millis) {
+      // Round down for times before the epoch too
+      return millis / DAY - ((millis % DAY < 0) ? 1 : 0);
+    }
+  }
+
+  /**
+   * The version and modification time of a range of sensor data, as returned by
+   * getRangeVersion().
+   */
+  public static final class RangeVersion {
+    /** The version string. */
+    private final String version;
+    /** The time of the latest change to the range. */
+    private final Date lastModified;
+
+    /**
+     * Creates a new range version.
+     * 
+     * @param version The version string.
+     * @param lastModified The time of the latest change to the range.
+     */
+    public RangeVersion(String version, Date lastModified) {
+      this.version = version;
+      this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns a string that changes whenever the range changes.
+     * 
+     * @return The version string.
+     */
+    public String getVersion() {
+      return this.version;
+    }
+
+    /**
+     * Returns the time of the latest change to the range.
+     * 
+     * @return The modification time.
+     */
+    public Date getLastModified() {
+      return this.lastModified;
+    }
+  }
+}
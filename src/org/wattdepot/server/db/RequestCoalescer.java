@@ -0,0 +1,186 @@
+package org.wattdepot.server.db;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets identical concurrent requests share a single computation. The first caller for a given key
+ * runs the computation in its own thread, and any caller arriving with the same key while it is
+ * still running waits for that result instead of starting its own. A waiting caller gives up after
+ * a timeout and runs the computation itself, so one slow computation cannot stall its followers
+ * indefinitely. Nothing is retained once a computation completes: this only removes duplicate
+ * work that overlaps in time, caching is left to other layers.
+ * 
+ * Since results are shared between callers, callers must not modify them. Keys must identify the
+ * computation completely (including its parameters and result type). All methods are thread-safe.
+ * 
+ * @author Robert Brewer
+ */
+public class RequestCoalescer {
+
+  /** The computations currently running, keyed by request key. */
+  private final ConcurrentMap<String, FutureTask<?>> inFlight =
+      new ConcurrentHashMap<String, FutureTask<?>>();
+
+  /** The default time in milliseconds a caller waits for a shared computation. */
+  private final long defaultTimeout;
+
+  /** Number of calls made. */
+  private final AtomicLong calls = new AtomicLong();
+
+  /** Number of calls that waited for a computation started by another caller. */
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /** Number of waiting calls that timed out and ran the computation themselves. */
+  private final AtomicLong timeouts = new AtomicLong();
+
+  /**
+   * Creates a new coalescer.
+   * 
+   * @param defaultTimeout The default time in milliseconds a caller waits for a computation
+   * started by another caller. If 0 or less, coalescing is disabled and every caller runs its own
+   * computation.
+   */
+  public RequestCoalescer(long defaultTimeout) {
+    this.defaultTimeout = defaultTimeout;
+  }
+
+  /**
+   * Runs the computation, or waits for the identical computation already running, using the
+   * default timeout.
+   * 
+   * @param <V> The type of the result.
+   * @param key The key identifying the computation.
+   * @param computation The computation to run.
+   * @return The result of the computation.
+   * @throws Exception If the computation throws an exception, or the wait is interrupted.
+   */
+  public <V> V execute(String key, Callable<V> computation) throws Exception {
+    return execute(key, computation, this.defaultTimeout);
+  }
+
+  /**
+   * Runs the computation, or waits for the identical computation already running. A waiting
+   * caller whose wait exceeds the timeout runs the computation itself.
+   * 
+   * @param <V> The type of the result.
+   * @param key The key identifying the computation.
+   * @param computation The computation to run.
+   * @param timeout The time in milliseconds to wait for a computation started by another caller.
+   * If 0 or less, the computation is always run directly.
+   * @return The result of the computation.
+   * @throws Exception If the computation throws an exception, or the wait is interrupted.
+   */
+  @SuppressWarnings("unchecked")
+  public <V> V execute(String key, Callable<V> computation, long timeout) throws Exception {
+    this.calls.incrementAndGet();
+    if (timeout <= 0) {
+      return computation.call();
+    }
+    FutureTask<V> task = new FutureTask<V>(computation);
+    // Same key means same computation, so the running task has the same result type
+    FutureTask<V> running = (FutureTask<V>) this.inFlight.putIfAbsent(key, task);
+    if (running == null) {
+      try {
+        task.run();
+        return getResult(task, 0);
+      }
+      finally {
+        this.inFlight.remove(key, task);
+      }
+    }
+    else {
+      this.coalesced.incrementAndGet();
+      try {
+        return getResult(running, timeout);
+      }
+      catch (TimeoutException e) {
+        this.timeouts.incrementAndGet();
+        return computation.call();
+      }
+    }
+  }
+
+  /**
+   * Returns the result of a task, rethrowing whatever the computation threw.
+   * 
+   * @param <V> The type of the result.
+   * @param task The task.
+   * @param timeout Milliseconds to wait for the result, or 0 if the task has already run.
+   * @return The result of the task.
+   * @throws Exception If the computation threw an exception, or the wait timed out or was
+   * interrupted.
+   */
+  private <V> V getResult(FutureTask<V> task, long timeout) throws Exception {
+    try {
+      return (timeout > 0) ? task.get(timeout, TimeUnit.MILLISECONDS) : task.get();
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      else {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of calls made.
+   * 
+   * @return The number of calls.
+   */
+  public long getCalls() {
+    return this.calls.get();
+  }
+
+  /**
+   * Returns the number of calls that waited for a computation started by another caller instead
+   * of starting their own.
+   * 
+   * @return The number of coalesced calls.
+   */
+  public long getCoalesced() {
+    return this.coalesced.get();
+  }
+
+  /**
+   * Returns the number of coalesced calls that timed out waiting and ran the computation
+   * themselves.
+   * 
+   * @return The number of timeouts.
+   */
+  public long getTimeouts() {
+    return this.timeouts.get();
+  }
+
+  /**
+   * Returns the number of computations currently running.
+   * 
+   * @return The number of computations in flight.
+   */
+  public int getInFlightCount() {
+    return this.inFlight.size();
+  }
+
+  /**
+   * Returns a one line summary of the coalescing statistics, suitable for logging.
+   * 
+   * @return The summary.
+   */
+  @Override
+  public String toString() {
+    return String.format("Request coalescer: %d calls, %d coalesced, %d timeouts, %d in flight",
+        getCalls(), getCoalesced(), getTimeouts(), getInFlightCount());
+  }
+}
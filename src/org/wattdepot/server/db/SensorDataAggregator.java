@@ -0,0 +1,28 @@
+package org.wattdepot.server.db;
+
+import java.util.List;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Implemented by DbImplementations that can compute SensorDataStatistics inside the database,
+ * rather than reading every SensorData and computing them in Java. DbImplementation uses it when
+ * available, and falls back to computing the statistics itself when it is not, or when it returns
+ * null.
+ * 
+ * @author Robert Brewer
+ */
+public interface SensorDataAggregator {
+
+  /**
+   * Returns statistics about the sensor data of a non-virtual Source in each of the buckets
+   * between consecutive boundaries. The results must be the same as those of
+   * DbImplementation.computeSensorDataStatistics(), apart from rounding.
+   * 
+   * @param sourceName The name of an existing non-virtual Source.
+   * @param boundaries The bucket boundaries in increasing order, at least two.
+   * @return One SensorDataStatistics per bucket, in order, or null if they cannot be computed this
+   * way, in which case the caller computes them in Java.
+   */
+  List<SensorDataStatistics> aggregateSensorData(String sourceName,
+      List<XMLGregorianCalendar> boundaries);
+}
@@ -0,0 +1,402 @@
+package org.wattdepot.server.db;
+
+import java.util.List;
+import java.util.logging.Logger;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.SensorDataStraddle;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.source.summary.jaxb.SourceSummary;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * A job that replaces old raw sensor data with downsampled sensor data, so that readings nobody
+ * looks at in full detail stop filling the database. A Source takes part by setting two
+ * properties: rawRetentionDays, the number of days its raw data is kept, and downsampleInterval,
+ * the number of minutes each downsampled reading covers. Virtual Sources are skipped, and so are
+ * Sources that do not support energy counters: their energy is integrated from the power readings,
+ * which a single averaged reading per interval would change.
+ * 
+ * Intervals are aligned to the epoch. Each interval that ends before the retention cutoff and holds
+ * more than one reading is replaced by a single reading at its start. The energy counters of that
+ * reading are interpolated from the raw data at the start of the interval, and a reading with the
+ * counters interpolated at the end of the interval is stored too, so the counters are exact at
+ * every interval boundary and energy computed between boundaries is unchanged. An interval whose
+ * counters cannot be interpolated at both boundaries is left alone. The power of the reading is
+ * the average of the raw power readings in the interval. Other properties are not kept.
+ * An interval is only compacted if there is data on both sides of it, so running the job again
+ * only compacts data that has aged past the cutoff since.
+ * 
+ * The downsampled readings are stored through the DbManager before the raw readings between them
+ * are deleted, so an interrupted job never leaves an interval without its boundary readings. Reads
+ * and deletes go straight to the DbImplementation, pausing after each interval so that other
+ * requests keep running, and for longer while the server is busy. The progress of the job is the
+ * number of raw readings replaced.
+ * 
+ * @author Robert Brewer
+ */
+public class SensorDataCompactor extends Job {
+
+  /** The number of intervals whose index is read at a time. */
+  private static final int WINDOW_INTERVALS = 100;
+
+  /** The number of milliseconds in a day. */
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  /** The number of milliseconds in a minute. */
+  private static final long MINUTE_MILLIS = 60L * 1000;
+
+  /** The properties that are averaged over an interval. */
+  private static final String[] POWER_KEYS = { SensorData.POWER_CONSUMED,
+      SensorData.POWER_GENERATED };
+
+  /** The properties that are interpolated at interval boundaries. */
+  private static final String[] COUNTER_KEYS = { SensorData.ENERGY_CONSUMED_TO_DATE,
+      SensorData.ENERGY_GENERATED_TO_DATE };
+
+  /** The manager the downsampled readings are stored through. */
+  private final DbManager manager;
+
+  /** The storage being compacted. */
+  private final DbImplementation dbImpl;
+
+  /** The milliseconds to pause after each compacted interval. */
+  private final long pause;
+
+  /** Where to report Sources with unusable properties. */
+  private final Logger logger;
+
+  /** The number of raw readings replaced so far. */
+  private volatile long rowsCompacted = 0;
+
+  /** The estimated number of bytes of sensor data removed so far. */
+  private volatile long bytesReclaimed = 0;
+
+  /** The time in milliseconds of the last reading stored at the end of an interval. */
+  private long storedBoundary = -1;
+
+  /**
+   * Creates a new SensorDataCompactor.
+   * 
+   * @param manager The manager the downsampled readings are stored through.
+   * @param dbImpl The storage to compact.
+   * @param pause The milliseconds to pause after each compacted interval.
+   * @param logger Where to report Sources with unusable properties.
+   * @param owner The username of the user that requested the compaction, or null if it was
+   * started internally.
+   */
+  public SensorDataCompactor(DbManager manager, DbImplementation dbImpl, long pause,
+      Logger logger, String owner) {
+    super("Compact old sensor data", owner);
+    this.manager = manager;
+    this.dbImpl = dbImpl;
+    this.pause = pause;
+    this.logger = logger;
+  }
+
+  /**
+   * Compacts the sensor data of each Source that has retention properties and supports energy
+   * counters.
+   * 
+   * @return A message giving the number of readings replaced and bytes reclaimed.
+   * @throws Exception If the storage reports a problem or the job is interrupted.
+   */
+  @Override
+  protected String execute() throws Exception {
+    long now = System.currentTimeMillis();
+    for (Source source : this.dbImpl.getSources().getSource()) {
+      if (source.isVirtual()) {
+        continue;
+      }
+      long retention = getLongProperty(source, Source.RAW_RETENTION_DAYS);
+      long interval = getLongProperty(source, Source.DOWNSAMPLE_INTERVAL);
+      if ((retention < 0) || (interval <= 0)) {
+        continue;
+      }
+      if (source.isPropertyTrue(Source.SUPPORTS_ENERGY_COUNTERS)) {
+        compactSource(source.getName(), now - retention * DAY_MILLIS, interval * MINUTE_MILLIS);
+      }
+      else {
+        this.logger.info("Source " + source.getName()
+            + " does not support energy counters, not compacting it.");
+      }
+    }
+    return "Compacted " + this.rowsCompacted + " sensor data, reclaiming about "
+        + this.bytesReclaimed + " bytes";
+  }
+
+  /**
+   * Returns the number of raw readings replaced so far.
+   * 
+   * @return The number of readings.
+   */
+  public long getRowsCompacted() {
+    return this.rowsCompacted;
+  }
+
+  /**
+   * Returns an estimate of the number of bytes of sensor data removed so far, net of the
+   * downsampled readings stored. The estimate is based on the content of the readings; how much
+   * disk space is actually released depends on the storage, and may need performMaintenance().
+   * 
+   * @return The number of bytes.
+   */
+  public long getBytesReclaimed() {
+    return this.bytesReclaimed;
+  }
+
+  /**
+   * Returns the value of a whole number Source property.
+   * 
+   * @param source The Source.
+   * @param key The property key.
+   * @return The value, or -1 if the property is missing or not a whole number.
+   */
+  private long getLongProperty(Source source, String key) {
+    String value = source.getProperty(key);
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value);
+    }
+    catch (NumberFormatException e) {
+      this.logger.warning("Source " + source.getName() + " has invalid " + key + " " + value
+          + ", not compacting it.");
+      return -1;
+    }
+  }
+
+  /**
+   * Compacts the intervals of a Source that end before the cutoff, a window of intervals at a
+   * time.
+   * 
+   * @param sourceName The name of the Source.
+   * @param cutoff The time in milliseconds before which raw data is not kept.
+   * @param interval The length of the downsampled intervals in milliseconds.
+   * @throws Exception If the storage reports a problem or the job is interrupted.
+   */
+  private void compactSource(String sourceName, long cutoff, long interval) throws Exception {
+    SourceSummary summary = this.dbImpl.getSourceSummary(sourceName);
+    if ((summary == null) || (summary.getFirstSensorData() == null)) {
+      return;
+    }
+    long first = getMillis(summary.getFirstSensorData());
+    long last = cutoff - (cutoff % interval);
+    boolean compacted = false;
+    try {
+      for (long windowStart = first - (first % interval); windowStart < last; windowStart +=
+          WINDOW_INTERVALS * interval) {
+        long windowEnd = Math.min(windowStart + WINDOW_INTERVALS * interval, last);
+        List<SensorDataRef> refs =
+            this.dbImpl.getSensorDataIndex(sourceName, Tstamp.makeTimestamp(windowStart),
+                Tstamp.makeTimestamp(windowEnd - 1)).getSensorDataRef();
+        boolean windowCompacted = false;
+        int i = 0;
+        while (i < refs.size()) {
+          long time = getMillis(refs.get(i).getTimestamp());
+          long intervalStart = time - (time % interval);
+          int j = i + 1;
+          while ((j < refs.size())
+              && (getMillis(refs.get(j).getTimestamp()) < intervalStart + interval)) {
+            j++;
+          }
+          // The index was read before the reading at the end of the previous interval was stored
+          int count = (intervalStart == this.storedBoundary) ? j - i + 1 : j - i;
+          if (count > 1) {
+            int replaced = compactInterval(sourceName, intervalStart, intervalStart + interval);
+            if (replaced < 0) {
+              throw new DbException("Unable to compact sensor data of " + sourceName);
+            }
+            if (replaced > 0) {
+              compacted = true;
+              windowCompacted = true;
+              this.rowsCompacted += replaced;
+              setProgress(this.rowsCompacted);
+              // Let other requests at the database before the next interval
+              Thread.sleep(this.pause);
+              pauseWhileBusy();
+            }
+          }
+          i = j;
+        }
+        if (windowCompacted) {
+          this.manager.sensorDataChanged(sourceName, Tstamp.makeTimestamp(windowStart), Tstamp
+              .makeTimestamp(windowEnd));
+        }
+      }
+    }
+    finally {
+      if (compacted) {
+        this.manager.rebuildExistenceFilter(sourceName);
+      }
+    }
+  }
+
+  /**
+   * Replaces the raw readings in one interval with a reading at its start, and stores a reading
+   * at its end unless there already is one. The reading at the start overwrites any raw reading
+   * there, and only once both are stored are the raw readings strictly between them deleted.
+   * 
+   * @param sourceName The name of the Source.
+   * @param start The start of the interval in milliseconds.
+   * @param end The end of the interval in milliseconds, exclusive.
+   * @return The number of raw readings replaced, 0 if the interval was left alone because the
+   * counters cannot be interpolated at both boundaries, or -1 if there was a problem.
+   * @throws DbBadIntervalException If the storage rejects the interval, which should not happen.
+   */
+  private int compactInterval(String sourceName, long start, long end)
+      throws DbBadIntervalException {
+    XMLGregorianCalendar startTime = Tstamp.makeTimestamp(start);
+    XMLGregorianCalendar endTime = Tstamp.makeTimestamp(end);
+    XMLGregorianCalendar lastTime = Tstamp.makeTimestamp(end - 1);
+    SensorDataStraddle startStraddle = this.dbImpl.getSensorDataStraddle(sourceName, startTime);
+    SensorDataStraddle endStraddle = this.dbImpl.getSensorDataStraddle(sourceName, endTime);
+    if ((startStraddle == null) || (endStraddle == null)
+        || !hasCounter(startStraddle, endStraddle)) {
+      return 0;
+    }
+    List<SensorData> raw =
+        this.dbImpl.getSensorDatas(sourceName, startTime, lastTime).getSensorData();
+    if (raw.isEmpty()) {
+      return 0;
+    }
+    String sourceUri = raw.get(0).getSource();
+    // Both boundary readings are computed before anything is deleted
+    SensorData startData = new SensorData(startTime, SensorData.SERVER_TOOL, sourceUri);
+    addCounters(startData, startStraddle);
+    for (String key : POWER_KEYS) {
+      double sum = 0;
+      int count = 0;
+      for (SensorData data : raw) {
+        String value = data.getProperty(key);
+        if (value != null) {
+          sum += Double.parseDouble(value);
+          count++;
+        }
+      }
+      if (count > 0) {
+        startData.addProperty(new Property(key, sum / count));
+      }
+    }
+    SensorData endData = null;
+    if (!endStraddle.isDegenerate()) {
+      endData = new SensorData(endTime, SensorData.SERVER_TOOL, sourceUri);
+      addCounters(endData, endStraddle);
+      for (String key : POWER_KEYS) {
+        if (hasProperty(endStraddle, key)) {
+          endData.addProperty(new Property(key, SensorData.POWER_CONSUMED.equals(key)
+              ? endStraddle.getPowerConsumed() : endStraddle.getPowerGenerated()));
+        }
+      }
+    }
+
+    // Overwriting takes the direct path rather than the ingest queue, so both are stored before
+    // anything is deleted
+    if (((endData != null) && !this.manager.storeSensorData(endData, true))
+        || !this.manager.storeSensorData(startData, true)) {
+      return -1;
+    }
+    if (endData != null) {
+      this.storedBoundary = end;
+    }
+    int deleted = (getMillis(raw.get(0).getTimestamp()) == start) ? 1 : 0;
+    int chunk;
+    do {
+      chunk =
+          this.dbImpl.deleteSensorData(sourceName, Tstamp.makeTimestamp(start + 1), lastTime,
+              raw.size());
+      deleted += Math.max(chunk, 0);
+    } while (chunk > 0);
+    if (chunk < 0) {
+      return -1;
+    }
+    long bytes = -estimateSize(startData) - ((endData == null) ? 0 : estimateSize(endData));
+    for (SensorData data : raw) {
+      bytes += estimateSize(data);
+    }
+    this.bytesReclaimed += bytes;
+    return deleted;
+  }
+
+  /**
+   * Adds the energy counters interpolated by a straddle to a reading, for each counter the
+   * readings on both sides of the straddle have.
+   * 
+   * @param data The reading.
+   * @param straddle The straddle around the timestamp of the reading.
+   */
+  private static void addCounters(SensorData data, SensorDataStraddle straddle) {
+    for (String key : COUNTER_KEYS) {
+      if (hasProperty(straddle, key)) {
+        data.addProperty(new Property(key, SensorData.ENERGY_CONSUMED_TO_DATE.equals(key)
+            ? straddle.getEnergyConsumedToDate() : straddle.getEnergyGeneratedToDate()));
+      }
+    }
+  }
+
+  /**
+   * Returns true if some energy counter can be interpolated by both straddles, so that the energy
+   * of the interval between them survives compaction.
+   * 
+   * @param startStraddle The straddle around the start of the interval.
+   * @param endStraddle The straddle around the end of the interval.
+   * @return True if an energy counter can be interpolated at both ends.
+   */
+  private static boolean hasCounter(SensorDataStraddle startStraddle,
+      SensorDataStraddle endStraddle) {
+    for (String key : COUNTER_KEYS) {
+      if (hasProperty(startStraddle, key) && hasProperty(endStraddle, key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the readings on both sides of a straddle have a property, so that it can be
+   * interpolated.
+   * 
+   * @param straddle The straddle.
+   * @param key The property key.
+   * @return True if the property can be interpolated.
+   */
+  private static boolean hasProperty(SensorDataStraddle straddle, String key) {
+    return (straddle.getBeforeData().getProperty(key) != null)
+        && (straddle.getAfterData().getProperty(key) != null);
+  }
+
+  /**
+   * Returns an estimate of the number of bytes a reading takes up, from the length of its
+   * timestamp, tool, source and properties.
+   * 
+   * @param data The reading.
+   * @return The estimated size in bytes.
+   */
+  static long estimateSize(SensorData data) {
+    long size =
+        data.getTimestamp().toXMLFormat().length() + data.getTool().length()
+            + data.getSource().length();
+    if (data.isSetProperties()) {
+      for (Property property : data.getProperties().getProperty()) {
+        size += property.getKey().length();
+        if (property.getValue() != null) {
+          size += property.getValue().length();
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns a timestamp as milliseconds since the epoch.
+   * 
+   * @param timestamp The timestamp.
+   * @return The milliseconds.
+   */
+  private static long getMillis(XMLGregorianCalendar timestamp) {
+    return timestamp.toGregorianCalendar().getTimeInMillis();
+  }
+}
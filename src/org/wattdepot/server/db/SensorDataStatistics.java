@@ -0,0 +1,434 @@
+package org.wattdepot.server.db;
+
+import java.util.List;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Statistics about the sensor data of a Source in one bucket of time: how many readings there
+ * are, when the first and last were taken, the minimum, maximum and average power consumed, and
+ * the energy consumed and generated, found by integrating the power between consecutive readings.
+ * Power is interpolated linearly between readings, as SeriesCalculator does, so a pair of readings
+ * on either side of a bucket boundary contributes the part of its area that lies in each bucket.
+ * A bucket includes its start but not its end.
+ * 
+ * Statistics are built up by adding partial results, such as those of each database partition or
+ * each subsource of a virtual Source, so the combined statistics cover all the readings added.
+ * Instances are not thread-safe.
+ * 
+ * @author Robert Brewer
+ */
+public class SensorDataStatistics {
+
+  /** The number of milliseconds in an hour, to convert watt-milliseconds to watt-hours. */
+  private static final double MILLIS_PER_HOUR = 3600000.0;
+
+  /** The start of the bucket. */
+  private final XMLGregorianCalendar start;
+
+  /** The end of the bucket. */
+  private final XMLGregorianCalendar end;
+
+  /** The number of readings. */
+  private long count = 0;
+
+  /** The time of the first reading in milliseconds since the epoch, if there are any. */
+  private long firstMillis = Long.MAX_VALUE;
+
+  /** The time of the last reading in milliseconds since the epoch, if there are any. */
+  private long lastMillis = Long.MIN_VALUE;
+
+  /** The number of readings with a power consumed value. */
+  private long powerCount = 0;
+
+  /** The sum of the power consumed values. */
+  private double powerSum = 0;
+
+  /** The smallest power consumed value. */
+  private double minPower = Double.POSITIVE_INFINITY;
+
+  /** The largest power consumed value. */
+  private double maxPower = Double.NEGATIVE_INFINITY;
+
+  /** The energy consumed in watt-hours. */
+  private double energy = 0;
+
+  /** The energy generated in watt-hours. */
+  private double energyGenerated = 0;
+
+  /** Whether there are readings at or before the start and at or after the end of the bucket. */
+  private boolean energyComplete = false;
+
+  /**
+   * Creates statistics for a bucket with no readings yet.
+   * 
+   * @param start The start of the bucket.
+   * @param end The end of the bucket.
+   */
+  public SensorDataStatistics(XMLGregorianCalendar start, XMLGregorianCalendar end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * Returns the power consumed recorded by the given SensorData, which is the value of the first
+   * powerConsumed property that is a finite number.
+   * 
+   * @param data The SensorData.
+   * @return The power consumed in watts, or null if there is none.
+   */
+  public static Double getPowerConsumed(SensorData data) {
+    return getPower(data, SensorData.POWER_CONSUMED);
+  }
+
+  /**
+   * Returns the power generated recorded by the given SensorData, which is the value of the first
+   * powerGenerated property that is a finite number.
+   * 
+   * @param data The SensorData.
+   * @return The power generated in watts, or null if there is none.
+   */
+  public static Double getPowerGenerated(SensorData data) {
+    return getPower(data, SensorData.POWER_GENERATED);
+  }
+
+  /**
+   * Returns the value of the first property with the given key that is a finite number.
+   * 
+   * @param data The SensorData.
+   * @param key The property key.
+   * @return The power in watts, or null if there is none.
+   */
+  private static Double getPower(SensorData data, String key) {
+    if (!data.isSetProperties()) {
+      return null;
+    }
+    for (Property property : data.getProperties().getProperty()) {
+      if (key.equals(property.getKey()) && (property.getValue() != null)) {
+        try {
+          Double power = Double.valueOf(property.getValue());
+          if (!power.isNaN() && !power.isInfinite()) {
+            return power;
+          }
+        }
+        catch (NumberFormatException e) { // NOPMD
+          // Not a number, so look for another
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the energy in watt-hours consumed between two consecutive readings, assuming the power
+   * consumed varies linearly between them.
+   * 
+   * @param firstMillis The time of the first reading in milliseconds since the epoch.
+   * @param firstPower The power consumed at the first reading in watts.
+   * @param secondMillis The time of the second reading in milliseconds since the epoch.
+   * @param secondPower The power consumed at the second reading in watts.
+   * @return The energy in watt-hours.
+   */
+  public static double getEnergyBetween(long firstMillis, double firstPower, long secondMillis,
+      double secondPower) {
+    return (firstPower + secondPower) / 2 * (secondMillis - firstMillis) / MILLIS_PER_HOUR;
+  }
+
+  /**
+   * Returns the index of the bucket containing the given time.
+   * 
+   * @param bounds The bucket boundaries in milliseconds since the epoch, in increasing order.
+   * @param millis The time, which must lie between the first and last boundaries.
+   * @return The bucket index.
+   */
+  public static int bucketOf(long[] bounds, long millis) {
+    int low = 0;
+    int high = bounds.length - 2;
+    while (low < high) {
+      int middle = (low + high + 1) / 2;
+      if (bounds[middle] <= millis) {
+        low = middle;
+      }
+      else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Adds the energy between two consecutive readings to the buckets they span, splitting the area
+   * under the power at each bucket boundary. Only the part between the first and last boundaries
+   * is added. A power with no value on either reading contributes nothing.
+   * 
+   * @param statistics The statistics of every bucket.
+   * @param bounds The bucket boundaries in milliseconds since the epoch, in increasing order.
+   * @param first The earlier reading.
+   * @param second The later reading.
+   */
+  public static void addEnergyBetween(List<SensorDataStatistics> statistics, long[] bounds,
+      Reading first, Reading second) {
+    long start = Math.max(first.millis, bounds[0]);
+    long end = Math.min(second.millis, bounds[bounds.length - 1]);
+    if (start >= end) {
+      return;
+    }
+    for (int i = bucketOf(bounds, start); (i < statistics.size()) && (bounds[i] < end); i++) {
+      long from = Math.max(start, bounds[i]);
+      long to = Math.min(end, bounds[i + 1]);
+      if (from < to) {
+        statistics.get(i).addEnergy(
+            getEnergyBetween(first, second, first.consumed, second.consumed, from, to),
+            getEnergyBetween(first, second, first.generated, second.generated, from, to));
+      }
+    }
+  }
+
+  /**
+   * Returns the area under one power of a pair of readings between two times within the pair.
+   * 
+   * @param first The earlier reading.
+   * @param second The later reading.
+   * @param firstPower The power at the earlier reading, or null.
+   * @param secondPower The power at the later reading, or null.
+   * @param from The start of the area in milliseconds since the epoch.
+   * @param to The end of the area in milliseconds since the epoch.
+   * @return The energy in watt-hours, 0 if either power is null.
+   */
+  private static double getEnergyBetween(Reading first, Reading second, Double firstPower,
+      Double secondPower, long from, long to) {
+    if ((firstPower == null) || (secondPower == null)) {
+      return 0;
+    }
+    double slope = (secondPower - firstPower) / (second.millis - first.millis);
+    return getEnergyBetween(from, firstPower + slope * (from - first.millis), to, firstPower
+        + slope * (to - first.millis));
+  }
+
+  /**
+   * Adds a group of readings.
+   * 
+   * @param readings The number of readings.
+   * @param first The time of the first reading in milliseconds since the epoch.
+   * @param last The time of the last reading in milliseconds since the epoch.
+   */
+  public void addReadings(long readings, long first, long last) {
+    if (readings > 0) {
+      this.count += readings;
+      this.firstMillis = Math.min(this.firstMillis, first);
+      this.lastMillis = Math.max(this.lastMillis, last);
+    }
+  }
+
+  /**
+   * Adds the power consumed values of a group of readings.
+   * 
+   * @param values The number of power consumed values.
+   * @param sum The sum of the values.
+   * @param min The smallest value.
+   * @param max The largest value.
+   */
+  public void addPowers(long values, double sum, double min, double max) {
+    if (values > 0) {
+      this.powerCount += values;
+      this.powerSum += sum;
+      this.minPower = Math.min(this.minPower, min);
+      this.maxPower = Math.max(this.maxPower, max);
+    }
+  }
+
+  /**
+   * Adds energy consumed and generated.
+   * 
+   * @param consumed The energy consumed in watt-hours.
+   * @param generated The energy generated in watt-hours.
+   */
+  public void addEnergy(double consumed, double generated) {
+    this.energy += consumed;
+    this.energyGenerated += generated;
+  }
+
+  /**
+   * Sets whether the energy covers the whole bucket, which needs readings at or before its start
+   * and at or after its end.
+   * 
+   * @param energyComplete True if the energy covers the whole bucket.
+   */
+  public void setEnergyComplete(boolean energyComplete) {
+    this.energyComplete = energyComplete;
+  }
+
+  /**
+   * Adds all the readings of other statistics for the same bucket, such as those of another
+   * subsource. The energy is only complete if it is complete in both.
+   * 
+   * @param other The other statistics.
+   */
+  public void add(SensorDataStatistics other) {
+    addReadings(other.count, other.firstMillis, other.lastMillis);
+    addPowers(other.powerCount, other.powerSum, other.minPower, other.maxPower);
+    addEnergy(other.energy, other.energyGenerated);
+    this.energyComplete = this.energyComplete && other.energyComplete;
+  }
+
+  /**
+   * Returns the start of the bucket.
+   * 
+   * @return The start.
+   */
+  public XMLGregorianCalendar getStart() {
+    return this.start;
+  }
+
+  /**
+   * Returns the end of the bucket, which is not part of it.
+   * 
+   * @return The end.
+   */
+  public XMLGregorianCalendar getEnd() {
+    return this.end;
+  }
+
+  /**
+   * Returns the number of readings in the bucket.
+   * 
+   * @return The number of readings.
+   */
+  public long getCount() {
+    return this.count;
+  }
+
+  /**
+   * Returns the time of the first reading in the bucket.
+   * 
+   * @return The timestamp, or null if there are no readings.
+   */
+  public XMLGregorianCalendar getFirstTimestamp() {
+    return (this.count == 0) ? null : Tstamp.makeTimestamp(this.firstMillis);
+  }
+
+  /**
+   * Returns the time of the last reading in the bucket.
+   * 
+   * @return The timestamp, or null if there are no readings.
+   */
+  public XMLGregorianCalendar getLastTimestamp() {
+    return (this.count == 0) ? null : Tstamp.makeTimestamp(this.lastMillis);
+  }
+
+  /**
+   * Returns the smallest power consumed by any reading in the bucket.
+   * 
+   * @return The power in watts, or null if no reading has a power consumed value.
+   */
+  public Double getMinPowerConsumed() {
+    return (this.powerCount == 0) ? null : this.minPower;
+  }
+
+  /**
+   * Returns the largest power consumed by any reading in the bucket.
+   * 
+   * @return The power in watts, or null if no reading has a power consumed value.
+   */
+  public Double getMaxPowerConsumed() {
+    return (this.powerCount == 0) ? null : this.maxPower;
+  }
+
+  /**
+   * Returns the average power consumed by the readings in the bucket that have a value.
+   * 
+   * @return The power in watts, or null if no reading has a power consumed value.
+   */
+  public Double getAveragePowerConsumed() {
+    return (this.powerCount == 0) ? null : this.powerSum / this.powerCount;
+  }
+
+  /**
+   * Returns the energy consumed in the bucket, found by integrating the power consumed between
+   * each pair of consecutive readings that both have a value, over the part of the pair that lies
+   * in the bucket.
+   * 
+   * @return The energy in watt-hours.
+   */
+  public double getEnergyConsumed() {
+    return this.energy;
+  }
+
+  /**
+   * Returns the energy generated in the bucket, found in the same way as the energy consumed.
+   * 
+   * @return The energy in watt-hours.
+   */
+  public double getEnergyGenerated() {
+    return this.energyGenerated;
+  }
+
+  /**
+   * Returns true if the energy covers the whole bucket, which needs readings of every Source at or
+   * before its start and at or after its end. SeriesCalculator cannot compute the energy of a
+   * bucket that is not covered.
+   * 
+   * @return True if the energy covers the whole bucket.
+   */
+  public boolean isEnergyComplete() {
+    return this.energyComplete;
+  }
+
+  /**
+   * Returns a one line summary of the statistics, suitable for logging.
+   * 
+   * @return The summary.
+   */
+  @Override
+  public String toString() {
+    return String.format("Statistics %s to %s: %d readings, power %s/%s/%s, energy %.3f Wh",
+        this.start, this.end, this.count, getMinPowerConsumed(), getAveragePowerConsumed(),
+        getMaxPowerConsumed(), this.energy);
+  }
+
+  /**
+   * The time and power values of one reading, for integrating between readings.
+   */
+  public static final class Reading {
+    /** The time of the reading in milliseconds since the epoch. */
+    private final long millis;
+    /** The power consumed in watts, or null if the reading has none. */
+    private final Double consumed;
+    /** The power generated in watts, or null if the reading has none. */
+    private final Double generated;
+
+    /**
+     * Creates a new Reading.
+     * 
+     * @param millis The time of the reading in milliseconds since the epoch.
+     * @param consumed The power consumed in watts, or null if the reading has none.
+     * @param generated The power generated in watts, or null if the reading has none.
+     */
+    public Reading(long millis, Double consumed, Double generated) {
+      this.millis = millis;
+      this.consumed = consumed;
+      this.generated = generated;
+    }
+
+    /**
+     * Creates a new Reading from a SensorData.
+     * 
+     * @param data The SensorData.
+     */
+    public Reading(SensorData data) {
+      this(data.getTimestamp().toGregorianCalendar().getTimeInMillis(), getPowerConsumed(data),
+          getPowerGenerated(data));
+    }
+
+    /**
+     * Returns the time of the reading.
+     * 
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getMillis() {
+      return this.millis;
+    }
+  }
+}
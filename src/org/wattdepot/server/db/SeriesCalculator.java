@@ -0,0 +1,645 @@
+package org.wattdepot.server.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.carbon.Carbon;
+import org.wattdepot.resource.energy.Energy;
+import org.wattdepot.resource.energy.EnergyCounterException;
+import org.wattdepot.resource.sensordata.SensorDataStraddle;
+import org.wattdepot.resource.sensordata.StraddleList;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.server.Server;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Calculates many power, energy and carbon values over a fixed window of time, such as all the
+ * rows of a chart. Rather than looking up straddles in the database for every value, the sensor
+ * data of each non-virtual Source is read once for the whole window (one range query plus the
+ * points just outside the window) and every straddle is then found in memory. The results are the
+ * same as those of the corresponding DbManager methods, as long as every timestamp requested lies
+ * within the window.
+ * 
+ * Instances are meant to be used for a single request and then discarded, and are not
+ * thread-safe.
+ * 
+ * @author Robert Brewer
+ */
+public class SeriesCalculator {
+
+  /** The DbManager the sensor data is read from. */
+  private final DbManager dbManager;
+
+  /** The server, used to build Source URIs. */
+  private final Server server;
+
+  /** The start of the window. */
+  private final XMLGregorianCalendar startTime;
+
+  /** The end of the window. */
+  private final XMLGregorianCalendar endTime;
+
+  /** Sensor data already read, keyed by non-virtual Source name. */
+  private final Map<String, Series> seriesMap = new HashMap<String, Series>();
+
+  /** Non-virtual subsources already looked up, keyed by Source name. */
+  private final Map<String, List<Source>> leafMap = new HashMap<String, List<Source>>();
+
+  /**
+   * Creates a new calculator for the given window. No data is read until needed.
+   * 
+   * @param dbManager The DbManager to read sensor data from.
+   * @param server The server, used to build Source URIs.
+   * @param startTime The start of the window, inclusive.
+   * @param endTime The end of the window, inclusive.
+   */
+  public SeriesCalculator(DbManager dbManager, Server server, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    this.dbManager = dbManager;
+    this.server = server;
+    this.startTime = startTime;
+    this.endTime = endTime;
+  }
+
+  /**
+   * Returns the power for the named Source at the given timestamp, or null if it cannot be
+   * calculated. Equivalent to DbManager.getPower().
+   * 
+   * @param sourceName The source name.
+   * @param timestamp The timestamp requested, which must lie within the window.
+   * @return The requested power in SensorData format, or null if it cannot be found/calculated.
+   */
+  public SensorData getPower(String sourceName, XMLGregorianCalendar timestamp) {
+    List<Source> leaves = getLeaves(sourceName);
+    if (leaves == null) {
+      return null;
+    }
+    List<SensorDataStraddle> straddleList = new ArrayList<SensorDataStraddle>(leaves.size());
+    for (Source leaf : leaves) {
+      SensorDataStraddle straddle = getSeries(leaf).getStraddle(timestamp);
+      if (straddle == null) {
+        return null;
+      }
+      straddleList.add(straddle);
+    }
+    if ((leaves.size() == 1) && leaves.get(0).getName().equals(sourceName)) {
+      // Non-virtual source
+      return straddleList.get(0).getPower();
+    }
+    else {
+      return SensorDataStraddle.getPowerFromList(straddleList, Source.sourceToUri(sourceName,
+          this.server));
+    }
+  }
+
+  /**
+   * Returns the power for the named Source at each of the given timestamps, or null if the Source
+   * does not exist. Rather than searching for each straddle separately, the series of each
+   * non-virtual subsource is walked once alongside the timestamps. Timestamps at which power cannot
+   * be calculated are left out, so the result may have fewer points than there are timestamps.
+   * Each point is the same as that returned by DbManager.getPower() for that timestamp.
+   * 
+   * @param sourceName The source name.
+   * @param timestamps The timestamps requested, in increasing order, which must lie within the
+   * window.
+   * @return The list of power values in SensorData format, or null if the Source does not exist.
+   */
+  public List<SensorData> getPowerSeries(String sourceName, List<XMLGregorianCalendar> timestamps) {
+    List<Source> leaves = getLeaves(sourceName);
+    if (leaves == null) {
+      return null;
+    }
+    List<List<SensorDataStraddle>> leafStraddles =
+        new ArrayList<List<SensorDataStraddle>>(leaves.size());
+    for (Source leaf : leaves) {
+      leafStraddles.add(getSeries(leaf).getStraddles(timestamps));
+    }
+    boolean nonVirtual = (leaves.size() == 1) && leaves.get(0).getName().equals(sourceName);
+    String sourceUri = Source.sourceToUri(sourceName, this.server);
+    List<SensorData> powerList = new ArrayList<SensorData>(timestamps.size());
+    for (int i = 0; i < timestamps.size(); i++) {
+      List<SensorDataStraddle> straddleList = new ArrayList<SensorDataStraddle>(leaves.size());
+      for (List<SensorDataStraddle> straddles : leafStraddles) {
+        if (straddles.get(i) == null) {
+          // No data on one side of this timestamp for some subsource, so no power here
+          straddleList = null;
+          break;
+        }
+        straddleList.add(straddles.get(i));
+      }
+      if (straddleList != null) {
+        powerList.add(nonVirtual ? straddleList.get(0).getPower() : SensorDataStraddle
+            .getPowerFromList(straddleList, sourceUri));
+      }
+    }
+    return powerList;
+  }
+
+  /**
+   * Returns the energy for the named Source between the given times, or null if it cannot be
+   * calculated. Equivalent to DbManager.getEnergy().
+   * 
+   * @param sourceName The source name.
+   * @param start The start of the range requested, which must lie within the window.
+   * @param end The end of the range requested, which must lie within the window.
+   * @param interval The sampling interval requested in minutes (ignored if all sources support
+   * energy counters).
+   * @return The requested energy in SensorData format, or null if it cannot be found/calculated.
+   */
+  public SensorData getEnergy(String sourceName, XMLGregorianCalendar start,
+      XMLGregorianCalendar end, int interval) {
+    List<Source> leaves = getLeaves(sourceName);
+    if (leaves == null) {
+      return null;
+    }
+    String sourceUri = Source.sourceToUri(sourceName, this.server);
+    boolean allSupportEnergyCounters = true;
+    for (Source leaf : leaves) {
+      allSupportEnergyCounters =
+          allSupportEnergyCounters && leaf.isPropertyTrue(Source.SUPPORTS_ENERGY_COUNTERS);
+    }
+    if (allSupportEnergyCounters) {
+      List<Energy> energyList = new ArrayList<Energy>(leaves.size());
+      for (Source leaf : leaves) {
+        Series series = getSeries(leaf);
+        SensorDataStraddle startStraddle = series.getStraddle(start);
+        SensorDataStraddle endStraddle = series.getStraddle(end);
+        if ((startStraddle == null) || (endStraddle == null)) {
+          return null;
+        }
+        energyList.add(new Energy(startStraddle, endStraddle, true));
+      }
+      try {
+        return Energy.getEnergyFromList(energyList, sourceUri);
+      }
+      catch (EnergyCounterException e) {
+        // Same as DbImplementation: counter problems are reported as no data
+        return null;
+      }
+    }
+    else {
+      List<StraddleList> straddleLists =
+          getStraddleLists(leaves, Tstamp.getTimestampList(start, end, interval));
+      if (straddleLists == null) {
+        return null;
+      }
+      List<List<SensorDataStraddle>> masterList =
+          new ArrayList<List<SensorDataStraddle>>(straddleLists.size());
+      for (StraddleList straddleList : straddleLists) {
+        masterList.add(straddleList.getStraddleList());
+      }
+      return Energy.getEnergyFromListOfLists(masterList, sourceUri);
+    }
+  }
+
+  /**
+   * Returns the energy for the named Source between the given times by integrating over every
+   * sensor data point in the range, or null if it cannot be calculated. Power is only interpolated
+   * at the two ends of the range; between them the trapezoids between consecutive readings are
+   * summed, so the result is exact for power that varies linearly between readings and the cost
+   * grows with the number of readings rather than with the length of the range. If all sources
+   * support energy counters the counters are used instead, as in getEnergy().
+   * 
+   * @param sourceName The source name.
+   * @param start The start of the range requested, which must lie within the window.
+   * @param end The end of the range requested, which must lie within the window.
+   * @return The requested energy in SensorData format, or null if it cannot be found/calculated.
+   */
+  public SensorData getExactEnergy(String sourceName, XMLGregorianCalendar start,
+      XMLGregorianCalendar end) {
+    List<Source> leaves = getLeaves(sourceName);
+    if (leaves == null) {
+      return null;
+    }
+    boolean allSupportEnergyCounters = true;
+    for (Source leaf : leaves) {
+      allSupportEnergyCounters =
+          allSupportEnergyCounters && leaf.isPropertyTrue(Source.SUPPORTS_ENERGY_COUNTERS);
+    }
+    if (allSupportEnergyCounters) {
+      // Counters are already exact, and the interval is ignored when they are used
+      return getEnergy(sourceName, start, end, 0);
+    }
+    List<List<SensorDataStraddle>> masterList =
+        new ArrayList<List<SensorDataStraddle>>(leaves.size());
+    for (Source leaf : leaves) {
+      List<SensorDataStraddle> straddles = getSeries(leaf).getRangeStraddles(start, end);
+      if (straddles == null) {
+        return null;
+      }
+      masterList.add(straddles);
+    }
+    return Energy.getEnergyFromListOfLists(masterList, Source.sourceToUri(sourceName,
+        this.server));
+  }
+
+  /**
+   * Returns the carbon emitted by the named Source between the given times, or null if it cannot
+   * be calculated. Equivalent to DbManager.getCarbon().
+   * 
+   * @param sourceName The source name.
+   * @param start The start of the range requested, which must lie within the window.
+   * @param end The end of the range requested, which must lie within the window.
+   * @param interval The sampling interval requested in minutes.
+   * @return The requested carbon in SensorData format, or null if it cannot be found/calculated.
+   */
+  public SensorData getCarbon(String sourceName, XMLGregorianCalendar start,
+      XMLGregorianCalendar end, int interval) {
+    List<Source> leaves = getLeaves(sourceName);
+    if (leaves == null) {
+      return null;
+    }
+    List<StraddleList> straddleLists =
+        getStraddleLists(leaves, Tstamp.getTimestampList(start, end, interval));
+    if (straddleLists == null) {
+      return null;
+    }
+    return Carbon.getCarbonFromStraddleList(straddleLists, Source.sourceToUri(sourceName,
+        this.server));
+  }
+
+  /**
+   * Returns the energy for the named Source in each of the buckets between consecutive boundaries,
+   * or null if the Source does not exist. Each bucket value is the same as that returned by
+   * DbManager.getEnergy() for the bucket, and is timestamped with the start of the bucket. Buckets
+   * whose energy cannot be calculated are left out. The straddle at each boundary is found once
+   * and shared by the buckets on either side of it.
+   * 
+   * @param sourceName The source name.
+   * @param boundaries The bucket boundaries in increasing order, which must lie within the window.
+   * @param interval The sampling interval requested in minutes (ignored if all sources support
+   * energy counters). If a bucket is shorter than the interval, only its ends are sampled.
+   * @return The list of energy values in SensorData format, or null if the Source does not exist.
+   */
+  public List<SensorData> getEnergySeries(String sourceName,
+      List<XMLGregorianCalendar> boundaries, int interval) {
+    List<Source> leaves = getLeaves(sourceName);
+    if (leaves == null) {
+      return null;
+    }
+    String sourceUri = Source.sourceToUri(sourceName, this.server);
+    boolean allSupportEnergyCounters = true;
+    for (Source leaf : leaves) {
+      allSupportEnergyCounters =
+          allSupportEnergyCounters && leaf.isPropertyTrue(Source.SUPPORTS_ENERGY_COUNTERS);
+    }
+    List<SensorData> energyList = new ArrayList<SensorData>(boundaries.size());
+    if (allSupportEnergyCounters) {
+      // Only the boundaries are needed: the counters give the energy between them
+      List<List<SensorDataStraddle>> leafStraddles =
+          new ArrayList<List<SensorDataStraddle>>(leaves.size());
+      for (Source leaf : leaves) {
+        leafStraddles.add(getSeries(leaf).getStraddles(boundaries));
+      }
+      for (int i = 0; i < (boundaries.size() - 1); i++) {
+        List<Energy> bucketEnergy = new ArrayList<Energy>(leaves.size());
+        for (List<SensorDataStraddle> straddles : leafStraddles) {
+          if ((straddles.get(i) == null) || (straddles.get(i + 1) == null)) {
+            bucketEnergy = null;
+            break;
+          }
+          bucketEnergy.add(new Energy(straddles.get(i), straddles.get(i + 1), true));
+        }
+        if (bucketEnergy != null) {
+          try {
+            energyList.add(Energy.getEnergyFromList(bucketEnergy, sourceUri));
+          }
+          catch (EnergyCounterException e) { // NOPMD
+            // Same as DbImplementation: counter problems are reported as no data for this bucket
+          }
+        }
+      }
+    }
+    else {
+      List<List<StraddleList>> bucketLists = getBucketStraddleLists(leaves, boundaries, interval);
+      for (List<StraddleList> straddleLists : bucketLists) {
+        if (straddleLists != null) {
+          List<List<SensorDataStraddle>> masterList =
+              new ArrayList<List<SensorDataStraddle>>(straddleLists.size());
+          for (StraddleList straddleList : straddleLists) {
+            masterList.add(straddleList.getStraddleList());
+          }
+          energyList.add(Energy.getEnergyFromListOfLists(masterList, sourceUri));
+        }
+      }
+    }
+    return energyList;
+  }
+
+  /**
+   * Returns the carbon emitted by the named Source in each of the buckets between consecutive
+   * boundaries, or null if the Source does not exist. Each bucket value is the same as that
+   * returned by DbManager.getCarbon() for the bucket, and is timestamped with the start of the
+   * bucket. Buckets whose carbon cannot be calculated are left out.
+   * 
+   * @param sourceName The source name.
+   * @param boundaries The bucket boundaries in increasing order, which must lie within the window.
+   * @param interval The sampling interval requested in minutes. If a bucket is shorter than the
+   * interval, only its ends are sampled.
+   * @return The list of carbon values in SensorData format, or null if the Source does not exist.
+   */
+  public List<SensorData> getCarbonSeries(String sourceName,
+      List<XMLGregorianCalendar> boundaries, int interval) {
+    List<Source> leaves = getLeaves(sourceName);
+    if (leaves == null) {
+      return null;
+    }
+    String sourceUri = Source.sourceToUri(sourceName, this.server);
+    List<SensorData> carbonList = new ArrayList<SensorData>(boundaries.size());
+    for (List<StraddleList> straddleLists : getBucketStraddleLists(leaves, boundaries, interval)) {
+      if (straddleLists != null) {
+        carbonList.add(Carbon.getCarbonFromStraddleList(straddleLists, sourceUri));
+      }
+    }
+    return carbonList;
+  }
+
+  /**
+   * Samples each bucket between consecutive boundaries at the given interval, and returns for each
+   * bucket one StraddleList per non-virtual Source, or null for buckets where any straddle is
+   * missing. All the sample timestamps are combined into one list so each Source series is walked
+   * only once, and the boundary shared by two buckets is only sampled once.
+   * 
+   * @param leaves The non-virtual Sources.
+   * @param boundaries The bucket boundaries in increasing order.
+   * @param interval The sampling interval requested in minutes.
+   * @return The StraddleLists of each bucket, with null entries for buckets missing data.
+   */
+  private List<List<StraddleList>> getBucketStraddleLists(List<Source> leaves,
+      List<XMLGregorianCalendar> boundaries, int interval) {
+    int buckets = boundaries.size() - 1;
+    List<XMLGregorianCalendar> samples = new ArrayList<XMLGregorianCalendar>();
+    // offsets[i] is the index in samples of the start of bucket i, which ends at offsets[i + 1]
+    int[] offsets = new int[buckets + 1];
+    for (int i = 0; i < buckets; i++) {
+      List<XMLGregorianCalendar> bucketSamples =
+          Tstamp.getTimestampList(boundaries.get(i), boundaries.get(i + 1), interval);
+      if (bucketSamples == null) {
+        // Interval is longer than this bucket, so just sample its ends
+        bucketSamples = boundaries.subList(i, i + 2);
+      }
+      if (i == 0) {
+        samples.addAll(bucketSamples);
+      }
+      else {
+        // First sample is the previous bucket's last one
+        offsets[i] = samples.size() - 1;
+        samples.addAll(bucketSamples.subList(1, bucketSamples.size()));
+      }
+    }
+    offsets[buckets] = samples.size() - 1;
+
+    List<List<SensorDataStraddle>> leafStraddles =
+        new ArrayList<List<SensorDataStraddle>>(leaves.size());
+    for (Source leaf : leaves) {
+      leafStraddles.add(getSeries(leaf).getStraddles(samples));
+    }
+    List<List<StraddleList>> bucketLists = new ArrayList<List<StraddleList>>(buckets);
+    for (int i = 0; i < buckets; i++) {
+      List<StraddleList> straddleLists = new ArrayList<StraddleList>(leaves.size());
+      for (int j = 0; j < leaves.size(); j++) {
+        List<SensorDataStraddle> straddles =
+            leafStraddles.get(j).subList(offsets[i], offsets[i + 1] + 1);
+        if (straddles.contains(null)) {
+          straddleLists = null;
+          break;
+        }
+        straddleLists.add(new StraddleList(leaves.get(j), straddles));
+      }
+      bucketLists.add(straddleLists);
+    }
+    return bucketLists;
+  }
+
+  /**
+   * Returns one StraddleList for each of the given non-virtual Sources, covering the given
+   * timestamps, or null if any straddle is missing.
+   * 
+   * @param leaves The non-virtual Sources.
+   * @param timestampList The timestamps, may be null.
+   * @return The list of StraddleLists, or null.
+   */
+  private List<StraddleList> getStraddleLists(List<Source> leaves,
+      List<XMLGregorianCalendar> timestampList) {
+    if ((timestampList == null) || timestampList.isEmpty()) {
+      return null;
+    }
+    List<StraddleList> straddleLists = new ArrayList<StraddleList>(leaves.size());
+    for (Source leaf : leaves) {
+      Series series = getSeries(leaf);
+      List<SensorDataStraddle> straddles =
+          new ArrayList<SensorDataStraddle>(timestampList.size());
+      for (XMLGregorianCalendar timestamp : timestampList) {
+        SensorDataStraddle straddle = series.getStraddle(timestamp);
+        if (straddle == null) {
+          return null;
+        }
+        straddles.add(straddle);
+      }
+      straddleLists.add(new StraddleList(leaf, straddles));
+    }
+    return straddleLists;
+  }
+
+  /**
+   * Returns the non-virtual Sources underlying the named Source, or null if the Source does not
+   * exist or has none.
+   * 
+   * @param sourceName The source name.
+   * @return The list of non-virtual Sources, or null.
+   */
+  private List<Source> getLeaves(String sourceName) {
+    if (this.leafMap.containsKey(sourceName)) {
+      return this.leafMap.get(sourceName);
+    }
+    List<Source> leaves = null;
+    Source source = this.dbManager.getSource(sourceName);
+    if (source != null) {
+      leaves = this.dbManager.getAllNonVirtualSubSources(source);
+      if ((leaves != null) && leaves.isEmpty()) {
+        leaves = null;
+      }
+    }
+    this.leafMap.put(sourceName, leaves);
+    return leaves;
+  }
+
+  /**
+   * Returns the sensor data of the given non-virtual Source for the window, reading it from the
+   * database the first time it is needed.
+   * 
+   * @param leaf The non-virtual Source.
+   * @return The series of sensor data.
+   */
+  private Series getSeries(Source leaf) {
+    Series series = this.seriesMap.get(leaf.getName());
+    if (series == null) {
+      series = readSeries(leaf.getName());
+      this.seriesMap.put(leaf.getName(), series);
+    }
+    return series;
+  }
+
+  /**
+   * Reads the sensor data of the named non-virtual Source within the window, along with the
+   * closest points on either side of the window.
+   * 
+   * @param sourceName The name of the non-virtual Source.
+   * @return The series of sensor data.
+   */
+  private Series readSeries(String sourceName) {
+    List<SensorData> points = new ArrayList<SensorData>();
+    SensorDataStraddle startStraddle =
+        this.dbManager.getSensorDataStraddle(sourceName, this.startTime);
+    if ((startStraddle != null) && !startStraddle.isDegenerate()) {
+      points.add(startStraddle.getBeforeData());
+    }
+    try {
+      SensorDatas datas = this.dbManager.getSensorDatas(sourceName, this.startTime, this.endTime);
+      if (datas != null) {
+        points.addAll(datas.getSensorData());
+      }
+    }
+    catch (DbBadIntervalException e) {
+      // Window is backwards, so nothing within it
+      points.clear();
+    }
+    SensorDataStraddle endStraddle = this.dbManager.getSensorDataStraddle(sourceName, this.endTime);
+    if ((endStraddle != null) && !endStraddle.isDegenerate()) {
+      points.add(endStraddle.getAfterData());
+    }
+    Collections.sort(points);
+    return new Series(points);
+  }
+
+  /**
+   * The sorted sensor data of one non-virtual Source, with straddle lookup by binary search.
+   */
+  private static final class Series {
+    /** The sensor data, sorted by timestamp. */
+    private final List<SensorData> points;
+    /** The timestamps of the sensor data in milliseconds, in the same order. */
+    private final long[] times;
+
+    /**
+     * Creates a new series.
+     * 
+     * @param points The sensor data, sorted by timestamp.
+     */
+    private Series(List<SensorData> points) {
+      this.points = points;
+      this.times = new long[points.size()];
+      for (int i = 0; i < this.times.length; i++) {
+        this.times[i] = points.get(i).getTimestamp().toGregorianCalendar().getTimeInMillis();
+      }
+    }
+
+    /**
+     * Returns the straddle for the given timestamp, with the same semantics as
+     * DbImplementation.getSensorDataStraddle(): degenerate if there is sensor data at the
+     * timestamp, null if there is no sensor data on one side of it.
+     * 
+     * @param timestamp The timestamp.
+     * @return The straddle, or null.
+     */
+    private SensorDataStraddle getStraddle(XMLGregorianCalendar timestamp) {
+      long millis = timestamp.toGregorianCalendar().getTimeInMillis();
+      int low = 0, high = this.times.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (this.times[mid] < millis) {
+          low = mid + 1;
+        }
+        else if (this.times[mid] > millis) {
+          high = mid - 1;
+        }
+        else {
+          SensorData data = this.points.get(mid);
+          return new SensorDataStraddle(timestamp, data, data);
+        }
+      }
+      // low is now the index of the first point after the timestamp
+      if ((low == 0) || (low == this.times.length)) {
+        return null;
+      }
+      return new SensorDataStraddle(timestamp, this.points.get(low - 1), this.points.get(low));
+    }
+
+    /**
+     * Returns the straddles needed to integrate over every point in the given range: the straddle
+     * at the start, a degenerate straddle at each point strictly inside the range, and the
+     * straddle at the end.
+     * 
+     * @param start The start of the range.
+     * @param end The end of the range.
+     * @return The straddles in time order, or null if there is no straddle at either end.
+     */
+    private List<SensorDataStraddle> getRangeStraddles(XMLGregorianCalendar start,
+        XMLGregorianCalendar end) {
+      SensorDataStraddle startStraddle = getStraddle(start);
+      SensorDataStraddle endStraddle = getStraddle(end);
+      if ((startStraddle == null) || (endStraddle == null)) {
+        return null;
+      }
+      long startMillis = start.toGregorianCalendar().getTimeInMillis();
+      long endMillis = end.toGregorianCalendar().getTimeInMillis();
+      // find the first point after the start
+      int low = 0, high = this.times.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (this.times[mid] <= startMillis) {
+          low = mid + 1;
+        }
+        else {
+          high = mid;
+        }
+      }
+      List<SensorDataStraddle> straddles = new ArrayList<SensorDataStraddle>();
+      straddles.add(startStraddle);
+      for (int i = low; (i < this.times.length) && (this.times[i] < endMillis); i++) {
+        SensorData data = this.points.get(i);
+        straddles.add(new SensorDataStraddle(data.getTimestamp(), data, data));
+      }
+      straddles.add(endStraddle);
+      return straddles;
+    }
+
+    /**
+     * Returns the straddles for each of the given timestamps, with the same semantics as
+     * getStraddle(). Since the timestamps are in increasing order, the series and the timestamps
+     * are walked together in a single pass instead of searching for each timestamp.
+     * 
+     * @param timestamps The timestamps, in increasing order.
+     * @return The straddles in the same order as the timestamps, with null where there is no
+     * straddle.
+     */
+    private List<SensorDataStraddle> getStraddles(List<XMLGregorianCalendar> timestamps) {
+      List<SensorDataStraddle> straddles = new ArrayList<SensorDataStraddle>(timestamps.size());
+      // index of the first point at or after the current timestamp
+      int next = 0;
+      for (XMLGregorianCalendar timestamp : timestamps) {
+        long millis = timestamp.toGregorianCalendar().getTimeInMillis();
+        while ((next < this.times.length) && (this.times[next] < millis)) {
+          next++;
+        }
+        if ((next < this.times.length) && (this.times[next] == millis)) {
+          SensorData data = this.points.get(next);
+          straddles.add(new SensorDataStraddle(timestamp, data, data));
+        }
+        else if ((next == 0) || (next == this.times.length)) {
+          straddles.add(null);
+        }
+        else {
+          straddles.add(new SensorDataStraddle(timestamp, this.points.get(next - 1), this.points
+              .get(next)));
+        }
+      }
+      return straddles;
+    }
+  }
+}
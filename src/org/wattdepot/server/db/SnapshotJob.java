@@ -0,0 +1,84 @@
+package org.wattdepot.server.db;
+
+/**
+ * A Job that makes a snapshot of the database in the directory specified by
+ * ServerProperties.DB_SNAPSHOT_KEY. The progress of the job is the number of bytes copied so far,
+ * and its status report also gives the number of files copied. DbManager runs at most one
+ * SnapshotJob at a time.
+ * 
+ * @author Robert Brewer
+ */
+public class SnapshotJob extends Job implements SnapshotProgress {
+
+  /** The DbManager whose database is copied. */
+  private final DbManager manager;
+
+  /** The number of files copied so far. */
+  private volatile int filesDone = 0;
+
+  /**
+   * Creates a new queued SnapshotJob.
+   * 
+   * @param manager The DbManager whose database is copied.
+   * @param owner The username of the user that requested the snapshot, or null if it was started
+   * internally.
+   */
+  SnapshotJob(DbManager manager, String owner) {
+    super("Database snapshot", owner);
+    this.manager = manager;
+  }
+
+  /**
+   * Makes the snapshot.
+   * 
+   * @return A message describing the result.
+   * @throws DbException If the snapshot could not be made.
+   */
+  @Override
+  protected String execute() throws DbException {
+    if (!this.manager.makeSnapshot(this)) {
+      throw new DbException("Unable to create database snapshot");
+    }
+    return "Snapshot of " + this.filesDone + " files created";
+  }
+
+  /**
+   * Records how far the snapshot has got.
+   * 
+   * @param bytesCopied The number of bytes copied into the snapshot so far.
+   * @param filesDone The number of files copied into the snapshot so far.
+   */
+  public void update(long bytesCopied, int filesDone) {
+    this.filesDone = filesDone;
+    setProgress(bytesCopied);
+  }
+
+  /**
+   * Returns the number of bytes copied so far.
+   * 
+   * @return The number of bytes.
+   */
+  public long getBytesCopied() {
+    return getProgress();
+  }
+
+  /**
+   * Returns the number of files copied so far.
+   * 
+   * @return The number of files.
+   */
+  public int getFilesDone() {
+    return this.filesDone;
+  }
+
+  /**
+   * Returns a report of the status of the job, including the bytes and files copied.
+   * 
+   * @return The status report.
+   */
+  @Override
+  public String toString() {
+    return super.toString() + "bytes copied: " + getProgress() + "\nfiles done: " + this.filesDone
+        + "\n";
+  }
+}
@@ -0,0 +1,20 @@
+package org.wattdepot.server.db;
+
+/**
+ * Receives reports of how far a database snapshot has got, so that a snapshot running in the
+ * background can show its progress. Storage implementations call update() as files are copied
+ * into the snapshot directory.
+ * 
+ * @author Robert Brewer
+ */
+public interface SnapshotProgress {
+
+  /**
+   * Records how far the snapshot has got. The values are totals for the snapshot so far, not
+   * increments.
+   * 
+   * @param bytesCopied The number of bytes copied into the snapshot so far.
+   * @param filesDone The number of files copied into the snapshot so far.
+   */
+  void update(long bytesCopied, int filesDone);
+}
@@ -0,0 +1,131 @@
+package org.wattdepot.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests the ComputedDataCache class.
+ * 
+ * @author Robert Brewer
+ */
+public class TestComputedDataCache {
+
+  /** Dependencies used by most tests. */
+  private final List<String> deps = Arrays.asList("source1", "virtual");
+
+  /**
+   * Makes a small SensorData for caching.
+   * 
+   * @return The new SensorData.
+   * @throws Exception If there are problems making the timestamp.
+   */
+  private SensorData makeData() throws Exception {
+    return new SensorData(Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00"), "JUnit",
+        "http://localhost/sources/source1", new Property(SensorData.POWER_CONSUMED, "1000"));
+  }
+
+  /**
+   * Tests hits, misses and invalidation by Source.
+   * 
+   * @throws Exception If there are problems making test data.
+   */
+  @Test
+  public void testGetPutInvalidate() throws Exception {
+    ModificationTracker tracker = new ModificationTracker();
+    ComputedDataCache cache = new ComputedDataCache(tracker, 100000);
+    SensorData data = makeData();
+    assertNull("Empty cache returned data", cache.get("a"));
+    cache.put("a", data, this.deps, tracker.getVersion(this.deps));
+    assertSame("Cached data not returned", data, cache.get("a"));
+    assertEquals("Wrong hit count", 1, cache.getHits());
+    assertEquals("Wrong miss count", 1, cache.getMisses());
+    cache.invalidate("unrelated");
+    assertNotNull("Unrelated invalidation discarded data", cache.get("a"));
+    cache.invalidate("source1");
+    assertNull("Invalidated data still returned", cache.get("a"));
+    assertEquals("Wrong invalidation count", 1, cache.getInvalidations());
+    assertEquals("Size not reset", 0, cache.getSize());
+  }
+
+  /**
+   * Tests that values computed while their Sources changed are not cached.
+   * 
+   * @throws Exception If there are problems making test data.
+   */
+  @Test
+  public void testConcurrentChange() throws Exception {
+    ModificationTracker tracker = new ModificationTracker();
+    ComputedDataCache cache = new ComputedDataCache(tracker, 100000);
+    String version = tracker.getVersion(this.deps);
+    tracker.sensorDataChanged("source1");
+    cache.put("a", makeData(), this.deps, version);
+    assertNull("Stale data was cached", cache.get("a"));
+  }
+
+  /**
+   * Tests that only values whose windows overlap a change are invalidated.
+   * 
+   * @throws Exception If there are problems making test data.
+   */
+  @Test
+  public void testWindowedInvalidate() throws Exception {
+    ModificationTracker tracker = new ModificationTracker();
+    ComputedDataCache cache = new ComputedDataCache(tracker, 100000);
+    SensorData data = makeData();
+    String version = tracker.getVersion(this.deps);
+    Map<String, ComputedDataCache.Window> early = new HashMap<String, ComputedDataCache.Window>();
+    early.put("source1", new ComputedDataCache.Window(100, 200));
+    Map<String, ComputedDataCache.Window> late = new HashMap<String, ComputedDataCache.Window>();
+    late.put("source1", new ComputedDataCache.Window(300, 400));
+    cache.put("early", data, this.deps, version, early);
+    cache.put("late", data, this.deps, version, late);
+    cache.put("all", data, this.deps, version);
+    cache.invalidate("source1", 250, 250);
+    assertNotNull("Value before the change discarded", cache.get("early"));
+    assertNotNull("Value after the change discarded", cache.get("late"));
+    assertNull("Value without a window kept", cache.get("all"));
+    // The readings at the ends of a window are part of it
+    cache.invalidate("source1", 50, 100);
+    assertNull("Value overlapping the change kept", cache.get("early"));
+    assertNotNull("Value outside the change discarded", cache.get("late"));
+    assertEquals("Wrong invalidation count", 2, cache.getInvalidations());
+  }
+
+  /**
+   * Tests that the least recently used values are evicted once the size bound is reached.
+   * 
+   * @throws Exception If there are problems making test data.
+   */
+  @Test
+  public void testEviction() throws Exception {
+    ModificationTracker tracker = new ModificationTracker();
+    SensorData data = makeData();
+    // Room for two entries but not three
+    ComputedDataCache sizer = new ComputedDataCache(tracker, 100000);
+    sizer.put("a", data, this.deps, tracker.getVersion(this.deps));
+    ComputedDataCache cache = new ComputedDataCache(tracker, sizer.getSize() * 2 + 1);
+    String version = tracker.getVersion(this.deps);
+    cache.put("a", data, this.deps, version);
+    cache.put("b", data, this.deps, version);
+    assertNotNull("Entry missing", cache.get("a"));
+    cache.put("c", data, this.deps, version);
+    assertNull("Least recently used entry not evicted", cache.get("b"));
+    assertNotNull("Recently used entry evicted", cache.get("a"));
+    assertNotNull("New entry missing", cache.get("c"));
+    assertEquals("Wrong eviction count", 1, cache.getEvictions());
+    assertEquals("Wrong entry count", 2, cache.getEntryCount());
+    ComputedDataCache disabled = new ComputedDataCache(tracker, 0);
+    disabled.put("a", data, this.deps, version);
+    assertNull("Disabled cache holds data", disabled.get("a"));
+  }
+}
@@ -1,6 +1,11 @@
 package org.wattdepot.server.db;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import java.util.concurrent.CountDownLatch;
 import org.junit.Test;
 
 /**
@@ -40,4 +45,60 @@ public class TestDbManager extends DbManagerTestHelper {
   public void testMakeSnapshot() {
     assertTrue("Unable to create snapshot", manager.makeSnapshot());
   }
+
+  /**
+   * Tests that snapshots started in the background run one at a time, are not held up by other
+   * jobs, and report their progress.
+   * 
+   * @throws Exception If interrupted while waiting.
+   */
+  @Test
+  public void testStartSnapshot() throws Exception {
+    // Hold up the job queue, which snapshots do not wait behind
+    final CountDownLatch release = new CountDownLatch(1);
+    Job blocker = manager.submitJob(new Job("Blocker", null) {
+      @Override
+      protected String execute() throws InterruptedException {
+        release.await();
+        return "Released";
+      }
+    });
+    SnapshotJob snapshot;
+    try {
+      snapshot = manager.startSnapshot("junit");
+      assertSame("Snapshot job not registered", snapshot, manager.getJob(snapshot.getId()));
+      SnapshotJob second = manager.startSnapshot("junit");
+      assertTrue("Second snapshot started while first unfinished", (second == null)
+          || snapshot.isFinished());
+      assertSame("Snapshot not current", (second == null) ? snapshot : second, manager
+          .getSnapshotJob());
+      for (int i = 0; (i < 100) && !snapshot.isFinished(); i++) {
+        Thread.sleep(100);
+      }
+      assertEquals("Snapshot did not succeed behind a running job: " + snapshot,
+          Job.State.SUCCEEDED, snapshot.getState());
+      if (second != null) {
+        for (int i = 0; (i < 100) && !second.isFinished(); i++) {
+          Thread.sleep(100);
+        }
+      }
+    }
+    finally {
+      release.countDown();
+    }
+    for (int i = 0; (i < 100) && !blocker.isFinished(); i++) {
+      Thread.sleep(100);
+    }
+    assertEquals("Blocker did not succeed", Job.State.SUCCEEDED, blocker.getState());
+    assertTrue("Files not reported", snapshot.toString().contains("files done: "));
+    assertEquals("Progress is not bytes copied", snapshot.getBytesCopied(), snapshot.getProgress());
+
+    // Once finished, another can start
+    SnapshotJob next = manager.startSnapshot("junit");
+    assertNotNull("Snapshot not started after the last finished", next);
+    assertNotSame("Finished snapshot returned", snapshot, next);
+    for (int i = 0; (i < 100) && !next.isFinished(); i++) {
+      Thread.sleep(100);
+    }
+  }
 }
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import java.util.ArrayList;
 import java.util.List;
 import javax.xml.datatype.XMLGregorianCalendar;
@@ -550,6 +551,32 @@ public class TestDbManagerSensorData extends DbManagerTestHelper {
     assertFalse("Able to store null SensorData", manager.storeSensorData(null));
   }
 
+  /**
+   * Tests the storeSensorData method that can overwrite existing data.
+   * 
+   * @throws Exception If there are timestamp conversion problems.
+   */
+  @Test
+  public void testStoreSensorDataOverwrite() throws Exception {
+    // Add test data.
+    createTestData();
+
+    // case #1: overwriting store works when there is nothing to overwrite
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(this.data1, true));
+    assertEquals(DATA_DOES_NOT_MATCH, this.data1, manager.getSensorData(source1.getName(),
+        this.data1.getTimestamp()));
+
+    // case #2: plain store refuses to replace the data, overwriting store replaces it
+    SensorData replacement =
+        new SensorData(this.data1.getTimestamp(), "replacement", this.data1.getSource());
+    assertFalse("Able to overwrite SensorData", manager.storeSensorData(replacement, false));
+    assertEquals(DATA_DOES_NOT_MATCH, this.data1, manager.getSensorData(source1.getName(),
+        this.data1.getTimestamp()));
+    assertTrue("Unable to overwrite SensorData", manager.storeSensorData(replacement, true));
+    assertEquals("Overwritten data does not match", replacement, manager.getSensorData(source1
+        .getName(), this.data1.getTimestamp()));
+  }
+
   /**
    * Tests the deleteSensorData method that takes a timestamp argument.
    * 
@@ -646,6 +673,159 @@ public class TestDbManagerSensorData extends DbManagerTestHelper {
         .getSensorDataIndex(this.source1.getName()).getSensorDataRef().isEmpty());
   }
 
+  /**
+   * Tests deleting a range of sensor data that spans the end of a month, both directly and with a
+   * background job.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testDeleteSensorDataRange() throws Exception {
+    createTestData();
+    String source1Uri = this.source1.toUri(server);
+    String source1Name = this.source1.getName();
+    // Every hour from 12:00 UTC on October 31 until 11:00 UTC on November 1
+    XMLGregorianCalendar base = Tstamp.makeTimestamp("2009-10-31T02:00:00.000-10:00");
+    for (int i = 0; i < 24; i++) {
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(Tstamp
+          .incrementHours(base, i), JUNIT, source1Uri)));
+    }
+    XMLGregorianCalendar end = Tstamp.incrementHours(base, 23);
+
+    // Both ends of the range are included
+    assertEquals("Wrong number deleted", 10, manager.deleteSensorData(source1Name, Tstamp
+        .incrementHours(base, 6), Tstamp.incrementHours(base, 15)));
+    List<SensorDataRef> refs = manager.getSensorDataIndex(source1Name).getSensorDataRef();
+    assertEquals("Wrong number left", 14, refs.size());
+    assertEquals("Wrong data before range", Tstamp.incrementHours(base, 5), refs.get(5)
+        .getTimestamp());
+    assertEquals("Wrong data after range", Tstamp.incrementHours(base, 16), refs.get(6)
+        .getTimestamp());
+    assertNull("Deleted data still cached", manager.getSensorData(source1Name, Tstamp
+        .incrementHours(base, 10)));
+    assertEquals("Deleted empty range", 0, manager.deleteSensorData(source1Name, Tstamp
+        .incrementHours(base, 6), Tstamp.incrementHours(base, 15)));
+    try {
+      manager.deleteSensorData(source1Name, end, base);
+      fail("Deleted with start after end");
+    }
+    catch (DbBadIntervalException e) { // NOPMD
+      // Expected
+    }
+
+    // The rest in the background
+    Job job = manager.startSensorDataDeletion(source1Name, base, end, JUNIT);
+    assertSame("Job not registered", job, manager.getJob(job.getId()));
+    for (int i = 0; (i < 100) && !job.isFinished(); i++) {
+      Thread.sleep(100);
+    }
+    assertEquals("Job did not succeed: " + job, Job.State.SUCCEEDED, job.getState());
+    assertEquals("Wrong progress", 14, job.getProgress());
+    assertTrue("Data left after job", manager.getSensorDataIndex(source1Name).getSensorDataRef()
+        .isEmpty());
+    assertNull("Unknown job found", manager.getJob("bogus-job"));
+  }
+
+  /**
+   * Tests that compaction replaces old raw sensor data with one reading per downsampled interval,
+   * keeping the energy counters exact at interval boundaries, and leaves compacted data alone.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testSensorDataCompaction() throws Exception {
+    this.source1.addProperty(new Property(Source.SUPPORTS_ENERGY_COUNTERS, "true"));
+    this.source1.addProperty(new Property(Source.RAW_RETENTION_DAYS, "30"));
+    this.source1.addProperty(new Property(Source.DOWNSAMPLE_INTERVAL, "60"));
+    createTestData();
+    String source1Uri = this.source1.toUri(server);
+    String source1Name = this.source1.getName();
+    // Every 10 minutes for six hours, with a counter that grows faster and faster
+    XMLGregorianCalendar base = Tstamp.makeTimestamp("2009-10-31T00:00:00.000-10:00");
+    for (int i = 0; i <= 36; i++) {
+      SensorData data = new SensorData(Tstamp.incrementMinutes(base, i * 10), JUNIT, source1Uri);
+      data.addProperty(new Property(SensorData.POWER_CONSUMED, i * 100.0));
+      data.addProperty(new Property(SensorData.ENERGY_CONSUMED_TO_DATE, i * i * 10.0));
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(data));
+    }
+    XMLGregorianCalendar hour1 = Tstamp.incrementHours(base, 1);
+    XMLGregorianCalendar hour4 = Tstamp.incrementHours(base, 4);
+    double energy =
+        manager.getEnergy(source1Name, hour1, hour4, 0).getPropertyAsDouble(
+            SensorData.ENERGY_CONSUMED);
+
+    SensorDataCompactor compactor = manager.startSensorDataCompaction(null);
+    for (int i = 0; (i < 100) && !compactor.isFinished(); i++) {
+      Thread.sleep(100);
+    }
+    assertEquals("Compaction did not succeed: " + compactor, Job.State.SUCCEEDED, compactor
+        .getState());
+    assertEquals("Wrong number compacted", 36, compactor.getRowsCompacted());
+    assertTrue("No bytes reclaimed", compactor.getBytesReclaimed() > 0);
+    // One reading per hour, with the last one left alone since nothing follows it
+    List<SensorDataRef> refs = manager.getSensorDataIndex(source1Name).getSensorDataRef();
+    assertEquals("Wrong number left", 7, refs.size());
+    for (int i = 0; i < refs.size(); i++) {
+      assertEquals("Reading not on interval start", Tstamp.incrementHours(base, i), refs.get(i)
+          .getTimestamp());
+    }
+    SensorData compacted = manager.getSensorData(source1Name, hour1);
+    assertEquals("Counter changed", 360.0, compacted
+        .getPropertyAsDouble(SensorData.ENERGY_CONSUMED_TO_DATE), 0.01);
+    assertEquals("Wrong average power", 850.0, compacted
+        .getPropertyAsDouble(SensorData.POWER_CONSUMED), 0.01);
+    assertEquals("Energy changed", energy, manager.getEnergy(source1Name, hour1, hour4, 0)
+        .getPropertyAsDouble(SensorData.ENERGY_CONSUMED), 0.01);
+
+    // Compacted data is not compacted again
+    compactor = manager.startSensorDataCompaction(null);
+    for (int i = 0; (i < 100) && !compactor.isFinished(); i++) {
+      Thread.sleep(100);
+    }
+    assertEquals("Compaction did not succeed: " + compactor, Job.State.SUCCEEDED, compactor
+        .getState());
+    assertEquals("Compacted data compacted again", 0, compactor.getRowsCompacted());
+  }
+
+  /**
+   * Tests that compaction leaves alone the sensor data of a Source without energy counters, whose
+   * energy is integrated from its power readings.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testSensorDataCompactionWithoutCounters() throws Exception {
+    this.source1.addProperty(new Property(Source.RAW_RETENTION_DAYS, "30"));
+    this.source1.addProperty(new Property(Source.DOWNSAMPLE_INTERVAL, "60"));
+    createTestData();
+    String source1Uri = this.source1.toUri(server);
+    String source1Name = this.source1.getName();
+    // Every 10 minutes for six hours, with power rising and falling within each hour
+    XMLGregorianCalendar base = Tstamp.makeTimestamp("2009-10-31T00:00:00.000-10:00");
+    for (int i = 0; i <= 36; i++) {
+      SensorData data = new SensorData(Tstamp.incrementMinutes(base, i * 10), JUNIT, source1Uri);
+      data.addProperty(new Property(SensorData.POWER_CONSUMED, (i % 6) * (i % 6) * 100.0));
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(data));
+    }
+    XMLGregorianCalendar hour1 = Tstamp.incrementHours(base, 1);
+    XMLGregorianCalendar hour4 = Tstamp.incrementHours(base, 4);
+    double energy =
+        manager.getEnergy(source1Name, hour1, hour4, 10).getPropertyAsDouble(
+            SensorData.ENERGY_CONSUMED);
+
+    SensorDataCompactor compactor = manager.startSensorDataCompaction(null);
+    for (int i = 0; (i < 100) && !compactor.isFinished(); i++) {
+      Thread.sleep(100);
+    }
+    assertEquals("Compaction did not succeed: " + compactor, Job.State.SUCCEEDED, compactor
+        .getState());
+    assertEquals("Data without counters compacted", 0, compactor.getRowsCompacted());
+    assertEquals("Wrong number left", 37, manager.getSensorDataIndex(source1Name)
+        .getSensorDataRef().size());
+    assertEquals("Energy changed", energy, manager.getEnergy(source1Name, hour1, hour4, 10)
+        .getPropertyAsDouble(SensorData.ENERGY_CONSUMED), 0.01);
+  }
+
   /**
    * Tests that after sensor data is added to a non-virtual source, getSensorDataStraddle returns
    * the correct straddles, or null as appropriate.
@@ -840,4 +1020,322 @@ public class TestDbManagerSensorData extends DbManagerTestHelper {
     straddleList = this.manager.getSensorDataStraddleList(virtualSource, source2Time2_3);
     assertNull("straddle list was not null despite timestamp outside sensor data", straddleList);
   }
+
+  /**
+   * Tests that computed power values are served from the computed data cache when nothing has
+   * changed, and that storing or deleting sensor data of a Source (or one of the subsources of a
+   * virtual Source) discards the cached values that depend on it.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testComputedDataCacheInvalidation() throws Exception {
+    createTestData();
+    XMLGregorianCalendar time1 = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    XMLGregorianCalendar time1_2 = Tstamp.makeTimestamp("2009-07-28T09:30:00.000-10:00");
+    XMLGregorianCalendar time2 = Tstamp.makeTimestamp("2009-07-28T10:00:00.000-10:00");
+    String source1Uri = this.source1.toUri(server);
+    String source2Uri = this.source2.toUri(server);
+    String power = SensorData.POWER_CONSUMED;
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(time1, JUNIT,
+        source1Uri, new Property(power, "1000"))));
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(time2, JUNIT,
+        source1Uri, new Property(power, "2000"))));
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(time1, JUNIT,
+        source2Uri, new Property(power, "100"))));
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(time2, JUNIT,
+        source2Uri, new Property(power, "100"))));
+    String source1Name = this.source1.getName();
+    String virtualName = this.source3.getName();
+    ComputedDataCache cache = manager.getComputedDataCache();
+
+    assertEquals("Wrong interpolated power", 1500.0, manager.getPower(source1Name, time1_2)
+        .getPropertyAsDouble(power), 0.01);
+    assertEquals("Wrong virtual power", 1600.0, manager.getPower(virtualName, time1_2)
+        .getPropertyAsDouble(power), 0.01);
+    long hits = cache.getHits();
+    assertEquals("Wrong cached power", 1500.0, manager.getPower(source1Name, time1_2)
+        .getPropertyAsDouble(power), 0.01);
+    assertEquals("Repeated power request not served from cache", hits + 1, cache.getHits());
+
+    // Replacing a point of source1 must be reflected in source1 and the virtual source
+    assertTrue("Unable to delete sensor data", manager.deleteSensorData(source1Name, time2));
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(time2, JUNIT,
+        source1Uri, new Property(power, "3000"))));
+    assertEquals("Stale power after store", 2000.0, manager.getPower(source1Name, time1_2)
+        .getPropertyAsDouble(power), 0.01);
+    assertEquals("Stale virtual power after store", 2100.0, manager.getPower(virtualName,
+        time1_2).getPropertyAsDouble(power), 0.01);
+
+    // Deleting all sensor data means nothing can be computed any more
+    assertTrue("Unable to delete sensor data", manager.deleteSensorData(source1Name));
+    assertNull("Stale power after delete", manager.getPower(source1Name, time1_2));
+    assertNull("Stale virtual power after delete", manager.getPower(virtualName, time1_2));
+    assertTrue("Invalidations not counted", cache.getInvalidations() > 0);
+  }
+
+  /**
+   * Tests that energy and carbon calculations with enough samples to be split into chunks and
+   * looked up in parallel give the same results as looking up every sample in one pass.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testChunkedEnergyAndCarbon() throws Exception {
+    createTestData();
+    XMLGregorianCalendar base = Tstamp.makeTimestamp("2009-07-28T00:00:00.000-10:00");
+    // Hourly readings for a few hours from two sources with different shapes
+    for (int i = 0; i <= 5; i++) {
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(Tstamp
+          .incrementHours(base, i), JUNIT, this.source1.toUri(server), new Property(
+          SensorData.POWER_CONSUMED, Integer.toString(1000 + (i % 3) * 250)))));
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(Tstamp
+          .incrementHours(base, i), JUNIT, this.source2.toUri(server), new Property(
+          SensorData.POWER_CONSUMED, Integer.toString(2000 - i * 100)))));
+    }
+    XMLGregorianCalendar start = Tstamp.incrementMinutes(base, 7);
+    XMLGregorianCalendar end = Tstamp.incrementMinutes(base, 5 * 60 - 3);
+    SeriesCalculator calculator = new SeriesCalculator(manager, server, start, end);
+    String[] sourceNames = { this.source1.getName(), this.source3.getName() };
+    for (String sourceName : sourceNames) {
+      // one minute samples give several chunks of DbManager.CHUNK_SAMPLES
+      assertTrue("Too few samples to split", Tstamp.getTimestampList(start, end, 1).size() > 2
+          * DbManager.CHUNK_SAMPLES);
+      assertEquals("Chunked energy differs for " + sourceName, calculator.getEnergy(sourceName,
+          start, end, 1), manager.getEnergy(sourceName, start, end, 1));
+      assertEquals("Chunked carbon differs for " + sourceName, calculator.getCarbon(sourceName,
+          start, end, 1), manager.getCarbon(sourceName, start, end, 1));
+    }
+    assertNull("Energy computed before any data", manager.getEnergy(this.source3.getName(), Tstamp
+        .incrementHours(base, -1), end, 1));
+    assertNull("Carbon computed after all data", manager.getCarbon(this.source1.getName(), start,
+        Tstamp.incrementHours(end, 1), 1));
+  }
+
+  /**
+   * Tests that SeriesCalculator, which reads each source's data once for a whole window, computes
+   * the same power, energy and carbon values as the corresponding DbManager methods, for both
+   * non-virtual and virtual sources, including timestamps where no value can be computed.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testSeriesCalculator() throws Exception {
+    createTestData();
+    String source1Uri = this.source1.toUri(server);
+    String source2Uri = this.source2.toUri(server);
+    XMLGregorianCalendar base = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    // source1 every 15 minutes for two hours, source2 every 20 minutes starting later
+    for (int i = 0; i <= 8; i++) {
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(Tstamp
+          .incrementMinutes(base, i * 15), JUNIT, source1Uri, new Property(
+          SensorData.POWER_CONSUMED, Integer.toString(1000 + i * 100)))));
+    }
+    for (int i = 1; i <= 5; i++) {
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(Tstamp
+          .incrementMinutes(base, i * 20), JUNIT, source2Uri, new Property(
+          SensorData.POWER_CONSUMED, Integer.toString(500 - i * 50)))));
+    }
+    XMLGregorianCalendar beforeAll = Tstamp.incrementMinutes(base, -10);
+    // Use a window covering only part of the data, so points outside it are needed too
+    SeriesCalculator calculator =
+        new SeriesCalculator(manager, server, Tstamp.incrementMinutes(base, 5), Tstamp
+            .incrementMinutes(base, 110));
+    String[] sourceNames = { this.source1.getName(), this.source3.getName() };
+    for (String sourceName : sourceNames) {
+      for (XMLGregorianCalendar time = Tstamp.incrementMinutes(base, 5); !Tstamp.greaterThan(time,
+          Tstamp.incrementMinutes(base, 110)); time = Tstamp.incrementMinutes(time, 7)) {
+        assertEquals("Power differs at " + time, manager.getPower(sourceName, time), calculator
+            .getPower(sourceName, time));
+        XMLGregorianCalendar end = Tstamp.incrementMinutes(time, 14);
+        if (!Tstamp.greaterThan(end, Tstamp.incrementMinutes(base, 110))) {
+          assertEquals("Energy differs at " + time, manager.getEnergy(sourceName, time, end, 7),
+              calculator.getEnergy(sourceName, time, end, 7));
+          assertEquals("Carbon differs at " + time, manager.getCarbon(sourceName, time, end, 7),
+              calculator.getCarbon(sourceName, time, end, 7));
+        }
+      }
+    }
+    // Sanity check that the window actually contained computable values
+    assertNull("Power computed before any data", calculator.getPower(this.source1.getName(),
+        beforeAll));
+    assertTrue("No power computed", calculator.getPower(this.source3.getName(), Tstamp
+        .incrementMinutes(base, 50)) != null);
+    assertNull("Unknown source computed", calculator.getPower("bogus-source", base));
+
+    // The power series walk gives the same points as getPower, leaving out missing ones
+    XMLGregorianCalendar seriesStart = Tstamp.incrementMinutes(base, -5);
+    XMLGregorianCalendar seriesEnd = Tstamp.incrementMinutes(base, 110);
+    for (String sourceName : sourceNames) {
+      List<SensorData> expected = new ArrayList<SensorData>();
+      for (XMLGregorianCalendar time : Tstamp.getTimestampList(seriesStart, seriesEnd, 5)) {
+        SensorData power = manager.getPower(sourceName, time);
+        if (power != null) {
+          expected.add(power);
+        }
+      }
+      assertEquals("Power series differs for " + sourceName, expected, manager.getPowerSeries(
+          sourceName, seriesStart, seriesEnd, 5).getSensorData());
+    }
+    assertNull("Unknown source computed", manager.getPowerSeries("bogus-source", seriesStart,
+        seriesEnd, 5));
+
+    // Every reading is on a 5 minute boundary, so sampling every 5 minutes is exact as well
+    XMLGregorianCalendar exactStart = Tstamp.incrementMinutes(base, 20);
+    XMLGregorianCalendar exactEnd = Tstamp.incrementMinutes(base, 100);
+    for (String sourceName : sourceNames) {
+      SensorData exact = manager.getExactEnergy(sourceName, exactStart, exactEnd);
+      assertEquals("Exact energy differs for " + sourceName, manager.getEnergy(sourceName,
+          exactStart, exactEnd, 5).getPropertyAsDouble(SensorData.ENERGY_CONSUMED), exact
+          .getPropertyAsDouble(SensorData.ENERGY_CONSUMED), 0.001);
+      assertEquals("Exact energy has wrong timestamp", exactStart, exact.getTimestamp());
+    }
+    assertNull("Exact energy computed before any data", manager.getExactEnergy(this.source3
+        .getName(), base, exactEnd));
+    assertNull("Unknown source computed", manager.getExactEnergy("bogus-source", exactStart,
+        exactEnd));
+
+    // Bucketed energy and carbon match getEnergy and getCarbon for each bucket
+    List<XMLGregorianCalendar> boundaries = Tstamp.getBucketList(seriesStart, seriesEnd, "25");
+    for (String sourceName : sourceNames) {
+      List<SensorData> expectedEnergy = new ArrayList<SensorData>();
+      List<SensorData> expectedCarbon = new ArrayList<SensorData>();
+      for (int i = 0; i < boundaries.size() - 1; i++) {
+        SensorData energy =
+            manager.getEnergy(sourceName, boundaries.get(i), boundaries.get(i + 1), 5);
+        if (energy != null) {
+          expectedEnergy.add(energy);
+        }
+        SensorData carbon =
+            manager.getCarbon(sourceName, boundaries.get(i), boundaries.get(i + 1), 5);
+        if (carbon != null) {
+          expectedCarbon.add(carbon);
+        }
+      }
+      assertEquals("Energy series differs for " + sourceName, expectedEnergy, manager
+          .getEnergySeries(sourceName, seriesStart, seriesEnd, "25", 5).getSensorData());
+      assertEquals("Carbon series differs for " + sourceName, expectedCarbon, manager
+          .getCarbonSeries(sourceName, seriesStart, seriesEnd, "25", 5).getSensorData());
+    }
+  }
+
+  /**
+   * Tests getSensorDataStatistics, with buckets that span the end of a month, since some
+   * DbImplementations store each month separately, and readings without a usable power value.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testSensorDataStatistics() throws Exception {
+    createTestData();
+    String source1Uri = this.source1.toUri(server);
+    // Every 15 minutes from 22:00 UTC on October 31 until 02:00 UTC on November 1
+    XMLGregorianCalendar base = Tstamp.makeTimestamp("2009-10-31T12:00:00.000-10:00");
+    for (int i = 0; i <= 16; i++) {
+      String power = (i == 5) ? "unknown" : Integer.toString(i * 100);
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(new SensorData(Tstamp
+          .incrementMinutes(base, i * 15), JUNIT, source1Uri, new Property(
+          SensorData.POWER_CONSUMED, power))));
+    }
+    // Hour buckets from 22:30, so the second one holds the end of October and start of November,
+    // and the last is a runt that does not include the 02:00 reading
+    XMLGregorianCalendar start = Tstamp.incrementMinutes(base, 30);
+    XMLGregorianCalendar end = Tstamp.incrementMinutes(base, 240);
+    List<SensorDataStatistics> statistics =
+        manager.getSensorDataStatistics(this.source1.getName(), start, end, "60");
+    assertEquals("Wrong number of buckets", 4, statistics.size());
+    long[] counts = { 4, 4, 4, 2 };
+    int[] firsts = { 2, 6, 10, 14 };
+    double[] averages = { 300, 750, 1150, 1450 };
+    // Pairs that end on or cross a bucket boundary count in the buckets they span, and the last
+    // pair is clipped at the end of the range by the 02:00 reading just outside it
+    double[] energies = { 150, 800, 1200, 750 };
+    for (int i = 0; i < 4; i++) {
+      SensorDataStatistics bucket = statistics.get(i);
+      assertEquals("Wrong bucket start", Tstamp.incrementMinutes(start, i * 60), bucket.getStart());
+      assertEquals("Wrong count", counts[i], bucket.getCount());
+      assertEquals("Wrong first timestamp", Tstamp.incrementMinutes(base, firsts[i] * 15), bucket
+          .getFirstTimestamp());
+      assertEquals("Wrong last timestamp", Tstamp.incrementMinutes(base,
+          (firsts[i] + (int) counts[i] - 1) * 15), bucket.getLastTimestamp());
+      assertEquals("Wrong average power", averages[i], bucket.getAveragePowerConsumed(), 0.001);
+      assertEquals("Wrong energy", energies[i], bucket.getEnergyConsumed(), 0.001);
+      assertTrue("Energy not complete", bucket.isEnergyComplete());
+    }
+    assertEquals("Wrong minimum power", 200, statistics.get(0).getMinPowerConsumed(), 0.001);
+    assertEquals("Wrong maximum power", 400, statistics.get(0).getMaxPowerConsumed(), 0.001);
+    assertEquals("Wrong minimum power", 600, statistics.get(1).getMinPowerConsumed(), 0.001);
+    assertEquals("Wrong maximum power", 900, statistics.get(1).getMaxPowerConsumed(), 0.001);
+
+    // A virtual source covers all its subsources, of which only source1 has data
+    List<SensorDataStatistics> virtualStatistics =
+        manager.getSensorDataStatistics(this.source3.getName(), start, end, "60");
+    for (int i = 0; i < 4; i++) {
+      assertEquals("Wrong virtual count", counts[i], virtualStatistics.get(i).getCount());
+      assertEquals("Wrong virtual energy", energies[i], virtualStatistics.get(i)
+          .getEnergyConsumed(), 0.001);
+    }
+    List<SensorDataStatistics> empty =
+        manager.getSensorDataStatistics(this.source1.getName(), Tstamp.incrementDays(base, -2),
+            Tstamp.incrementDays(base, -1), Tstamp.DAY_BUCKET);
+    assertEquals("Wrong empty count", 0, empty.get(0).getCount());
+    assertNull("Empty bucket has power", empty.get(0).getAveragePowerConsumed());
+    assertNull("Unknown source computed", manager.getSensorDataStatistics("bogus-source", start,
+        end, "60"));
+  }
+
+  /**
+   * Tests that the exact energy series aggregated by getSensorDataStatistics gives the same value
+   * for each bucket as SeriesCalculator.getExactEnergy, with readings at irregular times across the
+   * end of a month, a range that starts between readings and buckets past the last reading.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testExactEnergySeries() throws Exception {
+    createTestData();
+    String sourceName = this.source1.getName();
+    String source1Uri = this.source1.toUri(server);
+    XMLGregorianCalendar base = Tstamp.makeTimestamp("2009-10-31T12:00:00.000-10:00");
+    int[] minutes = { 0, 7, 19, 33, 50, 58, 71, 96, 110, 130 };
+    for (int i = 0; i < minutes.length; i++) {
+      SensorData data =
+          new SensorData(Tstamp.incrementMinutes(base, minutes[i]), JUNIT, source1Uri,
+              new Property(SensorData.POWER_CONSUMED, Integer.toString(100 + (i * 37) % 250)));
+      data.addProperty(new Property(SensorData.POWER_GENERATED, Integer.toString(i * 10)));
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(data));
+    }
+    XMLGregorianCalendar start = Tstamp.incrementMinutes(base, 3);
+    XMLGregorianCalendar end = Tstamp.incrementMinutes(base, 150);
+    SeriesCalculator calculator = new SeriesCalculator(manager, server, start, end);
+    List<SensorData> expected = new ArrayList<SensorData>();
+    List<XMLGregorianCalendar> boundaries = Tstamp.getBucketList(start, end, "20");
+    for (int i = 0; i < boundaries.size() - 1; i++) {
+      SensorData energy =
+          calculator.getExactEnergy(sourceName, boundaries.get(i), boundaries.get(i + 1));
+      if (energy != null) {
+        expected.add(energy);
+      }
+    }
+    assertEquals("Wrong number of computable buckets", 6, expected.size());
+    List<SensorData> series =
+        manager.getExactEnergySeries(sourceName, start, end, "20").getSensorData();
+    assertEquals("Exact energy series has wrong length", expected.size(), series.size());
+    for (int i = 0; i < series.size(); i++) {
+      assertEquals("Wrong bucket timestamp", expected.get(i).getTimestamp(), series.get(i)
+          .getTimestamp());
+      assertEquals("Energy consumed differs", expected.get(i).getPropertyAsDouble(
+          SensorData.ENERGY_CONSUMED), series.get(i).getPropertyAsDouble(
+          SensorData.ENERGY_CONSUMED), 0.001);
+      assertEquals("Energy generated differs", expected.get(i).getPropertyAsDouble(
+          SensorData.ENERGY_GENERATED), series.get(i).getPropertyAsDouble(
+          SensorData.ENERGY_GENERATED), 0.001);
+    }
+    XMLGregorianCalendar last = Tstamp.incrementMinutes(base, 125);
+    assertEquals("Exact energy differs", calculator.getExactEnergy(sourceName, start, last)
+        .getPropertyAsDouble(SensorData.ENERGY_CONSUMED), manager.getExactEnergy(sourceName,
+        start, last).getPropertyAsDouble(SensorData.ENERGY_CONSUMED), 0.001);
+    assertNull("Exact energy computed past the data", manager.getExactEnergy(sourceName, start,
+        end));
+  }
 }
@@ -0,0 +1,123 @@
+package org.wattdepot.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.wattdepot.server.ServerProperties.DB_IMPL_KEY;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.user.jaxb.User;
+import org.wattdepot.server.Server;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests the ExistenceFilter class against the DbImplementation specified in the ServerProperties.
+ *
+ * @author Robert Brewer
+ */
+public class TestExistenceFilter {
+
+  /** Name of the source used for testing. */
+  private static final String sourceName = "saunders-hall";
+
+  /** The server being used for these tests. */
+  private static Server server;
+
+  /** The storage the filter is built from. */
+  private DbImplementation dbImpl;
+
+  /**
+   * Creates a test server to use for this set of tests.
+   *
+   * @throws Exception If a problem is encountered.
+   */
+  @BeforeClass
+  public static void startServer() throws Exception {
+    TestExistenceFilter.server = Server.newTestInstance();
+  }
+
+  /**
+   * Creates fresh storage holding the test Source.
+   *
+   * @throws Exception If a problem is encountered.
+   */
+  @Before
+  public void makeDb() throws Exception {
+    String dbClassName = server.getServerProperties().get(DB_IMPL_KEY);
+    this.dbImpl =
+        (DbImplementation) Class.forName(dbClassName).getConstructor(Server.class).newInstance(
+            server);
+    this.dbImpl.initialize(true);
+    User owner = new User("joebogus@example.com", "totally-bogus", false, null);
+    assertTrue("Unable to store user", this.dbImpl.storeUser(owner));
+    assertTrue("Unable to store source", this.dbImpl.storeSource(new Source(sourceName, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null)));
+  }
+
+  /**
+   * Returns the timestamp of the given minute of a test day.
+   *
+   * @param minute The minute after the start of the day.
+   * @return The timestamp.
+   * @throws Exception If a problem is encountered.
+   */
+  private static XMLGregorianCalendar minute(int minute) throws Exception {
+    return Tstamp.incrementMinutes(Tstamp.makeTimestamp("2009-10-12T00:00:00.000-10:00"), minute);
+  }
+
+  /**
+   * Tests that stored SensorData is never reported absent, whether it was in storage when the
+   * filter was built or added later, and that regularly sampled new readings are almost always
+   * reported absent, even after the filter has grown.
+   *
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testMightContain() throws Exception {
+    String sourceUri = Source.sourceToUri(sourceName, server);
+    for (int i = 0; i < 50; i++) {
+      assertTrue("Unable to store data", this.dbImpl.storeSensorData(new SensorData(minute(i),
+          "JUnit", sourceUri)));
+    }
+    ExistenceFilter filter = new ExistenceFilter(this.dbImpl, 20);
+    // Until its filter is built a Source's stored data is reported "maybe present"
+    assertTrue("Unbuilt filter reported data absent", filter.mightContain(sourceName, minute(0)));
+    filter.rebuildAll();
+    assertEquals("Wrong number of rebuilds", 1, filter.getRebuilds());
+    for (int i = 0; i < 50; i++) {
+      assertTrue("Stored data reported absent", filter.mightContain(sourceName, minute(i)));
+    }
+
+    // Adding more than the filter was sized for makes it rebuild itself from storage
+    for (int i = 50; i < 200; i++) {
+      assertTrue("Unable to store data", this.dbImpl.storeSensorData(new SensorData(minute(i),
+          "JUnit", sourceUri)));
+      filter.add(sourceName, minute(i));
+    }
+    assertTrue("Filter did not grow", filter.getRebuilds() > 1);
+    for (int i = 0; i < 200; i++) {
+      assertTrue("Stored data reported absent", filter.mightContain(sourceName, minute(i)));
+    }
+
+    long absentBefore = filter.getAbsent();
+    int maybe = 0;
+    for (int i = 200; i < 1200; i++) {
+      if (filter.mightContain(sourceName, minute(i))) {
+        maybe++;
+      }
+    }
+    assertTrue("Too many false positives: " + maybe, maybe < 50);
+    assertEquals("Absent count wrong", absentBefore + 1000 - maybe, filter.getAbsent());
+    assertTrue("Source without a filter reported absent", filter.mightContain("bogus", minute(0)));
+
+    // Rebuilding replaces each filter with a complete new one
+    filter.rebuildAll();
+    for (int i = 0; i < 200; i++) {
+      assertTrue("Stored data reported absent", filter.mightContain(sourceName, minute(i)));
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package org.wattdepot.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.wattdepot.server.ServerProperties.DB_IMPL_KEY;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.user.jaxb.User;
+import org.wattdepot.server.Server;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests the IngestQueue class against the DbImplementation specified in the ServerProperties.
+ * 
+ * @author Robert Brewer
+ */
+public class TestIngestQueue {
+
+  /** Name of the source used for testing. */
+  private static final String sourceName = "saunders-hall";
+
+  /** The server being used for these tests. */
+  private static Server server;
+
+  /** The storage the queue writes to. */
+  private DbImplementation dbImpl;
+
+  /** The journal directory. */
+  private File directory;
+
+  /**
+   * Creates a test server to use for this set of tests.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @BeforeClass
+  public static void startServer() throws Exception {
+    TestIngestQueue.server = Server.newTestInstance();
+  }
+
+  /**
+   * Creates fresh storage holding the test Source, and an empty journal directory.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Before
+  public void makeDb() throws Exception {
+    String dbClassName = server.getServerProperties().get(DB_IMPL_KEY);
+    this.dbImpl =
+        (DbImplementation) Class.forName(dbClassName).getConstructor(Server.class).newInstance(
+            server);
+    this.dbImpl.initialize(true);
+    User owner = new User("joebogus@example.com", "totally-bogus", false, null);
+    assertTrue("Unable to store user", this.dbImpl.storeUser(owner));
+    assertTrue("Unable to store source", this.dbImpl.storeSource(new Source(sourceName, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null)));
+    this.directory = File.createTempFile("ingest", "");
+    assertTrue("Unable to delete temp file", this.directory.delete());
+  }
+
+  /**
+   * Deletes the journal directory.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @After
+  public void deleteDirectory() throws Exception {
+    IngestQueue.deleteJournal(this.directory);
+    this.directory.delete();
+  }
+
+  /**
+   * Makes SensorData for the test Source.
+   * 
+   * @param timestamp The timestamp.
+   * @param power The power consumed.
+   * @return The SensorData.
+   */
+  private SensorData makeData(XMLGregorianCalendar timestamp, String power) {
+    return new SensorData(timestamp, "JUnit", Source.sourceToUri(sourceName, server),
+        new Property(SensorData.POWER_CONSUMED, power));
+  }
+
+  /**
+   * Makes an IngestQueue whose writer waits for the given latch after storing each SensorData.
+   * 
+   * @param release The latch the writer waits for.
+   * @return The queue.
+   * @throws Exception If a problem is encountered.
+   */
+  private IngestQueue makeBlockedQueue(final CountDownLatch release) throws Exception {
+    return new IngestQueue(this.dbImpl, this.directory, 10, server.getLogger()) {
+      @Override
+      protected void stored(SensorData data) {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  /**
+   * Tests that SensorData waiting to be stored can be read back, that duplicates are refused, and
+   * that a flush gives up while the writer is stuck, and that everything is stored and the journal
+   * emptied after a flush.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testReadYourWrites() throws Exception {
+    XMLGregorianCalendar timestamp1 = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    XMLGregorianCalendar timestamp2 = Tstamp.incrementMinutes(timestamp1, 15);
+    XMLGregorianCalendar timestamp3 = Tstamp.incrementMinutes(timestamp1, 30);
+    SensorData data1 = makeData(timestamp1, "10000"), data2 = makeData(timestamp2, "11000");
+    SensorData data3 = makeData(timestamp3, "9500");
+    CountDownLatch release = new CountDownLatch(1);
+    IngestQueue queue = makeBlockedQueue(release);
+    try {
+      assertTrue("Unable to append data1", queue.append(data1));
+      assertTrue("Unable to append data2", queue.append(data2));
+      assertTrue("Unable to append data3", queue.append(data3));
+      assertEquals("Queued data not readable", data2, queue.getSensorData(sourceName, timestamp2));
+      assertEquals("Queued latest data not readable", data3, queue
+          .getLatestSensorData(sourceName));
+      assertFalse("Duplicate data appended", queue.append(makeData(timestamp3, "1")));
+      assertTrue("Queue unexpectedly empty", queue.getDepth() >= 2);
+      assertTrue("Journal unexpectedly empty", queue.getJournalBytes() > 0);
+      assertFalse("Flush of a stuck writer did not time out", queue.flush(100));
+    }
+    finally {
+      release.countDown();
+    }
+    assertTrue("Flush timed out", queue.flush());
+    assertEquals("Queue not empty after flush", 0, queue.getDepth());
+    assertEquals("Wrong appended count", 3, queue.getAppended());
+    assertEquals("Wrong applied count", 3, queue.getApplied());
+    assertEquals("Wrong refused count", 0, queue.getFailed());
+    assertTrue("No journal forces counted", queue.getSyncCount() > 0);
+    assertEquals("Journal not emptied", 0, queue.getJournalBytes());
+    assertNull("Stored data still queued", queue.getSensorData(sourceName, timestamp2));
+    assertEquals("Data not stored", data2, this.dbImpl.getSensorData(sourceName, timestamp2));
+    assertEquals("Latest data not stored", data3, this.dbImpl.getLatestSensorData(sourceName));
+    queue.close();
+  }
+
+  /**
+   * Tests that SensorData left in the journal is stored when a new queue is created, even if the
+   * last record of the journal was cut short.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testReplay() throws Exception {
+    XMLGregorianCalendar timestamp1 = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    CountDownLatch release = new CountDownLatch(1);
+    IngestQueue crashed = makeBlockedQueue(release);
+    try {
+      for (int i = 0; i < 5; i++) {
+        assertTrue("Unable to append data", crashed.append(makeData(Tstamp.incrementMinutes(
+            timestamp1, i), Integer.toString(i))));
+      }
+      // Simulate a record that was only partly written when the server stopped
+      File[] segments = this.directory.listFiles();
+      assertEquals("Wrong number of journal segments", 1, segments.length);
+      FileOutputStream output = new FileOutputStream(segments[0], true);
+      output.write(new byte[] { 0, 0, 0, 50, 1, 2 });
+      output.close();
+
+      // The writer of the first queue is stuck, so data after the first is only in the journal
+      assertNull("Data stored too soon", this.dbImpl.getSensorData(sourceName, Tstamp
+          .incrementMinutes(timestamp1, 4)));
+      IngestQueue restarted = new IngestQueue(this.dbImpl, this.directory, 10, server.getLogger());
+      for (int i = 0; i < 5; i++) {
+        assertTrue("Journaled data not replayed", this.dbImpl.hasSensorData(sourceName, Tstamp
+            .incrementMinutes(timestamp1, i)));
+      }
+      assertEquals("Replayed journal not deleted", 0, restarted.getJournalBytes());
+      restarted.close();
+    }
+    finally {
+      release.countDown();
+    }
+    crashed.close();
+  }
+}
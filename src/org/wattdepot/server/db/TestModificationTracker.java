@@ -0,0 +1,46 @@
+package org.wattdepot.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Tests the ModificationTracker class.
+ * 
+ * @author Robert Brewer
+ */
+public class TestModificationTracker {
+
+  /** One day in milliseconds. */
+  private static final long DAY = 24L * 60 * 60 * 1000;
+
+  /**
+   * Tests that the version of a range only changes when data in the range, all the data, or the
+   * Sources change.
+   */
+  @Test
+  public void testRangeVersion() {
+    ModificationTracker tracker = new ModificationTracker();
+    List<String> sourceNames = Arrays.asList("source1");
+    Map<String, ComputedDataCache.Window> windows = new HashMap<String, ComputedDataCache.Window>();
+    windows.put("source1", new ComputedDataCache.Window(10 * DAY, 12 * DAY));
+    String version = tracker.getRangeVersion(sourceNames, windows).getVersion();
+    tracker.sensorDataChanged("source1", 20 * DAY, 20 * DAY);
+    tracker.sensorDataChanged("source2", 11 * DAY, 11 * DAY);
+    assertEquals("Change outside range changed version", version, tracker.getRangeVersion(
+        sourceNames, windows).getVersion());
+    tracker.sensorDataChanged("source1", 12 * DAY + 1, 12 * DAY + 1);
+    String changed = tracker.getRangeVersion(sourceNames, windows).getVersion();
+    assertFalse("Change inside range kept version", version.equals(changed));
+    tracker.sensorDataChanged("source1");
+    String all = tracker.getRangeVersion(sourceNames, windows).getVersion();
+    assertFalse("Change to all data kept version", changed.equals(all));
+    tracker.sourcesChanged();
+    assertFalse("Change to Sources kept version", all.equals(tracker.getRangeVersion(
+        sourceNames, windows).getVersion()));
+  }
+}
@@ -0,0 +1,150 @@
+package org.wattdepot.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Tests the RequestCoalescer class.
+ * 
+ * @author Robert Brewer
+ */
+public class TestRequestCoalescer {
+
+  /**
+   * A computation that counts its runs and blocks until released.
+   */
+  private static class BlockingComputation implements Callable<String> {
+    /** Number of times the computation has run. */
+    private final AtomicInteger runs = new AtomicInteger();
+    /** Counted down when the computation starts. */
+    private final CountDownLatch started = new CountDownLatch(1);
+    /** The computation waits for this before returning. */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * Runs the computation.
+     * 
+     * @return The result.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public String call() throws InterruptedException {
+      int run = this.runs.incrementAndGet();
+      this.started.countDown();
+      this.release.await(10, TimeUnit.SECONDS);
+      return "result" + run;
+    }
+  }
+
+  /**
+   * Waits until the coalescer has seen the given number of coalesced calls.
+   * 
+   * @param coalescer The coalescer.
+   * @param count The number of coalesced calls to wait for.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  private void waitForCoalesced(RequestCoalescer coalescer, long count)
+      throws InterruptedException {
+    for (int i = 0; (i < 1000) && (coalescer.getCoalesced() < count); i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Tests that concurrent calls with the same key share one computation, and that the key is
+   * released afterwards.
+   * 
+   * @throws Exception If there are problems with the threads.
+   */
+  @Test
+  public void testCoalescing() throws Exception {
+    final RequestCoalescer coalescer = new RequestCoalescer(10000);
+    final BlockingComputation computation = new BlockingComputation();
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Callable<String> call = new Callable<String>() {
+        public String call() throws Exception {
+          return coalescer.execute("key", computation);
+        }
+      };
+      Future<String> first = executor.submit(call);
+      assertTrue("Computation never started", computation.started.await(10, TimeUnit.SECONDS));
+      Future<String> second = executor.submit(call);
+      Future<String> third = executor.submit(call);
+      waitForCoalesced(coalescer, 2);
+      computation.release.countDown();
+      assertEquals("Wrong result", "result1", first.get());
+      assertEquals("Result not shared", "result1", second.get());
+      assertEquals("Result not shared", "result1", third.get());
+      assertEquals("Computation not shared", 1, computation.runs.get());
+      assertEquals("Wrong coalesced count", 2, coalescer.getCoalesced());
+      assertEquals("Key not released", 0, coalescer.getInFlightCount());
+      assertEquals("Later call not run again", "result2", coalescer.execute("key", computation));
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests that a waiting call runs the computation itself when the wait times out.
+   * 
+   * @throws Exception If there are problems with the threads.
+   */
+  @Test
+  public void testTimeout() throws Exception {
+    final RequestCoalescer coalescer = new RequestCoalescer(50);
+    final BlockingComputation slow = new BlockingComputation();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(new Callable<String>() {
+        public String call() throws Exception {
+          return coalescer.execute("key", slow);
+        }
+      });
+      assertTrue("Computation never started", slow.started.await(10, TimeUnit.SECONDS));
+      String result = coalescer.execute("key", new Callable<String>() {
+        public String call() {
+          return "fallback";
+        }
+      });
+      assertEquals("Timed out call did not run its own computation", "fallback", result);
+      assertEquals("Wrong timeout count", 1, coalescer.getTimeouts());
+      slow.release.countDown();
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests that exceptions thrown by the computation reach the caller unwrapped.
+   */
+  @Test
+  public void testException() {
+    RequestCoalescer coalescer = new RequestCoalescer(1000);
+    try {
+      coalescer.execute("key", new Callable<String>() {
+        public String call() {
+          throw new IllegalArgumentException("expected");
+        }
+      });
+      fail("Exception not propagated");
+    }
+    catch (IllegalArgumentException e) { // NOPMD
+      // expected
+    }
+    catch (Exception e) {
+      fail("Exception was wrapped: " + e);
+    }
+    assertEquals("Key not released after exception", 0, coalescer.getInFlightCount());
+  }
+}
@@ -0,0 +1,220 @@
+package org.wattdepot.server.db.berkeleydb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Records which BerkeleyDB log files a backup directory holds, with the size and CRC-32 checksum
+ * of each, and the id of the last log file of the last backup that completed. The manifest is
+ * saved as a properties file in the backup directory, written to a temporary file and renamed so
+ * that a crash never leaves it half written. Because each log file is recorded as soon as it has
+ * been copied, a backup that was interrupted can be resumed without copying those files again.
+ * 
+ * @author Robert Brewer
+ */
+public class BackupManifest {
+
+  /** The name of the manifest file in the backup directory. */
+  public static final String FILENAME = "backup.manifest";
+
+  /** The suffix of files being written, which are renamed once complete. */
+  static final String TEMP_SUFFIX = ".tmp";
+
+  /** The prefix of the properties recording log files. */
+  private static final String FILE_PREFIX = "file.";
+
+  /** The property recording the id of the last log file of the last completed backup. */
+  private static final String LAST_FILE_KEY = "lastfile";
+
+  /** The size of the buffer used to compute checksums. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The backup directory. */
+  private final File backupDir;
+
+  /** The recorded files and last file id. */
+  private final Properties entries = new Properties();
+
+  /**
+   * Creates a new empty BackupManifest for the given backup directory.
+   * 
+   * @param backupDir The backup directory.
+   */
+  public BackupManifest(File backupDir) {
+    this.backupDir = backupDir;
+  }
+
+  /**
+   * Loads the manifest saved in the backup directory, if there is one. If it cannot be read the
+   * manifest is left empty, so the next backup is full.
+   * 
+   * @throws IOException If the saved manifest cannot be read.
+   */
+  public synchronized void load() throws IOException {
+    File file = new File(this.backupDir, FILENAME);
+    if (!file.exists()) {
+      return;
+    }
+    InputStream in = new FileInputStream(file);
+    try {
+      this.entries.load(in);
+    }
+    catch (IOException e) {
+      this.entries.clear();
+      throw e;
+    }
+    catch (IllegalArgumentException e) {
+      // Thrown for malformed escapes
+      this.entries.clear();
+      throw new IOException("Malformed backup manifest " + file, e);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the id of the last log file of the last backup that completed.
+   * 
+   * @return The id, or -1 if no backup has completed, meaning the next backup must be full.
+   */
+  public synchronized long getLastFileId() {
+    String value = this.entries.getProperty(LAST_FILE_KEY);
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value, 16);
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Records the id of the last log file of a backup that has completed.
+   * 
+   * @param id The id.
+   */
+  public synchronized void setLastFileId(long id) {
+    this.entries.setProperty(LAST_FILE_KEY, Long.toHexString(id));
+  }
+
+  /**
+   * Records that a log file has been copied into the backup directory.
+   * 
+   * @param name The name of the log file.
+   * @param size The number of bytes in the file.
+   * @param checksum The CRC-32 checksum of the file.
+   */
+  public synchronized void recordFile(String name, long size, long checksum) {
+    this.entries.setProperty(FILE_PREFIX + name, size + " " + Long.toHexString(checksum));
+  }
+
+  /**
+   * Returns true if a log file of the given size has already been copied into the backup
+   * directory. BerkeleyDB never changes a log file once it is part of a backup set, so a file
+   * recorded with the same size that is still present in the backup does not need copying again.
+   * 
+   * @param name The name of the log file.
+   * @param size The number of bytes in the log file.
+   * @return True if the file is already in the backup.
+   */
+  public synchronized boolean isCopied(String name, long size) {
+    String value = this.entries.getProperty(FILE_PREFIX + name);
+    if (value == null) {
+      return false;
+    }
+    File copy = new File(this.backupDir, name);
+    return value.startsWith(size + " ") && copy.exists() && (copy.length() == size);
+  }
+
+  /**
+   * Writes the manifest to the backup directory, replacing the previous one only once the new one
+   * is completely written.
+   * 
+   * @throws IOException If the manifest cannot be written.
+   */
+  public synchronized void save() throws IOException {
+    File file = new File(this.backupDir, FILENAME);
+    File temp = new File(this.backupDir, FILENAME + TEMP_SUFFIX);
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      this.entries.store(out, "WattDepot BerkeleyDB backup manifest");
+      out.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+    rename(temp, file);
+  }
+
+  /**
+   * Checks every recorded file in the backup directory against its recorded size and checksum.
+   * 
+   * @return A new list of the names of the files that are missing or do not match.
+   * @throws IOException If a file cannot be read.
+   */
+  public synchronized List<String> verify() throws IOException {
+    List<String> bad = new ArrayList<String>();
+    for (String key : this.entries.stringPropertyNames()) {
+      if (!key.startsWith(FILE_PREFIX)) {
+        continue;
+      }
+      String name = key.substring(FILE_PREFIX.length());
+      String[] fields = this.entries.getProperty(key).split(" ");
+      File copy = new File(this.backupDir, name);
+      if ((fields.length != 2) || !copy.exists()
+          || (copy.length() != Long.parseLong(fields[0]))
+          || (checksum(copy) != Long.parseLong(fields[1], 16))) {
+        bad.add(name);
+      }
+    }
+    return bad;
+  }
+
+  /**
+   * Computes the CRC-32 checksum of a file.
+   * 
+   * @param file The file.
+   * @return The checksum.
+   * @throws IOException If the file cannot be read.
+   */
+  static long checksum(File file) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    InputStream in = new FileInputStream(file);
+    try {
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        crc.update(buffer, 0, count);
+      }
+    }
+    finally {
+      in.close();
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Renames a completely written temporary file to its final name, replacing any file already
+   * there.
+   * 
+   * @param temp The temporary file.
+   * @param target The final name.
+   * @throws IOException If the file cannot be renamed.
+   */
+  static void rename(File temp, File target) throws IOException {
+    // Renaming over an existing file fails on some platforms
+    if (!temp.renameTo(target) && (!target.delete() || !temp.renameTo(target))) {
+      throw new IOException("Unable to rename " + temp + " to " + target);
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package org.wattdepot.server.db.berkeleydb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.wattdepot.server.db.SnapshotProgress;
+
+/**
+ * Copies the BerkeleyDB log files of a backup set into the backup directory, several at a time.
+ * Each file is written under a temporary name while its checksum is computed, synced to disk,
+ * renamed to its real name, and then recorded in the BackupManifest. Files the manifest already
+ * records are not copied again, so a backup that was interrupted resumes where it stopped, and a
+ * temporary file left behind by the interruption is never mistaken for a complete copy.
+ * 
+ * @author Robert Brewer
+ */
+public class BackupWriter {
+
+  /** The size of the buffer each copy uses, and how often progress is reported within a file. */
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  /** The BerkeleyDB data directory the log file names are relative to. */
+  private final File dataDir;
+
+  /** The backup directory. */
+  private final File backupDir;
+
+  /** Records the files copied. */
+  private final BackupManifest manifest;
+
+  /** The most files copied at once. */
+  private final int threads;
+
+  /** Where problems are reported. */
+  private final Logger logger;
+
+  /** Guards the totals, which the copying threads update. */
+  private final Object progressLock = new Object();
+
+  /** Receives the totals copied so far, or null. */
+  private SnapshotProgress progress;
+
+  /** The bytes copied or found already copied so far. */
+  private long bytesCopied;
+
+  /** The files copied or found already copied so far. */
+  private int filesDone;
+
+  /**
+   * Creates a new BackupWriter.
+   * 
+   * @param dataDir The BerkeleyDB data directory the log file names are relative to.
+   * @param backupDir The backup directory.
+   * @param manifest Records the files copied.
+   * @param threads The most files copied at once.
+   * @param logger Where problems are reported.
+   */
+  public BackupWriter(File dataDir, File backupDir, BackupManifest manifest, int threads,
+      Logger logger) {
+    this.dataDir = dataDir;
+    this.backupDir = backupDir;
+    this.manifest = manifest;
+    this.threads = Math.max(1, threads);
+    this.logger = logger;
+  }
+
+  /**
+   * Copies the given log files into the backup directory, skipping those already there. Returns
+   * once every file has been copied or has failed.
+   * 
+   * @param filenames The log files in the backup set, relative to the data directory.
+   * @param progress Receives the bytes and files copied as the backup goes, or null.
+   * @return True if every file is now in the backup, false if any could not be copied.
+   */
+  public synchronized boolean write(String[] filenames, SnapshotProgress progress) {
+    this.progress = progress;
+    this.bytesCopied = 0;
+    this.filesDone = 0;
+    removeTempFiles();
+
+    List<File> toCopy = new ArrayList<File>();
+    for (String filename : filenames) {
+      File source = new File(this.dataDir, filename);
+      if (this.manifest.isCopied(source.getName(), source.length())) {
+        addProgress(source.length(), true);
+      }
+      else {
+        toCopy.add(source);
+      }
+    }
+    if (toCopy.isEmpty()) {
+      return true;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.threads, toCopy.size()));
+    List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+    for (final File source : toCopy) {
+      results.add(executor.submit(new Callable<Boolean>() {
+        public Boolean call() {
+          return copy(source);
+        }
+      }));
+    }
+    executor.shutdown();
+    boolean success = true;
+    try {
+      for (Future<Boolean> result : results) {
+        success &= result.get();
+      }
+    }
+    catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      success = false;
+    }
+    catch (ExecutionException e) {
+      this.logger.warning("BerkeleyDB: Backup copy failed: " + e.getCause());
+      success = false;
+    }
+    return success;
+  }
+
+  /**
+   * Copies one log file into the backup directory and records it in the manifest.
+   * 
+   * @param source The log file.
+   * @return True if the file was copied.
+   */
+  private boolean copy(File source) {
+    File temp = new File(this.backupDir, source.getName() + BackupManifest.TEMP_SUFFIX);
+    File target = new File(this.backupDir, source.getName());
+    FileChannel in = null;
+    FileChannel out = null;
+    CRC32 crc = new CRC32();
+    long size = 0;
+    try {
+      in = new FileInputStream(source).getChannel();
+      out = new FileOutputStream(temp).getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        crc.update(buffer.array(), 0, count);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+        buffer.clear();
+        size += count;
+        addProgress(count, false);
+        if (Thread.currentThread().isInterrupted()) {
+          return false;
+        }
+      }
+      out.force(true);
+    }
+    catch (IOException e) {
+      this.logger.warning("BerkeleyDB: Could not copy file " + source.getName() + ": " + e);
+      return false;
+    }
+    finally {
+      try {
+        if (in != null) {
+          in.close();
+        }
+        if (out != null) {
+          out.close();
+        }
+      }
+      catch (IOException e) {
+        this.logger.warning("BerkeleyDB: Could not close source and dest channels.");
+      }
+    }
+    try {
+      BackupManifest.rename(temp, target);
+      this.manifest.recordFile(source.getName(), size, crc.getValue());
+      this.manifest.save();
+    }
+    catch (IOException e) {
+      this.logger.warning("BerkeleyDB: Could not record backup of " + source.getName() + ": " + e);
+      return false;
+    }
+    addProgress(0, true);
+    return true;
+  }
+
+  /**
+   * Adds to the totals copied and reports them.
+   * 
+   * @param bytes The bytes to add.
+   * @param fileDone True if a file has been completed.
+   */
+  private void addProgress(long bytes, boolean fileDone) {
+    synchronized (this.progressLock) {
+      this.bytesCopied += bytes;
+      if (fileDone) {
+        this.filesDone++;
+      }
+      if (this.progress != null) {
+        this.progress.update(this.bytesCopied, this.filesDone);
+      }
+    }
+  }
+
+  /**
+   * Deletes temporary files left in the backup directory by a backup that was interrupted.
+   */
+  private void removeTempFiles() {
+    File[] files = this.backupDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(".jdb" + BackupManifest.TEMP_SUFFIX) && !file.delete()) {
+        this.logger.warning("BerkeleyDB: Could not delete " + file.getName());
+      }
+    }
+  }
+}
@@ -1,11 +1,7 @@
 package org.wattdepot.server.db.berkeleydb;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 import javax.xml.bind.JAXBException;
@@ -28,6 +24,7 @@ import org.wattdepot.server.Server;
 import org.wattdepot.server.ServerProperties;
 import org.wattdepot.server.db.DbBadIntervalException;
 import org.wattdepot.server.db.DbImplementation;
+import org.wattdepot.server.db.SnapshotProgress;
 import org.wattdepot.util.StackTrace;
 import org.wattdepot.util.tstamp.Tstamp;
 import com.sleepycat.je.Environment;
@@ -57,6 +54,10 @@ public class BerkeleyDbImplementation extends DbImplementation {
   private long lastBackupFileId;
   private File backupDir;
   private File dataDir;
+  /** Records the log files in the backup directory and the last completed backup. */
+  private BackupManifest backupManifest;
+  /** Copies log files into the backup directory. */
+  private BackupWriter backupWriter;
   
   /**
    * Instantiates the BerkeleyDB installation.
@@ -107,14 +108,27 @@ public class BerkeleyDbImplementation extends DbImplementation {
         (this.isFreshlyCreated) ? "BerkeleyDB: uninitialized." : "BerkeleyDB: previously initialized.";
     this.logger.info(dbStatusMsg);
     
-    // Check if we have any pre-existing backups.
-    if (this.isFreshlyCreated) {
-      //No backups, so start from zero.
-      this.lastBackupFileId = 0;
+    // Check if we have any pre-existing backups. Only a backup recorded as complete in the
+    // manifest counts, so a backup directory without one gets a full backup.
+    this.backupManifest = new BackupManifest(this.backupDir);
+    try {
+      this.backupManifest.load();
     }
-    else {
-      this.lastBackupFileId = this.getLastBackedUpFile();
+    catch (IOException e) {
+      this.logger.warning("BerkeleyDB: Could not read backup manifest, next backup is full: " + e);
+    }
+    this.lastBackupFileId = this.backupManifest.getLastFileId();
+    int backupThreads = 4;
+    try {
+      backupThreads = Integer.parseInt(server.getServerProperties().get(
+          ServerProperties.DB_BACKUP_THREADS_KEY));
     }
+    catch (NumberFormatException e) {
+      this.logger.warning("BerkeleyDB: Invalid backup threads, using " + backupThreads);
+    }
+    this.backupWriter =
+        new BackupWriter(this.dataDir, this.backupDir, this.backupManifest, backupThreads,
+            this.logger);
     
     // Configure BerkeleyDB.
     EnvironmentConfig envConfig = new EnvironmentConfig();
@@ -147,32 +161,6 @@ public class BerkeleyDbImplementation extends DbImplementation {
     }
   }
   
-  /**
-   * Goes through the backup folder to find the last backed up file.
-   * 
-   * @return The id of the last backed up file.
-   */
-  private long getLastBackedUpFile() {
-    // Open the backup folder
-    long lastBackup = 0;
-    File[] files = this.backupDir.listFiles();
-    String filename, substring;
-    
-    // Go through the files and find files that end with .jdb.
-    for (File file : files) {
-      if (!file.isDirectory() && file.getName().endsWith(".jdb")) {
-        // Parse filename to get the id.
-        filename = file.getName();
-        substring = filename.substring(0, filename.length() - 4);
-        if (lastBackup < Long.parseLong(substring, 16)) {
-          lastBackup = Long.parseLong(substring, 16);
-        }
-      }
-    }
-    
-    return lastBackup;
-  }
-
   @Override
   public boolean isFreshlyCreated() {
     return this.isFreshlyCreated;
@@ -211,6 +199,38 @@ public class BerkeleyDbImplementation extends DbImplementation {
     return count > 0;
   }
 
+  @Override
+  public int deleteSensorData(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, int maxCount) throws DbBadIntervalException {
+    if (sourceName == null || startTime == null || endTime == null) {
+      return -1;
+    }
+    else if (startTime.compare(endTime) == DatatypeConstants.GREATER) {
+      throw new DbBadIntervalException(startTime, endTime);
+    }
+    else if (this.getSource(sourceName) == null) {
+      return -1;
+    }
+
+    // Only keep the cursor open for one chunk, so other threads can get at the range in between.
+    String sourceUri = Source.sourceToUri(sourceName, this.server.getHostName());
+    CompositeSensorDataKey start = new CompositeSensorDataKey(sourceUri, startTime);
+    CompositeSensorDataKey end = new CompositeSensorDataKey(sourceUri, endTime);
+    EntityCursor<BerkeleyDbSensorData> cursor = sensorDataIndex.entities(start, true, end, true);
+
+    int count = 0;
+    try {
+      while ((count < maxCount) && (cursor.next() != null)) {
+        cursor.delete();
+        count++;
+      }
+    }
+    finally {
+      cursor.close();
+    }
+    return count;
+  }
+
   @Override
   public boolean deleteSource(String sourceName) {
     if (sourceName == null) {
@@ -672,19 +692,35 @@ public class BerkeleyDbImplementation extends DbImplementation {
 
   @Override
   public boolean makeSnapshot() {
-    //Use the DbBackup helper class to backup our database.
+    return makeSnapshot(null);
+  }
+
+  @Override
+  public synchronized boolean makeSnapshot(SnapshotProgress progress) {
+    //Use the DbBackup helper class to backup our database. Writes carry on during the backup,
+    //DbBackup only stops the log files in the backup set from being cleaned away.
     //See: http://download.oracle.com/docs/cd/E17277_02/html/GettingStartedGuide/backup.html#dbbackuphelper
+    //A last file id of -1 makes the backup set every log file.
     DbBackup backupHelper = new DbBackup(this.environment, this.lastBackupFileId);
     
-    //Determine what was the last backup file.
     boolean success = false;
     backupHelper.startBackup();
     try {
       String[] filesForBackup = backupHelper.getLogFilesInBackupSet();
-      success = this.writeBackup(filesForBackup);
+      success = this.backupWriter.write(filesForBackup, progress);
       
-      //Update our last known backup file.
-      this.lastBackupFileId = backupHelper.getLastFileInBackupSet();
+      //Only a complete backup moves the next incremental backup on, so an interrupted one is
+      //resumed, with the files it already copied skipped.
+      if (success) {
+        long lastFile = backupHelper.getLastFileInBackupSet();
+        this.backupManifest.setLastFileId(lastFile);
+        this.backupManifest.save();
+        this.lastBackupFileId = lastFile;
+      }
+    }
+    catch (IOException e) {
+      this.logger.warning("BerkeleyDB: Could not save backup manifest: " + e);
+      success = false;
     }
     finally {
       // Exit backup mode to clean up.
@@ -694,7 +730,7 @@ public class BerkeleyDbImplementation extends DbImplementation {
   }
 
   @Override
-  public boolean storeSensorData(SensorData data) {
+  public boolean storeSensorData(SensorData data, boolean overwrite) {
     if (data == null) {
       return false;
     }
@@ -715,6 +751,10 @@ public class BerkeleyDbImplementation extends DbImplementation {
       sensorData = new BerkeleyDbSensorData(data.getTimestamp(), 
           data.getTool(), data.getSource());
     }
+    if (overwrite) {
+      sensorDataIndex.putNoReturn(sensorData);
+      return true;
+    }
     return sensorDataIndex.putNoOverwrite(sensorData);
   }
 
@@ -807,57 +847,6 @@ public class BerkeleyDbImplementation extends DbImplementation {
     return true;
   }
 
-  /**
-   * Write the files to the backup folder.
-   * 
-   * @param filenames List of files to backup.
-   * @return True if the backup is successful, false otherwise.
-   */
-  private boolean writeBackup(String[] filenames) {
-    boolean success = false;
-    File sourceFile, destFile;
-    FileChannel source = null;
-    FileChannel dest = null;
-    
-    if (filenames.length == 0) {
-      //Nothing to back up.
-      return true;
-    }
-    
-    for (String filename : filenames) {
-      // Filenames are rooted in berkeleyDb folder.
-      sourceFile = new File(this.dataDir, filename);
-      destFile = new File(this.backupDir, sourceFile.getName());
-      
-      try {
-        source = new FileInputStream(sourceFile).getChannel();
-        dest = new FileOutputStream(destFile).getChannel();
-        dest.transferFrom(source, 0, source.size());
-        success = true;
-      }
-      catch (FileNotFoundException e) {
-        this.logger.warning("BerkeleyDB: Could not backup file " + filename);
-      }
-      catch (IOException e) {
-        this.logger.warning("BerkeleyDB: Could not copy file " + filename);
-      }
-      finally {
-        try {
-          if (source != null) {
-            source.close();
-          }
-          if (dest != null) {
-            dest.close();
-          }
-        }
-        catch (IOException e) {
-          this.logger.warning("BerkeleyDB: Could not close source and dest channels.");
-        }
-      }
-    }
-    return success;
-  }
-
   @Override
   public boolean performMaintenance() {
     // Apparently, there's no need for me to manage the compression of the database.
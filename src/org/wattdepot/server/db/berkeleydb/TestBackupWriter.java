@@ -0,0 +1,199 @@
+package org.wattdepot.server.db.berkeleydb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wattdepot.server.db.SnapshotProgress;
+
+/**
+ * Tests the BackupWriter and BackupManifest classes, which need no BerkeleyDB environment.
+ * 
+ * @author Robert Brewer
+ */
+public class TestBackupWriter {
+
+  /** The names of the log files backed up. */
+  private static final String[] FILES = { "00000000.jdb", "00000001.jdb", "00000002.jdb" };
+
+  /** The directory standing in for the BerkeleyDB data directory. */
+  private File dataDir;
+
+  /** The backup directory. */
+  private File backupDir;
+
+  /** The last totals reported. */
+  private final long[] reported = new long[2];
+
+  /** Records the totals reported. */
+  private final SnapshotProgress progress = new SnapshotProgress() {
+    public void update(long bytesCopied, int filesDone) {
+      reported[0] = bytesCopied;
+      reported[1] = filesDone;
+    }
+  };
+
+  /**
+   * Creates the directories and log files.
+   * 
+   * @throws IOException If the files cannot be written.
+   */
+  @Before
+  public void createFiles() throws IOException {
+    this.dataDir = makeTempDir("data");
+    this.backupDir = makeTempDir("backup");
+    // The last file is larger than the copy buffer
+    int[] sizes = { 1000, 0, 3 * 1024 * 1024 + 17 };
+    for (int i = 0; i < FILES.length; i++) {
+      byte[] contents = new byte[sizes[i]];
+      for (int j = 0; j < contents.length; j++) {
+        contents[j] = (byte) (i + j);
+      }
+      writeFile(new File(this.dataDir, FILES[i]), contents);
+    }
+  }
+
+  /**
+   * Deletes the directories.
+   */
+  @After
+  public void deleteFiles() {
+    deleteDir(this.dataDir);
+    deleteDir(this.backupDir);
+  }
+
+  /**
+   * Tests that files are copied in parallel with checksums recorded, and that a later backup only
+   * copies what is missing.
+   * 
+   * @throws IOException If there are problems with the files.
+   */
+  @Test
+  public void testWrite() throws IOException {
+    BackupManifest manifest = new BackupManifest(this.backupDir);
+    assertEquals("Empty manifest has a last file", -1, manifest.getLastFileId());
+    BackupWriter writer =
+        new BackupWriter(this.dataDir, this.backupDir, manifest, 2, Logger.getAnonymousLogger());
+    assertTrue("Backup failed", writer.write(FILES, this.progress));
+    long total = 0;
+    for (String name : FILES) {
+      File copy = new File(this.backupDir, name);
+      assertArrayEquals("Wrong copy of " + name, readFile(new File(this.dataDir, name)),
+          readFile(copy));
+      total += copy.length();
+    }
+    assertEquals("Wrong bytes reported", total, this.reported[0]);
+    assertEquals("Wrong files reported", FILES.length, this.reported[1]);
+    assertTrue("Copies don't match checksums", manifest.verify().isEmpty());
+    manifest.setLastFileId(2);
+    manifest.save();
+    assertFalse("Temporary file left", new File(this.backupDir, BackupManifest.FILENAME
+        + BackupManifest.TEMP_SUFFIX).exists());
+
+    // Resume after an interruption that lost one copy and left a partial one
+    BackupManifest loaded = new BackupManifest(this.backupDir);
+    loaded.load();
+    assertEquals("Last file not saved", 2, loaded.getLastFileId());
+    File lost = new File(this.backupDir, FILES[2]);
+    assertTrue("Unable to delete copy", lost.delete());
+    File partial = new File(this.backupDir, FILES[2] + BackupManifest.TEMP_SUFFIX);
+    writeFile(partial, new byte[10]);
+    assertEquals("Lost copy not found", Arrays.asList(FILES[2]), loaded.verify());
+    // Damage a copy without changing its size, so only the checksum notices
+    writeFile(new File(this.backupDir, FILES[0]), new byte[1000]);
+
+    writer =
+        new BackupWriter(this.dataDir, this.backupDir, loaded, 2, Logger.getAnonymousLogger());
+    assertTrue("Resumed backup failed", writer.write(FILES, this.progress));
+    assertEquals("Wrong bytes reported on resume", total, this.reported[0]);
+    assertEquals("Wrong files reported on resume", FILES.length, this.reported[1]);
+    assertFalse("Partial copy not removed", partial.exists());
+    assertArrayEquals("Lost copy not restored", readFile(new File(this.dataDir, FILES[2])),
+        readFile(lost));
+    assertEquals("Damaged copy not found", Arrays.asList(FILES[0]), loaded.verify());
+  }
+
+  /**
+   * Makes an empty temporary directory.
+   * 
+   * @param prefix The prefix of the directory name.
+   * @return The directory.
+   * @throws IOException If the directory cannot be made.
+   */
+  private static File makeTempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Unable to make directory " + dir);
+    }
+    return dir;
+  }
+
+  /**
+   * Deletes a directory and the files in it.
+   * 
+   * @param dir The directory.
+   */
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Writes a file.
+   * 
+   * @param file The file.
+   * @param contents The contents.
+   * @throws IOException If the file cannot be written.
+   */
+  private static void writeFile(File file, byte[] contents) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads a file.
+   * 
+   * @param file The file.
+   * @return The contents.
+   * @throws IOException If the file cannot be read.
+   */
+  private static byte[] readFile(File file) throws IOException {
+    byte[] contents = new byte[(int) file.length()];
+    InputStream in = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < contents.length) {
+        int count = in.read(contents, offset, contents.length - offset);
+        if (count < 0) {
+          break;
+        }
+        offset += count;
+      }
+    }
+    finally {
+      in.close();
+    }
+    return contents;
+  }
+}
@@ -1,5 +1,6 @@
 package org.wattdepot.server.db.derby;
 
+import java.io.File;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.sql.CallableStatement;
@@ -13,6 +14,10 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
@@ -39,6 +44,12 @@ import org.wattdepot.server.Server;
 import org.wattdepot.server.ServerProperties;
 import org.wattdepot.server.db.DbBadIntervalException;
 import org.wattdepot.server.db.DbImplementation;
+import org.wattdepot.server.db.ModificationTracker;
+import org.wattdepot.server.db.SensorDataAggregator;
+import org.wattdepot.server.db.SnapshotProgress;
+import org.wattdepot.server.db.SensorDataStatistics;
+import org.wattdepot.server.db.derby.SensorDataPartitions.Deletion;
+import org.wattdepot.server.db.derby.SensorDataPartitions.Partition;
 import org.wattdepot.util.StackTrace;
 import org.wattdepot.util.tstamp.Tstamp;
 
@@ -52,10 +63,28 @@ import org.wattdepot.util.tstamp.Tstamp;
  * embedded Derby does not require connection pooling, so it is not present in this code. You will
  * probably want it for your version, of course. Based on code from Hackystat sensorbase.
  * 
+ * Sensor data is partitioned by month into tables named SensorDataV2_YYYYMM (see
+ * SensorDataPartitions), so queries for recent data only touch recent partitions, and old data can
+ * be removed by dropping whole partitions. Partitions store timestamps and the standard power and
+ * energy properties as numbers (see SensorDataCodec), so reading sensor data needs no XML parsing.
+ * Partitions written by an older version as SensorData_YYYYMM, with properties as XML, are still
+ * read and written, and are migrated to the numeric schema one month at a time by a background
+ * thread started at initialization. Data left in the original SensorData table by a version that
+ * did not partition sensor data is read and written through a legacy partition per month, and
+ * moved into version 2 partitions by the same thread, so startup does not wait for it. The
+ * original table is kept, for checking the schema.
+ * 
+ * Source summaries and SensorDataStatistics are computed with aggregate queries, so only the
+ * results leave the database rather than every row.
+ * 
+ * Each partition has a covering index holding the columns read by SensorDataIndex queries and the
+ * aggregate queries, so those read only index pages and never the rows with their Properties.
+ * Partitions created by older versions get it when the tables are reindexed.
+ * 
  * @author Robert Brewer
  * @author Philip Johnson
  */
-public class DerbyStorageImplementation extends DbImplementation {
+public class DerbyStorageImplementation extends DbImplementation implements SensorDataAggregator {
 
   private static final String UNABLE_TO_PARSE_PROPERTY_XML =
       "Unable to parse property XML from database ";
@@ -82,6 +111,8 @@ public class DerbyStorageImplementation extends DbImplementation {
   private static final String driver = "org.apache.derby.jdbc.EmbeddedDriver";
   /** The Database name. */
   private static final String dbName = "wattdepot";
+  /** The milliseconds between reports of how far a snapshot has got. */
+  private static final long SNAPSHOT_PROGRESS_INTERVAL = 500;
   /** The Derby connection URL. */
   private static final String connectionURL = "jdbc:derby:" + dbName + ";create=true";
   /** Indicates whether this database was initialized or was pre-existing. */
@@ -93,6 +124,22 @@ public class DerbyStorageImplementation extends DbImplementation {
   private static final String derbyError = "Derby: Error ";
   /** The SQL state indicating that INSERT tried to add data to a table with a preexisting key. */
   private static final String DUPLICATE_KEY = "23505";
+  /** The SQL state indicating that a statement referred to a table that does not exist. */
+  private static final String NO_SUCH_TABLE = "42X05";
+  /** The monthly tables sensor data is partitioned into. */
+  private final SensorDataPartitions partitions;
+  /** The columns of a version 1 partition read by resultSetToSensorData(), in order. */
+  private static final String V1_COLUMNS = "Tstamp, Tool, Source, Properties";
+  /** The number of rows copied per batch when migrating a partition. */
+  private static final int MIGRATION_BATCH_SIZE = 1000;
+  /** Held while migrating partitions, so only one thread migrates at a time. */
+  private final Object migrationLock = new Object();
+  /** The most buckets listed in one aggregate query, to keep the statements a reasonable size. */
+  private static final int BUCKETS_PER_QUERY = 250;
+  /** The number of milliseconds in an hour, to convert watt-milliseconds to watt-hours. */
+  private static final double MILLIS_PER_HOUR = 3600000.0;
+  /** The number of rows fetched at a time by queries that may return large ranges. */
+  private static final int FETCH_SIZE = 500;
 
   /**
    * Instantiates the Derby implementation. Throws a Runtime exception if the Derby jar file cannot
@@ -115,7 +162,7 @@ public class DerbyStorageImplementation extends DbImplementation {
       this.logger.warning(msg + "\n" + StackTrace.toString(e));
       throw new RuntimeException(msg, e);
     }
-
+    this.partitions = new SensorDataPartitions(this.logger);
   }
 
   /** {@inheritDoc} */
@@ -153,10 +200,22 @@ public class DerbyStorageImplementation extends DbImplementation {
         this.logger.info("Derby: creating DB in: " + System.getProperty(derbySystemKey));
         createTables();
       }
+      loadPartitions();
       // Only need to wipe tables if database has already been created and wiping was requested
-      else if (wipe) {
+      if (!this.isFreshlyCreated && wipe) {
         wipeTables();
       }
+      if (!this.partitions.getV1Partitions().isEmpty()) {
+        Thread migrator = new Thread("Derby partition migrator") {
+          /** Migrate the partitions written by an older version. */
+          @Override
+          public void run() {
+            migratePartitions();
+          }
+        };
+        migrator.setDaemon(true);
+        migrator.start();
+      }
       // if (server.getServerProperties().compressOnStartup()) {
       // this.logger.info("Derby: compressing database...");
       // compressTables();
@@ -255,6 +314,10 @@ public class DerbyStorageImplementation extends DbImplementation {
       s.execute("DELETE from WattDepotUser");
       s.execute("DELETE from Source");
       s.execute("DELETE from SensorData");
+      // Dropping a partition is much quicker than deleting its rows
+      for (Partition partition : this.partitions.getPartitions(false)) {
+        this.partitions.drop(conn, partition.getMonth());
+      }
       s.close();
     }
     finally {
@@ -518,7 +581,6 @@ public class DerbyStorageImplementation extends DbImplementation {
     // Want to go through sensordata for base source, and all subsources recursively
     List<Source> sourceList = getAllNonVirtualSubSources(baseSource);
     XMLGregorianCalendar firstTimestamp = null, lastTimestamp = null, currentTimestamp = null;
-    Timestamp sqlDataTimestamp = null;
     long dataCount = 0;
     String statement;
     Connection conn = null;
@@ -526,65 +588,62 @@ public class DerbyStorageImplementation extends DbImplementation {
     ResultSet rs = null;
     // examine each of the subsources in turn
     for (Source subSource : sourceList) {
-      String subSourceName = subSource.getName();
+      String subSourceUri = Source.sourceToUri(subSource.getName(), this.server);
       try {
-        // Get timestamp of first sensor data for this source
-        statement =
-            "SELECT Tstamp FROM SensorData WHERE Source = ? ORDER BY Tstamp ASC FETCH FIRST ROW ONLY";
         conn = DriverManager.getConnection(connectionURL);
-        server.getLogger().fine(executeQueryMsg + statement);
-        s = conn.prepareStatement(statement);
-        s.setString(1, Source.sourceToUri(subSourceName, this.server));
-        rs = s.executeQuery();
-        if (rs.next()) {
-          sqlDataTimestamp = rs.getTimestamp(1);
-          currentTimestamp = Tstamp.makeTimestamp(sqlDataTimestamp);
-          // If this is the first source examined or this source's first data is earlier than
-          // that of any sources examined so far
-          if ((firstTimestamp == null) || (Tstamp.lessThan(currentTimestamp, firstTimestamp))) {
-            firstTimestamp = currentTimestamp;
+        // Count, first and last in one query per partition, rather than reading the rows
+        for (Partition listed : this.partitions.getPartitions(false)) {
+          Partition partition = this.partitions.acquire(listed.getMonth());
+          try {
+            if (partition == null) {
+              continue;
+            }
+            statement =
+                "SELECT COUNT(1), MIN(Tstamp), MAX(Tstamp) FROM " + partition.getTable()
+                    + " WHERE Source = ?";
+            server.getLogger().fine(executeQueryMsg + statement);
+            s = conn.prepareStatement(statement);
+            s.setString(1, subSourceUri);
+            rs = s.executeQuery();
+            if (rs.next() && (rs.getLong(1) > 0)) {
+              dataCount += rs.getLong(1);
+              currentTimestamp = Tstamp.makeTimestamp(getTime(rs, 2, partition));
+              // If this is the first data found or is earlier than any found so far
+              if ((firstTimestamp == null)
+                  || (Tstamp.lessThan(currentTimestamp, firstTimestamp))) {
+                firstTimestamp = currentTimestamp;
+              }
+              currentTimestamp = Tstamp.makeTimestamp(getTime(rs, 3, partition));
+              // If this is the first data found or is later than any found so far
+              if ((lastTimestamp == null)
+                  || (Tstamp.greaterThan(currentTimestamp, lastTimestamp))) {
+                lastTimestamp = currentTimestamp;
+              }
+            }
+            rs.close();
+            rs = null;
+            s.close();
+            s = null;
           }
-        }
-        // Clean up for next query
-        rs.close();
-        s.close();
-        // Get timestamp of last sensor data for this source
-        statement =
-            "SELECT Tstamp FROM SensorData WHERE Source = ? ORDER BY Tstamp DESC FETCH FIRST ROW ONLY";
-        server.getLogger().fine(executeQueryMsg + statement);
-        s = conn.prepareStatement(statement);
-        s.setString(1, Source.sourceToUri(subSourceName, this.server));
-        rs = s.executeQuery();
-        if (rs.next()) {
-          sqlDataTimestamp = rs.getTimestamp(1);
-          currentTimestamp = Tstamp.makeTimestamp(sqlDataTimestamp);
-          // If this is the first source examined or this source's last data is later than
-          // that of any sources examined so far
-          if ((lastTimestamp == null) || (Tstamp.greaterThan(currentTimestamp, lastTimestamp))) {
-            lastTimestamp = currentTimestamp;
+          finally {
+            this.partitions.release(listed.getMonth());
           }
         }
-        // Clean up for next query
-        rs.close();
-        s.close();
-        // Get number of sensordata rows for this source
-        statement = "SELECT COUNT(1) FROM SensorData WHERE Source = ?";
-        server.getLogger().fine(executeQueryMsg + statement);
-        s = conn.prepareStatement(statement);
-        s.setString(1, Source.sourceToUri(subSourceName, this.server));
-        rs = s.executeQuery();
-        if (rs.next()) {
-          dataCount += rs.getInt(1);
-        }
       }
       catch (SQLException e) {
         this.logger.info("DB: Error in getSourceSummary()" + StackTrace.toString(e));
       }
       finally {
         try {
-          rs.close();
-          s.close();
-          conn.close();
+          if (rs != null) {
+            rs.close();
+          }
+          if (s != null) {
+            s.close();
+          }
+          if (conn != null) {
+            conn.close();
+          }
         }
         catch (SQLException e) {
           this.logger.warning(errorClosingMsg + StackTrace.toString(e));
@@ -736,7 +795,7 @@ public class DerbyStorageImplementation extends DbImplementation {
       "DROP INDEX TstampSourceIndexDesc";
 
   /**
-   * Converts a database row from the SensorData table to a SensorData object. The caller should
+   * Converts a database row from a SensorData table to a SensorData object. The caller should
    * have advanced the cursor to the next row via rs.next() before calling this method.
    * 
    * @param rs The result set to be examined.
@@ -769,6 +828,473 @@ public class DerbyStorageImplementation extends DbImplementation {
     return data;
   }
 
+  /**
+   * Finds the existing SensorData partitions, and makes legacy partitions of the months with sensor
+   * data left in the unpartitioned SensorData table by an older version. They are migrated by the
+   * background thread, like version 1 partitions.
+   * 
+   * @throws SQLException If the partitions cannot be found or created.
+   */
+  private void loadPartitions() throws SQLException {
+    Connection conn = DriverManager.getConnection(connectionURL);
+    try {
+      this.partitions.load(conn);
+      this.partitions.createLegacyPartitions(conn);
+    }
+    finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Copies the sensor data of a version 1 or legacy partition to a version 2 partition, converting
+   * it on the way, and committing after each batch of rows, so the copy holds no locks for long.
+   * The connection must not be in auto-commit mode.
+   * 
+   * @param conn The database connection.
+   * @param from The partition to copy from.
+   * @param to The partition to copy to.
+   * @return The number of rows copied.
+   * @throws SQLException If there are problems reading or writing the database.
+   */
+  private int copyToV2(Connection conn, Partition from, Partition to) throws SQLException {
+    int copied = 0;
+    // Kept open over the commits of the batches
+    PreparedStatement select =
+        conn.prepareStatement("SELECT " + V1_COLUMNS + " FROM " + from.getTable(),
+            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,
+            ResultSet.HOLD_CURSORS_OVER_COMMIT);
+    PreparedStatement insert = null;
+    try {
+      insert =
+          conn.prepareStatement("INSERT INTO " + to.getTable() + " "
+              + SensorDataCodec.INSERT_COLUMNS);
+      ResultSet rs = select.executeQuery();
+      while (rs.next()) {
+        SensorData data = resultSetToSensorData(rs);
+        if (data == null) {
+          throw new SQLException("Unable to read sensor data from " + from.getTable());
+        }
+        SensorDataCodec.bind(insert, data);
+        insert.addBatch();
+        copied++;
+        if (copied % MIGRATION_BATCH_SIZE == 0) {
+          insert.executeBatch();
+          conn.commit();
+        }
+      }
+      rs.close();
+      insert.executeBatch();
+      conn.commit();
+    }
+    finally {
+      select.close();
+      if (insert != null) {
+        insert.close();
+      }
+    }
+    return copied;
+  }
+
+  /**
+   * Migrates every partition written by an older version to the version 2 schema, latest month
+   * first, since recent data is the most queried. Safe to call more than once, and called by a
+   * background thread at initialization if there is anything to migrate. Each month is finished in
+   * its own transaction, so if the migration is interrupted, the months already migrated stay
+   * migrated and the rest are migrated at the next initialization. Progress is logged as each
+   * month is finished.
+   * 
+   * @return The number of partitions migrated, or -1 if there was a problem.
+   */
+  public int migratePartitions() {
+    synchronized (this.migrationLock) {
+      int migrated = 0;
+      Connection conn = null;
+      List<Partition> toMigrate = this.partitions.getV1Partitions();
+      if (!toMigrate.isEmpty()) {
+        this.logger.info("Derby: migrating " + toMigrate.size()
+            + " partitions to the version 2 schema in the background.");
+      }
+      long started = System.currentTimeMillis();
+      try {
+        conn = DriverManager.getConnection(connectionURL);
+        for (Partition v1 : toMigrate) {
+          int rows = migratePartition(conn, v1);
+          if (rows >= 0) {
+            migrated++;
+            this.logger.info("Derby: migrated " + rows + " rows from " + v1.getTable() + " ("
+                + migrated + " of " + toMigrate.size() + " partitions, "
+                + (System.currentTimeMillis() - started) / 1000 + " s).");
+          }
+        }
+        if (!toMigrate.isEmpty()) {
+          this.logger.info("Derby: finished migrating partitions.");
+        }
+        return migrated;
+      }
+      catch (SQLException e) {
+        this.logger.info("Derby: Error in migratePartitions(), after migrating " + migrated
+            + " partitions; the rest are migrated at the next startup" + StackTrace.toString(e));
+        return -1;
+      }
+      finally {
+        try {
+          if (conn != null) {
+            conn.close();
+          }
+        }
+        catch (SQLException e) {
+          this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+        }
+      }
+    }
+  }
+
+  /**
+   * Migrates a version 1 or legacy partition to the version 2 schema. Its rows are copied in
+   * batches, each committed on its own, while the partition stays in use. Then, holding the write
+   * lock of the month, the changes made meanwhile are applied to the copy and the partition is
+   * dropped in one transaction, so callers only wait for the changes to be applied, and a failed
+   * migration leaves the partition untouched.
+   * 
+   * @param conn The database connection, in auto-commit mode.
+   * @param v1 The partition, version 1 or legacy.
+   * @return The number of rows copied, or -1 if the partition no longer needed migrating.
+   * @throws SQLException If there are problems reading or writing the database.
+   */
+  private int migratePartition(Connection conn, Partition v1) throws SQLException {
+    int month = v1.getMonth();
+    if (this.partitions.startMigration(month) == null) {
+      // Dropped or migrated since the list was made
+      return -1;
+    }
+    boolean succeeded = false;
+    Partition v2 = null;
+    Lock lock = this.partitions.lockOf(month).writeLock();
+    Statement s = conn.createStatement();
+    try {
+      // Waiting for the statements already running means every change after this time has a later
+      // LastMod
+      long copyStart;
+      lock.lock();
+      try {
+        copyStart = System.currentTimeMillis();
+      }
+      finally {
+        lock.unlock();
+      }
+      v2 = SensorDataPartitions.createV2(conn, month);
+      // Left over by an interrupted migration
+      s.execute("DELETE FROM " + v2.getTable());
+      conn.setAutoCommit(false);
+      int rows = copyToV2(conn, v1, v2);
+      lock.lock();
+      try {
+        Partition current = this.partitions.getPartition(month);
+        if ((current == null) || current.isV2()) {
+          // Dropped while it was being copied
+          return -1;
+        }
+        rows += applyMigrationChanges(conn, v1, v2, copyStart);
+        SensorDataPartitions.dropTable(s, v1);
+        conn.commit();
+        succeeded = true;
+        this.partitions.finishMigration(month, true);
+      }
+      finally {
+        lock.unlock();
+      }
+      return rows;
+    }
+    finally {
+      if (!succeeded) {
+        if (!conn.getAutoCommit()) {
+          conn.rollback();
+        }
+        this.partitions.finishMigration(month, false);
+        if (v2 != null) {
+          try {
+            s.execute("DROP TABLE " + v2.getTable());
+          }
+          catch (SQLException e) {
+            this.logger.info("Derby: unable to drop incomplete partition " + v2.getTable());
+          }
+        }
+      }
+      s.close();
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * Applies the changes made to a partition being migrated since its rows started being copied to
+   * the copy: first the deletions recorded while it was being copied, then the rows stored or
+   * overwritten since the copy started, which are found by their LastMod. Must be called holding
+   * the write lock of the month, in the transaction that drops the version 1 partition.
+   * 
+   * @param conn The database connection.
+   * @param v1 The partition being migrated.
+   * @param v2 The copy.
+   * @param since The time the copy started, in milliseconds since the epoch.
+   * @return The number of rows copied.
+   * @throws SQLException If there are problems reading or writing the database.
+   */
+  private int applyMigrationChanges(Connection conn, Partition v1, Partition v2, long since)
+      throws SQLException {
+    int copied = 0;
+    PreparedStatement delete =
+        conn.prepareStatement("DELETE FROM " + v2.getTable()
+            + " WHERE Source = ? AND (Tstamp BETWEEN ? AND ?)");
+    PreparedStatement select = null;
+    PreparedStatement insert = null;
+    try {
+      for (Deletion deletion : this.partitions.takeDeletions(v1.getMonth())) {
+        delete.setString(1, deletion.getSourceUri());
+        delete.setLong(2, deletion.getStart());
+        delete.setLong(3, deletion.getEnd());
+        delete.executeUpdate();
+      }
+      select =
+          conn.prepareStatement("SELECT " + V1_COLUMNS + " FROM " + v1.getTable()
+              + " WHERE LastMod >= ?");
+      select.setTimestamp(1, new Timestamp(since));
+      insert =
+          conn.prepareStatement("INSERT INTO " + v2.getTable() + " "
+              + SensorDataCodec.INSERT_COLUMNS);
+      ResultSet rs = select.executeQuery();
+      while (rs.next()) {
+        SensorData data = resultSetToSensorData(rs);
+        if (data == null) {
+          throw new SQLException("Unable to read sensor data from " + v1.getTable());
+        }
+        // May have been copied already, before it was overwritten
+        long millis = Tstamp.makeTimestamp(data.getTimestamp()).getTime();
+        delete.setString(1, data.getSource());
+        delete.setLong(2, millis);
+        delete.setLong(3, millis);
+        delete.executeUpdate();
+        SensorDataCodec.bind(insert, data);
+        insert.executeUpdate();
+        copied++;
+      }
+      rs.close();
+    }
+    finally {
+      delete.close();
+      if (select != null) {
+        select.close();
+      }
+      if (insert != null) {
+        insert.close();
+      }
+    }
+    return copied;
+  }
+
+  /**
+   * Returns true if the given exception was caused by a table that does not exist, after reloading
+   * the partitions so the caller can retry with the current ones. Partitions are only dropped and
+   * migrated here while no statement is using them, so this only happens if another server using
+   * the same database dropped or migrated one.
+   * 
+   * @param conn The database connection.
+   * @param e The exception.
+   * @return True if the partitions were reloaded and the caller should retry.
+   * @throws SQLException If the partitions cannot be reloaded.
+   */
+  private boolean reloadIfPartitionMissing(Connection conn, SQLException e) throws SQLException {
+    if (!NO_SUCH_TABLE.equals(e.getSQLState())) {
+      return false;
+    }
+    this.logger.info("Derby: partition table missing, reloading partitions.");
+    this.partitions.load(conn);
+    return true;
+  }
+
+  /**
+   * Returns the columns to select from a partition to read sensor data from it with
+   * readSensorData().
+   * 
+   * @param partition The partition.
+   * @return The column list.
+   */
+  private static String columnsOf(Partition partition) {
+    return partition.isV2() ? SensorDataCodec.COLUMNS : V1_COLUMNS;
+  }
+
+  /**
+   * Converts the current row of a result set, selected from a partition with columnsOf(), to a
+   * SensorData.
+   * 
+   * @param partition The partition the row is from.
+   * @param rs The result set, positioned on a row.
+   * @return The SensorData, or null if the row cannot be read.
+   * @throws SQLException If a column cannot be read.
+   */
+  private SensorData readSensorData(Partition partition, ResultSet rs) throws SQLException {
+    return partition.isV2() ? SensorDataCodec.read(rs) : resultSetToSensorData(rs);
+  }
+
+  /**
+   * Sets a parameter compared with the Tstamp column of a partition, which holds milliseconds
+   * since the epoch in version 2 partitions and a TIMESTAMP in version 1 partitions.
+   * 
+   * @param s The statement.
+   * @param index The index of the parameter.
+   * @param partition The partition the statement queries.
+   * @param millis The time in milliseconds since the epoch.
+   * @throws SQLException If the parameter cannot be set.
+   */
+  private static void setTime(PreparedStatement s, int index, Partition partition, long millis)
+      throws SQLException {
+    if (partition.isV2()) {
+      s.setLong(index, millis);
+    }
+    else {
+      s.setTimestamp(index, new Timestamp(millis));
+    }
+  }
+
+  /**
+   * Returns the value of the Tstamp column of a partition in the current row of a result set.
+   * 
+   * @param rs The result set, positioned on a row.
+   * @param index The index of the Tstamp column in the result set.
+   * @param partition The partition the row is from.
+   * @return The time in milliseconds since the epoch.
+   * @throws SQLException If the column cannot be read.
+   */
+  private static long getTime(ResultSet rs, int index, Partition partition) throws SQLException {
+    return partition.isV2() ? rs.getLong(index) : rs.getTimestamp(index).getTime();
+  }
+
+  /**
+   * Returns the query used by addSensorDataRefs() on a partition. It only reads columns held in
+   * the covering index, so Derby can answer it without reading the base table rows.
+   * 
+   * @param partition The partition.
+   * @param ranged True if the query has a Tstamp range, with start and end as parameters 2 and 3.
+   * @return The SQL text, with the Source URI as parameter 1.
+   */
+  static String sensorDataRefsQuery(Partition partition, boolean ranged) {
+    return "SELECT Tstamp, Tool, Source FROM " + partition.getTable() + " WHERE Source = ?"
+        + (ranged ? " AND (Tstamp BETWEEN ? AND ?)" : "") + " ORDER BY Tstamp";
+  }
+
+  /**
+   * Returns the query used by findTimestamp() on a partition, which only reads indexed columns.
+   * 
+   * @param partition The partition.
+   * @param condition Extra SQL condition on Tstamp using parameter 2, or "".
+   * @param descending If true, the latest timestamp is returned, otherwise the earliest is.
+   * @return The SQL text, with the Source URI as parameter 1.
+   */
+  static String timestampQuery(Partition partition, String condition, boolean descending) {
+    return "SELECT Tstamp FROM " + partition.getTable() + " WHERE Source = ?" + condition
+        + " ORDER BY Tstamp " + (descending ? "DESC" : "ASC") + " FETCH FIRST ROW ONLY";
+  }
+
+  /**
+   * Adds SensorDataRefs for the sensor data of the given Source in the given partitions to an
+   * index, optionally limited to a time range.
+   * 
+   * @param conn The database connection.
+   * @param partitions The partitions to search, in time order.
+   * @param sourceUri The URI of the Source.
+   * @param startTime The start of the range, or null for no range.
+   * @param endTime The end of the range, or null for no range.
+   * @param index The index to add to.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private void addSensorDataRefs(Connection conn, List<Partition> partitions, String sourceUri,
+      Timestamp startTime, Timestamp endTime, SensorDataIndex index) throws SQLException {
+    for (Partition listed : partitions) {
+      Partition partition = this.partitions.acquire(listed.getMonth());
+      if (partition == null) {
+        this.partitions.release(listed.getMonth());
+        continue;
+      }
+      String statement = sensorDataRefsQuery(partition, startTime != null);
+      server.getLogger().fine(executeQueryMsg + statement);
+      PreparedStatement s = null;
+      try {
+        s = conn.prepareStatement(statement);
+        s.setFetchSize(FETCH_SIZE);
+        s.setString(1, sourceUri);
+        if (startTime != null) {
+          setTime(s, 2, partition, startTime.getTime());
+          setTime(s, 3, partition, endTime.getTime());
+        }
+        ResultSet rs = s.executeQuery();
+        while (rs.next()) {
+          long millis = getTime(rs, 1, partition);
+          String tool = rs.getString(2);
+          String uri = rs.getString(3);
+          index.getSensorDataRef().add(new SensorDataRef(Tstamp.makeTimestamp(millis), tool, uri));
+        }
+        rs.close();
+      }
+      finally {
+        if (s != null) {
+          s.close();
+        }
+        this.partitions.release(listed.getMonth());
+      }
+    }
+  }
+
+  /**
+   * Returns the first timestamp of sensor data for the given Source found by searching the given
+   * partitions in turn, optionally only before or after a given time.
+   * 
+   * @param conn The database connection.
+   * @param partitions The partitions to search, in the order they should be searched.
+   * @param sourceUri The URI of the Source.
+   * @param condition Extra SQL condition on Tstamp using the bound as parameter, or "".
+   * @param bound The parameter of the condition in milliseconds since the epoch, or null if there
+   * is no condition.
+   * @param descending If true, the latest timestamp in a partition is the first, otherwise the
+   * earliest is.
+   * @return The timestamp in milliseconds since the epoch, or null if there is none.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private Long findTimestamp(Connection conn, List<Partition> partitions, String sourceUri,
+      String condition, Long bound, boolean descending) throws SQLException {
+    for (Partition listed : partitions) {
+      Partition partition = this.partitions.acquire(listed.getMonth());
+      if (partition == null) {
+        this.partitions.release(listed.getMonth());
+        continue;
+      }
+      String statement = timestampQuery(partition, condition, descending);
+      server.getLogger().fine(executeQueryMsg + statement);
+      PreparedStatement s = null;
+      try {
+        s = conn.prepareStatement(statement);
+        s.setString(1, sourceUri);
+        if (bound != null) {
+          setTime(s, 2, partition, bound);
+        }
+        ResultSet rs = s.executeQuery();
+        try {
+          if (rs.next()) {
+            return getTime(rs, 1, partition);
+          }
+        }
+        finally {
+          rs.close();
+        }
+      }
+      finally {
+        if (s != null) {
+          s.close();
+        }
+        this.partitions.release(listed.getMonth());
+      }
+    }
+    return null;
+  }
+
   /** {@inheritDoc} */
   @Override
   public SensorDataIndex getSensorDataIndex(String sourceName) {
@@ -781,34 +1307,20 @@ public class DerbyStorageImplementation extends DbImplementation {
     }
     else {
       SensorDataIndex index = new SensorDataIndex();
-      String statement =
-          "SELECT Tstamp, Tool, Source FROM SensorData WHERE Source = ? ORDER BY Tstamp";
       Connection conn = null;
-      PreparedStatement s = null;
-      ResultSet rs = null;
-      SensorDataRef ref;
       try {
         conn = DriverManager.getConnection(connectionURL);
-        server.getLogger().fine(executeQueryMsg + statement);
-        s = conn.prepareStatement(statement);
-        s.setString(1, Source.sourceToUri(sourceName, this.server));
-        rs = s.executeQuery();
-        while (rs.next()) {
-          Timestamp timestamp = rs.getTimestamp(1);
-          String tool = rs.getString(2);
-          String sourceUri = rs.getString(3);
-          ref = new SensorDataRef(Tstamp.makeTimestamp(timestamp), tool, sourceUri);
-          index.getSensorDataRef().add(ref);
-        }
+        addSensorDataRefs(conn, this.partitions.getPartitions(false), Source.sourceToUri(
+            sourceName, this.server), null, null, index);
       }
       catch (SQLException e) {
         this.logger.info("DB: Error in getSensorDataIndex()" + StackTrace.toString(e));
       }
       finally {
         try {
-          rs.close();
-          s.close();
-          conn.close();
+          if (conn != null) {
+            conn.close();
+          }
         }
         catch (SQLException e) {
           this.logger.warning(errorClosingMsg + StackTrace.toString(e));
@@ -835,37 +1347,22 @@ public class DerbyStorageImplementation extends DbImplementation {
     }
     else {
       SensorDataIndex index = new SensorDataIndex();
-      String statement =
-          "SELECT Tstamp, Tool, Source FROM SensorData WHERE Source = ? AND "
-              + " (Tstamp BETWEEN ? AND ?)" + " ORDER BY Tstamp";
+      Timestamp start = Tstamp.makeTimestamp(startTime);
+      Timestamp end = Tstamp.makeTimestamp(endTime);
       Connection conn = null;
-      PreparedStatement s = null;
-      ResultSet rs = null;
-      SensorDataRef ref;
       try {
         conn = DriverManager.getConnection(connectionURL);
-        server.getLogger().fine(executeQueryMsg + statement);
-        s = conn.prepareStatement(statement);
-        s.setString(1, Source.sourceToUri(sourceName, this.server));
-        s.setTimestamp(2, Tstamp.makeTimestamp(startTime));
-        s.setTimestamp(3, Tstamp.makeTimestamp(endTime));
-        rs = s.executeQuery();
-        while (rs.next()) {
-          Timestamp timestamp = rs.getTimestamp(1);
-          String tool = rs.getString(2);
-          String sourceUri = rs.getString(3);
-          ref = new SensorDataRef(Tstamp.makeTimestamp(timestamp), tool, sourceUri);
-          index.getSensorDataRef().add(ref);
-        }
+        addSensorDataRefs(conn, this.partitions.getPartitions(start.getTime(), end.getTime(),
+            false), Source.sourceToUri(sourceName, this.server), start, end, index);
       }
       catch (SQLException e) {
         this.logger.info("DB: Error in getSensorDataIndex()" + StackTrace.toString(e));
       }
       finally {
         try {
-          rs.close();
-          s.close();
-          conn.close();
+          if (conn != null) {
+            conn.close();
+          }
         }
         catch (SQLException e) {
           this.logger.warning(errorClosingMsg + StackTrace.toString(e));
@@ -891,122 +1388,247 @@ public class DerbyStorageImplementation extends DbImplementation {
       throw new DbBadIntervalException(startTime, endTime);
     }
     else {
-      SensorDatas datas = new SensorDatas();
-      String statement =
-          "SELECT * FROM SensorData WHERE Source = ? AND (Tstamp BETWEEN ? AND ?)"
-              + " ORDER BY Tstamp";
+      long start = Tstamp.makeTimestamp(startTime).getTime();
+      long end = Tstamp.makeTimestamp(endTime).getTime();
+      String sourceUri = Source.sourceToUri(sourceName, this.server);
       Connection conn = null;
-      PreparedStatement s = null;
-      ResultSet rs = null;
       try {
         conn = DriverManager.getConnection(connectionURL);
-        server.getLogger().fine(executeQueryMsg + statement);
-        s = conn.prepareStatement(statement);
-        s.setString(1, Source.sourceToUri(sourceName, this.server));
-        s.setTimestamp(2, Tstamp.makeTimestamp(startTime));
-        s.setTimestamp(3, Tstamp.makeTimestamp(endTime));
-        rs = s.executeQuery();
-        while (rs.next()) {
-          datas.getSensorData().add(resultSetToSensorData(rs));
+        try {
+          return selectSensorDatas(conn, sourceUri, start, end);
+        }
+        catch (SQLException e) {
+          if (!reloadIfPartitionMissing(conn, e)) {
+            throw e;
+          }
+          return selectSensorDatas(conn, sourceUri, start, end);
         }
       }
       catch (SQLException e) {
         this.logger.info("DB: Error in getSensorDatas()" + StackTrace.toString(e));
+        return new SensorDatas();
       }
       finally {
         try {
-          rs.close();
-          s.close();
-          conn.close();
+          if (conn != null) {
+            conn.close();
+          }
         }
         catch (SQLException e) {
           this.logger.warning(errorClosingMsg + StackTrace.toString(e));
         }
       }
-      return datas;
     }
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public SensorData getSensorData(String sourceName, XMLGregorianCalendar timestamp) {
-    if ((sourceName == null) || (timestamp == null)) {
-      return null;
-    }
-    else {
-      String statement = "SELECT * FROM SensorData WHERE Source = ? AND Tstamp = ?";
-      Connection conn = null;
+  /**
+   * Returns the sensor data of a Source in a time range, read from each partition in the range in
+   * turn, holding the read lock of its month.
+   * 
+   * @param conn The database connection.
+   * @param sourceUri The URI of the Source.
+   * @param start The start of the range in milliseconds since the epoch, inclusive.
+   * @param end The end of the range in milliseconds since the epoch, inclusive.
+   * @return The sensor data in time order.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private SensorDatas selectSensorDatas(Connection conn, String sourceUri, long start, long end)
+      throws SQLException {
+    SensorDatas datas = new SensorDatas();
+    // Partitions are in time order, so concatenating their results keeps the data in order
+    for (Partition listed : this.partitions.getPartitions(start, end, false)) {
+      Partition partition = this.partitions.acquire(listed.getMonth());
       PreparedStatement s = null;
-      ResultSet rs = null;
-      boolean hasData = false;
-      SensorData data = new SensorData();
       try {
-        conn = DriverManager.getConnection(connectionURL);
+        if (partition == null) {
+          continue;
+        }
+        String statement =
+            "SELECT " + columnsOf(partition) + " FROM " + partition.getTable()
+                + " WHERE Source = ? AND (Tstamp BETWEEN ? AND ?) ORDER BY Tstamp";
         server.getLogger().fine(executeQueryMsg + statement);
         s = conn.prepareStatement(statement);
-        s.setString(1, Source.sourceToUri(sourceName, this.server));
-        s.setTimestamp(2, Tstamp.makeTimestamp(timestamp));
-        rs = s.executeQuery();
-        while (rs.next()) { // the select statement must guarantee only one row is returned.
-          hasData = true;
-          data = resultSetToSensorData(rs);
+        s.setFetchSize(FETCH_SIZE);
+        s.setString(1, sourceUri);
+        setTime(s, 2, partition, start);
+        setTime(s, 3, partition, end);
+        ResultSet rs = s.executeQuery();
+        while (rs.next()) {
+          datas.getSensorData().add(readSensorData(partition, rs));
         }
-      }
-      catch (SQLException e) {
-        this.logger.info("DB: Error in getSensorData()" + StackTrace.toString(e));
+        rs.close();
       }
       finally {
-        try {
-          rs.close();
+        if (s != null) {
           s.close();
-          conn.close();
-        }
-        catch (SQLException e) {
-          this.logger.warning(errorClosingMsg + StackTrace.toString(e));
         }
+        this.partitions.release(listed.getMonth());
       }
-      return (hasData) ? data : null;
     }
+    return datas;
   }
 
   /** {@inheritDoc} */
   @Override
-  protected SensorData getLatestNonVirtualSensorData(String sourceName) {
-    if (sourceName == null) {
+  public SensorData getSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    if ((sourceName == null) || (timestamp == null)) {
+      return null;
+    }
+    long millis = Tstamp.makeTimestamp(timestamp).getTime();
+    if (this.partitions.getPartition(SensorDataPartitions.monthOf(millis)) == null) {
+      // No data at all for that month
       return null;
     }
+    String sourceUri = Source.sourceToUri(sourceName, this.server);
     Connection conn = null;
+    try {
+      conn = DriverManager.getConnection(connectionURL);
+      try {
+        return selectSensorData(conn, sourceUri, millis);
+      }
+      catch (SQLException e) {
+        if (!reloadIfPartitionMissing(conn, e)) {
+          throw e;
+        }
+        return selectSensorData(conn, sourceUri, millis);
+      }
+    }
+    catch (SQLException e) {
+      this.logger.info("DB: Error in getSensorData()" + StackTrace.toString(e));
+      return null;
+    }
+    finally {
+      try {
+        if (conn != null) {
+          conn.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+  }
+
+  /**
+   * Returns the sensor data of a Source at a time, holding the read lock of its month.
+   * 
+   * @param conn The database connection.
+   * @param sourceUri The URI of the Source.
+   * @param millis The time in milliseconds since the epoch.
+   * @return The sensor data, or null if there is none.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private SensorData selectSensorData(Connection conn, String sourceUri, long millis)
+      throws SQLException {
+    int month = SensorDataPartitions.monthOf(millis);
+    Partition partition = this.partitions.acquire(month);
     PreparedStatement s = null;
-    ResultSet rs = null;
-    boolean hasData = false;
-    SensorData data = new SensorData();
     try {
+      if (partition == null) {
+        return null;
+      }
       String statement =
-          "SELECT * FROM SensorData WHERE Source = ? ORDER BY Tstamp DESC FETCH FIRST ROW ONLY";
-      conn = DriverManager.getConnection(connectionURL);
+          "SELECT " + columnsOf(partition) + " FROM " + partition.getTable()
+              + " WHERE Source = ? AND Tstamp = ?";
       server.getLogger().fine(executeQueryMsg + statement);
       s = conn.prepareStatement(statement);
-      s.setString(1, Source.sourceToUri(sourceName, this.server));
-      rs = s.executeQuery();
+      s.setString(1, sourceUri);
+      setTime(s, 2, partition, millis);
+      ResultSet rs = s.executeQuery();
+      SensorData data = null;
+      // the select statement must guarantee only one row is returned.
       if (rs.next()) {
-        hasData = true;
-        data = resultSetToSensorData(rs);
+        data = readSensorData(partition, rs);
+      }
+      rs.close();
+      return data;
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+      this.partitions.release(month);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected SensorData getLatestNonVirtualSensorData(String sourceName) {
+    if (sourceName == null) {
+      return null;
+    }
+    String sourceUri = Source.sourceToUri(sourceName, this.server);
+    Connection conn = null;
+    try {
+      conn = DriverManager.getConnection(connectionURL);
+      try {
+        return selectLatestSensorData(conn, sourceUri);
+      }
+      catch (SQLException e) {
+        if (!reloadIfPartitionMissing(conn, e)) {
+          throw e;
+        }
+        return selectLatestSensorData(conn, sourceUri);
       }
     }
     catch (SQLException e) {
       this.logger.info("DB: Error in getSensorData()" + StackTrace.toString(e));
+      return null;
     }
     finally {
       try {
-        rs.close();
-        s.close();
-        conn.close();
+        if (conn != null) {
+          conn.close();
+        }
       }
       catch (SQLException e) {
         this.logger.warning(errorClosingMsg + StackTrace.toString(e));
       }
     }
-    return (hasData) ? data : null;
+  }
+
+  /**
+   * Returns the latest sensor data of a Source, searching the latest partition first, so an active
+   * Source is found in the first one, holding the read lock of each month while it is searched.
+   * 
+   * @param conn The database connection.
+   * @param sourceUri The URI of the Source.
+   * @return The sensor data, or null if there is none.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private SensorData selectLatestSensorData(Connection conn, String sourceUri)
+      throws SQLException {
+    for (Partition listed : this.partitions.getPartitions(true)) {
+      Partition partition = this.partitions.acquire(listed.getMonth());
+      PreparedStatement s = null;
+      try {
+        if (partition == null) {
+          continue;
+        }
+        String statement =
+            "SELECT " + columnsOf(partition) + " FROM " + partition.getTable()
+                + " WHERE Source = ? ORDER BY Tstamp DESC FETCH FIRST ROW ONLY";
+        server.getLogger().fine(executeQueryMsg + statement);
+        s = conn.prepareStatement(statement);
+        s.setString(1, sourceUri);
+        ResultSet rs = s.executeQuery();
+        try {
+          if (rs.next()) {
+            return readSensorData(partition, rs);
+          }
+        }
+        finally {
+          rs.close();
+        }
+      }
+      finally {
+        if (s != null) {
+          s.close();
+        }
+        this.partitions.release(listed.getMonth());
+      }
+    }
+    return null;
   }
 
   /** {@inheritDoc} */
@@ -1019,98 +1641,702 @@ public class DerbyStorageImplementation extends DbImplementation {
 
   /** {@inheritDoc} */
   @Override
-  public boolean storeSensorData(SensorData data) {
+  public boolean storeSensorData(SensorData data, boolean overwrite) {
     if (data == null) {
       return false;
     }
-    else {
-      Connection conn = null;
-      PreparedStatement s = null;
-      Marshaller propertiesMarshaller = null;
+    Connection conn = null;
+    try {
+      conn = DriverManager.getConnection(connectionURL);
       try {
-        propertiesMarshaller = propertiesJAXB.createMarshaller();
+        return insertSensorData(conn, data, overwrite);
       }
-      catch (JAXBException e) {
-        this.logger.info("Unable to create marshaller" + StackTrace.toString(e));
+      catch (SQLException e) {
+        if (!reloadIfPartitionMissing(conn, e)) {
+          throw e;
+        }
+        return insertSensorData(conn, data, overwrite);
+      }
+    }
+    catch (SQLException e) {
+      if (DUPLICATE_KEY.equals(e.getSQLState())) {
+        this.logger.fine("Derby: Attempted to overwrite SensorData " + data.getTimestamp());
+        return false;
+      }
+      else {
+        this.logger.info(derbyError + StackTrace.toString(e));
         return false;
       }
+    }
+    catch (JAXBException e) {
+      this.logger.info("Unable to marshall XML field" + StackTrace.toString(e));
+      return false;
+    }
+    finally {
+      try {
+        if (conn != null) {
+          conn.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+  }
+
+  /**
+   * Stores the batch with one multi-row INSERT per month, all in one transaction. The partitions
+   * are created, if needed, before the transaction starts, so that a rollback cannot drop a table
+   * the partition list still has. A batch with data for a month that has not been migrated yet is
+   * left to storeSensorData().
+   * 
+   * @param datas The new sensor data.
+   * @return True if every SensorData was stored, false if none was.
+   */
+  @Override
+  public boolean storeSensorDataBatch(List<SensorData> datas) {
+    if ((datas == null) || datas.isEmpty()) {
+      return false;
+    }
+    TreeMap<Integer, List<SensorData>> byMonth = new TreeMap<Integer, List<SensorData>>();
+    for (SensorData data : datas) {
+      int month =
+          SensorDataPartitions.monthOf(Tstamp.makeTimestamp(data.getTimestamp()).getTime());
+      List<SensorData> monthDatas = byMonth.get(month);
+      if (monthDatas == null) {
+        monthDatas = new ArrayList<SensorData>();
+        byMonth.put(month, monthDatas);
+      }
+      monthDatas.add(data);
+    }
+    Connection conn = null;
+    List<Integer> acquired = new ArrayList<Integer>();
+    try {
+      conn = DriverManager.getConnection(connectionURL);
+      List<Partition> targets = new ArrayList<Partition>();
+      // In month order, like every other holder of several month locks
+      for (Integer month : byMonth.keySet()) {
+        Partition partition =
+            this.partitions.acquireForWrite(conn, SensorDataPartitions.startOf(month));
+        acquired.add(month);
+        if (!partition.isV2()) {
+          return false;
+        }
+        targets.add(partition);
+      }
+      conn.setAutoCommit(false);
+      int i = 0;
+      for (List<SensorData> monthDatas : byMonth.values()) {
+        PreparedStatement s =
+            conn.prepareStatement("INSERT INTO " + targets.get(i++).getTable() + " "
+                + SensorDataCodec.INSERT_COLUMNS);
+        try {
+          for (SensorData data : monthDatas) {
+            SensorDataCodec.bind(s, data);
+            s.addBatch();
+          }
+          s.executeBatch();
+        }
+        finally {
+          s.close();
+        }
+      }
+      conn.commit();
+      conn.setAutoCommit(true);
+      this.logger.fine("Derby: Inserted a batch of " + datas.size() + " SensorData");
+      return true;
+    }
+    catch (SQLException e) {
+      // Usually SensorData that is already stored, which storeSensorData() then refuses on its own
+      this.logger.fine("Derby: unable to insert a batch of SensorData\n" + StackTrace.toString(e));
+      return false;
+    }
+    finally {
       try {
-        conn = DriverManager.getConnection(connectionURL);
-        s = conn.prepareStatement("INSERT INTO SensorData VALUES (?, ?, ?, ?, ?)");
+        if (conn != null) {
+          if (!conn.getAutoCommit()) {
+            // Only still in the transaction if it failed
+            conn.rollback();
+          }
+          conn.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+      for (Integer month : acquired) {
+        this.partitions.release(month);
+      }
+    }
+  }
+
+  /**
+   * Stores sensor data in the partition for its month, holding the read lock of the month.
+   * 
+   * @param conn The database connection.
+   * @param data The sensor data.
+   * @param overwrite True to replace sensor data already stored with the same timestamp.
+   * @return True if the data was stored, false if it was deleted by someone else while being
+   * overwritten.
+   * @throws SQLException If there are problems writing the database, including data with the same
+   * timestamp already being stored when overwrite is false.
+   * @throws JAXBException If the properties cannot be converted to XML.
+   */
+  private boolean insertSensorData(Connection conn, SensorData data, boolean overwrite)
+      throws SQLException, JAXBException {
+    Timestamp timestamp = Tstamp.makeTimestamp(data.getTimestamp());
+    Partition partition = this.partitions.acquireForWrite(conn, timestamp.getTime());
+    PreparedStatement s = null;
+    try {
+      String properties = null;
+      if (partition.isV2()) {
+        s =
+            conn.prepareStatement("INSERT INTO " + partition.getWriteTable() + " "
+                + SensorDataCodec.INSERT_COLUMNS);
+        SensorDataCodec.bind(s, data);
+      }
+      else {
+        // Not migrated yet, so still has the original columns
+        if (data.isSetProperties()) {
+          StringWriter writer = new StringWriter();
+          propertiesJAXB.createMarshaller().marshal(data.getProperties(), writer);
+          properties = writer.toString();
+        }
+        s =
+            conn.prepareStatement("INSERT INTO " + partition.getWriteTable()
+                + " VALUES (?, ?, ?, ?, ?)");
         // Order: Tstamp Tool Source Properties LastMod
-        s.setTimestamp(1, Tstamp.makeTimestamp(data.getTimestamp()));
+        s.setTimestamp(1, timestamp);
         s.setString(2, data.getTool());
         s.setString(3, data.getSource());
-        if (data.isSetProperties()) {
-          StringWriter writer = new StringWriter();
-          propertiesMarshaller.marshal(data.getProperties(), writer);
-          s.setString(4, writer.toString());
+        s.setString(4, properties);
+        s.setTimestamp(5, new Timestamp(new Date().getTime()));
+      }
+      try {
+        s.executeUpdate();
+        this.logger.fine("Derby: Inserted SensorData" + data.getTimestamp());
+        return true;
+      }
+      catch (SQLException e) {
+        if (!DUPLICATE_KEY.equals(e.getSQLState()) || !overwrite) {
+          throw e;
         }
-        else {
-          s.setString(4, null);
+      }
+      // Row already exists and overwrite was requested, so replace it. Derby has no MERGE, but
+      // the failed INSERT told us the row exists without a separate query.
+      s.close();
+      if (partition.isV2()) {
+        s =
+            conn.prepareStatement("UPDATE " + partition.getWriteTable() + " SET "
+                + SensorDataCodec.UPDATE_ASSIGNMENTS + " WHERE Source = ? AND Tstamp = ?");
+        SensorDataCodec.bindUpdate(s, data);
+        s.setString(8, data.getSource());
+        s.setLong(9, timestamp.getTime());
+      }
+      else {
+        s =
+            conn.prepareStatement("UPDATE " + partition.getWriteTable()
+                + " SET Tool = ?, Properties = ?, LastMod = ? WHERE Source = ? AND Tstamp = ?");
+        s.setString(1, data.getTool());
+        s.setString(2, properties);
+        s.setTimestamp(3, new Timestamp(new Date().getTime()));
+        s.setString(4, data.getSource());
+        s.setTimestamp(5, timestamp);
+      }
+      if (s.executeUpdate() == 0) {
+        // Deleted by someone else between the INSERT and the UPDATE
+        this.logger.fine("Derby: SensorData vanished during overwrite " + data.getTimestamp());
+        return false;
+      }
+      this.logger.fine("Derby: Overwrote SensorData" + data.getTimestamp());
+      return true;
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+      this.partitions.release(partition.getMonth());
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean deleteSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    boolean succeeded = false;
+    if ((sourceName == null) || (timestamp == null)) {
+      return false;
+    }
+    Timestamp sqlTimestamp = Tstamp.makeTimestamp(timestamp);
+    int month = SensorDataPartitions.monthOf(sqlTimestamp.getTime());
+    Partition partition = this.partitions.acquire(month);
+    try {
+      if (partition == null) {
+        return false;
+      }
+      String sourceUri = Source.sourceToUri(sourceName, this.server.getHostName());
+      String tstamp =
+          partition.isV2() ? Long.toString(sqlTimestamp.getTime()) : "'" + sqlTimestamp + "'";
+      String statement =
+          "DELETE FROM " + partition.getWriteTable() + " WHERE Source='" + sourceUri
+              + "' AND Tstamp=" + tstamp;
+      succeeded = deleteResource(statement);
+      if (succeeded) {
+        this.partitions.modified(month);
+        this.partitions.deleted(month, sourceUri, sqlTimestamp.getTime(), sqlTimestamp.getTime());
+      }
+      return succeeded;
+    }
+    finally {
+      this.partitions.release(month);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean deleteSensorData(String sourceName) {
+    boolean succeeded = false;
+
+    if (sourceName == null) {
+      return false;
+    }
+    else {
+      String sourceUri = Source.sourceToUri(sourceName, this.server.getHostName());
+      for (Partition listed : this.partitions.getPartitions(false)) {
+        int month = listed.getMonth();
+        Partition partition = this.partitions.acquire(month);
+        try {
+          if (partition == null) {
+            continue;
+          }
+          String statement =
+              "DELETE FROM " + partition.getWriteTable() + " WHERE Source='" + sourceUri + "'"
+                  + partition.getWriteRestriction();
+          if (deleteResource(statement)) {
+            this.partitions.modified(month);
+            this.partitions.deleted(month, sourceUri, SensorDataPartitions.startOf(month),
+                SensorDataPartitions.startOf(month + 1) - 1);
+            succeeded = true;
+          }
+        }
+        finally {
+          this.partitions.release(month);
+        }
+      }
+    }
+    return succeeded;
+  }
+
+  /**
+   * {@inheritDoc} The chunk is taken from the earliest partition with data in the range: the
+   * timestamp of its last row is found with an index-only query, then the chunk is removed by one
+   * DELETE committed on its own. As long as maxCount is below Derby's lock escalation threshold
+   * (5000 rows by default) the DELETE only takes row locks, so other rows of the partition can be
+   * read and written while it runs.
+   */
+  @Override
+  public int deleteSensorData(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, int maxCount) throws DbBadIntervalException {
+    if ((sourceName == null) || (startTime == null) || (endTime == null)) {
+      return -1;
+    }
+    else if (startTime.compare(endTime) == DatatypeConstants.GREATER) {
+      throw new DbBadIntervalException(startTime, endTime);
+    }
+    else if (getSource(sourceName) == null) {
+      return -1;
+    }
+    long start = Tstamp.makeTimestamp(startTime).getTime();
+    long end = Tstamp.makeTimestamp(endTime).getTime();
+    String sourceUri = Source.sourceToUri(sourceName, this.server);
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      conn = DriverManager.getConnection(connectionURL);
+      for (Partition listed : this.partitions.getPartitions(start, end, false)) {
+        Partition partition = this.partitions.acquire(listed.getMonth());
+        try {
+          if (partition == null) {
+            continue;
+          }
+          String statement = sensorDataRefsQuery(partition, true);
+          server.getLogger().fine(executeQueryMsg + statement);
+          s = conn.prepareStatement(statement);
+          s.setMaxRows(maxCount);
+          s.setString(1, sourceUri);
+          setTime(s, 2, partition, start);
+          setTime(s, 3, partition, end);
+          rs = s.executeQuery();
+          Long chunkEnd = null;
+          while (rs.next()) {
+            chunkEnd = getTime(rs, 1, partition);
+          }
+          rs.close();
+          rs = null;
+          s.close();
+          s = null;
+          if (chunkEnd != null) {
+            statement =
+                "DELETE FROM " + partition.getWriteTable() + " WHERE Source = ? AND (Tstamp "
+                    + "BETWEEN ? AND ?)" + partition.getWriteRestriction();
+            server.getLogger().fine(executeQueryMsg + statement);
+            s = conn.prepareStatement(statement);
+            s.setString(1, sourceUri);
+            setTime(s, 2, partition, start);
+            setTime(s, 3, partition, chunkEnd);
+            int deleted = s.executeUpdate();
+            this.partitions.modified(partition.getMonth());
+            this.partitions.deleted(partition.getMonth(), sourceUri, start, chunkEnd);
+            return deleted;
+          }
+        }
+        finally {
+          this.partitions.release(listed.getMonth());
+        }
+      }
+      return 0;
+    }
+    catch (SQLException e) {
+      this.logger.info("DB: Error in deleteSensorData()" + StackTrace.toString(e));
+      return -1;
+    }
+    finally {
+      try {
+        if (rs != null) {
+          rs.close();
+        }
+        if (s != null) {
+          s.close();
+        }
+        if (conn != null) {
+          conn.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+  }
+
+  /**
+   * Deletes the sensor data of all Sources in every month that ends at or before the given time,
+   * by dropping whole partitions. This is much faster than deleting the data row by row, and
+   * returns the space to the file system immediately. Sensor data in the month containing the
+   * given time is kept, even if it is older than the time.
+   * 
+   * Since this bypasses the DbManager, the caller is responsible for discarding anything the
+   * DbManager has cached about the deleted data.
+   * 
+   * @param cutoff The time before which whole months of sensor data are deleted.
+   * @return The number of partitions dropped, or -1 if there was a problem.
+   */
+  public int dropPartitionsBefore(XMLGregorianCalendar cutoff) {
+    int cutoffMonth = SensorDataPartitions.monthOf(Tstamp.makeTimestamp(cutoff).getTime());
+    int dropped = 0;
+    Connection conn = null;
+    try {
+      conn = DriverManager.getConnection(connectionURL);
+      for (Partition partition : this.partitions.getPartitions(false)) {
+        if (partition.getMonth() < cutoffMonth) {
+          this.partitions.drop(conn, partition.getMonth());
+          dropped++;
+        }
+      }
+      return dropped;
+    }
+    catch (SQLException e) {
+      this.logger.info("Derby: Error in dropPartitionsBefore()" + StackTrace.toString(e));
+      return -1;
+    }
+    finally {
+      try {
+        if (conn != null) {
+          conn.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc} Each partition is queried for the count, first and last timestamps and power
+   * statistics of each bucket with one GROUP BY query, and for the energy with another that joins
+   * each reading to the next one in the same bucket. Pairs of readings that cross a bucket
+   * boundary, and the pair split between one partition and the next, are fetched separately and
+   * their energy divided between the buckets they span. Returns null, so the statistics are
+   * computed in Java, while any partition in the range has not been migrated to the version 2
+   * schema.
+   */
+  public List<SensorDataStatistics> aggregateSensorData(String sourceName,
+      List<XMLGregorianCalendar> boundaries) {
+    int buckets = boundaries.size() - 1;
+    long[] bounds = new long[boundaries.size()];
+    List<SensorDataStatistics> statistics = new ArrayList<SensorDataStatistics>(buckets);
+    for (int i = 0; i <= buckets; i++) {
+      bounds[i] = Tstamp.makeTimestamp(boundaries.get(i)).getTime();
+      if (i > 0) {
+        statistics.add(new SensorDataStatistics(boundaries.get(i - 1), boundaries.get(i)));
+      }
+    }
+    List<Partition> rangePartitions =
+        this.partitions.getPartitions(bounds[0], bounds[buckets] - 1, false);
+    for (Partition partition : rangePartitions) {
+      if (!partition.isV2()) {
+        return null;
+      }
+    }
+    String sourceUri = Source.sourceToUri(sourceName, this.server);
+    Connection conn = null;
+    try {
+      conn = DriverManager.getConnection(connectionURL);
+      // The last reading in the range of the partitions searched so far
+      SensorDataStatistics.Reading previous = null;
+      for (Partition listed : rangePartitions) {
+        // Still version 2 if it has not been dropped, since partitions are never downgraded
+        Partition partition = this.partitions.acquire(listed.getMonth());
+        try {
+          if (partition == null) {
+            continue;
+          }
+          long start = Math.max(bounds[0], SensorDataPartitions.startOf(partition.getMonth()));
+          long end =
+              Math.min(bounds[buckets], SensorDataPartitions.startOf(partition.getMonth() + 1));
+          int firstBucket = SensorDataStatistics.bucketOf(bounds, start);
+          int lastBucket = SensorDataStatistics.bucketOf(bounds, end - 1);
+          for (int i = firstBucket; i <= lastBucket; i += BUCKETS_PER_QUERY) {
+            String values =
+                bucketValues(bounds, i, Math.min(i + BUCKETS_PER_QUERY - 1, lastBucket));
+            aggregateReadings(conn, partition, values, sourceUri, statistics);
+            aggregateEnergy(conn, partition, values, sourceUri, statistics);
+            aggregateCrossingEnergy(conn, partition, values, sourceUri, bounds, statistics);
+          }
+          // The pair of consecutive readings split between partitions
+          SensorDataStatistics.Reading first =
+              findReading(conn, partition, sourceUri, start, end, false);
+          if (first != null) {
+            if (previous != null) {
+              SensorDataStatistics.addEnergyBetween(statistics, bounds, previous, first);
+            }
+            previous = findReading(conn, partition, sourceUri, start, end, true);
+          }
+        }
+        finally {
+          this.partitions.release(listed.getMonth());
+        }
+      }
+      return statistics;
+    }
+    catch (SQLException e) {
+      this.logger.info("DB: Error in aggregateSensorData()" + StackTrace.toString(e));
+      return null;
+    }
+    finally {
+      try {
+        if (conn != null) {
+          conn.close();
         }
-        s.setTimestamp(5, new Timestamp(new Date().getTime()));
-        s.executeUpdate();
-        this.logger.fine("Derby: Inserted SensorData" + data.getTimestamp());
-        return true;
       }
       catch (SQLException e) {
-        if (DUPLICATE_KEY.equals(e.getSQLState())) {
-          this.logger.fine("Derby: Attempted to overwrite SensorData " + data.getTimestamp());
-          return false;
-        }
-        else {
-          this.logger.info(derbyError + StackTrace.toString(e));
-          return false;
-        }
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
       }
-      catch (JAXBException e) {
-        this.logger.info("Unable to marshall XML field" + StackTrace.toString(e));
-        return false;
+    }
+  }
+
+  /**
+   * Returns a table value constructor listing buckets as (Idx, Lo, Hi) rows, for joining with a
+   * partition in aggregate queries.
+   * 
+   * @param bounds The bucket boundaries in milliseconds since the epoch, in increasing order.
+   * @param first The index of the first bucket to list.
+   * @param last The index of the last bucket to list.
+   * @return The SQL text.
+   */
+  private static String bucketValues(long[] bounds, int first, int last) {
+    StringBuilder values = new StringBuilder("(VALUES ");
+    for (int i = first; i <= last; i++) {
+      if (i > first) {
+        values.append(", ");
       }
-      finally {
-        try {
-          s.close();
-          conn.close();
-        }
-        catch (SQLException e) {
-          this.logger.warning(errorClosingMsg + StackTrace.toString(e));
-        }
+      values.append('(').append(i).append(", CAST(").append(bounds[i]).append(" AS BIGINT), CAST(")
+          .append(bounds[i + 1]).append(" AS BIGINT))");
+    }
+    return values.append(") AS B(Idx, Lo, Hi)").toString();
+  }
+
+  /**
+   * Adds the count, first and last timestamps and power statistics of the readings of a Source in
+   * the listed buckets of a version 2 partition to the statistics of each bucket.
+   * 
+   * @param conn The database connection.
+   * @param partition The partition.
+   * @param values The buckets, as returned by bucketValues().
+   * @param sourceUri The URI of the Source.
+   * @param statistics The statistics of every bucket.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private void aggregateReadings(Connection conn, Partition partition, String values,
+      String sourceUri, List<SensorDataStatistics> statistics) throws SQLException {
+    String statement =
+        "SELECT B.Idx, COUNT(1), MIN(D.Tstamp), MAX(D.Tstamp), COUNT(D.PowerConsumed), "
+            + "SUM(D.PowerConsumed), MIN(D.PowerConsumed), MAX(D.PowerConsumed) FROM " + values
+            + ", " + partition.getTable() + " D WHERE D.Source = ? AND D.Tstamp >= B.Lo "
+            + "AND D.Tstamp < B.Hi GROUP BY B.Idx";
+    server.getLogger().fine(executeQueryMsg + statement);
+    PreparedStatement s = conn.prepareStatement(statement);
+    try {
+      s.setString(1, sourceUri);
+      ResultSet rs = s.executeQuery();
+      while (rs.next()) {
+        SensorDataStatistics bucket = statistics.get(rs.getInt(1));
+        bucket.addReadings(rs.getLong(2), rs.getLong(3), rs.getLong(4));
+        bucket.addPowers(rs.getLong(5), rs.getDouble(6), rs.getDouble(7), rs.getDouble(8));
       }
+      rs.close();
+    }
+    finally {
+      s.close();
     }
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public boolean deleteSensorData(String sourceName, XMLGregorianCalendar timestamp) {
-    boolean succeeded = false;
-    if ((sourceName == null) || (timestamp == null)) {
-      return false;
+  /**
+   * Adds the energy consumed and generated between consecutive readings of a Source in the listed
+   * buckets of a version 2 partition to the statistics of each bucket. Each reading is joined to
+   * the next one in the partition, and pairs in the same bucket that both have a power value
+   * contribute the area of the trapezoid under them.
+   * 
+   * @param conn The database connection.
+   * @param partition The partition.
+   * @param values The buckets, as returned by bucketValues().
+   * @param sourceUri The URI of the Source.
+   * @param statistics The statistics of every bucket.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private void aggregateEnergy(Connection conn, Partition partition, String values,
+      String sourceUri, List<SensorDataStatistics> statistics) throws SQLException {
+    String table = partition.getTable();
+    String statement =
+        "SELECT B.Idx, SUM((D.PowerConsumed + N.PowerConsumed) * (N.Tstamp - D.Tstamp)), "
+            + "SUM((D.PowerGenerated + N.PowerGenerated) * (N.Tstamp - D.Tstamp)) FROM " + values
+            + ", " + table + " D, " + table + " N WHERE D.Source = ? "
+            + "AND D.Tstamp >= B.Lo AND D.Tstamp < B.Hi AND N.Source = D.Source AND N.Tstamp = "
+            + "(SELECT MIN(X.Tstamp) FROM " + table + " X WHERE X.Source = D.Source "
+            + "AND X.Tstamp > D.Tstamp) AND N.Tstamp < B.Hi GROUP BY B.Idx";
+    server.getLogger().fine(executeQueryMsg + statement);
+    PreparedStatement s = conn.prepareStatement(statement);
+    try {
+      s.setString(1, sourceUri);
+      ResultSet rs = s.executeQuery();
+      while (rs.next()) {
+        // Doubled trapezoid areas in watt-milliseconds
+        statistics.get(rs.getInt(1)).addEnergy(rs.getDouble(2) / 2 / MILLIS_PER_HOUR,
+            rs.getDouble(3) / 2 / MILLIS_PER_HOUR);
+      }
+      rs.close();
     }
-    else {
-      String sourceUri = Source.sourceToUri(sourceName, this.server.getHostName());
-      String statement =
-          "DELETE FROM SensorData WHERE Source='" + sourceUri + "' AND Tstamp='"
-              + Tstamp.makeTimestamp(timestamp) + "'";
-      succeeded = deleteResource(statement);
-      return succeeded;
+    finally {
+      s.close();
     }
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public boolean deleteSensorData(String sourceName) {
-    boolean succeeded = false;
+  /**
+   * Adds the energy between the last reading of a Source in each of the listed buckets of a version
+   * 2 partition and the next reading in the partition, when that is in a later bucket of the
+   * range, dividing it between the buckets the pair spans. There is at most one such pair per
+   * bucket. A pair whose second reading is at or after the end of the range is left to
+   * DbImplementation.addEdgeEnergy().
+   * 
+   * @param conn The database connection.
+   * @param partition The partition.
+   * @param values The buckets, as returned by bucketValues().
+   * @param sourceUri The URI of the Source.
+   * @param bounds The bucket boundaries in milliseconds since the epoch, in increasing order.
+   * @param statistics The statistics of every bucket.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private void aggregateCrossingEnergy(Connection conn, Partition partition, String values,
+      String sourceUri, long[] bounds, List<SensorDataStatistics> statistics) throws SQLException {
+    String table = partition.getTable();
+    String statement =
+        "SELECT D.Tstamp, D.PowerConsumed, D.PowerGenerated, N.Tstamp, N.PowerConsumed, "
+            + "N.PowerGenerated FROM " + values + ", " + table + " D, " + table + " N "
+            + "WHERE D.Source = ? AND D.Tstamp >= B.Lo AND D.Tstamp < B.Hi "
+            + "AND N.Source = D.Source AND N.Tstamp = (SELECT MIN(X.Tstamp) FROM " + table
+            + " X WHERE X.Source = D.Source AND X.Tstamp > D.Tstamp) AND N.Tstamp >= B.Hi "
+            + "AND N.Tstamp < ?";
+    server.getLogger().fine(executeQueryMsg + statement);
+    PreparedStatement s = conn.prepareStatement(statement);
+    try {
+      s.setString(1, sourceUri);
+      s.setLong(2, bounds[bounds.length - 1]);
+      ResultSet rs = s.executeQuery();
+      while (rs.next()) {
+        SensorDataStatistics.Reading first =
+            new SensorDataStatistics.Reading(rs.getLong(1), getPower(rs, 2), getPower(rs, 3));
+        SensorDataStatistics.Reading second =
+            new SensorDataStatistics.Reading(rs.getLong(4), getPower(rs, 5), getPower(rs, 6));
+        SensorDataStatistics.addEnergyBetween(statistics, bounds, first, second);
+      }
+      rs.close();
+    }
+    finally {
+      s.close();
+    }
+  }
 
-    if (sourceName == null) {
-      return false;
+  /**
+   * Returns a nullable power column of the current row of a ResultSet.
+   * 
+   * @param rs The ResultSet.
+   * @param column The column index.
+   * @return The power in watts, or null if the column is null.
+   * @throws SQLException If there are problems reading the column.
+   */
+  private static Double getPower(ResultSet rs, int column) throws SQLException {
+    double power = rs.getDouble(column);
+    return rs.wasNull() ? null : power;
+  }
+
+  /**
+   * Returns the time and powers of the first or last reading of a Source in a version 2
+   * partition within a time range.
+   * 
+   * @param conn The database connection.
+   * @param partition The partition.
+   * @param sourceUri The URI of the Source.
+   * @param start The start of the range in milliseconds since the epoch, inclusive.
+   * @param end The end of the range in milliseconds since the epoch, exclusive.
+   * @param last True for the last reading, false for the first.
+   * @return The reading, or null if there are no readings in the range.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private SensorDataStatistics.Reading findReading(Connection conn, Partition partition,
+      String sourceUri, long start, long end, boolean last) throws SQLException {
+    String statement =
+        "SELECT Tstamp, PowerConsumed, PowerGenerated FROM " + partition.getTable()
+            + " WHERE Source = ? AND Tstamp >= ? AND Tstamp < ? ORDER BY Tstamp "
+            + (last ? "DESC" : "ASC") + " FETCH FIRST ROW ONLY";
+    server.getLogger().fine(executeQueryMsg + statement);
+    PreparedStatement s = conn.prepareStatement(statement);
+    try {
+      s.setString(1, sourceUri);
+      s.setLong(2, start);
+      s.setLong(3, end);
+      ResultSet rs = s.executeQuery();
+      try {
+        if (rs.next()) {
+          return new SensorDataStatistics.Reading(rs.getLong(1), getPower(rs, 2), getPower(rs, 3));
+        }
+        return null;
+      }
+      finally {
+        rs.close();
+      }
     }
-    else {
-      String sourceUri = Source.sourceToUri(sourceName, this.server.getHostName());
-      String statement = "DELETE FROM SensorData WHERE Source='" + sourceUri + "'";
-      succeeded = deleteResource(statement);
+    finally {
+      s.close();
     }
-    return succeeded;
   }
 
   /**
@@ -1132,7 +2358,6 @@ public class DerbyStorageImplementation extends DbImplementation {
    */
   @Override
   public SensorDataStraddle getSensorDataStraddle(String sourceName, XMLGregorianCalendar timestamp) {
-    SensorData beforeData = null, afterData = null;
     if ((sourceName == null) || (timestamp == null)) {
       return null;
     }
@@ -1140,98 +2365,199 @@ public class DerbyStorageImplementation extends DbImplementation {
     if (source == null) {
       return null;
     }
-    XMLGregorianCalendar dataTimestamp;
-    int dataTimestampCompare;
-
-    Connection conn = null;
-    PreparedStatement s = null;
-    ResultSet rs = null;
-    String statement;
     SensorData data = getSensorData(sourceName, timestamp);
-    if (data == null) {
+    if (data != null) {
+      // There is SensorData for the requested timestamp, so return degenerate
+      // SensorDataStraddle
+      return new SensorDataStraddle(timestamp, data, data);
+    }
+    Connection conn = null;
+    try {
+      conn = DriverManager.getConnection(connectionURL);
+      String sourceUri = Source.sourceToUri(sourceName, this.server);
+      Timestamp sqlTimestamp = Tstamp.makeTimestamp(timestamp);
+      // Find data just before desired timestamp, searching back from its month, and just after
+      // it, searching forward from its month
+      long millis = sqlTimestamp.getTime();
+      Long before =
+          findTimestamp(conn, this.partitions.getPartitionsUpTo(millis), sourceUri,
+              " AND Tstamp < ?", millis, true);
+      if (before == null) {
+        return null;
+      }
+      Long after =
+          findTimestamp(conn, this.partitions.getPartitionsFrom(millis), sourceUri,
+              " AND Tstamp > ?", millis, false);
+      if (after == null) {
+        return null;
+      }
+      SensorData beforeData = getSensorData(sourceName, Tstamp.makeTimestamp(before));
+      SensorData afterData = getSensorData(sourceName, Tstamp.makeTimestamp(after));
+      if ((beforeData == null) || (afterData == null)) {
+        // Deleted while we were looking
+        return null;
+      }
+      return new SensorDataStraddle(timestamp, beforeData, afterData);
+    }
+    catch (SQLException e) {
+      this.logger.info("DB: Error in getSensorDataStraddle()" + StackTrace.toString(e));
+      return null;
+    }
+    finally {
       try {
-        // Find data just before desired timestamp
-        statement =
-            "SELECT Tstamp FROM SensorData WHERE Source = ? AND Tstamp < ? "
-                + "ORDER BY Tstamp DESC FETCH FIRST ROW ONLY";
-        conn = DriverManager.getConnection(connectionURL);
-        server.getLogger().fine(executeQueryMsg + statement);
-        s = conn.prepareStatement(statement);
-        s.setString(1, Source.sourceToUri(sourceName, this.server));
-        s.setTimestamp(2, Tstamp.makeTimestamp(timestamp));
-        rs = s.executeQuery();
-        // Expecting only one row of data (fetch first row only)
-        while (rs.next()) {
-          dataTimestamp = Tstamp.makeTimestamp(rs.getTimestamp(1));
-          dataTimestampCompare = dataTimestamp.compare(timestamp);
-          if (dataTimestampCompare == DatatypeConstants.EQUAL) {
-            // There is SensorData for the requested timestamp, but we already checked for this.
-            // Thus there is a logic error somewhere
-            this.logger
-                .warning("Found sensordata that matches timestamp, but after already checked!");
-            SensorData tempData = getSensorData(sourceName, dataTimestamp);
-            return new SensorDataStraddle(timestamp, tempData, tempData);
-          }
-          else {
-            beforeData = getSensorData(sourceName, dataTimestamp);
-          }
+        if (conn != null) {
+          conn.close();
         }
-        // Close those statement and result set resources before we reuse the variables
-        s.close();
-        rs.close();
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+  }
 
-        // Find data just after desired timestamp
-        statement =
-            "SELECT Tstamp FROM SensorData WHERE Source = ? AND Tstamp > ? "
-                + "ORDER BY Tstamp ASC FETCH FIRST ROW ONLY";
-        server.getLogger().fine(executeQueryMsg + statement);
-        s = conn.prepareStatement(statement);
-        s.setString(1, Source.sourceToUri(sourceName, this.server));
-        s.setTimestamp(2, Tstamp.makeTimestamp(timestamp));
-        rs = s.executeQuery();
-        // Expecting only one row of data (fetch first row only)
-        while (rs.next()) {
-          dataTimestamp = Tstamp.makeTimestamp(rs.getTimestamp(1));
-          dataTimestampCompare = dataTimestamp.compare(timestamp);
-          if (dataTimestampCompare == DatatypeConstants.EQUAL) {
-            // There is SensorData for the requested timestamp, but we already checked for this.
-            // Thus there is a logic error somewhere
-            this.logger
-                .warning("Found sensordata that matches timestamp, but after already checked!");
-            SensorData tempData = getSensorData(sourceName, dataTimestamp);
-            return new SensorDataStraddle(timestamp, tempData, tempData);
-          }
-          else {
-            afterData = getSensorData(sourceName, dataTimestamp);
-          }
+  /**
+   * Computes the version from the number of readings the value depends on, the first and last of
+   * their timestamps, and the latest of their LastMod times, all of which are stored. One statement
+   * per partition finds the readings together with the neighbours of the range in the same month,
+   * so a range within one month costs a single indexed read. A neighbour in another month is
+   * searched for a month at a time. Partitions that have not been migrated to the version 2 schema
+   * yet are not supported.
+   * 
+   * @param sourceName The name of the non-virtual Source.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return The version, or null if a partition involved is in the version 1 schema or there was a
+   * problem reading it.
+   */
+  @Override
+  public ModificationTracker.RangeVersion getSensorDataVersion(String sourceName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) {
+    if ((sourceName == null) || (startTime == null) || (endTime == null)) {
+      return null;
+    }
+    long start = Tstamp.makeTimestamp(startTime).getTime();
+    long end = Tstamp.makeTimestamp(endTime).getTime();
+    if (start > end) {
+      // Bogus range, which the request fails on later
+      return null;
+    }
+    String sourceUri = Source.sourceToUri(sourceName, this.server);
+    // Count, first timestamp, last timestamp, latest LastMod
+    long[] window = { 0, Long.MAX_VALUE, Long.MIN_VALUE, 0 };
+    Connection conn = null;
+    try {
+      conn = DriverManager.getConnection(connectionURL);
+      List<Partition> listed = this.partitions.getPartitions(start, end, false);
+      for (int i = 0; i < listed.size(); i++) {
+        long low = (i == 0) ? start : Long.MIN_VALUE;
+        long high = (i == listed.size() - 1) ? end : Long.MAX_VALUE;
+        if (!aggregateWindow(conn, listed.get(i), sourceUri, low, high, window)) {
+          return null;
         }
-        if ((beforeData == null) || (afterData == null)) {
-          // one of the sentinels never got changed, so no straddle
+      }
+      int startMonth = SensorDataPartitions.monthOf(start);
+      int endMonth = SensorDataPartitions.monthOf(end);
+      // Without a reading at or before the start so far, the last reading of an earlier month
+      for (Partition earlier : this.partitions.getPartitionsUpTo(start)) {
+        if (window[1] <= start) {
+          break;
+        }
+        if ((earlier.getMonth() < startMonth)
+            && !aggregateWindow(conn, earlier, sourceUri, Long.MAX_VALUE, Long.MAX_VALUE, window)) {
           return null;
         }
-        else {
-          return new SensorDataStraddle(timestamp, beforeData, afterData);
+      }
+      // Likewise the first reading of a later month
+      for (Partition later : this.partitions.getPartitionsFrom(end)) {
+        if (window[2] >= end) {
+          break;
+        }
+        if ((later.getMonth() > endMonth)
+            && !aggregateWindow(conn, later, sourceUri, Long.MIN_VALUE, Long.MIN_VALUE, window)) {
+          return null;
+        }
+      }
+    }
+    catch (SQLException e) {
+      this.logger.info("DB: Error in getSensorDataVersion()" + StackTrace.toString(e));
+      return null;
+    }
+    finally {
+      try {
+        if (conn != null) {
+          conn.close();
         }
       }
       catch (SQLException e) {
-        this.logger.info("DB: Error in getSensorDataStraddle()" + StackTrace.toString(e));
-        return null;
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
       }
-      finally {
+    }
+    return new ModificationTracker.RangeVersion(window[0] + "-" + window[1] + "-" + window[2]
+        + "-" + window[3], new Date(window[3]));
+  }
+
+  /**
+   * Adds the readings of a Source in one partition between two neighbours to the window of
+   * getSensorDataVersion(). The window starts at the latest reading at or before low, or at the
+   * start of the partition if there is none, and ends at the earliest reading at or after high, or
+   * at the end of the partition if there is none.
+   * 
+   * @param conn The database connection.
+   * @param listed The partition, which is re-acquired under its read lock.
+   * @param sourceUri The URI of the Source.
+   * @param low The time in milliseconds the window starts at or before.
+   * @param high The time in milliseconds the window ends at or after.
+   * @param window The count, first timestamp, last timestamp and latest LastMod of the window so
+   * far, which are updated.
+   * @return True if the partition was read, false if it is in the version 1 schema.
+   * @throws SQLException If there are problems reading the database.
+   */
+  private boolean aggregateWindow(Connection conn, Partition listed, String sourceUri, long low,
+      long high, long[] window) throws SQLException {
+    Partition partition = this.partitions.acquire(listed.getMonth());
+    try {
+      if (partition == null) {
+        // Dropped since it was listed
+        return true;
+      }
+      if (!partition.isV2()) {
+        return false;
+      }
+      String table = partition.getTable();
+      PreparedStatement s =
+          conn.prepareStatement("SELECT COUNT(*), MIN(Tstamp), MAX(Tstamp), MAX(LastMod) FROM "
+              + table + " WHERE Source = ? AND Tstamp >= COALESCE((SELECT MAX(Tstamp) FROM "
+              + table + " WHERE Source = ? AND Tstamp <= ?), CAST(? AS BIGINT))"
+              + " AND Tstamp <= COALESCE((SELECT MIN(Tstamp) FROM " + table
+              + " WHERE Source = ? AND Tstamp >= ?), CAST(? AS BIGINT))");
+      try {
+        s.setString(1, sourceUri);
+        s.setString(2, sourceUri);
+        s.setLong(3, low);
+        s.setLong(4, Long.MIN_VALUE);
+        s.setString(5, sourceUri);
+        s.setLong(6, high);
+        s.setLong(7, Long.MAX_VALUE);
+        ResultSet rs = s.executeQuery();
         try {
-          s.close();
-          rs.close();
-          conn.close();
+          if (rs.next() && (rs.getLong(1) > 0)) {
+            window[0] += rs.getLong(1);
+            window[1] = Math.min(window[1], rs.getLong(2));
+            window[2] = Math.max(window[2], rs.getLong(3));
+            window[3] = Math.max(window[3], rs.getLong(4));
+          }
         }
-        catch (SQLException e) {
-          this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+        finally {
+          rs.close();
         }
       }
+      finally {
+        s.close();
+      }
+      return true;
     }
-    else {
-      // There is SensorData for the requested timestamp, so return degenerate
-      // SensorDataStraddle
-      return new SensorDataStraddle(timestamp, data, data);
+    finally {
+      this.partitions.release(listed.getMonth());
     }
   }
 
@@ -1603,6 +2929,30 @@ public class DerbyStorageImplementation extends DbImplementation {
       cs.setString(2, "SENSORDATA");
       cs.setShort(3, (short) 1);
       cs.execute();
+      // Only partitions changed since they were last compressed can have space to give back, so
+      // months of old data are not rewritten every time
+      List<Partition> dirty = this.partitions.takeDirtyPartitions();
+      try {
+        while (!dirty.isEmpty()) {
+          int month = dirty.get(0).getMonth();
+          Partition partition = this.partitions.acquire(month);
+          try {
+            // Dropped or migrated, and so already marked dirty again, since it was taken
+            if ((partition != null) && (partition.isV2() == dirty.get(0).isV2())) {
+              cs.setString(2, partition.getTable().toUpperCase());
+              cs.execute();
+            }
+          }
+          finally {
+            this.partitions.release(month);
+          }
+          dirty.remove(0);
+        }
+      }
+      finally {
+        // Try the rest again next time
+        this.partitions.markDirty(dirty);
+      }
       cs.setString(2, "SOURCE");
       cs.execute();
       cs.setString(2, "WATTDEPOTUSER");
@@ -1648,6 +2998,28 @@ public class DerbyStorageImplementation extends DbImplementation {
         this.logger.info("Failed to drop SensorData(Source, Tstamp DESC) index.");
       }
       s.execute(indexSensorDataSourceTstampDescStatement);
+      for (Partition listed : this.partitions.getPartitions(false)) {
+        Partition partition = this.partitions.acquire(listed.getMonth());
+        try {
+          // Legacy partitions are read through the index of the original table, rebuilt above
+          if ((partition == null) || partition.isLegacy()) {
+            continue;
+          }
+          for (String index : new String[] { partition.getIndex(),
+              partition.getCoveringIndex() }) {
+            try {
+              s.execute("DROP INDEX " + index);
+            }
+            catch (SQLException e) {
+              this.logger.info("Failed to drop index " + index + ".");
+            }
+          }
+          SensorDataPartitions.createIndexes(s, partition);
+        }
+        finally {
+          this.partitions.release(listed.getMonth());
+        }
+      }
 
       s.close();
       success = true;
@@ -1683,9 +3055,34 @@ public class DerbyStorageImplementation extends DbImplementation {
 
   @Override
   public boolean makeSnapshot() {
+    return makeSnapshot(null);
+  }
+
+  /**
+   * Creates a snapshot of the database with Derby's online backup, which lets other transactions
+   * carry on storing data while it runs. Derby copies the files itself in a single call, so
+   * progress is measured by watching the copy grow in the snapshot directory.
+   * 
+   * @param progress Receives reports of the bytes and files copied, or null if progress is not
+   * wanted.
+   * @return True if the snapshot succeeded.
+   */
+  @Override
+  public boolean makeSnapshot(final SnapshotProgress progress) {
     this.logger.fine("Creating snapshot of database.");
     boolean success = false;
     String snapshotDir = server.getServerProperties().get(ServerProperties.DB_SNAPSHOT_KEY);
+    final File backupDir = new File(snapshotDir, dbName);
+    Timer watcher = null;
+    if (progress != null) {
+      watcher = new Timer("Derby snapshot progress", true);
+      watcher.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          reportSnapshotProgress(backupDir, progress);
+        }
+      }, SNAPSHOT_PROGRESS_INTERVAL, SNAPSHOT_PROGRESS_INTERVAL);
+    }
 
     Connection conn = null;
     CallableStatement cs = null;
@@ -1702,6 +3099,9 @@ public class DerbyStorageImplementation extends DbImplementation {
       success = false;
     }
     finally {
+      if (watcher != null) {
+        watcher.cancel();
+      }
       try {
         cs.close();
         conn.close();
@@ -1711,8 +3111,47 @@ public class DerbyStorageImplementation extends DbImplementation {
         success = false;
       }
     }
+    if (success && (progress != null)) {
+      reportSnapshotProgress(backupDir, progress);
+    }
     this.logger.fine("Created snapshot of database.");
 
     return success;
   }
+
+  /**
+   * Reports the total size and number of the files copied so far into a snapshot.
+   * 
+   * @param backupDir The directory the snapshot is being copied into.
+   * @param progress Receives the totals.
+   */
+  private static void reportSnapshotProgress(File backupDir, SnapshotProgress progress) {
+    long[] totals = new long[2];
+    addFileSizes(backupDir, totals);
+    progress.update(totals[0], (int) totals[1]);
+  }
+
+  /**
+   * Adds the sizes and number of the files in a directory and its subdirectories to running
+   * totals.
+   * 
+   * @param dir The directory.
+   * @param totals The total bytes and the number of files, which are added to.
+   */
+  private static void addFileSizes(File dir, long[] totals) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      // Not created yet, or gone
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        addFileSizes(file, totals);
+      }
+      else {
+        totals[0] += file.length();
+        totals[1]++;
+      }
+    }
+  }
 }
@@ -0,0 +1,258 @@
+package org.wattdepot.server.db.derby;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import org.wattdepot.resource.property.jaxb.Properties;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Converts SensorData to and from rows of the version 2 sensor data tables, without going through
+ * JAXB. Timestamps are stored as BIGINT milliseconds since the epoch, and the four standard power
+ * and energy properties as DOUBLE columns, so they can be filtered and aggregated in SQL.
+ * 
+ * So that SensorData reads back exactly as it was stored, the Properties column lists every
+ * property in its original order, one per line. A standard property whose value is exactly what
+ * Double.toString() gives for its column is listed by key alone. Any other property is listed as
+ * the key, a tab, and the value, with backslash, tab and newline characters escaped. A SensorData
+ * with no properties has a null Properties column.
+ * 
+ * @author Robert Brewer
+ */
+final class SensorDataCodec {
+
+  /** The property keys that have their own DOUBLE columns, in column order. */
+  static final String[] NUMERIC_KEYS =
+      { SensorData.POWER_CONSUMED, SensorData.POWER_GENERATED,
+          SensorData.ENERGY_CONSUMED_TO_DATE, SensorData.ENERGY_GENERATED_TO_DATE };
+
+  /** The columns read by read(), in order, for use in SELECT statements. */
+  static final String COLUMNS =
+      "Tstamp, Tool, Source, PowerConsumed, PowerGenerated, EnergyConsumedToDate, "
+          + "EnergyGeneratedToDate, Properties";
+
+  /** The column definitions of a version 2 sensor data table, for CREATE TABLE. */
+  static final String COLUMN_DEFINITIONS =
+      "(Tstamp BIGINT NOT NULL, Tool VARCHAR(128) NOT NULL, Source VARCHAR(256) NOT NULL, "
+          + "PowerConsumed DOUBLE, PowerGenerated DOUBLE, EnergyConsumedToDate DOUBLE, "
+          + "EnergyGeneratedToDate DOUBLE, Properties VARCHAR(32000), LastMod BIGINT NOT NULL, "
+          + "PRIMARY KEY (Source, Tstamp))";
+
+  /** The columns set by bind(), for INSERT statements. */
+  static final String INSERT_COLUMNS =
+      "(" + COLUMNS + ", LastMod) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  /** The assignments of the columns set by bindUpdate(), for UPDATE statements. */
+  static final String UPDATE_ASSIGNMENTS =
+      "Tool = ?, PowerConsumed = ?, PowerGenerated = ?, EnergyConsumedToDate = ?, "
+          + "EnergyGeneratedToDate = ?, Properties = ?, LastMod = ?";
+
+  /** Not instantiable. */
+  private SensorDataCodec() {
+    // Static methods only
+  }
+
+  /**
+   * Sets the nine parameters of an INSERT statement using INSERT_COLUMNS to the values of the given
+   * SensorData.
+   * 
+   * @param s The statement.
+   * @param data The SensorData.
+   * @throws SQLException If a parameter cannot be set.
+   */
+  static void bind(PreparedStatement s, SensorData data) throws SQLException {
+    s.setLong(1, Tstamp.makeTimestamp(data.getTimestamp()).getTime());
+    s.setString(2, data.getTool());
+    s.setString(3, data.getSource());
+    bindProperties(s, 4, data);
+    s.setLong(9, System.currentTimeMillis());
+  }
+
+  /**
+   * Sets the first seven parameters of an UPDATE statement starting with UPDATE_ASSIGNMENTS to the
+   * values of the given SensorData.
+   * 
+   * @param s The statement.
+   * @param data The SensorData.
+   * @throws SQLException If a parameter cannot be set.
+   */
+  static void bindUpdate(PreparedStatement s, SensorData data) throws SQLException {
+    s.setString(1, data.getTool());
+    bindProperties(s, 2, data);
+    s.setLong(7, System.currentTimeMillis());
+  }
+
+  /**
+   * Sets the four numeric columns and the Properties column, starting at the given parameter.
+   * 
+   * @param s The statement.
+   * @param first The index of the PowerConsumed parameter.
+   * @param data The SensorData.
+   * @throws SQLException If a parameter cannot be set.
+   */
+  private static void bindProperties(PreparedStatement s, int first, SensorData data)
+      throws SQLException {
+    Double[] numbers = new Double[NUMERIC_KEYS.length];
+    String encoded = null;
+    if (data.isSetProperties()) {
+      StringBuilder builder = new StringBuilder();
+      for (Property property : data.getProperties().getProperty()) {
+        String key = property.getKey();
+        String value = property.getValue();
+        int column = numericColumn(key);
+        boolean implied = false;
+        if ((column >= 0) && (numbers[column] == null) && (value != null)) {
+          try {
+            Double number = Double.valueOf(value);
+            // Derby cannot store NaN or infinity, so those are only kept in the Properties column
+            if (!number.isNaN() && !number.isInfinite()) {
+              numbers[column] = number;
+              implied = value.equals(number.toString());
+            }
+          }
+          catch (NumberFormatException e) { // NOPMD
+            // Not a number, so only kept in the Properties column
+          }
+        }
+        escape(builder, key);
+        if (!implied) {
+          builder.append('\t');
+          if (value != null) {
+            escape(builder, value);
+          }
+        }
+        builder.append('\n');
+      }
+      encoded = builder.toString();
+    }
+    for (int i = 0; i < numbers.length; i++) {
+      if (numbers[i] == null) {
+        s.setNull(first + i, Types.DOUBLE);
+      }
+      else {
+        s.setDouble(first + i, numbers[i]);
+      }
+    }
+    s.setString(first + numbers.length, encoded);
+  }
+
+  /**
+   * Converts the current row of a result set, selected with COLUMNS, to a SensorData.
+   * 
+   * @param rs The result set, positioned on a row.
+   * @return The SensorData.
+   * @throws SQLException If a column cannot be read.
+   */
+  static SensorData read(ResultSet rs) throws SQLException {
+    SensorData data = new SensorData();
+    data.setTimestamp(Tstamp.makeTimestamp(rs.getLong(1)));
+    data.setTool(rs.getString(2));
+    data.setSource(rs.getString(3));
+    String encoded = rs.getString(8);
+    if (encoded != null) {
+      Properties properties = new Properties();
+      List<Property> list = properties.getProperty();
+      int start = 0;
+      while (start < encoded.length()) {
+        int end = encoded.indexOf('\n', start);
+        int tab = encoded.indexOf('\t', start);
+        String key;
+        String value;
+        if ((tab >= 0) && (tab < end)) {
+          key = unescape(encoded, start, tab);
+          value = unescape(encoded, tab + 1, end);
+        }
+        else {
+          key = unescape(encoded, start, end);
+          // Implied by the numeric column
+          value = Double.toString(rs.getDouble(4 + numericColumn(key)));
+        }
+        list.add(new Property(key, value));
+        start = end + 1;
+      }
+      data.setProperties(properties);
+    }
+    return data;
+  }
+
+  /**
+   * Returns the index in NUMERIC_KEYS of the given key.
+   * 
+   * @param key The property key.
+   * @return The index, or -1 if the key does not have a numeric column.
+   */
+  private static int numericColumn(String key) {
+    for (int i = 0; i < NUMERIC_KEYS.length; i++) {
+      if (NUMERIC_KEYS[i].equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Appends a string to a builder, escaping backslash, tab and newline characters.
+   * 
+   * @param builder The builder.
+   * @param string The string.
+   */
+  private static void escape(StringBuilder builder, String string) {
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      switch (c) {
+      case '\\':
+        builder.append("\\\\");
+        break;
+      case '\t':
+        builder.append("\\t");
+        break;
+      case '\n':
+        builder.append("\\n");
+        break;
+      default:
+        builder.append(c);
+      }
+    }
+  }
+
+  /**
+   * Returns part of an escaped string, with the escaping undone.
+   * 
+   * @param encoded The escaped string.
+   * @param start The index of the first character of the part.
+   * @param end The index after the last character of the part.
+   * @return The unescaped part.
+   */
+  private static String unescape(String encoded, int start, int end) {
+    int backslash = encoded.indexOf('\\', start);
+    if ((backslash < 0) || (backslash >= end)) {
+      // Nothing escaped, the common case
+      return encoded.substring(start, end);
+    }
+    StringBuilder builder = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = encoded.charAt(i);
+      if ((c == '\\') && (i + 1 < end)) {
+        i++;
+        char escaped = encoded.charAt(i);
+        if (escaped == 't') {
+          builder.append('\t');
+        }
+        else if (escaped == 'n') {
+          builder.append('\n');
+        }
+        else {
+          builder.append(escaped);
+        }
+      }
+      else {
+        builder.append(c);
+      }
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,803 @@
+package org.wattdepot.server.db.derby;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the tables sensor data is partitioned into. Each partition holds the sensor data
+ * of every Source for one calendar month (in UTC). Partitions are created as data arrives for a
+ * month, so a query only has to look at the partitions that overlap its time range, and each table
+ * (and its B-tree) stays the size of one month of data however long the history grows.
+ * 
+ * A partition uses one of two schema versions. Version 1 partitions, named SensorData_YYYYMM, have
+ * the columns of the original SensorData table: TIMESTAMP timestamps and properties as XML.
+ * Version 2 partitions, named SensorDataV2_YYYYMM, have the columns described in SensorDataCodec.
+ * New partitions are always version 2, and version 1 partitions are converted one at a time by
+ * migrating them. The version 1 partition stays in use while its rows are copied, and deletions
+ * from it are recorded so they can be applied to the copy before the two are swapped.
+ * 
+ * Sensor data left in the original, unpartitioned SensorData table by a version that did not
+ * partition it is read and written through legacy partitions, one per month, which are migrated
+ * the same way. A legacy partition is read through a view named SensorDataLegacy_YYYYMM that
+ * selects its month from the original table, and written in the original table itself, restricted
+ * to its month. Migrating it deletes its month from the original table and drops the view.
+ * 
+ * Each month has a read-write lock. Every statement on a partition is run holding the read lock of
+ * its month, taken with acquire(), and partitions are only dropped or swapped for their migrated
+ * version with the write lock held, so a partition cannot disappear under a running statement.
+ * 
+ * Months are represented as the number of months since year 0, so consecutive months are
+ * consecutive integers. All methods are thread-safe.
+ * 
+ * @author Robert Brewer
+ */
+class SensorDataPartitions {
+
+  /** The prefix of version 1 partition table names. */
+  static final String V1_PREFIX = "SensorData_";
+
+  /** The prefix of version 2 partition table names. */
+  static final String V2_PREFIX = "SensorDataV2_";
+
+  /** The prefix of legacy partition view names. */
+  static final String LEGACY_PREFIX = "SensorDataLegacy_";
+
+  /** The original, unpartitioned table that legacy partitions are views of. */
+  static final String ORIGINAL_TABLE = "SensorData";
+
+  /** The SQL state indicating that CREATE TABLE found the table already exists. */
+  private static final String TABLE_EXISTS = "X0Y32";
+
+  /** The time zone month boundaries are computed in. */
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  /** The logger for problems. */
+  private final Logger logger;
+
+  /** The partition of each month that has one, keyed by month. */
+  private final TreeMap<Integer, Partition> partitions = new TreeMap<Integer, Partition>();
+
+  /** The months whose partitions have been modified since they were last compressed. */
+  private final Set<Integer> dirty = new HashSet<Integer>();
+
+  /** The months whose partitions are being migrated. */
+  private final Set<Integer> migrating = new HashSet<Integer>();
+
+  /** The deletions from each partition being migrated since its migration started. */
+  private final Map<Integer, List<Deletion>> deletions = new HashMap<Integer, List<Deletion>>();
+
+  /** The lock of each month that has been locked, keyed by month. */
+  private final Map<Integer, ReadWriteLock> locks = new HashMap<Integer, ReadWriteLock>();
+
+  /**
+   * The sensor data of one Source in a time range, deleted from a partition while it was being
+   * migrated. Instances are immutable.
+   */
+  static final class Deletion {
+
+    /** The URI of the Source. */
+    private final String sourceUri;
+
+    /** The start of the range in milliseconds since the epoch, inclusive. */
+    private final long start;
+
+    /** The end of the range in milliseconds since the epoch, inclusive. */
+    private final long end;
+
+    /**
+     * Creates a new Deletion.
+     * 
+     * @param sourceUri The URI of the Source.
+     * @param start The start of the range in milliseconds since the epoch, inclusive.
+     * @param end The end of the range in milliseconds since the epoch, inclusive.
+     */
+    Deletion(String sourceUri, long start, long end) {
+      this.sourceUri = sourceUri;
+      this.start = start;
+      this.end = end;
+    }
+
+    /**
+     * Returns the URI of the Source.
+     * 
+     * @return The URI.
+     */
+    String getSourceUri() {
+      return this.sourceUri;
+    }
+
+    /**
+     * Returns the start of the range.
+     * 
+     * @return The start in milliseconds since the epoch, inclusive.
+     */
+    long getStart() {
+      return this.start;
+    }
+
+    /**
+     * Returns the end of the range.
+     * 
+     * @return The end in milliseconds since the epoch, inclusive.
+     */
+    long getEnd() {
+      return this.end;
+    }
+  }
+
+  /**
+   * A partition table, or the view of a legacy partition. Instances are immutable.
+   */
+  static final class Partition {
+
+    /** The month the partition holds data for. */
+    private final int month;
+
+    /** The schema version of the partition, 1 or 2, or 0 for a legacy partition. */
+    private final int version;
+
+    /**
+     * Creates a new Partition.
+     * 
+     * @param month The month the partition holds data for.
+     * @param version The schema version of the partition, 1 or 2, or 0 for a legacy partition.
+     */
+    Partition(int month, int version) {
+      this.month = month;
+      this.version = version;
+    }
+
+    /**
+     * Returns the month the partition holds data for.
+     * 
+     * @return The month.
+     */
+    int getMonth() {
+      return this.month;
+    }
+
+    /**
+     * Returns true if the partition uses the version 2 schema.
+     * 
+     * @return True for version 2, false for version 1.
+     */
+    boolean isV2() {
+      return this.version == 2;
+    }
+
+    /**
+     * Returns true if the partition is a month of the original SensorData table. Legacy partitions
+     * have the version 1 columns.
+     * 
+     * @return True for a legacy partition.
+     */
+    boolean isLegacy() {
+      return this.version == 0;
+    }
+
+    /**
+     * Returns the name of the partition table to read from, which for a legacy partition is the
+     * view of its month.
+     * 
+     * @return The table name.
+     */
+    String getTable() {
+      return tableName(this.month, this.version);
+    }
+
+    /**
+     * Returns the name of the table to insert, update and delete sensor data of the partition in,
+     * which for a legacy partition is the original table, since views cannot be written.
+     * 
+     * @return The table name.
+     */
+    String getWriteTable() {
+      return isLegacy() ? ORIGINAL_TABLE : getTable();
+    }
+
+    /**
+     * Returns a condition, starting with AND, to add to a statement on the write table that is
+     * not otherwise restricted to the month of the partition, so it does not touch other months of
+     * the original table.
+     * 
+     * @return The condition, or an empty string if the write table only holds the partition.
+     */
+    String getWriteRestriction() {
+      return isLegacy() ? " AND " + getMonthCondition() : "";
+    }
+
+    /**
+     * Returns the condition selecting the month of the partition from a table with the version 1
+     * columns, with the times as literals since it is used in view definitions.
+     * 
+     * @return The condition.
+     */
+    private String getMonthCondition() {
+      return "Tstamp >= '" + new Timestamp(startOf(this.month)) + "' AND Tstamp < '"
+          + new Timestamp(startOf(this.month + 1)) + "'";
+    }
+
+    /**
+     * Returns the name of the index on (Source, Tstamp DESC) of the partition table.
+     * 
+     * @return The index name.
+     */
+    String getIndex() {
+      return getTable() + "_Desc";
+    }
+
+    /**
+     * Returns the name of the covering index of the partition table, which holds every column read
+     * by SensorDataIndex queries and, in version 2 partitions, the PowerConsumed column read by
+     * aggregate queries, so they never need to read the base table rows.
+     * 
+     * @return The index name.
+     */
+    String getCoveringIndex() {
+      return getTable() + "_Cover";
+    }
+
+    /**
+     * Returns the columns of the covering index, for CREATE INDEX.
+     * 
+     * @return The column list.
+     */
+    String getCoveringColumns() {
+      return isV2() ? "(Source, Tstamp, Tool, PowerConsumed)" : "(Source, Tstamp, Tool)";
+    }
+  }
+
+  /**
+   * Creates a new SensorDataPartitions that knows of no partitions. Call load() to find the
+   * existing ones.
+   * 
+   * @param logger The logger for problems.
+   */
+  SensorDataPartitions(Logger logger) {
+    this.logger = logger;
+  }
+
+  /**
+   * Returns the month containing the given time.
+   * 
+   * @param millis The time in milliseconds since the epoch.
+   * @return The month.
+   */
+  static int monthOf(long millis) {
+    Calendar calendar = new GregorianCalendar(UTC);
+    calendar.setTimeInMillis(millis);
+    return calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+  }
+
+  /**
+   * Returns the time at which the given month starts.
+   * 
+   * @param month The month.
+   * @return The start of the month in milliseconds since the epoch.
+   */
+  static long startOf(int month) {
+    Calendar calendar = new GregorianCalendar(UTC);
+    calendar.clear();
+    calendar.set(month / 12, month % 12, 1);
+    return calendar.getTimeInMillis();
+  }
+
+  /**
+   * Returns the name of the partition table for the given month and schema version.
+   * 
+   * @param month The month.
+   * @param version The schema version, 1 or 2, or 0 for the view of a legacy partition.
+   * @return The table name.
+   */
+  static String tableName(int month, int version) {
+    String prefix = (version == 2) ? V2_PREFIX : ((version == 1) ? V1_PREFIX : LEGACY_PREFIX);
+    return String.format("%s%04d%02d", prefix, month / 12, month % 12 + 1);
+  }
+
+  /**
+   * Creates the version 2 partition table for the given month, unless it already exists.
+   * 
+   * @param conn The database connection.
+   * @param month The month.
+   * @return The new partition.
+   * @throws SQLException If the table cannot be created.
+   */
+  static Partition createV2(Connection conn, int month) throws SQLException {
+    Partition partition = new Partition(month, 2);
+    Statement s = conn.createStatement();
+    try {
+      s.execute("CREATE TABLE " + partition.getTable() + " " + SensorDataCodec.COLUMN_DEFINITIONS);
+      createIndexes(s, partition);
+    }
+    catch (SQLException e) {
+      // Someone else (another server on the same database) got there first
+      if (!TABLE_EXISTS.equals(e.getSQLState())) {
+        throw e;
+      }
+    }
+    finally {
+      s.close();
+    }
+    return partition;
+  }
+
+  /**
+   * Creates the secondary indexes of a partition table: one on (Source, Tstamp DESC) for finding
+   * the latest data, and the covering index.
+   * 
+   * @param s The statement to execute with.
+   * @param partition The partition.
+   * @throws SQLException If an index cannot be created.
+   */
+  static void createIndexes(Statement s, Partition partition) throws SQLException {
+    s.execute("CREATE INDEX " + partition.getIndex() + " ON " + partition.getTable()
+        + "(Source, Tstamp DESC)");
+    s.execute("CREATE INDEX " + partition.getCoveringIndex() + " ON " + partition.getTable()
+        + partition.getCoveringColumns());
+  }
+
+  /**
+   * Drops a partition table, with the sensor data it holds. For a legacy partition, the rows of its
+   * month are deleted from the original table and its view is dropped.
+   * 
+   * @param s The statement to execute with.
+   * @param partition The partition.
+   * @throws SQLException If the table cannot be dropped.
+   */
+  static void dropTable(Statement s, Partition partition) throws SQLException {
+    if (partition.isLegacy()) {
+      s.execute("DELETE FROM " + ORIGINAL_TABLE + " WHERE " + partition.getMonthCondition());
+      s.execute("DROP VIEW " + partition.getTable());
+    }
+    else {
+      s.execute("DROP TABLE " + partition.getTable());
+    }
+  }
+
+  /**
+   * Finds the existing partition tables and legacy partition views in the database, forgetting
+   * any previously known.
+   * 
+   * @param conn The database connection.
+   * @throws SQLException If the system tables cannot be read.
+   */
+  synchronized void load(Connection conn) throws SQLException {
+    this.partitions.clear();
+    this.dirty.clear();
+    Statement s = conn.createStatement();
+    try {
+      ResultSet rs =
+          s.executeQuery("SELECT TableName FROM SYS.SYSTABLES WHERE TableType IN ('T', 'V') "
+              + "AND TableName LIKE 'SENSORDATA%\\_%' ESCAPE '\\'");
+      while (rs.next()) {
+        String name = rs.getString(1);
+        int version;
+        String yearMonthString;
+        if (name.startsWith(V2_PREFIX.toUpperCase())) {
+          version = 2;
+          yearMonthString = name.substring(V2_PREFIX.length());
+        }
+        else if (name.startsWith(LEGACY_PREFIX.toUpperCase())) {
+          version = 0;
+          yearMonthString = name.substring(LEGACY_PREFIX.length());
+        }
+        else {
+          version = 1;
+          yearMonthString = name.substring(V1_PREFIX.length());
+        }
+        try {
+          int yearMonth = Integer.parseInt(yearMonthString);
+          int month = (yearMonth / 100) * 12 + (yearMonth % 100) - 1;
+          Partition existing = this.partitions.get(month);
+          // A migration drops the partition it migrates in the transaction that finishes it, so
+          // if there are two, the version 2 one is an interrupted migration's incomplete copy
+          if ((existing == null) || (existing.version > version)) {
+            this.partitions.put(month, new Partition(month, version));
+          }
+          // Nobody knows when it was last compressed
+          this.dirty.add(month);
+        }
+        catch (NumberFormatException e) {
+          this.logger.warning("Derby: ignoring unexpected table " + name);
+        }
+      }
+      rs.close();
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  /**
+   * Makes a legacy partition of each month with sensor data in the original SensorData table,
+   * unless there already are legacy partitions, created at an earlier startup. Only the first and
+   * last timestamps in the table are looked up, rather than every row being read, and every month
+   * between them gets a legacy partition, even if it has no data. Nothing but legacy partitions
+   * writes to the original table, so a month that already has a partition has no data left there.
+   * The views are created in one transaction, so they are created for all months or none.
+   * 
+   * @param conn The database connection, in auto-commit mode.
+   * @throws SQLException If the original table cannot be read or a view cannot be created.
+   */
+  synchronized void createLegacyPartitions(Connection conn) throws SQLException {
+    for (Partition partition : this.partitions.values()) {
+      if (partition.isLegacy()) {
+        return;
+      }
+    }
+    Statement s = conn.createStatement();
+    try {
+      ResultSet rs = s.executeQuery("SELECT MIN(Tstamp), MAX(Tstamp) FROM " + ORIGINAL_TABLE);
+      Timestamp first = null, last = null;
+      if (rs.next()) {
+        first = rs.getTimestamp(1);
+        last = rs.getTimestamp(2);
+      }
+      rs.close();
+      if (first == null) {
+        return;
+      }
+      List<Partition> created = new ArrayList<Partition>();
+      conn.setAutoCommit(false);
+      try {
+        for (int month = monthOf(first.getTime()); month <= monthOf(last.getTime()); month++) {
+          if (!this.partitions.containsKey(month)) {
+            Partition partition = new Partition(month, 0);
+            s.execute("CREATE VIEW " + partition.getTable() + " AS SELECT * FROM "
+                + ORIGINAL_TABLE + " WHERE " + partition.getMonthCondition());
+            created.add(partition);
+          }
+        }
+        conn.commit();
+      }
+      catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      }
+      finally {
+        conn.setAutoCommit(true);
+      }
+      for (Partition partition : created) {
+        this.partitions.put(partition.getMonth(), partition);
+      }
+      this.logger.info("Derby: found " + created.size()
+          + " months of sensor data in the unpartitioned SensorData table.");
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  /**
+   * Returns the lock of the given month.
+   * 
+   * @param month The month.
+   * @return The lock.
+   */
+  synchronized ReadWriteLock lockOf(int month) {
+    ReadWriteLock lock = this.locks.get(month);
+    if (lock == null) {
+      lock = new ReentrantReadWriteLock();
+      this.locks.put(month, lock);
+    }
+    return lock;
+  }
+
+  /**
+   * Takes the read lock of the given month, and returns its current partition. The partition
+   * cannot be dropped or swapped for its migrated version until release() is called, which must
+   * be done even if there is no partition.
+   * 
+   * @param month The month.
+   * @return The partition, or null if there is none.
+   */
+  Partition acquire(int month) {
+    lockOf(month).readLock().lock();
+    return getPartition(month);
+  }
+
+  /**
+   * Takes the read lock of the month containing the given time, and returns its partition,
+   * creating a version 2 partition if there is none yet, and records that the partition has been
+   * modified. The caller must call release() unless this throws an exception.
+   * 
+   * @param conn The database connection.
+   * @param millis The time in milliseconds since the epoch.
+   * @return The partition.
+   * @throws SQLException If the table cannot be created.
+   */
+  Partition acquireForWrite(Connection conn, long millis) throws SQLException {
+    int month = monthOf(millis);
+    lockOf(month).readLock().lock();
+    try {
+      return getPartitionForWrite(conn, month);
+    }
+    catch (SQLException e) {
+      release(month);
+      throw e;
+    }
+  }
+
+  /**
+   * Releases the read lock of the given month taken by acquire() or acquireForWrite().
+   * 
+   * @param month The month.
+   */
+  void release(int month) {
+    lockOf(month).readLock().unlock();
+  }
+
+  /**
+   * Returns the partition of the given month, creating a version 2 partition if there is none yet,
+   * and records that the partition has been modified.
+   * 
+   * @param conn The database connection.
+   * @param month The month.
+   * @return The partition.
+   * @throws SQLException If the table cannot be created.
+   */
+  private synchronized Partition getPartitionForWrite(Connection conn, int month)
+      throws SQLException {
+    Partition partition = this.partitions.get(month);
+    if (partition == null) {
+      partition = createV2(conn, month);
+      this.logger.fine("Derby: created partition " + partition.getTable());
+      this.partitions.put(month, partition);
+    }
+    this.dirty.add(month);
+    return partition;
+  }
+
+  /**
+   * Returns the partition of the given month, or null if there is none. The partition may be
+   * dropped or migrated at any time unless the read lock of the month is held.
+   * 
+   * @param month The month.
+   * @return The partition, or null.
+   */
+  synchronized Partition getPartition(int month) {
+    return this.partitions.get(month);
+  }
+
+  /**
+   * Records that the partition of the given month has been modified.
+   * 
+   * @param month The month.
+   */
+  synchronized void modified(int month) {
+    if (this.partitions.containsKey(month)) {
+      this.dirty.add(month);
+    }
+  }
+
+  /**
+   * Returns the existing partitions that may hold data between the given times inclusive, in time
+   * order.
+   * 
+   * @param startMillis The start of the range, in milliseconds since the epoch.
+   * @param endMillis The end of the range, in milliseconds since the epoch.
+   * @param descending If true, the latest partition comes first.
+   * @return The partitions.
+   */
+  synchronized List<Partition> getPartitions(long startMillis, long endMillis,
+      boolean descending) {
+    return list(this.partitions.subMap(monthOf(startMillis), monthOf(endMillis) + 1).keySet(),
+        descending);
+  }
+
+  /**
+   * Returns the existing partitions that may hold data at or before the given time, latest first.
+   * 
+   * @param millis The time in milliseconds since the epoch.
+   * @return The partitions.
+   */
+  synchronized List<Partition> getPartitionsUpTo(long millis) {
+    return list(this.partitions.headMap(monthOf(millis) + 1).keySet(), true);
+  }
+
+  /**
+   * Returns the existing partitions that may hold data at or after the given time, earliest first.
+   * 
+   * @param millis The time in milliseconds since the epoch.
+   * @return The partitions.
+   */
+  synchronized List<Partition> getPartitionsFrom(long millis) {
+    return list(this.partitions.tailMap(monthOf(millis)).keySet(), false);
+  }
+
+  /**
+   * Returns all the partitions, in time order.
+   * 
+   * @param descending If true, the latest partition comes first.
+   * @return The partitions.
+   */
+  synchronized List<Partition> getPartitions(boolean descending) {
+    return list(this.partitions.keySet(), descending);
+  }
+
+  /**
+   * Returns the partitions of the given months. Must be called with the lock held. The partitions
+   * may be dropped or migrated by the time they are used, so callers pass their months to
+   * acquire() to get the current partitions.
+   * 
+   * @param monthSet The months in ascending order, a view of the partitions map.
+   * @param descending If true, the partitions are returned latest first.
+   * @return The partitions.
+   */
+  private List<Partition> list(Set<Integer> monthSet, boolean descending) {
+    List<Partition> result = new ArrayList<Partition>(monthSet.size());
+    for (int month : monthSet) {
+      result.add(this.partitions.get(month));
+    }
+    if (descending) {
+      Collections.reverse(result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the version 1 and legacy partitions that have not been migrated yet, latest first.
+   * 
+   * @return The partitions.
+   */
+  synchronized List<Partition> getV1Partitions() {
+    List<Partition> result = new ArrayList<Partition>();
+    for (Partition partition : this.partitions.values()) {
+      if (!partition.isV2()) {
+        result.add(partition);
+      }
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  /**
+   * Records that the partition of the given month is about to be migrated, so deletions from it
+   * are recorded until finishMigration() is called. The partition is used as before meanwhile.
+   * 
+   * @param month The month.
+   * @return The partition to migrate, or null if it no longer needs migrating.
+   */
+  synchronized Partition startMigration(int month) {
+    Partition partition = this.partitions.get(month);
+    if ((partition == null) || partition.isV2() || this.migrating.contains(month)) {
+      return null;
+    }
+    this.migrating.add(month);
+    this.deletions.put(month, new ArrayList<Deletion>());
+    return partition;
+  }
+
+  /**
+   * Records that sensor data has been deleted from the partition of the given month, if it is
+   * being migrated. Must be called while holding the read lock of the month.
+   * 
+   * @param month The month.
+   * @param sourceUri The URI of the Source whose data was deleted.
+   * @param start The start of the deleted range in milliseconds since the epoch, inclusive.
+   * @param end The end of the deleted range in milliseconds since the epoch, inclusive.
+   */
+  synchronized void deleted(int month, String sourceUri, long start, long end) {
+    List<Deletion> list = this.deletions.get(month);
+    if (list != null) {
+      list.add(new Deletion(sourceUri, start, end));
+    }
+  }
+
+  /**
+   * Returns the deletions recorded from the partition of the given month since its migration
+   * started, or since this was last called, and forgets them.
+   * 
+   * @param month The month.
+   * @return The deletions in the order they were made.
+   */
+  synchronized List<Deletion> takeDeletions(int month) {
+    List<Deletion> list = this.deletions.get(month);
+    if (list == null) {
+      return new ArrayList<Deletion>();
+    }
+    this.deletions.put(month, new ArrayList<Deletion>());
+    return list;
+  }
+
+  /**
+   * Records that migrating the partition of the given month has finished. If it succeeded, must be
+   * called while holding the write lock of the month, so no statement is using the version 1
+   * partition when it is replaced.
+   * 
+   * @param month The month.
+   * @param succeeded True if the partition is now version 2, false if it is still version 1.
+   */
+  synchronized void finishMigration(int month, boolean succeeded) {
+    if (succeeded) {
+      this.partitions.put(month, new Partition(month, 2));
+      this.dirty.add(month);
+    }
+    this.migrating.remove(month);
+    this.deletions.remove(month);
+  }
+
+  /**
+   * Returns the partitions that have been modified since they were last compressed, and forgets
+   * them, on the assumption the caller is going to compress them. Legacy partitions are left out,
+   * since they have no table of their own, and forgotten all the same.
+   * 
+   * @return The partitions in time order.
+   */
+  synchronized List<Partition> takeDirtyPartitions() {
+    List<Partition> result = new ArrayList<Partition>();
+    for (Partition partition : this.partitions.values()) {
+      int month = partition.getMonth();
+      if (this.dirty.contains(month) && !this.migrating.contains(month)) {
+        if (!partition.isLegacy()) {
+          result.add(partition);
+        }
+        this.dirty.remove(month);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Records that the given partitions still need to be compressed, after compressing them failed.
+   * 
+   * @param failed The partitions.
+   */
+  synchronized void markDirty(List<Partition> failed) {
+    for (Partition partition : failed) {
+      modified(partition.getMonth());
+    }
+  }
+
+  /**
+   * Drops the partition of the given month, deleting all the sensor data it holds. Waits for
+   * statements using the partition to finish first. A migration of the partition that is under
+   * way notices the partition is gone, and gives up.
+   * 
+   * @param conn The database connection.
+   * @param month The month.
+   * @throws SQLException If the table cannot be dropped.
+   */
+  void drop(Connection conn, int month) throws SQLException {
+    ReadWriteLock lock = lockOf(month);
+    lock.writeLock().lock();
+    try {
+      synchronized (this) {
+        Partition partition = this.partitions.get(month);
+        if (partition == null) {
+          return;
+        }
+        Statement s = conn.createStatement();
+        try {
+          dropTable(s, partition);
+          this.logger.fine("Derby: dropped partition " + partition.getTable());
+        }
+        finally {
+          s.close();
+        }
+        this.partitions.remove(month);
+        this.dirty.remove(month);
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
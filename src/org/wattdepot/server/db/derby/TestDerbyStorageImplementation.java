@@ -1,11 +1,35 @@
 package org.wattdepot.server.db.derby;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import java.io.File;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import javax.xml.bind.JAXBContext;
+import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Properties;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.SensorDataStraddle;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.user.jaxb.User;
 import org.wattdepot.server.ServerProperties;
 import org.wattdepot.server.db.DbManagerTestHelper;
+import org.wattdepot.server.db.SensorDataStatistics;
+import org.wattdepot.util.tstamp.Tstamp;
 
 /**
  * Tests functionality that is specific to the DerbyStorageImplementation, that cannot be assumed
@@ -40,4 +64,461 @@ public class TestDerbyStorageImplementation extends DbManagerTestHelper {
     }
   }
 
+  /**
+   * Tests that sensor data is split into monthly partitions that queries span transparently, that
+   * whole months can be dropped, and that data left in the unpartitioned table is moved into the
+   * partitions at startup.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testPartitions() throws Exception {
+    DerbyStorageImplementation derby = new DerbyStorageImplementation(server);
+    derby.initialize(true);
+    User owner = new User(defaultOwnerUsername, defaultOwnerPassword, false, null);
+    assertTrue("Unable to store user", derby.storeUser(owner));
+    assertTrue("Unable to store source", derby.storeSource(new Source(defaultPublicSource, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null)));
+    String sourceUri = Source.sourceToUri(defaultPublicSource, server);
+    // One reading a week for three months
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-10-01T00:00:00.000-10:00");
+    for (int day = 0; day < 91; day += 7) {
+      assertTrue("Unable to store data", derby.storeSensorData(new SensorData(Tstamp.incrementDays(
+          start, day), "JUnit", sourceUri)));
+    }
+
+    List<SensorDataRef> refs = derby.getSensorDataIndex(defaultPublicSource).getSensorDataRef();
+    assertEquals("Wrong number of refs", 13, refs.size());
+    for (int i = 1; i < refs.size(); i++) {
+      assertTrue("Refs out of order", Tstamp.lessThan(refs.get(i - 1).getTimestamp(), refs.get(i)
+          .getTimestamp()));
+    }
+    assertEquals("Wrong range across partitions", 5, derby.getSensorDatas(defaultPublicSource,
+        Tstamp.incrementDays(start, 20), Tstamp.incrementDays(start, 50)).getSensorData().size());
+    assertEquals("Wrong latest data", Tstamp.incrementDays(start, 84), derby.getLatestSensorData(
+        defaultPublicSource).getTimestamp());
+    assertEquals("Wrong data count", 13, derby.getSourceSummary(defaultPublicSource)
+        .getTotalSensorDatas());
+    // Statistics are computed in the database, across partitions
+    List<SensorDataStatistics> statistics =
+        derby.aggregateSensorData(defaultPublicSource, Tstamp.getBucketList(start, Tstamp
+            .incrementDays(start, 91), Tstamp.WEEK_BUCKET));
+    assertNotNull("Statistics not aggregated", statistics);
+    long count = 0;
+    for (SensorDataStatistics bucket : statistics) {
+      assertEquals("Wrong readings in week", 1, bucket.getCount());
+      count += bucket.getCount();
+    }
+    assertEquals("Wrong statistics count", 13, count);
+
+    // Straddle across the end of a month
+    SensorDataStraddle straddle =
+        derby.getSensorDataStraddle(defaultPublicSource, Tstamp.incrementDays(start, 30));
+    assertNotNull("No straddle across months", straddle);
+    assertEquals("Wrong straddle start", Tstamp.incrementDays(start, 28), straddle.getBeforeData()
+        .getTimestamp());
+    assertEquals("Wrong straddle end", Tstamp.incrementDays(start, 35), straddle.getAfterData()
+        .getTimestamp());
+
+    // Range deletion takes chunks from one partition at a time, the two in October then the
+    // three in November, until nothing is left in the range
+    XMLGregorianCalendar deleteStart = Tstamp.incrementDays(start, 20);
+    XMLGregorianCalendar deleteEnd = Tstamp.incrementDays(start, 50);
+    assertEquals("Wrong first chunk", 2, derby.deleteSensorData(defaultPublicSource, deleteStart,
+        deleteEnd, 3));
+    assertEquals("Wrong second chunk", 3, derby.deleteSensorData(defaultPublicSource, deleteStart,
+        deleteEnd, 3));
+    assertEquals("Range not empty", 0, derby.deleteSensorData(defaultPublicSource, deleteStart,
+        deleteEnd, 3));
+    assertEquals("Wrong data left", 8, derby.getSourceSummary(defaultPublicSource)
+        .getTotalSensorDatas());
+
+    // Drop whole months before the last one
+    assertTrue("No partitions dropped", derby.dropPartitionsBefore(Tstamp.incrementDays(start,
+        70)) > 0);
+    assertNull("Dropped data still present", derby.getSensorData(defaultPublicSource, start));
+    assertNotNull("Kept data missing", derby.getSensorData(defaultPublicSource, Tstamp
+        .incrementDays(start, 84)));
+    assertTrue("Unable to compress", derby.performMaintenance());
+
+    // Data written to the unpartitioned table by an older version is read from it at startup
+    XMLGregorianCalendar legacyTime = Tstamp.makeTimestamp("2008-05-05T00:00:00.000-10:00");
+    Connection conn = DriverManager.getConnection("jdbc:derby:wattdepot");
+    try {
+      PreparedStatement s =
+          conn.prepareStatement("INSERT INTO SensorData VALUES (?, 'JUnit', ?, NULL, ?)");
+      s.setTimestamp(1, Tstamp.makeTimestamp(legacyTime));
+      s.setString(2, sourceUri);
+      s.setTimestamp(3, new Timestamp(new Date().getTime()));
+      s.executeUpdate();
+      s.close();
+    }
+    finally {
+      conn.close();
+    }
+    derby = new DerbyStorageImplementation(server);
+    derby.initialize(false);
+    assertNotNull("Legacy data not moved", derby.getSensorData(defaultPublicSource, legacyTime));
+    assertEquals("Legacy data not first", legacyTime, derby.getSourceSummary(defaultPublicSource)
+        .getFirstSensorData());
+    // The background migration may already have moved it
+    assertTrue("Migration failed", derby.migratePartitions() >= 0);
+    assertNotNull("Legacy data lost", derby.getSensorData(defaultPublicSource, legacyTime));
+  }
+
+  /**
+   * Tests that sensor data in the unpartitioned SensorData table of a database written by a
+   * version that did not partition sensor data can be read and changed as soon as the database is
+   * initialized, while it is moved into partitions in the background, and that the changes made
+   * meanwhile survive the move.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testLegacyMigration() throws Exception {
+    DerbyStorageImplementation derby = new DerbyStorageImplementation(server);
+    derby.initialize(true);
+    User owner = new User(defaultOwnerUsername, defaultOwnerPassword, false, null);
+    assertTrue("Unable to store user", derby.storeUser(owner));
+    assertTrue("Unable to store source", derby.storeSource(new Source(defaultPublicSource, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null)));
+    String sourceUri = Source.sourceToUri(defaultPublicSource, server);
+    // One reading a week for three months, in the baseline schema
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2008-03-01T00:00:00.000-10:00");
+    Connection conn = DriverManager.getConnection("jdbc:derby:wattdepot");
+    try {
+      PreparedStatement s =
+          conn.prepareStatement("INSERT INTO SensorData VALUES (?, 'JUnit', ?, NULL, ?)");
+      for (int day = 0; day < 91; day += 7) {
+        s.setTimestamp(1, Tstamp.makeTimestamp(Tstamp.incrementDays(start, day)));
+        s.setString(2, sourceUri);
+        s.setTimestamp(3, new Timestamp(new Date().getTime()));
+        s.executeUpdate();
+      }
+      s.close();
+    }
+    finally {
+      conn.close();
+    }
+
+    // Starts migrating in the background
+    derby = new DerbyStorageImplementation(server);
+    derby.initialize(false);
+    assertEquals("Wrong legacy index", 13, derby.getSensorDataIndex(defaultPublicSource)
+        .getSensorDataRef().size());
+    assertEquals("Wrong legacy range", 5, derby.getSensorDatas(defaultPublicSource,
+        Tstamp.incrementDays(start, 20), Tstamp.incrementDays(start, 50)).getSensorData().size());
+    assertEquals("Wrong legacy latest", Tstamp.incrementDays(start, 84), derby
+        .getLatestSensorData(defaultPublicSource).getTimestamp());
+    assertEquals("Wrong legacy first", start, derby.getSourceSummary(defaultPublicSource)
+        .getFirstSensorData());
+    XMLGregorianCalendar added = Tstamp.incrementDays(start, 36);
+    assertTrue("Unable to store data", derby.storeSensorData(new SensorData(added, "JUnit",
+        sourceUri)));
+    assertTrue("Unable to delete data", derby.deleteSensorData(defaultPublicSource, start));
+
+    assertTrue("Migration failed", derby.migratePartitions() >= 0);
+    assertEquals("Wrong migrated index", 13, derby.getSensorDataIndex(defaultPublicSource)
+        .getSensorDataRef().size());
+    assertNotNull("Stored data lost", derby.getSensorData(defaultPublicSource, added));
+    assertNull("Deleted data back", derby.getSensorData(defaultPublicSource, start));
+    conn = DriverManager.getConnection("jdbc:derby:wattdepot");
+    try {
+      Statement s = conn.createStatement();
+      ResultSet rs = s.executeQuery("SELECT COUNT(1) FROM SensorData");
+      rs.next();
+      assertEquals("Legacy data not moved", 0, rs.getInt(1));
+      rs.close();
+      rs =
+          s.executeQuery("SELECT COUNT(1) FROM SYS.SYSTABLES "
+              + "WHERE TableName LIKE 'SENSORDATALEGACY%'");
+      rs.next();
+      assertEquals("Legacy partitions not dropped", 0, rs.getInt(1));
+      rs.close();
+      s.close();
+    }
+    finally {
+      conn.close();
+    }
+    assertEquals("Nothing left to migrate", 0, derby.migratePartitions());
+  }
+
+  /**
+   * Tests that the version of a range of sensor data is computed from storage, so that it is the
+   * same after a restart, and that it changes when a reading in the range or a neighbour of the
+   * range changes, but not when a reading beyond the neighbours is stored.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testSensorDataVersion() throws Exception {
+    DerbyStorageImplementation derby = new DerbyStorageImplementation(server);
+    derby.initialize(true);
+    User owner = new User(defaultOwnerUsername, defaultOwnerPassword, false, null);
+    assertTrue("Unable to store user", derby.storeUser(owner));
+    assertTrue("Unable to store source", derby.storeSource(new Source(defaultPublicSource, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null)));
+    String sourceUri = Source.sourceToUri(defaultPublicSource, server);
+    // One reading a week, the first in the month before the range
+    XMLGregorianCalendar first = Tstamp.makeTimestamp("2009-10-28T00:00:00.000-10:00");
+    for (int day = 0; day < 43; day += 7) {
+      assertTrue("Unable to store data", derby.storeSensorData(new SensorData(Tstamp
+          .incrementDays(first, day), "JUnit", sourceUri)));
+    }
+    XMLGregorianCalendar start = Tstamp.incrementDays(first, 3);
+    XMLGregorianCalendar end = Tstamp.incrementDays(first, 17);
+    String version = derby.getSensorDataVersion(defaultPublicSource, start, end).getVersion();
+
+    derby = new DerbyStorageImplementation(server);
+    derby.initialize(false);
+    assertEquals("Version changed by restart", version, derby.getSensorDataVersion(
+        defaultPublicSource, start, end).getVersion());
+    assertTrue("Unable to store data", derby.storeSensorData(new SensorData(Tstamp.incrementDays(
+        first, 40), "JUnit", sourceUri)));
+    assertEquals("Version changed by data beyond the neighbours", version, derby
+        .getSensorDataVersion(defaultPublicSource, start, end).getVersion());
+    // The neighbour before the range is in the previous month
+    assertTrue("Unable to delete data", derby.deleteSensorData(defaultPublicSource, first));
+    String deleted = derby.getSensorDataVersion(defaultPublicSource, start, end).getVersion();
+    assertFalse("Version not changed by deleted neighbour", version.equals(deleted));
+    assertTrue("Unable to store data", derby.storeSensorData(new SensorData(Tstamp.incrementDays(
+        first, 10), "JUnit", sourceUri)));
+    assertFalse("Version not changed by data in range", deleted.equals(derby.getSensorDataVersion(
+        defaultPublicSource, start, end).getVersion()));
+  }
+
+  /**
+   * Tests that a batch of sensor data spanning two months is stored as a whole, and that a batch
+   * holding sensor data that is already stored is not stored at all.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testStoreSensorDataBatch() throws Exception {
+    DerbyStorageImplementation derby = new DerbyStorageImplementation(server);
+    derby.initialize(true);
+    User owner = new User(defaultOwnerUsername, defaultOwnerPassword, false, null);
+    assertTrue("Unable to store user", derby.storeUser(owner));
+    assertTrue("Unable to store source", derby.storeSource(new Source(defaultPublicSource, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null)));
+    String sourceUri = Source.sourceToUri(defaultPublicSource, server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-10-25T00:00:00.000-10:00");
+    List<SensorData> batch = new ArrayList<SensorData>();
+    for (int day = 0; day < 14; day += 3) {
+      batch.add(makeAwkwardData(Tstamp.incrementDays(start, day), sourceUri));
+    }
+    assertTrue("Batch not stored", derby.storeSensorDataBatch(batch));
+    assertEquals("Wrong number stored", 5, derby.getSensorDataIndex(defaultPublicSource)
+        .getSensorDataRef().size());
+    assertEquals("Batch data changed", batch.get(4), derby.getSensorData(defaultPublicSource,
+        batch.get(4).getTimestamp()));
+
+    List<SensorData> overlapping = new ArrayList<SensorData>();
+    overlapping.add(new SensorData(Tstamp.incrementDays(start, 1), "JUnit", sourceUri));
+    overlapping.add(new SensorData(start, "JUnit", sourceUri));
+    assertFalse("Batch with stored data stored", derby.storeSensorDataBatch(overlapping));
+    assertNull("Part of a refused batch stored", derby.getSensorData(defaultPublicSource, Tstamp
+        .incrementDays(start, 1)));
+    assertTrue("Unable to store data after refused batch", derby.storeSensorData(overlapping
+        .get(0)));
+  }
+
+  /**
+   * Returns SensorData for testing the version 2 schema, whose properties include values that are
+   * not in canonical form, values that are not numbers, and characters that need escaping.
+   * 
+   * @param timestamp The timestamp of the SensorData.
+   * @param sourceUri The URI of the Source.
+   * @return The SensorData.
+   */
+  private SensorData makeAwkwardData(XMLGregorianCalendar timestamp, String sourceUri) {
+    SensorData data = new SensorData(timestamp, "JUnit", sourceUri);
+    data.addProperty(new Property(SensorData.POWER_CONSUMED, "1000"));
+    data.addProperty(new Property(SensorData.POWER_GENERATED, "1234.5"));
+    data.addProperty(new Property("note", "tab\there\nnew line \\ backslash"));
+    data.addProperty(new Property(SensorData.ENERGY_CONSUMED_TO_DATE, "lots"));
+    data.addProperty(new Property(SensorData.ENERGY_GENERATED_TO_DATE, "NaN"));
+    data.addProperty(new Property(SensorData.POWER_GENERATED, "-0.0"));
+    return data;
+  }
+
+  /**
+   * Tests that sensor data round-trips exactly through the version 2 schema, and that a partition
+   * in the version 1 schema written by an older version is migrated to the version 2 schema
+   * without changing its data.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testSchemaMigration() throws Exception {
+    DerbyStorageImplementation derby = new DerbyStorageImplementation(server);
+    derby.initialize(true);
+    User owner = new User(defaultOwnerUsername, defaultOwnerPassword, false, null);
+    assertTrue("Unable to store user", derby.storeUser(owner));
+    assertTrue("Unable to store source", derby.storeSource(new Source(defaultPublicSource, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null)));
+    String sourceUri = Source.sourceToUri(defaultPublicSource, server);
+
+    // Stored in a new, and therefore version 2, partition
+    XMLGregorianCalendar newTime = Tstamp.makeTimestamp("2009-11-01T00:00:00.000-10:00");
+    SensorData awkward = makeAwkwardData(newTime, sourceUri);
+    assertTrue("Unable to store data", derby.storeSensorData(awkward));
+    assertEquals("Data changed by storage", awkward, derby.getSensorData(defaultPublicSource,
+        newTime));
+    SensorData plain = new SensorData(Tstamp.incrementMinutes(newTime, 1), "JUnit", sourceUri);
+    assertTrue("Unable to store data", derby.storeSensorData(plain));
+    assertEquals("Data changed by storage", plain, derby.getSensorData(defaultPublicSource, plain
+        .getTimestamp()));
+    assertEquals("Wrong range", 2, derby.getSensorDatas(defaultPublicSource, newTime,
+        plain.getTimestamp()).getSensorData().size());
+
+    // A version 1 partition, as written by an older version
+    XMLGregorianCalendar oldTime = Tstamp.makeTimestamp("2008-01-15T00:00:00.000-10:00");
+    SensorData oldAwkward = makeAwkwardData(oldTime, sourceUri);
+    SensorData oldPlain = new SensorData(Tstamp.incrementHours(oldTime, 1), "JUnit", sourceUri);
+    StringWriter xml = new StringWriter();
+    JAXBContext.newInstance(Properties.class).createMarshaller().marshal(
+        oldAwkward.getProperties(), xml);
+    Connection conn = DriverManager.getConnection("jdbc:derby:wattdepot");
+    try {
+      Statement statement = conn.createStatement();
+      statement.execute("CREATE TABLE SensorData_200801 (Tstamp TIMESTAMP NOT NULL, "
+          + "Tool VARCHAR(128) NOT NULL, Source VARCHAR(256) NOT NULL, "
+          + "Properties VARCHAR(32000), LastMod TIMESTAMP NOT NULL, PRIMARY KEY (Source, Tstamp))");
+      statement.close();
+      PreparedStatement s =
+          conn.prepareStatement("INSERT INTO SensorData_200801 VALUES (?, 'JUnit', ?, ?, ?)");
+      s.setTimestamp(1, Tstamp.makeTimestamp(oldTime));
+      s.setString(2, sourceUri);
+      s.setString(3, xml.toString());
+      s.setTimestamp(4, new Timestamp(new Date().getTime()));
+      s.executeUpdate();
+      s.setTimestamp(1, Tstamp.makeTimestamp(oldPlain.getTimestamp()));
+      s.setString(3, null);
+      s.executeUpdate();
+      s.close();
+    }
+    finally {
+      conn.close();
+    }
+    derby = new DerbyStorageImplementation(server);
+    derby.initialize(false);
+    // The background migration may already have done it
+    assertTrue("Migration failed", derby.migratePartitions() >= 0);
+    conn = DriverManager.getConnection("jdbc:derby:wattdepot");
+    try {
+      Statement s = conn.createStatement();
+      ResultSet rs =
+          s.executeQuery("SELECT COUNT(1) FROM SYS.SYSTABLES "
+              + "WHERE TableName = 'SENSORDATA_200801'");
+      rs.next();
+      assertEquals("Version 1 partition not dropped", 0, rs.getInt(1));
+      rs.close();
+      rs = s.executeQuery("SELECT COUNT(1) FROM SensorDataV2_200801");
+      rs.next();
+      assertEquals("Wrong number of rows migrated", 2, rs.getInt(1));
+      rs.close();
+      s.close();
+    }
+    finally {
+      conn.close();
+    }
+    assertEquals("Data changed by migration", oldAwkward, derby.getSensorData(defaultPublicSource,
+        oldTime));
+    assertEquals("Data changed by migration", oldPlain, derby.getSensorData(defaultPublicSource,
+        oldPlain.getTimestamp()));
+    assertEquals("Wrong first data", oldTime, derby.getSourceSummary(defaultPublicSource)
+        .getFirstSensorData());
+    assertEquals("Nothing left to migrate", 0, derby.migratePartitions());
+  }
+
+  /**
+   * Tests that the SensorDataIndex and straddle timestamp queries are answered from indexes alone,
+   * by checking the plans Derby reports in its runtime statistics.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testIndexOnlyScans() throws Exception {
+    DerbyStorageImplementation derby = new DerbyStorageImplementation(server);
+    derby.initialize(true);
+    User owner = new User(defaultOwnerUsername, defaultOwnerPassword, false, null);
+    assertTrue("Unable to store user", derby.storeUser(owner));
+    assertTrue("Unable to store source", derby.storeSource(new Source(defaultPublicSource, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null)));
+    String sourceUri = Source.sourceToUri(defaultPublicSource, server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-11-02T00:00:00.000-10:00");
+    for (int i = 0; i < 200; i++) {
+      assertTrue("Unable to store data", derby.storeSensorData(makeAwkwardData(Tstamp
+          .incrementMinutes(start, i), sourceUri)));
+    }
+    long startMillis = Tstamp.makeTimestamp(start).getTime();
+    SensorDataPartitions.Partition partition =
+        new SensorDataPartitions.Partition(SensorDataPartitions.monthOf(startMillis), 2);
+    Connection conn = DriverManager.getConnection("jdbc:derby:wattdepot");
+    try {
+      Statement statement = conn.createStatement();
+      statement.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)");
+      assertIndexOnly(conn, DerbyStorageImplementation.sensorDataRefsQuery(partition, false),
+          sourceUri, null, null);
+      assertIndexOnly(conn, DerbyStorageImplementation.sensorDataRefsQuery(partition, true),
+          sourceUri, startMillis, startMillis + 3600000);
+      assertIndexOnly(conn, DerbyStorageImplementation.timestampQuery(partition,
+          " AND Tstamp < ?", true), sourceUri, startMillis + 3600000, null);
+      assertIndexOnly(conn, DerbyStorageImplementation.timestampQuery(partition,
+          " AND Tstamp > ?", false), sourceUri, startMillis + 3600000, null);
+      statement.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(0)");
+      statement.close();
+    }
+    finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Runs a query on a connection with runtime statistics enabled, reading all its results, and
+   * asserts that Derby answered it by scanning an index without fetching base table rows.
+   * 
+   * @param conn The connection.
+   * @param query The query, with the Source URI as parameter 1.
+   * @param sourceUri The Source URI.
+   * @param first The value of parameter 2, or null if there is none.
+   * @param second The value of parameter 3, or null if there is none.
+   * @throws Exception If a problem is encountered.
+   */
+  private void assertIndexOnly(Connection conn, String query, String sourceUri, Long first,
+      Long second) throws Exception {
+    PreparedStatement s = conn.prepareStatement(query);
+    s.setString(1, sourceUri);
+    if (first != null) {
+      s.setLong(2, first);
+    }
+    if (second != null) {
+      s.setLong(3, second);
+    }
+    ResultSet rs = s.executeQuery();
+    int rows = 0;
+    while (rs.next()) {
+      rows++;
+    }
+    rs.close();
+    s.close();
+    assertTrue("No rows returned by " + query, rows > 0);
+    Statement statistics = conn.createStatement();
+    rs = statistics.executeQuery("VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()");
+    assertTrue("No runtime statistics", rs.next());
+    String plan = rs.getString(1);
+    rs.close();
+    statistics.close();
+    assertTrue("No index scan for " + query + ": " + plan, plan.contains("Index Scan ResultSet"));
+    assertFalse("Base rows read for " + query + ": " + plan, plan
+        .contains("Index Row to Base Row"));
+    assertFalse("Table scanned for " + query + ": " + plan, plan.contains("Table Scan"));
+  }
 }
@@ -0,0 +1,302 @@
+package org.wattdepot.server.db.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.user.jaxb.User;
+
+/**
+ * One change to the in-memory store, as written to its journal and snapshots. Each record is the
+ * effect of a change rather than the request that caused it: a put of the resulting value or a
+ * removal. Replaying records in the order they were written therefore ends in the same state from
+ * any starting point that already reflects some of them, which is what lets snapshots be written
+ * while changes continue.
+ * 
+ * @author Robert Brewer
+ */
+final class JournalRecord {
+
+  /** The kinds of change. */
+  enum Type {
+    /** Stores a Source, replacing any with the same name. */
+    PUT_SOURCE,
+    /** Removes a Source and all its SensorData. */
+    REMOVE_SOURCE,
+    /** Stores a SensorData, replacing any with the same Source and timestamp. */
+    PUT_SENSOR_DATA,
+    /** Removes one SensorData. */
+    REMOVE_SENSOR_DATA,
+    /** Removes all the SensorData of a Source. */
+    REMOVE_ALL_SENSOR_DATA,
+    /** Stores a User, replacing any with the same username. */
+    PUT_USER,
+    /** Removes a User. */
+    REMOVE_USER,
+    /** Removes everything. */
+    WIPE
+  }
+
+  /** Source JAXBContext. */
+  private static final JAXBContext sourceJAXB;
+  /** SensorData JAXBContext. */
+  private static final JAXBContext sensorDataJAXB;
+  /** User JAXBContext. */
+  private static final JAXBContext userJAXB;
+  /** Parses timestamps. */
+  private static final DatatypeFactory datatypeFactory;
+
+  // JAXBContexts are thread safe, so we can share them across all instances and threads.
+  static {
+    try {
+      sourceJAXB = JAXBContext.newInstance(org.wattdepot.resource.source.jaxb.ObjectFactory.class);
+      sensorDataJAXB =
+          JAXBContext.newInstance(org.wattdepot.resource.sensordata.jaxb.ObjectFactory.class);
+      userJAXB = JAXBContext.newInstance(org.wattdepot.resource.user.jaxb.ObjectFactory.class);
+      datatypeFactory = DatatypeFactory.newInstance();
+    }
+    catch (JAXBException e) {
+      throw new IllegalStateException("Unable to create JAXB contexts for the journal", e);
+    }
+    catch (DatatypeConfigurationException e) {
+      throw new IllegalStateException("Unable to create DatatypeFactory for the journal", e);
+    }
+  }
+
+  /** The kind of change. */
+  private final Type type;
+
+  /** The Source name or username the change applies to, or null for WIPE. */
+  private final String name;
+
+  /** The timestamp of the SensorData removed, or null. */
+  private final XMLGregorianCalendar timestamp;
+
+  /** The Source, SensorData or User stored, or null. */
+  private final Object value;
+
+  /**
+   * Creates a new record.
+   * 
+   * @param type The kind of change.
+   * @param name The Source name or username the change applies to, or null for WIPE.
+   * @param timestamp The timestamp of the SensorData removed, or null.
+   * @param value The Source, SensorData or User stored, or null.
+   */
+  private JournalRecord(Type type, String name, XMLGregorianCalendar timestamp, Object value) {
+    this.type = type;
+    this.name = name;
+    this.timestamp = timestamp;
+    this.value = value;
+  }
+
+  /**
+   * Returns a record that stores a Source.
+   * 
+   * @param source The Source.
+   * @return The record.
+   */
+  static JournalRecord putSource(Source source) {
+    return new JournalRecord(Type.PUT_SOURCE, source.getName(), null, source);
+  }
+
+  /**
+   * Returns a record that removes a Source and its SensorData.
+   * 
+   * @param sourceName The name of the Source.
+   * @return The record.
+   */
+  static JournalRecord removeSource(String sourceName) {
+    return new JournalRecord(Type.REMOVE_SOURCE, sourceName, null, null);
+  }
+
+  /**
+   * Returns a record that stores a SensorData.
+   * 
+   * @param sourceName The name of the Source of the SensorData.
+   * @param data The SensorData.
+   * @return The record.
+   */
+  static JournalRecord putSensorData(String sourceName, SensorData data) {
+    return new JournalRecord(Type.PUT_SENSOR_DATA, sourceName, null, data);
+  }
+
+  /**
+   * Returns a record that removes a SensorData.
+   * 
+   * @param sourceName The name of the Source of the SensorData.
+   * @param timestamp The timestamp of the SensorData.
+   * @return The record.
+   */
+  static JournalRecord removeSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    return new JournalRecord(Type.REMOVE_SENSOR_DATA, sourceName, timestamp, null);
+  }
+
+  /**
+   * Returns a record that removes all the SensorData of a Source.
+   * 
+   * @param sourceName The name of the Source.
+   * @return The record.
+   */
+  static JournalRecord removeAllSensorData(String sourceName) {
+    return new JournalRecord(Type.REMOVE_ALL_SENSOR_DATA, sourceName, null, null);
+  }
+
+  /**
+   * Returns a record that stores a User.
+   * 
+   * @param user The User.
+   * @return The record.
+   */
+  static JournalRecord putUser(User user) {
+    return new JournalRecord(Type.PUT_USER, user.getEmail(), null, user);
+  }
+
+  /**
+   * Returns a record that removes a User.
+   * 
+   * @param username The username of the User.
+   * @return The record.
+   */
+  static JournalRecord removeUser(String username) {
+    return new JournalRecord(Type.REMOVE_USER, username, null, null);
+  }
+
+  /**
+   * Returns a record that removes everything.
+   * 
+   * @return The record.
+   */
+  static JournalRecord wipe() {
+    return new JournalRecord(Type.WIPE, null, null, null);
+  }
+
+  /**
+   * Returns the kind of change.
+   * 
+   * @return The type.
+   */
+  Type getType() {
+    return this.type;
+  }
+
+  /**
+   * Returns the Source name or username the change applies to.
+   * 
+   * @return The name, or null for WIPE.
+   */
+  String getName() {
+    return this.name;
+  }
+
+  /**
+   * Returns the timestamp of the SensorData removed.
+   * 
+   * @return The timestamp, or null if the record does not remove one SensorData.
+   */
+  XMLGregorianCalendar getTimestamp() {
+    return this.timestamp;
+  }
+
+  /**
+   * Returns the Source, SensorData or User stored.
+   * 
+   * @return The value, or null if the record does not store anything.
+   */
+  Object getValue() {
+    return this.value;
+  }
+
+  /**
+   * Encodes the record: its type, name and timestamp, followed by any value as XML.
+   * 
+   * @return The encoded record.
+   * @throws IOException If the value cannot be marshalled.
+   */
+  byte[] encode() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeByte(this.type.ordinal());
+    output.writeUTF((this.name == null) ? "" : this.name);
+    output.writeUTF((this.timestamp == null) ? "" : this.timestamp.toXMLFormat());
+    output.flush();
+    JAXBContext context = getContext(this.type);
+    if (context != null) {
+      try {
+        context.createMarshaller().marshal(this.value, bytes);
+      }
+      catch (JAXBException e) {
+        throw new IOException("Unable to marshal " + this.type + " " + this.name + ": "
+            + e.getMessage());
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes a record encoded by encode().
+   * 
+   * @param body The encoded record.
+   * @return The record.
+   * @throws IOException If the record is damaged.
+   */
+  static JournalRecord decode(byte[] body) throws IOException {
+    ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+    DataInputStream input = new DataInputStream(bytes);
+    int ordinal = input.readUnsignedByte();
+    if (ordinal >= Type.values().length) {
+      throw new IOException("Unknown journal record type " + ordinal);
+    }
+    Type type = Type.values()[ordinal];
+    String name = input.readUTF();
+    String time = input.readUTF();
+    XMLGregorianCalendar timestamp = null;
+    if (time.length() > 0) {
+      try {
+        timestamp = datatypeFactory.newXMLGregorianCalendar(time);
+      }
+      catch (IllegalArgumentException e) {
+        throw new IOException("Bad timestamp in journal record: " + time);
+      }
+    }
+    Object value = null;
+    JAXBContext context = getContext(type);
+    if (context != null) {
+      try {
+        // The rest of the stream is the XML
+        value = context.createUnmarshaller().unmarshal(bytes);
+      }
+      catch (JAXBException e) {
+        throw new IOException("Unable to unmarshal " + type + " " + name + ": " + e.getMessage());
+      }
+    }
+    return new JournalRecord(type, (type == Type.WIPE) ? null : name, timestamp, value);
+  }
+
+  /**
+   * Returns the JAXBContext for the value of a kind of record.
+   * 
+   * @param type The kind of record.
+   * @return The context, or null if the record has no value.
+   */
+  private static JAXBContext getContext(Type type) {
+    switch (type) {
+    case PUT_SOURCE:
+      return sourceJAXB;
+    case PUT_SENSOR_DATA:
+      return sensorDataJAXB;
+    case PUT_USER:
+      return userJAXB;
+    default:
+      return null;
+    }
+  }
+}
@@ -0,0 +1,616 @@
+package org.wattdepot.server.db.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.wattdepot.util.StackTrace;
+
+/**
+ * The files that make the in-memory store durable: an append-only journal of changes, split into
+ * numbered segments, and snapshots of the whole store. Snapshot number n holds everything written
+ * to the segments before segment n, so recovery loads the newest snapshot and replays the segments
+ * from its number on. Once a snapshot has been written, older snapshots and segments are deleted.
+ * 
+ * Records are framed as in the ingest journal: a length, a CRC-32 checksum and the body, so a
+ * record cut short by a crash ends the replay of its segment. How often the journal is forced to
+ * disk is configurable: with a sync interval of 0 every change is forced before it is
+ * acknowledged, with forces batched so that one covers all the changes appended while the
+ * previous one ran; otherwise the journal is forced in the background at that interval, and a
+ * crash of the machine (but not of the server alone) can lose the changes since the last force.
+ * 
+ * @author Robert Brewer
+ */
+public class MemoryJournal {
+
+  /** The prefix of journal segment file names. */
+  private static final String SEGMENT_PREFIX = "journal-";
+
+  /** The suffix of journal segment file names. */
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /** The prefix of snapshot file names. */
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+  /** The suffix of snapshot file names. */
+  private static final String SNAPSHOT_SUFFIX = ".dat";
+
+  /** The suffix of a snapshot being written, which is renamed once complete. */
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** The largest record accepted when reading, to catch damaged lengths. */
+  private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+  /** The directory holding the journal and snapshots. */
+  private final File directory;
+
+  /** The milliseconds between background forces, or 0 to force every change. */
+  private final long syncInterval;
+
+  /** The logger for problems. */
+  private final Logger logger;
+
+  /** Guards the active segment and the append count. */
+  private final Object lock = new Object();
+
+  /** The number of the segment appended to. */
+  private long segmentNumber = 0;
+
+  /** The stream of the segment appended to, or null if the journal is not open. */
+  private FileOutputStream segment = null;
+
+  /** The number of bytes written to the active segment. */
+  private long segmentBytes = 0;
+
+  /** The sequence number of the last record appended. */
+  private long appended = 0;
+
+  /** Serializes forcing of the journal, so that one force covers every append before it. */
+  private final Object syncLock = new Object();
+
+  /** The sequence number of the last record known to be forced to disk. */
+  private long synced = 0;
+
+  /** Forces the journal at the sync interval, or null. */
+  private ScheduledExecutorService syncTimer = null;
+
+  /**
+   * Creates a new MemoryJournal in the given directory, which is created if needed. The journal
+   * is not appended to until open() is called, so the existing files can be recovered first.
+   * 
+   * @param directory The directory for the journal and snapshots.
+   * @param syncInterval The milliseconds between background forces of the journal to disk, or 0
+   * to force every change before it is acknowledged.
+   * @param logger The logger for problems.
+   * @throws IOException If the directory cannot be created.
+   */
+  public MemoryJournal(File directory, long syncInterval, Logger logger) throws IOException {
+    this.directory = directory;
+    this.syncInterval = Math.max(0, syncInterval);
+    this.logger = logger;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create memory store directory " + directory);
+    }
+  }
+
+  /**
+   * Deletes every journal segment and snapshot, discarding everything stored.
+   * 
+   * @throws IOException If a file cannot be deleted.
+   */
+  public void deleteAll() throws IOException {
+    for (File file : listFiles("")) {
+      if (!file.delete()) {
+        throw new IOException("Unable to delete " + file);
+      }
+    }
+  }
+
+  /**
+   * Returns the newest complete snapshot.
+   * 
+   * @return The snapshot file, or null if there is none.
+   */
+  public File getLatestSnapshot() {
+    File[] snapshots = listFiles(SNAPSHOT_PREFIX);
+    File latest = null;
+    for (File file : snapshots) {
+      if (file.getName().endsWith(SNAPSHOT_SUFFIX)
+          && ((latest == null) || (fileNumber(file) > fileNumber(latest)))) {
+        latest = file;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Returns the journal segments numbered from the given number on, in the order they were
+   * written.
+   * 
+   * @param from The number of the first segment wanted.
+   * @return A new list of the segment files.
+   */
+  public List<File> getSegments(long from) {
+    File[] files = listFiles(SEGMENT_PREFIX);
+    // Names are zero padded, so they sort in the order they were written
+    Arrays.sort(files);
+    List<File> segments = new ArrayList<File>();
+    for (File file : files) {
+      if (file.getName().endsWith(SEGMENT_SUFFIX) && (fileNumber(file) >= from)) {
+        segments.add(file);
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * Starts appending to a new segment numbered after every existing segment and snapshot, and
+   * starts forcing the journal in the background if there is a sync interval.
+   * 
+   * @throws IOException If the segment cannot be created.
+   */
+  public void open() throws IOException {
+    long last = 0;
+    for (File file : listFiles("")) {
+      last = Math.max(last, fileNumber(file));
+    }
+    synchronized (this.lock) {
+      startSegment(last + 1);
+    }
+    if (this.syncInterval > 0) {
+      this.syncTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "WattDepot memory journal sync");
+          // Everything appended is already with the operating system, so never delay exit
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      this.syncTimer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            sync(getAppended());
+          }
+          catch (IOException e) {
+            logger.warning("Memory journal: unable to force journal\n" + StackTrace.toString(e));
+          }
+        }
+      }, this.syncInterval, this.syncInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Appends an encoded change to the journal. The change is not necessarily on disk when this
+   * returns; call sync() with the returned sequence number for that.
+   * 
+   * @param body The encoded change.
+   * @return The sequence number of the change.
+   * @throws IOException If the journal cannot be written, or is not open.
+   */
+  public long append(byte[] body) throws IOException {
+    ByteBuffer record = frame(body);
+    synchronized (this.lock) {
+      if (this.segment == null) {
+        throw new IOException("Memory journal is not open");
+      }
+      FileChannel channel = this.segment.getChannel();
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      this.segmentBytes += record.capacity();
+      return ++this.appended;
+    }
+  }
+
+  /**
+   * Waits until the change with the given sequence number is forced to disk, if every change is
+   * to be forced before it is acknowledged. Otherwise returns at once, and the background force
+   * covers the change later.
+   * 
+   * @param sequence The sequence number returned by append().
+   * @throws IOException If the journal cannot be forced.
+   */
+  public void awaitDurable(long sequence) throws IOException {
+    if (this.syncInterval == 0) {
+      sync(sequence);
+    }
+  }
+
+  /**
+   * Forces the journal to disk, unless a force that covers the given sequence number has already
+   * happened.
+   * 
+   * @param sequence The sequence number that must be covered.
+   * @throws IOException If the journal cannot be forced.
+   */
+  private void sync(long sequence) throws IOException {
+    synchronized (this.syncLock) {
+      if (this.synced >= sequence) {
+        return;
+      }
+      long target;
+      FileChannel channel;
+      synchronized (this.lock) {
+        target = this.appended;
+        channel = (this.segment == null) ? null : this.segment.getChannel();
+      }
+      if (channel != null) {
+        try {
+          channel.force(false);
+        }
+        catch (ClosedChannelException e) { // NOPMD
+          // Segments are forced before they are closed
+        }
+      }
+      this.synced = target;
+    }
+  }
+
+  /**
+   * Returns the sequence number of the last change appended.
+   * 
+   * @return The sequence number.
+   */
+  public long getAppended() {
+    synchronized (this.lock) {
+      return this.appended;
+    }
+  }
+
+  /**
+   * Returns the number of bytes in the segment being appended to.
+   * 
+   * @return The size in bytes.
+   */
+  public long getSegmentBytes() {
+    synchronized (this.lock) {
+      return this.segmentBytes;
+    }
+  }
+
+  /**
+   * Ends the active segment and starts a new one. Everything appended before this is in segments
+   * numbered below the returned number, so a snapshot taken from a state that includes all those
+   * changes can be given that number. Callers must not let changes be applied between deciding on
+   * the state and rotating.
+   * 
+   * @return The number of the new segment.
+   * @throws IOException If the segments cannot be forced, closed or created.
+   */
+  public long rotate() throws IOException {
+    synchronized (this.lock) {
+      if (this.segment == null) {
+        throw new IOException("Memory journal is not open");
+      }
+      closeSegment();
+      startSegment(this.segmentNumber + 1);
+      return this.segmentNumber;
+    }
+  }
+
+  /**
+   * Starts writing a snapshot with the given number. The snapshot is written under a temporary
+   * name, and only replaces older snapshots once committed.
+   * 
+   * @param number The number of the snapshot, as returned by rotate().
+   * @return The snapshot being written.
+   * @throws IOException If the snapshot cannot be created.
+   */
+  public Snapshot beginSnapshot(long number) throws IOException {
+    return new Snapshot(number);
+  }
+
+  /**
+   * Stops forcing the journal in the background, forces it one last time and closes it.
+   * 
+   * @throws IOException If the journal cannot be forced or closed.
+   */
+  public void close() throws IOException {
+    if (this.syncTimer != null) {
+      this.syncTimer.shutdownNow();
+      this.syncTimer = null;
+    }
+    synchronized (this.lock) {
+      if (this.segment != null) {
+        closeSegment();
+        this.segment = null;
+      }
+    }
+  }
+
+  /**
+   * Reads the records in a journal segment or snapshot, calling the handler with the body of each
+   * in order. A record that was only partly written, or is damaged, ends the file.
+   * 
+   * @param file The file.
+   * @param handler Receives each record body.
+   * @return The number of records read.
+   * @throws IOException If the file cannot be read, or the handler throws it.
+   */
+  public int read(File file, RecordHandler handler) throws IOException {
+    DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    int count = 0;
+    try {
+      byte[] body;
+      while ((body = readRecord(input, file)) != null) {
+        handler.handle(body);
+        count++;
+      }
+    }
+    finally {
+      input.close();
+    }
+    return count;
+  }
+
+  /**
+   * Receives the records read from a journal segment or snapshot.
+   */
+  public interface RecordHandler {
+    /**
+     * Handles one record.
+     * 
+     * @param body The record body.
+     * @throws IOException If the record cannot be handled.
+     */
+    void handle(byte[] body) throws IOException;
+  }
+
+  /**
+   * A snapshot being written.
+   */
+  public final class Snapshot {
+    /** The number of the snapshot. */
+    private final long number;
+    /** The temporary file written. */
+    private final File temp;
+    /** The stream of the temporary file. */
+    private final FileOutputStream file;
+    /** The buffered stream records are written to. */
+    private final DataOutputStream output;
+
+    /**
+     * Creates the temporary file of a new snapshot.
+     * 
+     * @param number The number of the snapshot.
+     * @throws IOException If the file cannot be created.
+     */
+    private Snapshot(long number) throws IOException {
+      this.number = number;
+      this.temp = new File(directory, fileName(SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX)
+          + TEMP_SUFFIX);
+      this.file = new FileOutputStream(this.temp);
+      this.output = new DataOutputStream(new BufferedOutputStream(this.file));
+    }
+
+    /**
+     * Writes an encoded record to the snapshot.
+     * 
+     * @param body The encoded record.
+     * @throws IOException If the record cannot be written.
+     */
+    public void write(byte[] body) throws IOException {
+      this.output.write(frame(body).array());
+    }
+
+    /**
+     * Forces the snapshot to disk and gives it its real name, and forces the directory so the new
+     * name survives a crash, then deletes the older snapshots and the journal segments it covers.
+     * 
+     * @throws IOException If the snapshot cannot be completed.
+     */
+    public void commit() throws IOException {
+      this.output.flush();
+      this.file.getFD().sync();
+      this.output.close();
+      File target = new File(directory, fileName(SNAPSHOT_PREFIX, this.number, SNAPSHOT_SUFFIX));
+      // Renaming over an existing file fails on some platforms
+      if (!this.temp.renameTo(target) && (!target.delete() || !this.temp.renameTo(target))) {
+        throw new IOException("Unable to rename " + this.temp + " to " + target);
+      }
+      syncDirectory(directory);
+      for (File old : listFiles("")) {
+        if ((fileNumber(old) < this.number) && !old.delete()) {
+          logger.warning("Memory journal: unable to delete " + old);
+        }
+      }
+    }
+
+    /**
+     * Abandons the snapshot, deleting its temporary file.
+     */
+    public void abort() {
+      try {
+        this.output.close();
+      }
+      catch (IOException e) { // NOPMD
+        // Being deleted anyway
+      }
+      if (!this.temp.delete()) {
+        logger.warning("Memory journal: unable to delete " + this.temp);
+      }
+    }
+  }
+
+  /**
+   * Forces a directory to disk, so that files renamed in it keep their new names after a crash.
+   * A directory can only be opened through the java.nio.file API of Java 7, which is
+   * called by reflection so the server still runs on older versions; there, and on platforms that
+   * cannot open a directory, the renames are left to the file system.
+   * 
+   * @param dir The directory.
+   * @throws IOException If the directory was opened but could not be forced.
+   */
+  static void syncDirectory(File dir) throws IOException {
+    FileChannel channel;
+    try {
+      Class<?> pathClass = Class.forName("java.nio.file.Path");
+      Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+      Object options = Array.newInstance(optionClass, 1);
+      Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ")
+          .get(null));
+      Object path = File.class.getMethod("toPath").invoke(dir);
+      channel =
+          (FileChannel) FileChannel.class.getMethod("open", pathClass, options.getClass())
+              .invoke(null, path, options);
+    }
+    catch (InvocationTargetException e) {
+      // Opening directories is not supported everywhere, Windows for one
+      return;
+    }
+    catch (Exception e) {
+      // No java.nio.file
+      return;
+    }
+    try {
+      channel.force(true);
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Forces and closes the active segment.
+   * 
+   * @throws IOException If the segment cannot be forced or closed.
+   */
+  private void closeSegment() throws IOException {
+    // Force before closing, since sync() skips segments that are no longer active
+    this.segment.getChannel().force(false);
+    this.segment.close();
+  }
+
+  /**
+   * Creates a new active segment.
+   * 
+   * @param number The number of the segment.
+   * @throws IOException If the segment cannot be created.
+   */
+  private void startSegment(long number) throws IOException {
+    this.segmentNumber = number;
+    this.segment =
+        new FileOutputStream(new File(this.directory, fileName(SEGMENT_PREFIX, number,
+            SEGMENT_SUFFIX)), true);
+    this.segmentBytes = 0;
+  }
+
+  /**
+   * Frames an encoded record with its length and checksum.
+   * 
+   * @param body The encoded record.
+   * @return The framed record, ready to be written.
+   */
+  private static ByteBuffer frame(byte[] body) {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    ByteBuffer record = ByteBuffer.allocate(12 + body.length);
+    record.putInt(body.length);
+    record.putLong(crc.getValue());
+    record.put(body);
+    record.flip();
+    return record;
+  }
+
+  /**
+   * Reads the next record from a journal segment or snapshot.
+   * 
+   * @param input The file being read.
+   * @param file The file, for log messages.
+   * @return The record body, or null at the end of the file or at a damaged record.
+   * @throws IOException If the file cannot be read.
+   */
+  private byte[] readRecord(DataInputStream input, File file) throws IOException {
+    byte[] body;
+    long checksum;
+    try {
+      int length = input.readInt();
+      checksum = input.readLong();
+      if ((length < 0) || (length > MAX_RECORD_BYTES)) {
+        this.logger.warning("Memory journal: bad record length in " + file);
+        return null;
+      }
+      body = new byte[length];
+      input.readFully(body);
+    }
+    catch (EOFException e) {
+      // End of file, or a record cut short when the server stopped
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    if (crc.getValue() != checksum) {
+      this.logger.warning("Memory journal: bad record checksum in " + file);
+      return null;
+    }
+    return body;
+  }
+
+  /**
+   * Returns the journal and snapshot files in the directory whose names start with the given
+   * prefix, including snapshots still being written.
+   * 
+   * @param prefix The prefix, or "" for all of them.
+   * @return The files.
+   */
+  private File[] listFiles(final String prefix) {
+    File[] files = this.directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith(prefix)
+            && (name.startsWith(SEGMENT_PREFIX) || name.startsWith(SNAPSHOT_PREFIX));
+      }
+    });
+    return (files == null) ? new File[0] : files;
+  }
+
+  /**
+   * Returns the number in the name of a journal or snapshot file.
+   * 
+   * @param file The file.
+   * @return The number, or -1 if the name has none.
+   */
+  static long fileNumber(File file) {
+    String name = file.getName();
+    int start = name.indexOf('-') + 1;
+    int end = name.indexOf('.', start);
+    try {
+      return Long.parseLong(name.substring(start, (end < 0) ? name.length() : end));
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the name of a numbered journal or snapshot file.
+   * 
+   * @param prefix The prefix of the name.
+   * @param number The number.
+   * @param suffix The suffix of the name.
+   * @return The file name.
+   */
+  private static String fileName(String prefix, long number, String suffix) {
+    return String.format("%s%012d%s", prefix, number, suffix);
+  }
+}
@@ -1,10 +1,22 @@
 package org.wattdepot.server.db.memory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.wattdepot.resource.sensordata.SensorDataStraddle;
@@ -22,15 +34,27 @@ import org.wattdepot.resource.user.jaxb.User;
 import org.wattdepot.resource.user.jaxb.UserIndex;
 import org.wattdepot.resource.user.jaxb.UserRef;
 import org.wattdepot.server.Server;
+import org.wattdepot.server.ServerProperties;
 import org.wattdepot.server.db.DbBadIntervalException;
 import org.wattdepot.server.db.DbImplementation;
+import org.wattdepot.server.db.memory.MemoryJournal.RecordHandler;
+import org.wattdepot.util.StackTrace;
 import org.wattdepot.util.tstamp.Tstamp;
 
 /**
- * An in-memory storage implementation for WattDepot. <b>Note:</b> this class persists data
- * <em>in memory only!</em> It does not save any of the data to long-term storage. Therefore it
- * should only be used in special circumstances, such as during system development or performance
- * testing. <b>It is NOT for production use!</b>
+ * An in-memory storage implementation for WattDepot, which serves every read from
+ * ConcurrentHashMaps. By default it does not save any of the data to long-term storage, and so
+ * should only be used for system development or performance testing.
+ * 
+ * If persistence is turned on in the server properties, each change is written to a journal on
+ * disk before it is applied (see MemoryJournal for how often the journal is forced), and the whole
+ * store is periodically written to a snapshot in the background so that the journal, and the time
+ * taken to recover, stays bounded. Writes continue while a snapshot is written: the journal is
+ * switched to a new segment and the snapshot is then copied from the live maps, so it may include
+ * changes that are also in the new segment. Since journal records are puts and removals of whole
+ * values, replaying the new segment over the snapshot still ends in the right state. At startup
+ * the latest snapshot and the journal after it are replayed, decoding records on several threads
+ * while applying them in order.
  * 
  * @author Robert Brewer
  */
@@ -58,15 +82,75 @@ public class MemoryStorageImplementation extends DbImplementation {
    * than the expected number of users that will be stored, to prevent containers from resizing.
    */
   private static final int DEFAULT_NUM_USERS = 100;
+  /** The number of records decoded ahead of the one being applied during recovery, per thread. */
+  private static final int REPLAY_WINDOW_PER_THREAD = 64;
 
+  /** The directory holding the journal and snapshots, or null if nothing is persisted. */
+  private final File directory;
+  /** The milliseconds between forces of the journal, or 0 to force every change. */
+  private final long syncInterval;
+  /** The milliseconds between snapshots, or 0 for none except those requested. */
+  private final long snapshotInterval;
+  /** The journal changes are written to, or null if nothing is persisted. */
+  private MemoryJournal journal;
+  /**
+   * Held while a change is checked, journaled and applied, so the journal records changes in the
+   * order they were applied.
+   */
+  private final Object writeLock = new Object();
+  /** Held while a snapshot is written, so only one is written at a time. */
+  private final Object snapshotLock = new Object();
+  /** Writes snapshots at the snapshot interval, or null. */
+  private ScheduledExecutorService snapshotTimer;
+  /** Whether any data was recovered from disk at initialization. */
+  private boolean recovered = false;
+  /** Closes the journal when the server exits, or null if not registered. */
+  private Thread shutdownHook;
   /**
-   * Constructs a new DbImplementation using ConcurrentHashMaps for storage, with no long-term
-   * persistence.
+   * Set once the journal could not be forced, after which the journal can no longer be trusted
+   * and all further changes are refused.
+   */
+  private volatile boolean failed = false;
+
+  /**
+   * Constructs a new DbImplementation using ConcurrentHashMaps for storage. Whether the data is
+   * persisted to disk, and how, is taken from the server properties.
    * 
    * @param server The server this DbImplementation is associated with.
    */
   public MemoryStorageImplementation(Server server) {
     super(server);
+    ServerProperties properties = server.getServerProperties();
+    if (Boolean.parseBoolean(properties.get(ServerProperties.DB_MEMORY_PERSIST_KEY))) {
+      this.directory = new File(properties.get(ServerProperties.DB_DIR_KEY), "memory");
+      this.syncInterval = parseLong(properties, ServerProperties.DB_MEMORY_SYNC_KEY, 1000);
+      this.snapshotInterval =
+          parseLong(properties, ServerProperties.DB_MEMORY_SNAPSHOT_INTERVAL_KEY, 60) * 60 * 1000;
+    }
+    else {
+      this.directory = null;
+      this.syncInterval = 0;
+      this.snapshotInterval = 0;
+    }
+  }
+
+  /**
+   * Constructs a new DbImplementation using ConcurrentHashMaps for storage, persisted to the
+   * given directory.
+   * 
+   * @param server The server this DbImplementation is associated with.
+   * @param directory The directory for the journal and snapshots, or null to persist nothing.
+   * @param syncInterval The milliseconds between forces of the journal, or 0 to force every
+   * change before it is acknowledged.
+   * @param snapshotInterval The milliseconds between snapshots, or 0 for none except those
+   * requested by makeSnapshot().
+   */
+  public MemoryStorageImplementation(Server server, File directory, long syncInterval,
+      long snapshotInterval) {
+    super(server);
+    this.directory = directory;
+    this.syncInterval = syncInterval;
+    this.snapshotInterval = snapshotInterval;
   }
 
   /** {@inheritDoc} */
@@ -78,15 +162,58 @@ public class MemoryStorageImplementation extends DbImplementation {
         new ConcurrentHashMap<String, ConcurrentMap<XMLGregorianCalendar, SensorData>>(
             DEFAULT_NUM_SOURCES);
     this.name2UserHash = new ConcurrentHashMap<String, User>(DEFAULT_NUM_USERS);
-    // Since nothing is stored on disk, there is no data to be read into the hash maps
-    // wipe parameter is also ignored, since the DB is always wiped on initialization
+    if (this.directory == null) {
+      // Since nothing is stored on disk, there is no data to be read into the hash maps
+      return;
+    }
+    try {
+      this.journal = new MemoryJournal(this.directory, this.syncInterval, this.logger);
+      if (wipe) {
+        this.journal.deleteAll();
+      }
+      else {
+        this.recovered = recover();
+      }
+      this.journal.open();
+    }
+    catch (IOException e) {
+      String msg = "Memory: Exception recovering data from " + this.directory + ":";
+      this.logger.warning(msg + "\n" + StackTrace.toString(e));
+      throw new RuntimeException(msg, e);
+    }
+    if (this.snapshotInterval > 0) {
+      this.snapshotTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "WattDepot memory snapshot");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      this.snapshotTimer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          writeSnapshot();
+        }
+      }, this.snapshotInterval, this.snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+    this.failed = false;
+    // Force the journal when the server exits, since it may not have been forced for a while
+    if (this.shutdownHook == null) {
+      this.shutdownHook = new Thread() {
+        /** Closes the journal. */
+        @Override
+        public void run() {
+          close();
+        }
+      };
+      Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+    }
   }
 
   /** {@inheritDoc} */
   @Override
   public boolean isFreshlyCreated() {
-    // Since this implementation provides no long-term storage, it is always freshly created.
-    return true;
+    // Without long-term storage, or with nothing recovered from it, the store starts empty.
+    return !this.recovered;
   }
 
   /** {@inheritDoc} */
@@ -181,20 +308,20 @@ public class MemoryStorageImplementation extends DbImplementation {
     if (source == null) {
       return false;
     }
-    else {
-      if (overwrite) {
-        this.name2SourceHash.put(source.getName(), source);
-        // Ignore put's return value since we don't care if the hash already had the key
-        return true;
+    JournalRecord record = JournalRecord.putSource(source);
+    byte[] body = encode(record);
+    long sequence;
+    synchronized (this.writeLock) {
+      if (!overwrite && this.name2SourceHash.containsKey(source.getName())) {
+        return false;
       }
-      else {
-      Source previousValue = this.name2SourceHash.putIfAbsent(source.getName(), source);
-      // putIfAbsent returns the previous value that ended up in the hash, so if we get a null then
-      // no value was previously stored, so we succeeded. If we get anything else, then there was
-      // already a value in the hash for this username, so we failed.
-      return (previousValue == null);
+      sequence = append(body);
+      if (sequence < 0) {
+        return false;
       }
+      apply(record);
     }
+    return awaitDurable(sequence);
   }
 
   /** {@inheritDoc} */
@@ -203,14 +330,23 @@ public class MemoryStorageImplementation extends DbImplementation {
     if (sourceName == null) {
       return false;
     }
-    else {
-      // First delete the hash of sensor data for this Source. We ignore the return value since
-      // we only need to ensure that there is no sensor data leftover.
-      deleteSensorData(sourceName);
-      // remove() returns the value for the key, or null if there was no value in the hash. So
-      // return true unless we got a null.
-      return (this.name2SourceHash.remove(sourceName) != null);
+    JournalRecord record = JournalRecord.removeSource(sourceName);
+    byte[] body = encode(record);
+    long sequence;
+    boolean existed;
+    synchronized (this.writeLock) {
+      // Any sensor data left over is removed even if the Source itself is gone
+      existed = this.name2SourceHash.containsKey(sourceName);
+      if (!existed && !this.source2SensorDatasHash.containsKey(sourceName)) {
+        return false;
+      }
+      sequence = append(body);
+      if (sequence < 0) {
+        return false;
+      }
+      apply(record);
     }
+    return awaitDurable(sequence) && existed;
   }
 
   /** {@inheritDoc} */
@@ -387,7 +523,7 @@ public class MemoryStorageImplementation extends DbImplementation {
 
   /** {@inheritDoc} */
   @Override
-  public boolean storeSensorData(SensorData data) {
+  public boolean storeSensorData(SensorData data, boolean overwrite) {
     if (data == null) {
       return false;
     }
@@ -395,25 +531,24 @@ public class MemoryStorageImplementation extends DbImplementation {
       // SensorData resources contain the URI of their Source, so the source name can be found by
       // taking everything after the last "/" in the URI.
       String sourceName = data.getSource().substring(data.getSource().lastIndexOf('/') + 1);
-      // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
-          this.source2SensorDatasHash.get(sourceName);
-      // If there is no sensor data for this Source yet
-      if (sensorDataMap == null) {
-        // Create the sensorDataMap
-        sensorDataMap =
-            new ConcurrentHashMap<XMLGregorianCalendar, SensorData>(DEFAULT_NUM_SENSORDATA);
-        // add to SenorDataHash in thread-safe manner (in case someone beats us to it)
-        this.source2SensorDatasHash.putIfAbsent(sourceName, sensorDataMap);
-        // Don't need to check result, since we only care that there is a hash we can store to,
-        // not whether the one we created actually got stored.
+      if (!overwrite && hasSensorData(sourceName, data.getTimestamp())) {
+        // Checked again under the lock, but this saves encoding data that is already stored
+        return false;
+      }
+      JournalRecord record = JournalRecord.putSensorData(sourceName, data);
+      byte[] body = encode(record);
+      long sequence;
+      synchronized (this.writeLock) {
+        if (!overwrite && hasSensorData(sourceName, data.getTimestamp())) {
+          return false;
+        }
+        sequence = append(body);
+        if (sequence < 0) {
+          return false;
+        }
+        apply(record);
       }
-      // Try putting the new SensorData into the hash for the appropriate source
-      SensorData previousValue = sensorDataMap.putIfAbsent(data.getTimestamp(), data);
-      // putIfAbsent returns the previous value that ended up in the hash, so if we get a null then
-      // no value was previously stored, so we succeeded. If we get anything else, then there was
-      // already a value in the hash for this username, so we failed.
-      return (previousValue == null);
+      return awaitDurable(sequence);
     }
   }
 
@@ -423,20 +558,20 @@ public class MemoryStorageImplementation extends DbImplementation {
     if ((sourceName == null) || (timestamp == null)) {
       return false;
     }
-    else {
-      // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
-          this.source2SensorDatasHash.get(sourceName);
-      // If there is any sensor data for this Source
-      if (sensorDataMap == null) {
+    JournalRecord record = JournalRecord.removeSensorData(sourceName, timestamp);
+    byte[] body = encode(record);
+    long sequence;
+    synchronized (this.writeLock) {
+      if (!hasSensorData(sourceName, timestamp)) {
         return false;
       }
-      else {
-        // remove() returns the value for the key, or null if there was no value in the hash. So
-        // return true unless we got a null.
-        return (sensorDataMap.remove(timestamp) != null);
+      sequence = append(body);
+      if (sequence < 0) {
+        return false;
       }
+      apply(record);
     }
+    return awaitDurable(sequence);
   }
 
   /** {@inheritDoc} */
@@ -445,11 +580,21 @@ public class MemoryStorageImplementation extends DbImplementation {
     if (sourceName == null) {
       return false;
     }
-    else {
-      // Delete the hash of sensor data for this Source. If the source doesn't exist or there is no
-      // sensor data, we'll get a null.
-      return (this.source2SensorDatasHash.remove(sourceName) != null);
+    JournalRecord record = JournalRecord.removeAllSensorData(sourceName);
+    byte[] body = encode(record);
+    long sequence;
+    synchronized (this.writeLock) {
+      // If the source doesn't exist or there is no sensor data, there is nothing to delete
+      if (!this.source2SensorDatasHash.containsKey(sourceName)) {
+        return false;
+      }
+      sequence = append(body);
+      if (sequence < 0) {
+        return false;
+      }
+      apply(record);
     }
+    return awaitDurable(sequence);
   }
 
   /**
@@ -680,13 +825,20 @@ public class MemoryStorageImplementation extends DbImplementation {
     if (user == null) {
       return false;
     }
-    else {
-      User previousValue = this.name2UserHash.putIfAbsent(user.getEmail(), user);
-      // putIfAbsent returns the previous value that ended up in the hash, so if we get a null then
-      // no value was previously stored, so we succeeded. If we get anything else, then there was
-      // already a value in the hash for this username, so we failed.
-      return (previousValue == null);
+    JournalRecord record = JournalRecord.putUser(user);
+    byte[] body = encode(record);
+    long sequence;
+    synchronized (this.writeLock) {
+      if (this.name2UserHash.containsKey(user.getEmail())) {
+        return false;
+      }
+      sequence = append(body);
+      if (sequence < 0) {
+        return false;
+      }
+      apply(record);
     }
+    return awaitDurable(sequence);
   }
 
   /** {@inheritDoc} */
@@ -706,9 +858,20 @@ public class MemoryStorageImplementation extends DbImplementation {
           deleteSource(source.getName());
         }
       }
-      // remove() returns the value for the key, or null if there was no value in the hash. So
-      // return true unless we got a null.
-      return (this.name2UserHash.remove(username) != null);
+      JournalRecord record = JournalRecord.removeUser(username);
+      byte[] body = encode(record);
+      long sequence;
+      synchronized (this.writeLock) {
+        if (!this.name2UserHash.containsKey(username)) {
+          return false;
+        }
+        sequence = append(body);
+        if (sequence < 0) {
+          return false;
+        }
+        apply(record);
+      }
+      return awaitDurable(sequence);
     }
   }
 
@@ -732,20 +895,358 @@ public class MemoryStorageImplementation extends DbImplementation {
         || (this.name2UserHash == null)) {
       return false;
     }
-    else {
+    JournalRecord record = JournalRecord.wipe();
+    byte[] body = encode(record);
+    long sequence;
+    synchronized (this.writeLock) {
+      sequence = append(body);
+      if (sequence < 0) {
+        return false;
+      }
       // Wipe the hash maps
+      apply(record);
+    }
+    return awaitDurable(sequence);
+  }
+
+  @Override
+  public boolean makeSnapshot() {
+    if (this.journal == null) {
+      // No provision for making a snapshot of the ConcurrentHashMaps without a directory, so just
+      // return true. It would be more truthful to return false, but then unit tests would blow up
+      // and it's not worth the hassle of special casing it.
+      return true;
+    }
+    return writeSnapshot();
+  }
+
+  /**
+   * Writes a snapshot of the whole store, after which the journal written before it is deleted.
+   * Changes continue to be made while the snapshot is written.
+   * 
+   * @return True if the snapshot was written, false if it could not be or nothing is persisted.
+   */
+  boolean writeSnapshot() {
+    if (this.journal == null) {
+      return false;
+    }
+    synchronized (this.snapshotLock) {
+      long number;
+      try {
+        synchronized (this.writeLock) {
+          // Every change applied so far is in a segment before the new one
+          number = this.journal.rotate();
+        }
+      }
+      catch (IOException e) {
+        this.logger.warning("Memory: Unable to start snapshot\n" + StackTrace.toString(e));
+        return false;
+      }
+      MemoryJournal.Snapshot snapshot = null;
+      try {
+        snapshot = this.journal.beginSnapshot(number);
+        for (User user : this.name2UserHash.values()) {
+          snapshot.write(JournalRecord.putUser(user).encode());
+        }
+        for (Source source : this.name2SourceHash.values()) {
+          snapshot.write(JournalRecord.putSource(source).encode());
+        }
+        for (Map.Entry<String, ConcurrentMap<XMLGregorianCalendar, SensorData>> entry
+            : this.source2SensorDatasHash.entrySet()) {
+          for (SensorData data : entry.getValue().values()) {
+            snapshot.write(JournalRecord.putSensorData(entry.getKey(), data).encode());
+          }
+        }
+        snapshot.commit();
+        return true;
+      }
+      catch (IOException e) {
+        if (snapshot != null) {
+          snapshot.abort();
+        }
+        this.logger.warning("Memory: Unable to write snapshot\n" + StackTrace.toString(e));
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Stops writing snapshots and closes the journal, after forcing it to disk. Changes made after
+   * this are not persisted.
+   */
+  public void close() {
+    if (this.shutdownHook != null) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+      }
+      catch (IllegalStateException e) { // NOPMD
+        // Already running as the shutdown hook
+      }
+      this.shutdownHook = null;
+    }
+    if (this.snapshotTimer != null) {
+      this.snapshotTimer.shutdownNow();
+    }
+    if (this.journal != null) {
+      try {
+        this.journal.close();
+      }
+      catch (IOException e) {
+        this.logger.warning("Memory: Unable to close journal\n" + StackTrace.toString(e));
+      }
+    }
+  }
+
+  /**
+   * Applies a change to the hash maps. Used both for new changes, once they have been checked and
+   * journaled, and for changes replayed from the journal and snapshots.
+   * 
+   * @param record The change.
+   */
+  private void apply(JournalRecord record) {
+    String name = record.getName();
+    ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap;
+    switch (record.getType()) {
+    case PUT_SOURCE:
+      this.name2SourceHash.put(name, (Source) record.getValue());
+      break;
+    case REMOVE_SOURCE:
+      this.source2SensorDatasHash.remove(name);
+      this.name2SourceHash.remove(name);
+      break;
+    case PUT_SENSOR_DATA:
+      SensorData data = (SensorData) record.getValue();
+      // Retrieve this Source's map of timestamps to SensorData
+      sensorDataMap = this.source2SensorDatasHash.get(name);
+      // If there is no sensor data for this Source yet
+      if (sensorDataMap == null) {
+        // Create the sensorDataMap
+        sensorDataMap =
+            new ConcurrentHashMap<XMLGregorianCalendar, SensorData>(DEFAULT_NUM_SENSORDATA);
+        this.source2SensorDatasHash.put(name, sensorDataMap);
+      }
+      sensorDataMap.put(data.getTimestamp(), data);
+      break;
+    case REMOVE_SENSOR_DATA:
+      sensorDataMap = this.source2SensorDatasHash.get(name);
+      if (sensorDataMap != null) {
+        sensorDataMap.remove(record.getTimestamp());
+      }
+      break;
+    case REMOVE_ALL_SENSOR_DATA:
+      this.source2SensorDatasHash.remove(name);
+      break;
+    case PUT_USER:
+      this.name2UserHash.put(name, (User) record.getValue());
+      break;
+    case REMOVE_USER:
+      this.name2UserHash.remove(name);
+      break;
+    case WIPE:
       this.name2SourceHash.clear();
       this.source2SensorDatasHash.clear();
       this.name2UserHash.clear();
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown journal record type " + record.getType());
+    }
+  }
+
+  /**
+   * Encodes a change for the journal, before the write lock is taken.
+   * 
+   * @param record The change.
+   * @return The encoded change, an empty array if nothing is persisted, or null if the change
+   * cannot be encoded.
+   */
+  private byte[] encode(JournalRecord record) {
+    if (this.journal == null) {
+      return new byte[0];
+    }
+    try {
+      return record.encode();
+    }
+    catch (IOException e) {
+      this.logger.warning("Memory: Unable to encode change\n" + StackTrace.toString(e));
+      return null;
+    }
+  }
+
+  /**
+   * Appends an encoded change to the journal. Must be called with the write lock held, just
+   * before the change is applied.
+   * 
+   * @param body The encoded change, or null if it could not be encoded.
+   * @return The sequence number to wait for, 0 if nothing is persisted, or -1 if the change could
+   * not be journaled and so must not be applied.
+   */
+  private long append(byte[] body) {
+    if (this.journal == null) {
+      return 0;
+    }
+    if (body == null) {
+      return -1;
+    }
+    if (this.failed) {
+      this.logger.warning("Memory: Change refused, the journal could not be forced earlier");
+      return -1;
+    }
+    try {
+      return this.journal.append(body);
+    }
+    catch (IOException e) {
+      this.logger.warning("Memory: Unable to journal change\n" + StackTrace.toString(e));
+      return -1;
+    }
+  }
+
+  /**
+   * Waits until a journaled change is as durable as the sync policy requires. Called without the
+   * write lock, so that one force of the journal covers the changes of several threads.
+   * 
+   * @param sequence The sequence number returned by append().
+   * @return True if the change is durable, false if the journal could not be forced. A failed
+   * force is fatal: the change stays applied but may not survive a crash, and every later change
+   * is refused, since what the journal holds after a failed force is unknown.
+   */
+  private boolean awaitDurable(long sequence) {
+    if (sequence == 0) {
       return true;
     }
+    try {
+      this.journal.awaitDurable(sequence);
+      return true;
+    }
+    catch (IOException e) {
+      this.failed = true;
+      this.logger.severe("Memory: Unable to force journal, refusing further changes\n"
+          + StackTrace.toString(e));
+      return false;
+    }
   }
 
-  @Override
-  public boolean makeSnapshot() {
-    // No provision for making a snapshot of the ConcurrentHashMaps, so just return true.
-    // It would be more truthful to return false, but then unit tests would blow up and it's not
-    // worth the hassle of special casing it.
-    return true;
+  /**
+   * Loads the latest snapshot and replays the journal written after it.
+   * 
+   * @return True if anything was recovered.
+   * @throws IOException If the files cannot be read, or hold a damaged record.
+   */
+  private boolean recover() throws IOException {
+    File snapshot = this.journal.getLatestSnapshot();
+    List<File> files = new ArrayList<File>();
+    if (snapshot == null) {
+      files.addAll(this.journal.getSegments(0));
+    }
+    else {
+      files.add(snapshot);
+      files.addAll(this.journal.getSegments(MemoryJournal.fileNumber(snapshot)));
+    }
+    if (files.isEmpty()) {
+      return false;
+    }
+    long start = System.currentTimeMillis();
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService decoders = Executors.newFixedThreadPool(threads);
+    Replayer replayer = new Replayer(decoders, threads * REPLAY_WINDOW_PER_THREAD);
+    int count = 0;
+    try {
+      for (File file : files) {
+        count += this.journal.read(file, replayer);
+      }
+      replayer.finish();
+    }
+    finally {
+      decoders.shutdownNow();
+    }
+    this.logger.info("Memory: recovered " + count + " records from " + files.size()
+        + " files in " + (System.currentTimeMillis() - start) + " ms");
+    return count > 0;
+  }
+
+  /**
+   * Replays records read from the journal and snapshots, decoding them on several threads but
+   * applying them in the order they were read.
+   */
+  private class Replayer implements RecordHandler {
+    /** Decodes records. */
+    private final ExecutorService decoders;
+    /** The most records being decoded at once. */
+    private final int window;
+    /** The records being decoded, oldest first. */
+    private final LinkedList<Future<JournalRecord>> pending =
+        new LinkedList<Future<JournalRecord>>();
+
+    /**
+     * Creates a new Replayer.
+     * 
+     * @param decoders Decodes records.
+     * @param window The most records being decoded at once.
+     */
+    Replayer(ExecutorService decoders, int window) {
+      this.decoders = decoders;
+      this.window = window;
+    }
+
+    /** {@inheritDoc} */
+    public void handle(final byte[] body) throws IOException {
+      this.pending.add(this.decoders.submit(new Callable<JournalRecord>() {
+        public JournalRecord call() throws IOException {
+          return JournalRecord.decode(body);
+        }
+      }));
+      if (this.pending.size() >= this.window) {
+        applyOldest();
+      }
+    }
+
+    /**
+     * Applies every record still being decoded.
+     * 
+     * @throws IOException If a record cannot be decoded.
+     */
+    void finish() throws IOException {
+      while (!this.pending.isEmpty()) {
+        applyOldest();
+      }
+    }
+
+    /**
+     * Waits for the oldest record to be decoded, and applies it.
+     * 
+     * @throws IOException If the record cannot be decoded.
+     */
+    private void applyOldest() throws IOException {
+      try {
+        apply(this.pending.removeFirst().get());
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while recovering data");
+      }
+      catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Unable to decode journal record: " + e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Returns the value of a numeric server property, or a default if it is not a number.
+   * 
+   * @param properties The server properties.
+   * @param key The key of the property.
+   * @param defaultValue The value used if the property is not a number.
+   * @return The value.
+   */
+  private long parseLong(ServerProperties properties, String key, long defaultValue) {
+    try {
+      return Long.parseLong(properties.get(key));
+    }
+    catch (NumberFormatException e) {
+      this.logger.warning("Memory: Invalid " + key + ", using " + defaultValue);
+      return defaultValue;
+    }
   }
 }
\ No newline at end of file
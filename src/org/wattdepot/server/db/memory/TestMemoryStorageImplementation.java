@@ -0,0 +1,158 @@
+package org.wattdepot.server.db.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.user.jaxb.User;
+import org.wattdepot.server.Server;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests that the MemoryStorageImplementation recovers its data from its journal and snapshots.
+ * 
+ * @author Robert Brewer
+ */
+public class TestMemoryStorageImplementation {
+
+  /** Name of the source used for testing. */
+  private static final String sourceName = "saunders-hall";
+
+  /** The server being used for these tests. */
+  private static Server server;
+
+  /** The directory for the journal and snapshots. */
+  private File directory;
+
+  /**
+   * Creates a test server to use for this set of tests.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @BeforeClass
+  public static void startServer() throws Exception {
+    TestMemoryStorageImplementation.server = Server.newTestInstance();
+  }
+
+  /**
+   * Creates an empty directory for the journal and snapshots.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Before
+  public void makeDirectory() throws Exception {
+    this.directory = File.createTempFile("memory", "");
+    assertTrue("Unable to delete temp file", this.directory.delete());
+  }
+
+  /**
+   * Deletes the directory.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @After
+  public void deleteDirectory() throws Exception {
+    new MemoryJournal(this.directory, 0, server.getLogger()).deleteAll();
+    this.directory.delete();
+  }
+
+  /**
+   * Makes a store persisted to the test directory, forcing every change and writing snapshots
+   * only when asked.
+   * 
+   * @param wipe True to discard anything persisted.
+   * @return The initialized store.
+   */
+  private MemoryStorageImplementation makeStore(boolean wipe) {
+    MemoryStorageImplementation store =
+        new MemoryStorageImplementation(server, this.directory, 0, 0);
+    store.initialize(wipe);
+    return store;
+  }
+
+  /**
+   * Makes SensorData for the test Source.
+   * 
+   * @param timestamp The timestamp.
+   * @param power The power consumed.
+   * @return The SensorData.
+   */
+  private SensorData makeData(XMLGregorianCalendar timestamp, String power) {
+    return new SensorData(timestamp, "JUnit", Source.sourceToUri(sourceName, server),
+        new Property(SensorData.POWER_CONSUMED, power));
+  }
+
+  /**
+   * Tests that changes made before and after a snapshot are all recovered, even if the last
+   * journal record was cut short, and that the snapshot replaces the journal before it.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testRecovery() throws Exception {
+    XMLGregorianCalendar timestamp1 = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    MemoryStorageImplementation store = makeStore(true);
+    assertTrue("Wiped store not fresh", store.isFreshlyCreated());
+    User owner = new User("joebogus@example.com", "totally-bogus", false, null);
+    assertTrue("Unable to store user", store.storeUser(owner));
+    assertTrue("Unable to store source", store.storeSource(new Source(sourceName, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null), false));
+    for (int i = 0; i < 3; i++) {
+      assertTrue("Unable to store data", store.storeSensorData(makeData(Tstamp.incrementMinutes(
+          timestamp1, i), Integer.toString(i)), false));
+    }
+    assertTrue("Unable to write snapshot", store.makeSnapshot());
+
+    // Changes after the snapshot are only in the journal
+    XMLGregorianCalendar timestamp4 = Tstamp.incrementMinutes(timestamp1, 3);
+    SensorData data4 = makeData(timestamp4, "3");
+    assertTrue("Unable to store data after snapshot", store.storeSensorData(data4, false));
+    assertFalse("Duplicate data stored", store.storeSensorData(makeData(timestamp4, "4"), false));
+    XMLGregorianCalendar timestamp2 = Tstamp.incrementMinutes(timestamp1, 1);
+    assertTrue("Unable to delete data", store.deleteSensorData(sourceName, timestamp2));
+    assertTrue("Unable to store user after snapshot", store.storeUser(new User(
+        "jimbogus@example.com", "super-bogus", false, null)));
+    store.close();
+
+    List<File> segments = new MemoryJournal(this.directory, 0, server.getLogger()).getSegments(0);
+    assertEquals("Journal before snapshot not deleted", 1, segments.size());
+    // Simulate a record that was only partly written when the server stopped
+    FileOutputStream output = new FileOutputStream(segments.get(0), true);
+    output.write(new byte[] { 0, 0, 0, 50, 1, 2 });
+    output.close();
+
+    MemoryStorageImplementation recovered = makeStore(false);
+    assertFalse("Recovered store is fresh", recovered.isFreshlyCreated());
+    assertNotNull("User not recovered", recovered.getUser("joebogus@example.com"));
+    assertNotNull("User after snapshot not recovered", recovered.getUser("jimbogus@example.com"));
+    assertNotNull("Source not recovered", recovered.getSource(sourceName));
+    assertEquals("Data not recovered", makeData(timestamp1, "0"), recovered.getSensorData(
+        sourceName, timestamp1));
+    assertNull("Deleted data recovered", recovered.getSensorData(sourceName, timestamp2));
+    assertEquals("Data after snapshot not recovered", data4, recovered.getSensorData(sourceName,
+        timestamp4));
+    assertEquals("Wrong amount of data recovered", 3, recovered.getSensorDataIndex(sourceName)
+        .getSensorDataRef().size());
+
+    // Changes keep being journaled after recovery
+    assertTrue("Unable to delete source", recovered.deleteSource(sourceName));
+    recovered.close();
+    MemoryStorageImplementation again = makeStore(false);
+    assertNull("Deleted source recovered", again.getSource(sourceName));
+    assertNull("Data of deleted source recovered", again.getSensorData(sourceName, timestamp1));
+    again.close();
+  }
+}
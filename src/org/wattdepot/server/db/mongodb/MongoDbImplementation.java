@@ -733,7 +733,7 @@ public class MongoDbImplementation extends DbImplementation {
   }
 
   @Override
-  public boolean storeSensorData(SensorData data) {
+  public boolean storeSensorData(SensorData data, boolean overwrite) {
     if (data == null) {
       return false;
     }
@@ -756,6 +756,14 @@ public class MongoDbImplementation extends DbImplementation {
       }
     }
     
+    if (overwrite) {
+      // Upsert replaces any existing document for this source and timestamp in one operation
+      BasicDBObject query = new BasicDBObject();
+      query.put(SOURCE_KEY, data.getSource());
+      query.put(TIMESTAMP_KEY, dbData.get(TIMESTAMP_KEY));
+      this.sensorDataCollection.update(query, dbData, true, false, WriteConcern.SAFE);
+      return true;
+    }
     try {
       this.sensorDataCollection.insert(dbData, WriteConcern.SAFE);
     }
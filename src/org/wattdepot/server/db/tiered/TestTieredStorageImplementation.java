@@ -0,0 +1,189 @@
+package org.wattdepot.server.db.tiered;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.SensorDataStraddle;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.user.jaxb.User;
+import org.wattdepot.server.Server;
+import org.wattdepot.server.db.DbImplementation;
+import org.wattdepot.server.db.memory.MemoryJournal;
+import org.wattdepot.server.db.memory.MemoryStorageImplementation;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests the TieredStorageImplementation, using a persisted MemoryStorageImplementation as the cold
+ * tier so that the hot tier can be warmed from it.
+ * 
+ * @author Robert Brewer
+ */
+public class TestTieredStorageImplementation {
+
+  /** Name of the source used for testing. */
+  private static final String sourceName = "saunders-hall";
+
+  /** The length of the hot window in milliseconds. */
+  private static final long WINDOW = 48L * 60 * 60 * 1000;
+
+  /** One hour in milliseconds. */
+  private static final long HOUR = 60L * 60 * 1000;
+
+  /** The server being used for these tests. */
+  private static Server server;
+
+  /** The directory the cold tier is persisted to. */
+  private File directory;
+
+  /**
+   * Creates a test server to use for this set of tests.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @BeforeClass
+  public static void startServer() throws Exception {
+    TestTieredStorageImplementation.server = Server.newTestInstance();
+  }
+
+  /**
+   * Creates an empty directory for the cold tier.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Before
+  public void makeDirectory() throws Exception {
+    this.directory = File.createTempFile("tiered", "");
+    assertTrue("Unable to delete temp file", this.directory.delete());
+  }
+
+  /**
+   * Deletes the directory.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @After
+  public void deleteDirectory() throws Exception {
+    new MemoryJournal(this.directory, 0, server.getLogger()).deleteAll();
+    this.directory.delete();
+  }
+
+  /**
+   * Makes SensorData for the test Source.
+   * 
+   * @param timestamp The timestamp.
+   * @param power The power consumed.
+   * @return The SensorData.
+   */
+  private SensorData makeData(XMLGregorianCalendar timestamp, String power) {
+    return new SensorData(timestamp, "JUnit", Source.sourceToUri(sourceName, server),
+        new Property(SensorData.POWER_CONSUMED, power));
+  }
+
+  /**
+   * Tests that the hot tier is warmed with only the recent data, that reads are answered from
+   * whichever tier holds the data, and that writes reach both tiers.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testTiers() throws Exception {
+    long now = System.currentTimeMillis();
+    XMLGregorianCalendar old = Tstamp.makeTimestamp(now - 72 * HOUR);
+    XMLGregorianCalendar recent = Tstamp.makeTimestamp(now - HOUR);
+    MemoryStorageImplementation seed =
+        new MemoryStorageImplementation(server, this.directory, 0, 0);
+    seed.initialize(true);
+    User owner = new User("joebogus@example.com", "totally-bogus", false, null);
+    assertTrue("Unable to store user", seed.storeUser(owner));
+    assertTrue("Unable to store source", seed.storeSource(new Source(sourceName, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null), false));
+    assertTrue("Unable to store old data", seed.storeSensorData(makeData(old, "1"), false));
+    assertTrue("Unable to store recent data", seed.storeSensorData(makeData(recent, "2"), false));
+    seed.close();
+
+    TieredStorageImplementation tiered =
+        new TieredStorageImplementation(server, new MemoryStorageImplementation(server,
+            this.directory, 0, 0), WINDOW);
+    tiered.initialize(false);
+    DbImplementation hot = tiered.getHotTier();
+    assertNotNull("Source not warmed", hot.getSource(sourceName));
+    assertNotNull("User not warmed", hot.getUser(owner.getEmail()));
+    assertNotNull("Recent data not warmed", hot.getSensorData(sourceName, recent));
+    assertNull("Old data warmed", hot.getSensorData(sourceName, old));
+    assertNotNull("Old data not read from cold tier", tiered.getSensorData(sourceName, old));
+    assertEquals("Wrong latest data", makeData(recent, "2"), tiered
+        .getLatestSensorData(sourceName));
+
+    // New data goes to both tiers, data before the window only to the cold tier
+    XMLGregorianCalendar current = Tstamp.makeTimestamp(now);
+    XMLGregorianCalendar older = Tstamp.makeTimestamp(now - 100 * HOUR);
+    assertTrue("Unable to store current data", tiered.storeSensorData(makeData(current, "3"),
+        false));
+    assertTrue("Unable to store older data", tiered.storeSensorData(makeData(older, "4"), false));
+    assertNotNull("Current data not in hot tier", hot.getSensorData(sourceName, current));
+    assertNull("Older data in hot tier", hot.getSensorData(sourceName, older));
+    assertEquals("Wrong latest data after store", makeData(current, "3"), tiered
+        .getLatestSensorData(sourceName));
+
+    XMLGregorianCalendar end = Tstamp.makeTimestamp(now + HOUR);
+    assertEquals("Wrong range inside window", 2, tiered.getSensorDatas(sourceName,
+        Tstamp.makeTimestamp(now - 2 * HOUR), end).getSensorData().size());
+    assertEquals("Wrong range before window", 3, tiered.getSensorDatas(sourceName,
+        Tstamp.makeTimestamp(now - 80 * HOUR), end).getSensorData().size());
+    SensorDataStraddle straddle =
+        tiered.getSensorDataStraddle(sourceName, Tstamp.makeTimestamp(now - HOUR / 2));
+    assertNotNull("No straddle inside window", straddle);
+    assertEquals("Wrong straddle start", makeData(recent, "2"), straddle.getBeforeData());
+    assertNotNull("No straddle across window start", tiered.getSensorDataStraddle(sourceName,
+        Tstamp.makeTimestamp(now - 50 * HOUR)));
+
+    assertTrue("Unable to delete source", tiered.deleteSource(sourceName));
+    assertNull("Source left in hot tier", hot.getSource(sourceName));
+    assertNull("Data left in cold tier", tiered.getSensorData(sourceName, old));
+  }
+
+  /**
+   * Tests that deleting a range in chunks deletes the same SensorData from both tiers after each
+   * chunk.
+   * 
+   * @throws Exception If a problem is encountered.
+   */
+  @Test
+  public void testRangeDeletion() throws Exception {
+    TieredStorageImplementation tiered =
+        new TieredStorageImplementation(server, new MemoryStorageImplementation(server,
+            this.directory, 0, 0), WINDOW);
+    tiered.initialize(true);
+    User owner = new User("joebogus@example.com", "totally-bogus", false, null);
+    assertTrue("Unable to store user", tiered.storeUser(owner));
+    assertTrue("Unable to store source", tiered.storeSource(new Source(sourceName, owner
+        .toUri(server), true, false, "21.30078,-157.819129,41", "Saunders Hall", "Obvius", null,
+        null), false));
+    long now = System.currentTimeMillis();
+    // Two readings before the window and three inside it
+    for (int i = 0; i < 5; i++) {
+      XMLGregorianCalendar timestamp = Tstamp.makeTimestamp(now - (60 - i * 10) * HOUR);
+      assertTrue("Unable to store data", tiered.storeSensorData(makeData(timestamp, "1"), false));
+    }
+    DbImplementation hot = tiered.getHotTier();
+    XMLGregorianCalendar start = Tstamp.makeTimestamp(now - 100 * HOUR);
+    XMLGregorianCalendar end = Tstamp.makeTimestamp(now);
+    int[] hotLeft = { 3, 3, 2, 1, 0 };
+    for (int left : hotLeft) {
+      assertEquals("Wrong chunk deleted", 1, tiered.deleteSensorData(sourceName, start, end, 1));
+      assertEquals("Tiers differ after chunk", left, hot.getSensorDataIndex(sourceName, start,
+          end).getSensorDataRef().size());
+    }
+    assertEquals("Range not finished", 0, tiered.deleteSensorData(sourceName, start, end, 1));
+  }
+}
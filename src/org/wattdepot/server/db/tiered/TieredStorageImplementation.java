@@ -0,0 +1,665 @@
+package org.wattdepot.server.db.tiered;
+
+import java.lang.reflect.Constructor;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.sensordata.SensorDataStraddle;
+import org.wattdepot.resource.sensordata.StraddleList;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
+import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.source.jaxb.SourceIndex;
+import org.wattdepot.resource.source.jaxb.Sources;
+import org.wattdepot.resource.source.summary.jaxb.SourceSummary;
+import org.wattdepot.resource.user.jaxb.User;
+import org.wattdepot.resource.user.jaxb.UserIndex;
+import org.wattdepot.resource.user.jaxb.UserRef;
+import org.wattdepot.server.Server;
+import org.wattdepot.server.ServerProperties;
+import org.wattdepot.server.db.DbBadIntervalException;
+import org.wattdepot.server.db.DbImplementation;
+import org.wattdepot.server.db.SensorDataAggregator;
+import org.wattdepot.server.db.SensorDataStatistics;
+import org.wattdepot.server.db.SnapshotProgress;
+import org.wattdepot.server.db.memory.MemoryStorageImplementation;
+import org.wattdepot.util.StackTrace;
+import org.wattdepot.util.UriUtils;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * A storage implementation that keeps recent sensor data in memory in front of a persistent
+ * implementation. The cold tier, whose class is given by ServerProperties.DB_COLD_IMPL_KEY, holds
+ * everything, and every change is written to it first. The hot tier is a
+ * MemoryStorageImplementation holding all the Sources and Users, and every SensorData from the
+ * start of the hot window on, where the window is the number of hours given by
+ * ServerProperties.DB_HOT_WINDOW_KEY before the present. The hot tier is warmed from the cold tier
+ * at initialization, and the window moves forward in the background, dropping older SensorData
+ * from memory.
+ * 
+ * Reads of Sources and Users, and reads of SensorData that start inside the window, including
+ * ranges, straddles and the latest SensorData, are answered from the hot tier. Reads that start
+ * before the window, or that the hot tier cannot answer, such as a straddle whose earlier end is
+ * before the window, fall through to the cold tier.
+ * 
+ * Changes to the SensorData of a Source are made to both tiers while holding a lock for the
+ * Source, so concurrent changes to the same SensorData are applied to both tiers in the same
+ * order.
+ * 
+ * @author Robert Brewer
+ */
+public class TieredStorageImplementation extends DbImplementation implements
+    SensorDataAggregator {
+
+  /** The number of times the window is moved forward per window length. */
+  private static final int MOVES_PER_WINDOW = 48;
+
+  /** The shortest time between moves of the window, in milliseconds. */
+  private static final long MIN_MOVE_INTERVAL = 60 * 1000;
+
+  /** The number of locks the Sources share, by the hash of their names. */
+  private static final int SOURCE_LOCKS = 64;
+
+  /** A timestamp before any SensorData, for removing everything before the window. */
+  private static final XMLGregorianCalendar BEGINNING_OF_TIME = makeSentinel("1700-01-01");
+
+  /** A timestamp after any SensorData, for warming everything after the window start. */
+  private static final XMLGregorianCalendar END_OF_TIME = makeSentinel("3000-01-01");
+
+  /** Holds everything, and receives every change first. */
+  private final DbImplementation cold;
+
+  /** Holds the Sources, Users and recent SensorData. */
+  private final MemoryStorageImplementation hot;
+
+  /** The length of the hot window in milliseconds. */
+  private final long window;
+
+  /**
+   * The start of the hot window in milliseconds since the epoch. The hot tier holds every
+   * SensorData from this time on.
+   */
+  private volatile long hotStart;
+
+  /** Moves the window forward, or null before initialization. */
+  private ScheduledExecutorService mover;
+
+  /** Held while changing the SensorData of a Source in both tiers. */
+  private final Object[] sourceLocks = new Object[SOURCE_LOCKS];
+
+  /**
+   * Constructs a new TieredStorageImplementation, with the cold tier class and window length taken
+   * from the server properties.
+   * 
+   * @param server The server this DbImplementation is associated with.
+   */
+  public TieredStorageImplementation(Server server) {
+    this(server, makeColdTier(server), getWindowHours(server) * 60 * 60 * 1000);
+  }
+
+  /**
+   * Constructs a new TieredStorageImplementation in front of the given cold tier.
+   * 
+   * @param server The server this DbImplementation is associated with.
+   * @param cold The persistent implementation, which is initialized along with this one.
+   * @param window The length of the hot window in milliseconds.
+   */
+  public TieredStorageImplementation(Server server, DbImplementation cold, long window) {
+    super(server);
+    this.cold = cold;
+    // The cold tier is what persists, so the hot tier never does
+    this.hot = new MemoryStorageImplementation(server, null, 0, 0);
+    this.window = window;
+    for (int i = 0; i < SOURCE_LOCKS; i++) {
+      this.sourceLocks[i] = new Object();
+    }
+  }
+
+  /**
+   * Creates the cold tier named in the server properties.
+   * 
+   * @param server The server.
+   * @return The uninitialized cold tier.
+   */
+  private static DbImplementation makeColdTier(Server server) {
+    String className = server.getServerProperties().get(ServerProperties.DB_COLD_IMPL_KEY);
+    try {
+      Class<?> coldClass = Class.forName(className);
+      Constructor<?> constructor = coldClass.getConstructor(Server.class);
+      return (DbImplementation) constructor.newInstance(server);
+    }
+    catch (Exception e) {
+      String msg = "Tiered: Could not create cold tier " + className + ".";
+      server.getLogger().warning(msg + "\n" + StackTrace.toString(e));
+      throw new IllegalArgumentException(msg, e);
+    }
+  }
+
+  /**
+   * Returns the length of the hot window in hours from the server properties.
+   * 
+   * @param server The server.
+   * @return The number of hours.
+   */
+  private static long getWindowHours(Server server) {
+    try {
+      return Long.parseLong(server.getServerProperties().get(
+          ServerProperties.DB_HOT_WINDOW_KEY));
+    }
+    catch (NumberFormatException e) {
+      server.getLogger().warning("Tiered: Invalid hot window, using 48 hours");
+      return 48;
+    }
+  }
+
+  /**
+   * Makes a timestamp at midnight on a date far from any SensorData.
+   * 
+   * @param date The date.
+   * @return The timestamp.
+   */
+  private static XMLGregorianCalendar makeSentinel(String date) {
+    try {
+      return Tstamp.makeTimestamp(date + "T00:00:00.000-10:00");
+    }
+    catch (Exception e) {
+      throw new IllegalStateException(
+          "Creating timestamp from static string failed. This should never happen", e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void initialize(boolean wipe) {
+    this.cold.initialize(wipe);
+    this.hot.initialize(true);
+    warm();
+    long interval = Math.max(MIN_MOVE_INTERVAL, this.window / MOVES_PER_WINDOW);
+    this.mover = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "WattDepot hot window");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.mover.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          moveWindow();
+        }
+        catch (RuntimeException e) {
+          logger.warning("Tiered: Unable to move hot window\n" + StackTrace.toString(e));
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Copies the Sources, Users and the SensorData in the window from the cold tier to the hot tier.
+   */
+  private void warm() {
+    long start = System.currentTimeMillis();
+    this.hotStart = start - this.window;
+    for (UserRef ref : this.cold.getUsers().getUserRef()) {
+      User user = this.cold.getUser(ref.getEmail());
+      if (user != null) {
+        this.hot.storeUser(user);
+      }
+    }
+    List<Source> sources = this.cold.getSources().getSource();
+    for (Source source : sources) {
+      this.hot.storeSource(source, true);
+    }
+    XMLGregorianCalendar windowStart = Tstamp.makeTimestamp(this.hotStart);
+    long count = 0;
+    for (Source source : sources) {
+      if (source.isVirtual()) {
+        continue;
+      }
+      SensorDatas datas;
+      try {
+        datas = this.cold.getSensorDatas(source.getName(), windowStart, END_OF_TIME);
+      }
+      catch (DbBadIntervalException e) {
+        // Can't happen, the window starts before the end of time
+        continue;
+      }
+      if (datas != null) {
+        for (SensorData data : datas.getSensorData()) {
+          this.hot.storeSensorData(data, true);
+          count++;
+        }
+      }
+    }
+    this.logger.info("Tiered: warmed " + count + " sensor data from " + sources.size()
+        + " sources in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /**
+   * Moves the start of the window up to the present less the window length, and drops the
+   * SensorData before the previous start from the hot tier. Dropping lags a move behind, so that
+   * a read routed to the hot tier just before the move still finds its data. SensorData between
+   * the two starts is no longer kept up to date, since changes before the window are only made to
+   * the cold tier, so results from the hot tier that use it are not trusted.
+   */
+  void moveWindow() {
+    long previous = this.hotStart;
+    long start = System.currentTimeMillis() - this.window;
+    if (start <= previous) {
+      return;
+    }
+    this.hotStart = start;
+    XMLGregorianCalendar end = Tstamp.makeTimestamp(previous - 1);
+    for (Source source : this.hot.getSources().getSource()) {
+      if (!source.isVirtual()) {
+        try {
+          this.hot.deleteSensorData(source.getName(), BEGINNING_OF_TIME, end, Integer.MAX_VALUE);
+        }
+        catch (DbBadIntervalException e) { // NOPMD
+          // Can't happen, the window starts after the beginning of time
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if the hot tier holds all the SensorData from the given time on.
+   * 
+   * @param timestamp The time, or null.
+   * @return True if the time is inside the window.
+   */
+  private boolean isHot(XMLGregorianCalendar timestamp) {
+    return (timestamp != null)
+        && (timestamp.toGregorianCalendar().getTimeInMillis() >= this.hotStart);
+  }
+
+  /**
+   * Returns true if the hot tier holds all the SensorData from the earliest of the given times on.
+   * 
+   * @param timestampList The times, or null.
+   * @return True if every time is inside the window.
+   */
+  private boolean isHot(List<XMLGregorianCalendar> timestampList) {
+    if ((timestampList == null) || timestampList.isEmpty()) {
+      return false;
+    }
+    for (XMLGregorianCalendar timestamp : timestampList) {
+      if (!isHot(timestamp)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if a straddle from the hot tier can be trusted, because the SensorData at its
+   * earlier end is inside the window.
+   * 
+   * @param straddle The straddle.
+   * @return True if the straddle starts inside the window.
+   */
+  private boolean isCurrent(SensorDataStraddle straddle) {
+    return isHot(straddle.getBeforeData().getTimestamp());
+  }
+
+  /**
+   * Returns true if every straddle in a list from the hot tier can be trusted.
+   * 
+   * @param straddles The straddles.
+   * @return True if every straddle starts inside the window.
+   */
+  private boolean allCurrent(List<SensorDataStraddle> straddles) {
+    for (SensorDataStraddle straddle : straddles) {
+      if (!isCurrent(straddle)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the lock held while changing the SensorData of the named Source in both tiers.
+   * 
+   * @param sourceName The name of the Source, or null.
+   * @return The lock.
+   */
+  private Object lockFor(String sourceName) {
+    int hash = (sourceName == null) ? 0 : sourceName.hashCode();
+    return this.sourceLocks[(hash & Integer.MAX_VALUE) % SOURCE_LOCKS];
+  }
+
+  /**
+   * Returns the hot tier, for testing.
+   * 
+   * @return The hot tier.
+   */
+  DbImplementation getHotTier() {
+    return this.hot;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isFreshlyCreated() {
+    return this.cold.isFreshlyCreated();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean wipeData() {
+    boolean wiped = this.cold.wipeData();
+    return this.hot.wipeData() && wiped;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public SourceIndex getSourceIndex() {
+    return this.hot.getSourceIndex();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Sources getSources() {
+    return this.hot.getSources();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Source getSource(String sourceName) {
+    return this.hot.getSource(sourceName);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public SourceSummary getSourceSummary(String sourceName) {
+    // Covers all the sensor data, which only the cold tier has
+    return this.cold.getSourceSummary(sourceName);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean storeSource(Source source, boolean overwrite) {
+    if (!this.cold.storeSource(source, overwrite)) {
+      return false;
+    }
+    return this.hot.storeSource(source, true);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean deleteSource(String sourceName) {
+    synchronized (lockFor(sourceName)) {
+      boolean deleted = this.cold.deleteSource(sourceName);
+      this.hot.deleteSource(sourceName);
+      return deleted;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public SensorDataIndex getSensorDataIndex(String sourceName) {
+    return this.cold.getSensorDataIndex(sourceName);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public SensorDataIndex getSensorDataIndex(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) throws DbBadIntervalException {
+    if (isHot(startTime)) {
+      return this.hot.getSensorDataIndex(sourceName, startTime, endTime);
+    }
+    return this.cold.getSensorDataIndex(sourceName, startTime, endTime);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public SensorDatas getSensorDatas(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) throws DbBadIntervalException {
+    if (isHot(startTime)) {
+      return this.hot.getSensorDatas(sourceName, startTime, endTime);
+    }
+    return this.cold.getSensorDatas(sourceName, startTime, endTime);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public SensorData getSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    if (isHot(timestamp)) {
+      return this.hot.getSensorData(sourceName, timestamp);
+    }
+    return this.cold.getSensorData(sourceName, timestamp);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected SensorData getLatestNonVirtualSensorData(String sourceName) {
+    // Anything newer in the cold tier would also be in the hot tier
+    SensorData latest = this.hot.getLatestSensorData(sourceName);
+    if ((latest == null) || !isHot(latest.getTimestamp())) {
+      latest = this.cold.getLatestSensorData(sourceName);
+    }
+    return latest;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    if (isHot(timestamp)) {
+      return this.hot.hasSensorData(sourceName, timestamp);
+    }
+    return this.cold.hasSensorData(sourceName, timestamp);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean storeSensorData(SensorData data, boolean overwrite) {
+    if (data == null) {
+      return false;
+    }
+    synchronized (lockFor(UriUtils.getUriSuffix(data.getSource()))) {
+      if (!this.cold.storeSensorData(data, overwrite)) {
+        return false;
+      }
+      if (isHot(data.getTimestamp())) {
+        this.hot.storeSensorData(data, true);
+      }
+      return true;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean deleteSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    synchronized (lockFor(sourceName)) {
+      boolean deleted = this.cold.deleteSensorData(sourceName, timestamp);
+      this.hot.deleteSensorData(sourceName, timestamp);
+      return deleted;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean deleteSensorData(String sourceName) {
+    synchronized (lockFor(sourceName)) {
+      boolean deleted = this.cold.deleteSensorData(sourceName);
+      this.hot.deleteSensorData(sourceName);
+      return deleted;
+    }
+  }
+
+  /**
+   * {@inheritDoc} The chunk is deleted from the cold tier, and then exactly the same SensorData
+   * from the hot tier. Since the cold tier deletes the earliest SensorData in the range first, and
+   * the hot tier holds no SensorData the cold tier does not, those are the SensorData in the range
+   * in the hot tier before the first one the cold tier still has.
+   */
+  @Override
+  public int deleteSensorData(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, int maxCount) throws DbBadIntervalException {
+    synchronized (lockFor(sourceName)) {
+      int deleted = this.cold.deleteSensorData(sourceName, startTime, endTime, maxCount);
+      if (deleted < 0) {
+        return deleted;
+      }
+      SensorDataIndex hotIndex = this.hot.getSensorDataIndex(sourceName, startTime, endTime);
+      if (hotIndex != null) {
+        for (SensorDataRef ref : hotIndex.getSensorDataRef()) {
+          // Once the cold tier has nothing left in the range, neither should the hot tier
+          if ((deleted > 0) && this.cold.hasSensorData(sourceName, ref.getTimestamp())) {
+            break;
+          }
+          this.hot.deleteSensorData(sourceName, ref.getTimestamp());
+        }
+      }
+      return deleted;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public UserIndex getUsers() {
+    return this.hot.getUsers();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public User getUser(String username) {
+    return this.hot.getUser(username);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean storeUser(User user) {
+    if (!this.cold.storeUser(user)) {
+      return false;
+    }
+    return this.hot.storeUser(user);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean deleteUser(String username) {
+    boolean deleted = this.cold.deleteUser(username);
+    this.hot.deleteUser(username);
+    return deleted;
+  }
+
+  /**
+   * Returns a SensorDataStraddle that straddles the given timestamp, from the hot tier if both
+   * ends of the straddle are inside the window, and otherwise from the cold tier.
+   * 
+   * @param sourceName The name of the source to generate the straddle from.
+   * @param timestamp The timestamp of interest in the straddle.
+   * @return A SensorDataStraddle that straddles the given timestamp, or null.
+   */
+  @Override
+  public SensorDataStraddle getSensorDataStraddle(String sourceName,
+      XMLGregorianCalendar timestamp) {
+    if (isHot(timestamp)) {
+      SensorDataStraddle straddle = this.hot.getSensorDataStraddle(sourceName, timestamp);
+      if ((straddle != null) && isCurrent(straddle)) {
+        return straddle;
+      }
+    }
+    return this.cold.getSensorDataStraddle(sourceName, timestamp);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<SensorDataStraddle> getSensorDataStraddleList(String sourceName,
+      XMLGregorianCalendar timestamp) {
+    if (isHot(timestamp)) {
+      List<SensorDataStraddle> straddles =
+          this.hot.getSensorDataStraddleList(sourceName, timestamp);
+      if ((straddles != null) && allCurrent(straddles)) {
+        return straddles;
+      }
+    }
+    return this.cold.getSensorDataStraddleList(sourceName, timestamp);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<StraddleList> getStraddleLists(String sourceName,
+      List<XMLGregorianCalendar> timestampList) {
+    if (isHot(timestampList)) {
+      List<StraddleList> straddles = this.hot.getStraddleLists(sourceName, timestampList);
+      if (straddles != null) {
+        boolean current = true;
+        for (StraddleList list : straddles) {
+          current = current && allCurrent(list.getStraddleList());
+        }
+        if (current) {
+          return straddles;
+        }
+      }
+    }
+    return this.cold.getStraddleLists(sourceName, timestampList);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<List<SensorDataStraddle>> getSensorDataStraddleListOfLists(String sourceName,
+      List<XMLGregorianCalendar> timestampList) {
+    if (isHot(timestampList)) {
+      List<List<SensorDataStraddle>> straddles =
+          this.hot.getSensorDataStraddleListOfLists(sourceName, timestampList);
+      if (straddles != null) {
+        boolean current = true;
+        for (List<SensorDataStraddle> list : straddles) {
+          current = current && allCurrent(list);
+        }
+        if (current) {
+          return straddles;
+        }
+      }
+    }
+    return this.cold.getSensorDataStraddleListOfLists(sourceName, timestampList);
+  }
+
+  /**
+   * Returns statistics computed by the cold tier for ranges that start before the window, if the
+   * cold tier can compute them. Ranges inside the window are computed from the hot tier's
+   * SensorData instead.
+   * 
+   * @param sourceName The name of an existing non-virtual Source.
+   * @param boundaries The bucket boundaries in increasing order, at least two.
+   * @return One SensorDataStatistics per bucket, in order, or null if they are to be computed from
+   * the SensorData.
+   */
+  public List<SensorDataStatistics> aggregateSensorData(String sourceName,
+      List<XMLGregorianCalendar> boundaries) {
+    if (!isHot(boundaries.get(0)) && (this.cold instanceof SensorDataAggregator)) {
+      return ((SensorDataAggregator) this.cold).aggregateSensorData(sourceName, boundaries);
+    }
+    return null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean performMaintenance() {
+    return this.cold.performMaintenance();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean indexTables() {
+    return this.cold.indexTables();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean makeSnapshot() {
+    return this.cold.makeSnapshot();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean makeSnapshot(SnapshotProgress progress) {
+    return this.cold.makeSnapshot(progress);
+  }
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import java.util.ArrayList;
 import java.util.List;
 import javax.xml.datatype.XMLGregorianCalendar;
@@ -195,4 +196,62 @@ public class TestTstamp {
     assertEquals("getTimestampList didn't return expected list", timestampList, Tstamp
         .getTimestampList(startTime, endTime, interval));
   }
+
+  /**
+   * Tests getBucketList method.
+   * 
+   * @throws Exception If there are problems.
+   */
+  @Test
+  public void testGetBucketList() throws Exception {
+    XMLGregorianCalendar startTime = Tstamp.makeTimestamp("2009-12-30T00:00:00.000-10:00");
+    XMLGregorianCalendar endTime = Tstamp.makeTimestamp("2010-03-15T00:00:00.000-10:00");
+    assertNull("getBucketList worked with bad range", Tstamp.getBucketList(endTime, startTime,
+        Tstamp.DAY_BUCKET));
+    // Month buckets follow the calendar, with a runt bucket at the end
+    List<XMLGregorianCalendar> expected = new ArrayList<XMLGregorianCalendar>();
+    expected.add(startTime);
+    expected.add(Tstamp.makeTimestamp("2010-01-30T00:00:00.000-10:00"));
+    expected.add(Tstamp.makeTimestamp("2010-02-28T00:00:00.000-10:00"));
+    expected.add(Tstamp.makeTimestamp("2010-03-15T00:00:00.000-10:00"));
+    assertEquals("getBucketList didn't return expected months", expected, Tstamp.getBucketList(
+        startTime, endTime, Tstamp.MONTH_BUCKET));
+    // Minute buckets
+    endTime = Tstamp.makeTimestamp("2009-12-30T02:00:00.000-10:00");
+    expected.clear();
+    expected.add(startTime);
+    expected.add(Tstamp.makeTimestamp("2009-12-30T00:45:00.000-10:00"));
+    expected.add(Tstamp.makeTimestamp("2009-12-30T01:30:00.000-10:00"));
+    expected.add(endTime);
+    assertEquals("getBucketList didn't return expected minutes", expected, Tstamp.getBucketList(
+        startTime, endTime, "45"));
+    assertEquals("Wrong number of hour buckets", 3, Tstamp.getBucketList(startTime, endTime,
+        Tstamp.HOUR_BUCKET).size());
+    assertEquals("Wrong number of week buckets", 2, Tstamp.getBucketList(startTime, endTime,
+        Tstamp.WEEK_BUCKET).size());
+    // Limits on the number of buckets, checked before or while the boundaries are made
+    assertEquals("Wrong number of limited buckets", 4, Tstamp.getBucketList(startTime, endTime,
+        "40", 3).size());
+    String[] tooMany = { "39", Tstamp.HOUR_BUCKET };
+    int[] limits = { 3, 1 };
+    for (int i = 0; i < tooMany.length; i++) {
+      try {
+        Tstamp.getBucketList(startTime, endTime, tooMany[i], limits[i]);
+        fail("getBucketList exceeded limit with bucket " + tooMany[i]);
+      }
+      catch (IllegalArgumentException e) { // NOPMD
+        // Expected
+      }
+    }
+    String[] badBuckets = { "fortnight", "0", "-5", null };
+    for (String bucket : badBuckets) {
+      try {
+        Tstamp.getBucketList(startTime, endTime, bucket);
+        fail("getBucketList accepted bucket " + bucket);
+      }
+      catch (IllegalArgumentException e) { // NOPMD
+        // Expected
+      }
+    }
+  }
 }
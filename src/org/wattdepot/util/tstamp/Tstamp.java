@@ -27,6 +27,18 @@ public final class Tstamp {
 
   private static long MILLISECS_PER_DAY = 24 * 60 * 60 * 1000;
 
+  /** Bucket size name for buckets of one hour. */
+  public static final String HOUR_BUCKET = "hour";
+
+  /** Bucket size name for buckets of one day. */
+  public static final String DAY_BUCKET = "day";
+
+  /** Bucket size name for buckets of one week. */
+  public static final String WEEK_BUCKET = "week";
+
+  /** Bucket size name for buckets of one calendar month. */
+  public static final String MONTH_BUCKET = "month";
+
   /**
    * Returns true if the passed string can be parsed into an XMLGregorianCalendar object.
    * 
@@ -472,4 +484,100 @@ public final class Tstamp {
     // System.out.format("timestamp=%s%n", endTime); // DEBUG
     return timestampList;
   }
-}
\ No newline at end of file
+
+  /**
+   * Helper function that prepares a List of bucket boundaries between the start time and end time.
+   * The list starts with startTime, each following boundary is one more bucket size after
+   * startTime, and endTime is always the last boundary, so the last bucket may be shorter than the
+   * others. Bucket sizes are calendar based, so month buckets follow the lengths of the months.
+   * 
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param bucket The bucket size, either one of HOUR_BUCKET, DAY_BUCKET, WEEK_BUCKET or
+   * MONTH_BUCKET, or a positive number of minutes.
+   * @return The List of XMLGregorianCalendars, or null if startTime is not before endTime.
+   * @throws IllegalArgumentException If the bucket size is not understood.
+   */
+  public static List<XMLGregorianCalendar> getBucketList(XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, String bucket) {
+    return getBucketList(startTime, endTime, bucket, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Like getBucketList(startTime, endTime, bucket), but refuses a range that would have more than
+   * the given number of buckets. Minute buckets are counted before any boundary is made, and
+   * calendar buckets stop being made once there are too many, so the cost is bounded by the limit
+   * rather than by the length of the range.
+   * 
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param bucket The bucket size, either one of HOUR_BUCKET, DAY_BUCKET, WEEK_BUCKET or
+   * MONTH_BUCKET, or a positive number of minutes.
+   * @param maxBuckets The largest number of buckets allowed.
+   * @return The List of XMLGregorianCalendars, or null if startTime is not before endTime.
+   * @throws IllegalArgumentException If the bucket size is not understood or there would be more
+   * than maxBuckets buckets.
+   */
+  public static List<XMLGregorianCalendar> getBucketList(XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, String bucket, int maxBuckets) {
+    int field, amount;
+    if (HOUR_BUCKET.equals(bucket)) {
+      field = Calendar.HOUR_OF_DAY;
+      amount = 1;
+    }
+    else if (DAY_BUCKET.equals(bucket)) {
+      field = Calendar.DAY_OF_MONTH;
+      amount = 1;
+    }
+    else if (WEEK_BUCKET.equals(bucket)) {
+      field = Calendar.DAY_OF_MONTH;
+      amount = 7;
+    }
+    else if (MONTH_BUCKET.equals(bucket)) {
+      field = Calendar.MONTH;
+      amount = 1;
+    }
+    else {
+      field = Calendar.MINUTE;
+      try {
+        amount = Integer.parseInt(bucket);
+      }
+      catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Unknown bucket size: " + bucket, e);
+      }
+      if (amount <= 0) {
+        throw new IllegalArgumentException("Bucket size must be positive: " + bucket);
+      }
+    }
+    long rangeLength = Tstamp.diff(startTime, endTime);
+    if (rangeLength <= 0) {
+      // either startTime == endTime, or startTime > endTime
+      return null;
+    }
+    long bucketMillis = amount * 60L * 1000L;
+    if ((field == Calendar.MINUTE) && ((rangeLength - 1) / bucketMillis >= maxBuckets)) {
+      throw new IllegalArgumentException("More than " + maxBuckets + " buckets requested");
+    }
+    DatatypeFactory factory = null;
+    try {
+      factory = DatatypeFactory.newInstance();
+    }
+    catch (DatatypeConfigurationException e) {
+      throw new RuntimeException(factoryErrorMsg, e);
+    }
+    List<XMLGregorianCalendar> bucketList = new ArrayList<XMLGregorianCalendar>();
+    XMLGregorianCalendar boundary = startTime;
+    for (int i = 1; Tstamp.lessThan(boundary, endTime); i++) {
+      if (bucketList.size() == maxBuckets) {
+        throw new IllegalArgumentException("More than " + maxBuckets + " buckets requested");
+      }
+      bucketList.add(boundary);
+      // Always step from startTime, so month buckets don't drift after a short month
+      GregorianCalendar calendar = startTime.toGregorianCalendar();
+      calendar.add(field, amount * i);
+      boundary = factory.newXMLGregorianCalendar(calendar);
+    }
+    bucketList.add(endTime);
+    return bucketList;
+  }
+}